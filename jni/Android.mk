@@ -11,6 +11,11 @@ LOCAL_C_INCLUDES := \
 
 LOCAL_CFLAGS := -O3 -DNDEBUG -fstrict-aliasing
 
+# Pyramid.cpp has NEON versions of the pyramid filter kernels.
+ifeq ($(ARCH_ARM_HAVE_NEON),true)
+LOCAL_ARM_NEON := true
+endif
+
 LOCAL_SRC_FILES := \
         feature_mos_jni.cpp \
         mosaic_renderer_jni.cpp \
@@ -18,9 +23,14 @@ LOCAL_SRC_FILES := \
         feature_mos/src/mosaic/AlignFeatures.cpp \
         feature_mos/src/mosaic/Blend.cpp \
         feature_mos/src/mosaic/Delaunay.cpp \
+        feature_mos/src/mosaic/FrameLog.cpp \
+        feature_mos/src/mosaic/FramePool.cpp \
+        feature_mos/src/mosaic/FrameSpill.cpp \
+        feature_mos/src/mosaic/MosaicCanvas.cpp \
         feature_mos/src/mosaic/ImageUtils.cpp \
         feature_mos/src/mosaic/Mosaic.cpp \
         feature_mos/src/mosaic/Pyramid.cpp \
+        feature_mos/src/mosaic_renderer/CpuRenderer.cpp \
         feature_mos/src/mosaic_renderer/Renderer.cpp \
         feature_mos/src/mosaic_renderer/WarpRenderer.cpp \
         feature_mos/src/mosaic_renderer/SurfaceTextureRenderer.cpp \
@@ -36,6 +46,7 @@ LOCAL_SRC_FILES := \
         feature_stab/db_vlvm/db_utilities_indexing.cpp \
         feature_stab/db_vlvm/db_utilities_linalg.cpp \
         feature_stab/db_vlvm/db_utilities_poly.cpp \
+        feature_stab/db_vlvm/db_worker_pool.cpp \
         feature_stab/src/dbreg/dbreg.cpp \
         feature_stab/src/dbreg/dbstabsmooth.cpp \
         feature_stab/src/dbreg/vp_motionmodel.c
@@ -22,6 +22,7 @@
 
 #include <stdio.h>
 #include <string.h>
+#include <time.h>
 
 #include "trsMatrix.h"
 #include "MatrixUtils.h"
@@ -30,9 +31,19 @@
 
 #define LOG_TAG "AlignFeatures"
 
+static double now_ms()
+{
+  struct timespec res;
+  clock_gettime(CLOCK_MONOTONIC, &res);
+  return 1000.0 * res.tv_sec + (double) res.tv_nsec / 1e6;
+}
+
 Align::Align()
 {
   width = height = 0;
+  last_align_ms = total_align_ms = 0.0;
+  num_align_calls = 0;
+  last_nr_corners = last_nr_inliers = 0;
   frame_number = 0;
   num_frames_captured = 0;
   reference_frame_index = 0;
@@ -52,6 +63,17 @@ char* Align::getRegProfileString()
   return reg.profile_string;
 }
 
+void Align::setAlignmentWorkers(int workers)
+{
+  reg.SetCornerDetectionWorkers(workers);
+  reg.SetHypothesisScoringWorkers(workers);
+}
+
+double Align::getAverageAlignTime()
+{
+  return (num_align_calls > 0) ? total_align_ms / num_align_calls : 0.0;
+}
+
 int Align::initialize(int width, int height, bool _quarter_res, float _thresh_still)
 {
   int    nr_corners = DEFAULT_NR_CORNERS;
@@ -74,6 +96,9 @@ int Align::initialize(int width, int height, bool _quarter_res, float _thresh_st
   frame_number = 0;
   num_frames_captured = 0;
   reference_frame_index = 0;
+  last_align_ms = total_align_ms = 0.0;
+  num_align_calls = 0;
+  last_nr_corners = last_nr_inliers = 0;
   db_Identity3x3(Hcurr);
   db_Identity3x3(Hprev);
 
@@ -102,6 +127,18 @@ int Align::addFrameRGB(ImageType imageRGB)
 }
 
 int Align::addFrame(ImageType imageGray_)
+{
+  double t0 = now_ms();
+  int ret_code = alignFrame(imageGray_);
+
+  last_align_ms = now_ms() - t0;
+  total_align_ms += last_align_ms;
+  num_align_calls++;
+
+  return ret_code;
+}
+
+int Align::alignFrame(ImageType imageGray_)
 {
   int ret_code = ALIGN_RET_OK;
 
@@ -112,6 +149,8 @@ int Align::addFrame(ImageType imageGray_)
   {
       reg.AddFrame(m_rows, Hcurr, true);    // Force this to be a reference frame
       int num_corner_ref = reg.GetNrRefCorners();
+      last_nr_corners = num_corner_ref;
+      last_nr_inliers = 0;
 
       if (num_corner_ref < MIN_NR_REF_CORNERS)
       {
@@ -121,6 +160,8 @@ int Align::addFrame(ImageType imageGray_)
   else
   {
       reg.AddFrame(m_rows, Hcurr, false);
+      last_nr_corners = reg.GetNrInsCorners();
+      last_nr_inliers = reg.GetNrInliers();
   }
 
   // Average translation per frame =
@@ -69,8 +69,34 @@ public:
   int getLastTRS(double trs[3][3]);
   char* getRegProfileString();
 
+  // Number of threads used for corner detection and for scoring the
+  // homography hypotheses, including the calling thread. The alignment
+  // result does not depend on this setting.
+  void setAlignmentWorkers(int workers);
+
+  // Time taken by the last call to addFrame and the average over all the
+  // calls since initialize, in milliseconds
+  double getLastAlignTime() { return last_align_ms; }
+  double getAverageAlignTime();
+
+  // Time spent in corner detection, feature matching and the robust
+  // homography estimate during the last call to addFrame, in milliseconds
+  void getLastStageTimes(double &detect_ms, double &match_ms, double &ransac_ms)
+  {
+    reg.GetLastStageTimes(detect_ms, match_ms, ransac_ms);
+  }
+
+  // Corners detected in the frame of the last call to addFrame, and the
+  // inliers of its alignment (0 for the first frame, which is the
+  // reference)
+  int getLastCornerCount() { return last_nr_corners; }
+  int getLastInlierCount() { return last_nr_inliers; }
+
 protected:
 
+  // Does the work of addFrame
+  int alignFrame(ImageType image);
+
   db_FrameToReferenceRegistration reg;
 
   int frame_number;
@@ -84,6 +110,13 @@ protected:
 
   int width,height;
 
+  double last_align_ms;  // Duration of the last addFrame call
+  double total_align_ms; // Total duration of all the addFrame calls
+  int num_align_calls;   // Number of addFrame calls
+
+  int last_nr_corners;
+  int last_nr_inliers;
+
   bool quarter_res;     // Whether to process at quarter resolution
   float thresh_still;   // Translation threshold in pixels to detect still camera
   ImageType imageGray;
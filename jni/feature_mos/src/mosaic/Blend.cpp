@@ -19,6 +19,7 @@
 // $Id: Blend.cpp,v 1.22 2011/06/24 04:22:14 mbansal Exp $
 
 #include <string.h>
+#include <time.h>
 
 #include "Interp.h"
 #include "Blend.h"
@@ -29,9 +30,23 @@
 #include "Log.h"
 #define LOG_TAG "BLEND"
 
+// Planes of the mosaic canvas
+static const int MOS_Y = MosaicCanvas::PLANE_Y;
+static const int MOS_V = MosaicCanvas::PLANE_V;
+static const int MOS_U = MosaicCanvas::PLANE_U;
+
+static double now_ms()
+{
+    struct timespec res;
+    clock_gettime(CLOCK_MONOTONIC, &res);
+    return 1000.0 * res.tv_sec + (double) res.tv_nsec / 1e6;
+}
+
 Blend::Blend()
 {
   m_wb.blendingType = BLEND_TYPE_NONE;
+  m_bands = NULL;
+  m_nbands = 0;
 }
 
 Blend::~Blend()
@@ -98,7 +113,7 @@ void Blend::AlignToMiddleFrame(MosaicFrame **frames, int frames_size)
 
 int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
         int frames_size,
-        ImageType &imageMosaicYVU, int &mosaicWidth, int &mosaicHeight,
+        MosaicCanvas &imgMos, int &mosaicWidth, int &mosaicHeight,
         float &progress, bool &cancelComputation)
 {
     int ret;
@@ -106,6 +121,8 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
 
     MosaicFrame **frames;
 
+    m_timings.reset();
+
     // For THIN strip mode, accept all frames for blending
     if (m_wb.stripType == STRIP_TYPE_THIN)
     {
@@ -248,22 +265,21 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
     }
 
     LOGI("Allocate mosaic image for blending - size: %d x %d", Mwidth, Mheight);
-    YUVinfo *imgMos = YUVinfo::allocateImage(Mwidth, Mheight);
-    if (imgMos == NULL)
+    // Set the Y image to 255 so we can distinguish when frame idx are
+    // written to it, and the v and u images to black
+    const unsigned char fill[MosaicCanvas::NUM_PLANES] = { 255, 128, 128 };
+    if (!imgMos.allocate(Mwidth, Mheight, fill))
     {
         LOGE("RunBlend: aborting - couldn't alloc %d x %d mosaic image", Mwidth, Mheight);
         return BLEND_RET_ERROR_MEMORY;
     }
 
-    // Set the Y image to 255 so we can distinguish when frame idx are written to it
-    memset(imgMos->Y.ptr[0], 255, (imgMos->Y.width * imgMos->Y.height));
-    // Set the v and u images to black
-    memset(imgMos->V.ptr[0], 128, (imgMos->V.width * imgMos->V.height) << 1);
-
     // Do the triangulation.  It returns a sorted list of edges
+    double t0 = now_ms();
     SEdgeVector *edge;
     int n = m_Triangulator.triangulate(&edge, numCenters, width, height);
     m_Triangulator.linkNeighbors(edge, n, numCenters);
+    m_timings.delaunay = now_ms() - t0;
 
     // Bounding rectangle that determines the positioning of the rectangle that is
     // cropped out of the computed mosaic to get rid of the gray borders.
@@ -281,17 +297,20 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
     }
 
     // Do merging and blending :
-    ret = DoMergeAndBlend(frames, numCenters, width, height, *imgMos, fullRect,
+    t0 = now_ms();
+    ret = DoMergeAndBlend(frames, numCenters, width, height, imgMos, fullRect,
             cropping_rect, progress, cancelComputation);
+    // The pyramid time is accumulated by DoMergeAndBlend
+    m_timings.blend = now_ms() - t0 - m_timings.pyramid;
 
+    t0 = now_ms();
     if (m_wb.blendingType == BLEND_TYPE_HORZ)
-        CropFinalMosaic(*imgMos, cropping_rect);
+        CropFinalMosaic(imgMos, cropping_rect);
+    m_timings.crop = now_ms() - t0;
 
 
     m_Triangulator.freeMemory();    // note: can be called even if delaunay_alloc() wasn't successful
 
-    imageMosaicYVU = imgMos->Y.ptr[0];
-
 
     if (m_wb.blendingType == BLEND_TYPE_HORZ)
     {
@@ -372,22 +391,9 @@ int Blend::FillFramePyramid(MosaicFrame *mb)
 }
 
 int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
-             int width, int height, YUVinfo &imgMos, MosaicRect &rect,
+             int width, int height, MosaicCanvas &imgMos, MosaicRect &rect,
              MosaicRect &cropping_rect, float &progress, bool &cancelComputation)
 {
-    m_pMosaicYPyr = NULL;
-    m_pMosaicUPyr = NULL;
-    m_pMosaicVPyr = NULL;
-
-    m_pMosaicYPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevs,(unsigned short)rect.Width(),(unsigned short)rect.Height(),BORDER);
-    m_pMosaicUPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevsC,(unsigned short)rect.Width(),(unsigned short)rect.Height(),BORDER);
-    m_pMosaicVPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevsC,(unsigned short)rect.Width(),(unsigned short)rect.Height(),BORDER);
-    if (!m_pMosaicYPyr || !m_pMosaicUPyr || !m_pMosaicVPyr)
-    {
-      LOGE("Error: Could not allocate pyramids for blending");
-      return BLEND_RET_ERROR_MEMORY;
-    }
-
     MosaicFrame *mb;
 
     CSite *esite = m_AllSites + nsite;
@@ -398,12 +404,7 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
     for(CSite *csite = m_AllSites; csite < esite; csite++)
     {
         if(cancelComputation)
-        {
-            if (m_pMosaicVPyr) free(m_pMosaicVPyr);
-            if (m_pMosaicUPyr) free(m_pMosaicUPyr);
-            if (m_pMosaicYPyr) free(m_pMosaicYPyr);
             return BLEND_RET_CANCELLED;
-        }
 
         mb = csite->getMb();
 
@@ -451,37 +452,37 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
             // only if the cross-fading width is larger than 0
             if (tw > 0)
             {
-                for(int y = 0; y < imgMos.Y.height; y++)
+                for(int y = 0; y < imgMos.getHeight(); y++)
                 {
                     // Since we compare two adjecant pixels to determine
                     // whether there is a seam, the termination condition of x
-                    // is set to imgMos.Y.width - tw, so that x+1 below
+                    // is set to imgMos.getWidth() - tw, so that x+1 below
                     // won't exceed the imgMos' boundary.
-                    for(int x = tw; x < imgMos.Y.width - tw; )
+                    for(int x = tw; x < imgMos.getWidth() - tw; )
                     {
                         // Determine where the seam is...
-                        if (imgMos.Y.ptr[y][x] != imgMos.Y.ptr[y][x+1] &&
-                                imgMos.Y.ptr[y][x] != 255 &&
-                                imgMos.Y.ptr[y][x+1] != 255)
+                        if (imgMos.at(MOS_Y, x, y) != imgMos.at(MOS_Y, x+1, y) &&
+                                imgMos.at(MOS_Y, x, y) != 255 &&
+                                imgMos.at(MOS_Y, x+1, y) != 255)
                         {
                             // Find the image indices on both sides of the seam
-                            unsigned char idx1 = imgMos.Y.ptr[y][x];
-                            unsigned char idx2 = imgMos.Y.ptr[y][x+1];
+                            unsigned char idx1 = imgMos.at(MOS_Y, x, y);
+                            unsigned char idx2 = imgMos.at(MOS_Y, x+1, y);
 
                             for (int o = tw; o >= 0; o--)
                             {
                                 // Set the image index to use for cross-fading
-                                imgMos.V.ptr[y][x - o] = idx2;
+                                imgMos.at(MOS_V, x - o, y) = idx2;
                                 // Set the intensity weights to use for cross-fading
-                                imgMos.U.ptr[y][x - o] = 50 + (99 - 50) * o / tw;
+                                imgMos.at(MOS_U, x - o, y) = 50 + (99 - 50) * o / tw;
                             }
 
                             for (int o = 1; o <= tw; o++)
                             {
                                 // Set the image index to use for cross-fading
-                                imgMos.V.ptr[y][x + o] = idx1;
+                                imgMos.at(MOS_V, x + o, y) = idx1;
                                 // Set the intensity weights to use for cross-fading
-                                imgMos.U.ptr[y][x + o] = imgMos.U.ptr[y][x - o];
+                                imgMos.at(MOS_U, x + o, y) = imgMos.at(MOS_U, x - o, y);
                             }
 
                             x += (tw + 1);
@@ -504,37 +505,37 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
             // only if the cross-fading width is larger than 0
             if (tw > 0)
             {
-                for(int x = 0; x < imgMos.Y.width; x++)
+                for(int x = 0; x < imgMos.getWidth(); x++)
                 {
                     // Since we compare two adjecant pixels to determine
                     // whether there is a seam, the termination condition of y
-                    // is set to imgMos.Y.height - tw, so that y+1 below
+                    // is set to imgMos.getHeight() - tw, so that y+1 below
                     // won't exceed the imgMos' boundary.
-                    for(int y = tw; y < imgMos.Y.height - tw; )
+                    for(int y = tw; y < imgMos.getHeight() - tw; )
                     {
                         // Determine where the seam is...
-                        if (imgMos.Y.ptr[y][x] != imgMos.Y.ptr[y+1][x] &&
-                                imgMos.Y.ptr[y][x] != 255 &&
-                                imgMos.Y.ptr[y+1][x] != 255)
+                        if (imgMos.at(MOS_Y, x, y) != imgMos.at(MOS_Y, x, y+1) &&
+                                imgMos.at(MOS_Y, x, y) != 255 &&
+                                imgMos.at(MOS_Y, x, y+1) != 255)
                         {
                             // Find the image indices on both sides of the seam
-                            unsigned char idx1 = imgMos.Y.ptr[y][x];
-                            unsigned char idx2 = imgMos.Y.ptr[y+1][x];
+                            unsigned char idx1 = imgMos.at(MOS_Y, x, y);
+                            unsigned char idx2 = imgMos.at(MOS_Y, x, y+1);
 
                             for (int o = tw; o >= 0; o--)
                             {
                                 // Set the image index to use for cross-fading
-                                imgMos.V.ptr[y - o][x] = idx2;
+                                imgMos.at(MOS_V, x, y - o) = idx2;
                                 // Set the intensity weights to use for cross-fading
-                                imgMos.U.ptr[y - o][x] = 50 + (99 - 50) * o / tw;
+                                imgMos.at(MOS_U, x, y - o) = 50 + (99 - 50) * o / tw;
                             }
 
                             for (int o = 1; o <= tw; o++)
                             {
                                 // Set the image index to use for cross-fading
-                                imgMos.V.ptr[y + o][x] = idx1;
+                                imgMos.at(MOS_V, x, y + o) = idx1;
                                 // Set the intensity weights to use for cross-fading
-                                imgMos.U.ptr[y + o][x] = imgMos.U.ptr[y - o][x];
+                                imgMos.at(MOS_U, x, y + o) = imgMos.at(MOS_U, x, y - o);
                             }
 
                             y += (tw + 1);
@@ -550,34 +551,85 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
 
     }
 
-    // Now perform the actual blending using the frame assignment determined above
+    // Now perform the actual blending using the frame assignment determined
+    // above. The mosaic is blended in bands along its long side, each with
+    // its own pyramids, and a band only holds them while frames still reach
+    // it. The pyramids of a band extend BORDER pixels beyond it at each
+    // level, which is all that collapsing them reads, so the result is the
+    // same as with pyramids over the whole mosaic.
+    AllocateBands(nsite, imgMos, rect);
+    int ret = BLEND_RET_OK;
+
+    // Whether each row (column for a vertical mosaic) contains invalid
+    // mosaic data (i.e. gray border) between the cropping limits.
+    bool *rowGray = new bool[imgMos.getHeight()];
+    bool *colGray = new bool[imgMos.getWidth()];
+    memset(rowGray, 0, imgMos.getHeight() * sizeof(bool));
+    memset(colGray, 0, imgMos.getWidth() * sizeof(bool));
+
     site_idx = 0;
-    for(CSite *csite = m_AllSites; csite < esite; csite++)
+    for(CSite *csite = m_AllSites; csite < esite; csite++, site_idx++)
     {
         if(cancelComputation)
         {
-            if (m_pMosaicVPyr) free(m_pMosaicVPyr);
-            if (m_pMosaicUPyr) free(m_pMosaicUPyr);
-            if (m_pMosaicYPyr) free(m_pMosaicYPyr);
-            return BLEND_RET_CANCELLED;
+            ret = BLEND_RET_CANCELLED;
+            break;
         }
 
         mb = csite->getMb();
 
+        // The bands a frame reaches are next to each other
+        int firstBand = -1, lastBand = -1;
+        for (int k = 0; k < m_nbands; k++)
+        {
+            if (FrameReachesBand(mb, rect, m_bands[k]))
+            {
+                if (firstBand < 0)
+                    firstBand = k;
+                lastBand = k;
+            }
+        }
 
-        if(FillFramePyramid(mb)!=BLEND_RET_OK)
-            return BLEND_RET_ERROR;
+        if (firstBand >= 0)
+        {
+            for (int k = firstBand; k <= lastBand && ret == BLEND_RET_OK; k++)
+                ret = AllocateBandPyramids(m_bands[k]);
+            if (ret != BLEND_RET_OK)
+                break;
 
-        ProcessPyramidForThisFrame(csite, mb->vcrect, mb->brect, rect, imgMos, mb->trs, site_idx);
+            double t0 = now_ms();
+            if(FillFramePyramid(mb)!=BLEND_RET_OK)
+            {
+                ret = BLEND_RET_ERROR;
+                break;
+            }
+            m_timings.pyramid += now_ms() - t0;
+
+            ProcessPyramidForThisFrame(csite, mb->vcrect, mb->brect, rect, imgMos, mb->trs, site_idx,
+                    firstBand, lastBand);
+        }
 
         progress += TIME_PERCENT_BLEND/nsite;
 
-        site_idx++;
+        ret = FlushBands(site_idx, imgMos, cropping_rect, rowGray, colGray);
+        if (ret != BLEND_RET_OK)
+            break;
     }
 
+    if (ret == BLEND_RET_OK)
+        ret = FlushBands(nsite, imgMos, cropping_rect, rowGray, colGray);
+    FreeBands();
+    m_timings.scratch_bytes = m_peakBandBytes + imgMos.getMemoryBytes();
+
+    // Crop the rows (columns for a vertical mosaic) with gray border
+    if (ret == BLEND_RET_OK)
+        PerformFinalBlending(imgMos, cropping_rect, rowGray, colGray);
 
-    // Blend
-    PerformFinalBlending(imgMos, cropping_rect);
+    delete [] rowGray;
+    delete [] colGray;
+
+    if (ret != BLEND_RET_OK)
+        return ret;
 
     if (cropping_rect.Width() <= 0 || cropping_rect.Height() <= 0)
     {
@@ -586,151 +638,297 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
         return BLEND_RET_ERROR;
     }
 
-    if (m_pMosaicVPyr) free(m_pMosaicVPyr);
-    if (m_pMosaicUPyr) free(m_pMosaicUPyr);
-    if (m_pMosaicYPyr) free(m_pMosaicYPyr);
-
     progress += TIME_PERCENT_FINAL;
 
     return BLEND_RET_OK;
 }
 
-void Blend::CropFinalMosaic(YUVinfo &imgMos, MosaicRect &cropping_rect)
+void Blend::AllocateBands(int nsite, MosaicCanvas &imgMos, MosaicRect &rect)
 {
-    int i, j, k;
-    ImageType yimg;
-    ImageType uimg;
-    ImageType vimg;
-
-
-    yimg = imgMos.Y.ptr[0];
-    uimg = imgMos.U.ptr[0];
-    vimg = imgMos.V.ptr[0];
-
-    k = 0;
-    for (j = cropping_rect.top; j <= cropping_rect.bottom; j++)
+    int unit = 1 << (m_wb.nlevs - 1);
+    int bandLength = BLEND_BAND_PXLS;
+    // A band reads the masks up to BORDER pixels of its top level away from
+    // it, which must not reach past the band next to it: a band is written
+    // to the canvas once the bands on both sides are merged.
+    if (bandLength < BORDER * unit)
+        bandLength = BORDER * unit;
+    bandLength = (bandLength + unit - 1) / unit * unit;
+
+    int mosaicLength = m_wb.horizontal ? rect.Width() : rect.Height();
+    m_nbands = (mosaicLength + bandLength - 1) / bandLength;
+    m_bands = new BlendBand[m_nbands];
+    m_bandBytes = m_peakBandBytes = 0;
+
+    for (int k = 0; k < m_nbands; k++)
     {
-        for (i = cropping_rect.left; i <= cropping_rect.right; i++)
+        BlendBand &band = m_bands[k];
+        int start = k * bandLength;
+        int end = (k == m_nbands - 1) ? mosaicLength : start + bandLength;
+
+        // The last band writes the canvas up to its edge
+        if (m_wb.horizontal)
+        {
+            band.rect.left = start;
+            band.rect.right = end;
+            band.rect.top = 0;
+            band.rect.bottom = rect.Height();
+            band.held.left = start;
+            band.held.right = (k == m_nbands - 1) ? imgMos.getWidth() : end;
+            band.held.top = 0;
+            band.held.bottom = imgMos.getHeight();
+        }
+        else
         {
-            yimg[k] = yimg[j*imgMos.Y.width+i];
-            k++;
+            band.rect.left = 0;
+            band.rect.right = rect.Width();
+            band.rect.top = start;
+            band.rect.bottom = end;
+            band.held.left = 0;
+            band.held.right = imgMos.getWidth();
+            band.held.top = start;
+            band.held.bottom = (k == m_nbands - 1) ? imgMos.getHeight() : end;
         }
     }
-    for (j = cropping_rect.top; j <= cropping_rect.bottom; j++)
+
+    // Last frame that reaches each band
+    int site_idx = 0;
+    for (CSite *csite = m_AllSites; csite < m_AllSites + nsite; csite++, site_idx++)
     {
-       for (i = cropping_rect.left; i <= cropping_rect.right; i++)
+        for (int k = 0; k < m_nbands; k++)
         {
-            yimg[k] = vimg[j*imgMos.Y.width+i];
-            k++;
+            if (FrameReachesBand(csite->getMb(), rect, m_bands[k]))
+                m_bands[k].lastFrame = site_idx;
         }
     }
-    for (j = cropping_rect.top; j <= cropping_rect.bottom; j++)
+
+}
+
+bool Blend::FrameReachesBand(MosaicFrame *mb, MosaicRect &rect, BlendBand &band)
+{
+    // Farthest a frame writes outside its clipped rect, at the top pyramid
+    // level, plus the border of the band pyramids at that level
+    double reach = (2 * BORDER + 2) << (m_wb.nlevs - 1);
+
+    return mb->vcrect.lft - rect.left - reach < band.rect.right &&
+            mb->vcrect.rgt - rect.left + reach >= band.rect.left &&
+            mb->vcrect.bot - rect.top - reach < band.rect.bottom &&
+            mb->vcrect.top - rect.top + reach >= band.rect.top;
+}
+
+int Blend::AllocateBandPyramids(BlendBand &band)
+{
+    if (band.pyrY != NULL)
+        return BLEND_RET_OK;
+
+    band.pyrY = PyramidShort::allocatePyramidPacked(m_wb.nlevs,(unsigned short)band.rect.Width(),(unsigned short)band.rect.Height(),BORDER);
+    band.pyrU = PyramidShort::allocatePyramidPacked(m_wb.nlevsC,(unsigned short)band.rect.Width(),(unsigned short)band.rect.Height(),BORDER);
+    band.pyrV = PyramidShort::allocatePyramidPacked(m_wb.nlevsC,(unsigned short)band.rect.Width(),(unsigned short)band.rect.Height(),BORDER);
+    if (!band.pyrY || !band.pyrU || !band.pyrV)
+    {
+        LOGE("Error: Could not allocate pyramids for blending");
+        return BLEND_RET_ERROR_MEMORY;
+    }
+
+    int lines;
+    unsigned int shorts = PyramidShort::calcStorage(band.rect.Width(), band.rect.Height(),
+            BORDER << 1, m_wb.nlevs, &lines) + 2 * PyramidShort::calcStorage(
+            band.rect.Width(), band.rect.Height(), BORDER << 1, m_wb.nlevsC, &lines);
+    band.pyramidBytes = (long long) shorts * sizeof(short);
+    AddBandBytes(band.pyramidBytes);
+    return BLEND_RET_OK;
+}
+
+void Blend::AddBandBytes(long long bytes)
+{
+    m_bandBytes += bytes;
+    if (m_bandBytes > m_peakBandBytes)
+        m_peakBandBytes = m_bandBytes;
+}
+
+int Blend::FlushBands(int site_idx, MosaicCanvas &imgMos, MosaicRect &cropping_rect,
+        bool *rowGray, bool *colGray)
+{
+    for (int k = 0; k < m_nbands; k++)
     {
-       for (i = cropping_rect.left; i <= cropping_rect.right; i++)
+        BlendBand &band = m_bands[k];
+
+        // No frame left to merge into the band
+        if (!band.written && band.pixels == NULL && band.lastFrame <= site_idx)
+        {
+            int ret = AllocateBandPyramids(band);
+            if (ret == BLEND_RET_OK)
+                ret = CollapseBand(band);
+            if (ret != BLEND_RET_OK)
+                return ret;
+        }
+
+        // Nor into the bands next to it, which read its masks
+        if (band.pixels != NULL &&
+                (k == 0 || m_bands[k - 1].lastFrame <= site_idx) &&
+                (k == m_nbands - 1 || m_bands[k + 1].lastFrame <= site_idx))
         {
-            yimg[k] = uimg[j*imgMos.Y.width+i];
-            k++;
+            WriteBand(band, imgMos, cropping_rect, rowGray, colGray);
         }
     }
+    return BLEND_RET_OK;
+}
+
+void Blend::FreeBands()
+{
+    for (int k = 0; k < m_nbands; k++)
+    {
+        free(m_bands[k].pyrY);
+        free(m_bands[k].pyrU);
+        free(m_bands[k].pyrV);
+        delete [] m_bands[k].pixels;
+    }
+    delete [] m_bands;
+    m_bands = NULL;
+    m_nbands = 0;
 }
 
-int Blend::PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect)
+int Blend::CollapseBand(BlendBand &band)
 {
-    if (!PyramidShort::BorderExpand(m_pMosaicYPyr, m_wb.nlevs, 1) || !PyramidShort::BorderExpand(m_pMosaicUPyr, m_wb.nlevsC, 1) ||
-        !PyramidShort::BorderExpand(m_pMosaicVPyr, m_wb.nlevsC, 1))
+    double t0 = now_ms();
+    if (!PyramidShort::BorderExpand(band.pyrY, m_wb.nlevs, 1) || !PyramidShort::BorderExpand(band.pyrU, m_wb.nlevsC, 1) ||
+        !PyramidShort::BorderExpand(band.pyrV, m_wb.nlevsC, 1))
     {
       LOGE("Error: Could not BorderExpand!");
       return BLEND_RET_ERROR;
     }
+    m_timings.pyramid += now_ms() - t0;
+
+    // Keep the blended pixels until the bands next to this one no longer
+    // read the masks they will overwrite
+    int w = band.held.Width();
+    int h = band.held.Height();
+    long long pixelBytes = (long long) MosaicCanvas::NUM_PLANES * w * h;
+    band.pixels = new unsigned char[pixelBytes];
+    AddBandBytes(pixelBytes);
+
+    ImageType yimg = band.pixels;
+    ImageType uimg = yimg + w * h;
+    ImageType vimg = uimg + w * h;
+    for (int j = band.held.top; j < band.held.bottom; j++)
+    {
+        ImageTypeShort myimg = band.pyrY->ptr[j - band.rect.top] + band.held.left - band.rect.left;
+        ImageTypeShort muimg = band.pyrU->ptr[j - band.rect.top] + band.held.left - band.rect.left;
+        ImageTypeShort mvimg = band.pyrV->ptr[j - band.rect.top] + band.held.left - band.rect.left;
 
-    ImageTypeShort myimg;
-    ImageTypeShort muimg;
-    ImageTypeShort mvimg;
-    ImageType yimg;
-    ImageType uimg;
-    ImageType vimg;
+        for (int i = 0; i < w; i++)
+        {
+            short value = (short) ((*myimg++) >> 3);
+            if (value < 0) value = 0;
+            else if (value > 255) value = 255;
+            *yimg++ = (unsigned char) value;
+
+            value = (short) ((*muimg++) >> 3);
+            if (value < 0) value = 0;
+            else if (value > 255) value = 255;
+            *uimg++ = (unsigned char) value;
+
+            value = (short) ((*mvimg++) >> 3);
+            if (value < 0) value = 0;
+            else if (value > 255) value = 255;
+            *vimg++ = (unsigned char) value;
+        }
+    }
 
-    int cx = (int)imgMos.Y.width/2;
-    int cy = (int)imgMos.Y.height/2;
+    free(band.pyrY);
+    free(band.pyrU);
+    free(band.pyrV);
+    band.pyrY = band.pyrU = band.pyrV = NULL;
+    AddBandBytes(-band.pyramidBytes);
+    return BLEND_RET_OK;
+}
 
-    // 2D boolean array that contains true wherever the mosaic image data is
-    // invalid (i.e. in the gray border).
-    bool **b = new bool*[imgMos.Y.height];
+void Blend::WriteBand(BlendBand &band, MosaicCanvas &imgMos, MosaicRect &cropping_rect,
+        bool *rowGray, bool *colGray)
+{
+    int w = band.held.Width();
+    int h = band.held.Height();
+    ImageType hyimg = band.pixels;
+    ImageType huimg = hyimg + w * h;
+    ImageType hvimg = huimg + w * h;
 
-    for(int j=0; j<imgMos.Y.height; j++)
-    {
-        b[j] = new bool[imgMos.Y.width];
-    }
+    ImageType yimg;
+    ImageType uimg;
+    ImageType vimg;
 
     // Copy the resulting image into the full image using the mask
     int i, j;
 
-    yimg = imgMos.Y.ptr[0];
-    uimg = imgMos.U.ptr[0];
-    vimg = imgMos.V.ptr[0];
-
-    for (j = 0; j < imgMos.Y.height; j++)
+    for (j = band.held.top; j < band.held.bottom; j++)
     {
-        myimg = m_pMosaicYPyr->ptr[j];
-        muimg = m_pMosaicUPyr->ptr[j];
-        mvimg = m_pMosaicVPyr->ptr[j];
-
-        for (i = 0; i<imgMos.Y.width; i++)
+        // One tile wide span at a time
+        for (int x0 = band.held.left; x0 < band.held.right; )
         {
-            // A final mask was set up previously,
-            // if the value is zero skip it, otherwise replace it.
-            if (*yimg <255)
+            int x1 = (x0 | MosaicCanvas::TILE_MASK) + 1;
+            if (x1 > band.held.right)
+                x1 = band.held.right;
+            yimg = imgMos.pixel(MOS_Y, x0, j);
+            uimg = imgMos.pixel(MOS_U, x0, j);
+            vimg = imgMos.pixel(MOS_V, x0, j);
+
+            for (i = x0; i < x1; i++)
             {
-                short value = (short) ((*myimg) >> 3);
-                if (value < 0) value = 0;
-                else if (value > 255) value = 255;
-                *yimg = (unsigned char) value;
-
-                value = (short) ((*muimg) >> 3);
-                if (value < 0) value = 0;
-                else if (value > 255) value = 255;
-                *uimg = (unsigned char) value;
-
-                value = (short) ((*mvimg) >> 3);
-                if (value < 0) value = 0;
-                else if (value > 255) value = 255;
-                *vimg = (unsigned char) value;
-
-                b[j][i] = false;
-
-            }
-            else
-            {   // set border color in here
-                *yimg = (unsigned char) 96;
-                *uimg = (unsigned char) 128;
-                *vimg = (unsigned char) 128;
+                // A final mask was set up previously,
+                // if the value is zero skip it, otherwise replace it.
+                if (*yimg <255)
+                {
+                    *yimg = *hyimg;
+                    *uimg = *huimg;
+                    *vimg = *hvimg;
+                }
+                else
+                {   // set border color in here
+                    *yimg = (unsigned char) 96;
+                    *uimg = (unsigned char) 128;
+                    *vimg = (unsigned char) 128;
+
+                    if (i >= cropping_rect.left && i < cropping_rect.right)
+                        rowGray[j] = true;
+                    if (j >= cropping_rect.top && j < cropping_rect.bottom)
+                        colGray[i] = true;
+                }
 
-                b[j][i] = true;
+                yimg++;
+                uimg++;
+                vimg++;
+                hyimg++;
+                huimg++;
+                hvimg++;
             }
-
-            yimg++;
-            uimg++;
-            vimg++;
-            myimg++;
-            muimg++;
-            mvimg++;
+            x0 = x1;
         }
     }
 
+    delete [] band.pixels;
+    band.pixels = NULL;
+    band.written = true;
+    AddBandBytes(-(long long) MosaicCanvas::NUM_PLANES * w * h);
+}
+
+void Blend::CropFinalMosaic(MosaicCanvas &imgMos, MosaicRect &cropping_rect)
+{
+    // The canvas exports only the cropped part, so nothing is copied here
+    imgMos.setCrop(cropping_rect.left, cropping_rect.top,
+            cropping_rect.right, cropping_rect.bottom);
+}
+
+// The bands are already in imgMos; this only moves the cropping limits past
+// the gray border that WriteBand() found
+void Blend::PerformFinalBlending(MosaicCanvas &imgMos, MosaicRect &cropping_rect,
+        bool *rowGray, bool *colGray)
+{
+    int i, j;
+
     if(m_wb.horizontal)
     {
         //Scan through each row and increment top if the row contains any gray
-        for (j = 0; j < imgMos.Y.height; j++)
+        for (j = 0; j < imgMos.getHeight(); j++)
         {
-            for (i = cropping_rect.left; i < cropping_rect.right; i++)
-            {
-                if (b[j][i])
-                {
-                    break; // to next row
-                }
-            }
-
-            if (i == cropping_rect.right)   //no gray pixel in this row!
+            if (!rowGray[j])   //no gray pixel in this row!
             {
                 cropping_rect.top = j;
                 break;
@@ -738,17 +936,9 @@ int Blend::PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect)
         }
 
         //Scan through each row and decrement bottom if the row contains any gray
-        for (j = imgMos.Y.height-1; j >= 0; j--)
+        for (j = imgMos.getHeight()-1; j >= 0; j--)
         {
-            for (i = cropping_rect.left; i < cropping_rect.right; i++)
-            {
-                if (b[j][i])
-                {
-                    break; // to next row
-                }
-            }
-
-            if (i == cropping_rect.right)   //no gray pixel in this row!
+            if (!rowGray[j])   //no gray pixel in this row!
             {
                 cropping_rect.bottom = j;
                 break;
@@ -758,17 +948,9 @@ int Blend::PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect)
     else // Vertical Mosaic
     {
         //Scan through each column and increment left if the column contains any gray
-        for (i = 0; i < imgMos.Y.width; i++)
+        for (i = 0; i < imgMos.getWidth(); i++)
         {
-            for (j = cropping_rect.top; j < cropping_rect.bottom; j++)
-            {
-                if (b[j][i])
-                {
-                    break; // to next column
-                }
-            }
-
-            if (j == cropping_rect.bottom)   //no gray pixel in this column!
+            if (!colGray[i])   //no gray pixel in this column!
             {
                 cropping_rect.left = i;
                 break;
@@ -776,17 +958,9 @@ int Blend::PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect)
         }
 
         //Scan through each column and decrement right if the column contains any gray
-        for (i = imgMos.Y.width-1; i >= 0; i--)
+        for (i = imgMos.getWidth()-1; i >= 0; i--)
         {
-            for (j = cropping_rect.top; j < cropping_rect.bottom; j++)
-            {
-                if (b[j][i])
-                {
-                    break; // to next column
-                }
-            }
-
-            if (j == cropping_rect.bottom)   //no gray pixel in this column!
+            if (!colGray[i])   //no gray pixel in this column!
             {
                 cropping_rect.right = i;
                 break;
@@ -796,15 +970,6 @@ int Blend::PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect)
     }
 
     RoundingCroppingSizeToMultipleOf8(cropping_rect);
-
-    for(int j=0; j<imgMos.Y.height; j++)
-    {
-        delete b[j];
-    }
-
-    delete b;
-
-    return BLEND_RET_OK;
 }
 
 void Blend::RoundingCroppingSizeToMultipleOf8(MosaicRect &rect) {
@@ -817,11 +982,11 @@ void Blend::RoundingCroppingSizeToMultipleOf8(MosaicRect &rect) {
     rect.right -= residue;
 }
 
-void Blend::ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, int site_idx)
+void Blend::ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, MosaicCanvas &imgMos, int site_idx)
 {
-    PyramidShort *dptr = m_pMosaicYPyr;
+    int mwidth = rect.Width();
+    int mheight = rect.Height();
 
-    int nC = m_wb.nlevsC;
     int l = (int) ((vcrect.lft - rect.left));
     int b = (int) ((vcrect.bot - rect.top));
     int r = (int) ((vcrect.rgt - rect.left));
@@ -838,14 +1003,14 @@ void Blend::ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, Mosai
         b = -BORDER;
 
     if (vcrect.rgt == brect.rgt)
-        r = (r >= dptr->width) ? dptr->width + BORDER - 1 : r + BORDER;
-    else if (r >= dptr->width + BORDER)
-        r = dptr->width + BORDER - 1;
+        r = (r >= mwidth) ? mwidth + BORDER - 1 : r + BORDER;
+    else if (r >= mwidth + BORDER)
+        r = mwidth + BORDER - 1;
 
     if (vcrect.top == brect.top)
-        t = (t >= dptr->height) ? dptr->height + BORDER - 1 : t + BORDER;
-    else if (t >= dptr->height + BORDER)
-        t = dptr->height + BORDER - 1;
+        t = (t >= mheight) ? mheight + BORDER - 1 : t + BORDER;
+    else if (t >= mheight + BORDER)
+        t = mheight + BORDER - 1;
 
     // Walk the Region of interest and populate the pyramid
     for (int j = b; j <= t; j++)
@@ -860,8 +1025,8 @@ void Blend::ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, Mosai
             double si = ii + rect.left;
 
             double dself = hypotSq(csite->getVCenter().x - si, csite->getVCenter().y - sj);
-            int inMask = ((unsigned) ii < imgMos.Y.width &&
-                    (unsigned) jj < imgMos.Y.height) ? 1 : 0;
+            int inMask = ((unsigned) ii < imgMos.getWidth() &&
+                    (unsigned) jj < imgMos.getHeight()) ? 1 : 0;
 
             if(!inMask)
                 continue;
@@ -882,14 +1047,14 @@ void Blend::ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, Mosai
 
             if (ecnt >= 0) continue;
 
-            imgMos.Y.ptr[jj][ii] = (unsigned char)site_idx;
+            imgMos.at(MOS_Y, ii, jj) = (unsigned char)site_idx;
         }
     }
 }
 
-void Blend::ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx)
+void Blend::ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, MosaicCanvas &imgMos, double trs[3][3], int site_idx, int firstBand, int lastBand)
 {
-    // Put the Region of interest (for all levels) into m_pMosaicYPyr
+    // Put the Region of interest (for all levels) into the band pyramids
     double inv_trs[3][3];
     inv33d(trs, inv_trs);
 
@@ -898,14 +1063,14 @@ void Blend::ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRec
     PyramidShort *suptr = m_pFrameUPyr;
     PyramidShort *svptr = m_pFrameVPyr;
 
-    PyramidShort *dptr = m_pMosaicYPyr;
-    PyramidShort *duptr = m_pMosaicUPyr;
-    PyramidShort *dvptr = m_pMosaicVPyr;
-
     int dscale = 0; // distance scale for the current level
     int nC = m_wb.nlevsC;
-    for (int n = m_wb.nlevs; n--; dscale++, dptr++, sptr++, dvptr++, duptr++, svptr++, suptr++, nC--)
+    for (int n = m_wb.nlevs; n--; dscale++, sptr++, svptr++, suptr++, nC--)
     {
+        // Size of this level over the whole mosaic
+        int mwidth = rect.Width() >> dscale;
+        int mheight = rect.Height() >> dscale;
+
         int l = (int) ((vcrect.lft - rect.left) / (1 << dscale));
         int b = (int) ((vcrect.bot - rect.top) / (1 << dscale));
         int r = (int) ((vcrect.rgt - rect.left) / (1 << dscale) + .5);
@@ -922,146 +1087,179 @@ void Blend::ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRec
             b = -BORDER;
 
         if (vcrect.rgt == brect.rgt)
-            r = (r >= dptr->width) ? dptr->width + BORDER - 1 : r + BORDER;
-        else if (r >= dptr->width + BORDER)
-            r = dptr->width + BORDER - 1;
+            r = (r >= mwidth) ? mwidth + BORDER - 1 : r + BORDER;
+        else if (r >= mwidth + BORDER)
+            r = mwidth + BORDER - 1;
 
         if (vcrect.top == brect.top)
-            t = (t >= dptr->height) ? dptr->height + BORDER - 1 : t + BORDER;
-        else if (t >= dptr->height + BORDER)
-            t = dptr->height + BORDER - 1;
+            t = (t >= mheight) ? mheight + BORDER - 1 : t + BORDER;
+        else if (t >= mheight + BORDER)
+            t = mheight + BORDER - 1;
 
-        // Walk the Region of interest and populate the pyramid
-        for (int j = b; j <= t; j++)
+        for (BlendBand *band = m_bands + firstBand; band <= m_bands + lastBand; band++)
         {
-            int jj = (j << dscale);
-            double sj = jj + rect.top;
-
-            for (int i = l; i <= r; i++)
+            PyramidShort *dptr = band->pyrY + dscale;
+
+            // Origin of the band pyramids in this level, and the part of the
+            // region they hold, borders included
+            int bl = band->rect.left >> dscale;
+            int bt = band->rect.top >> dscale;
+            int il = (l > bl - BORDER) ? l : bl - BORDER;
+            int ir = (r < bl + dptr->width + BORDER - 1) ? r : bl + dptr->width + BORDER - 1;
+            int jb = (b > bt - BORDER) ? b : bt - BORDER;
+            int jt = (t < bt + dptr->height + BORDER - 1) ? t : bt + dptr->height + BORDER - 1;
+
+            // Walk the Region of interest and populate the pyramid
+            for (int j = jb; j <= jt; j++)
             {
-                int ii = (i << dscale);
-                // project point and then triangulate to neighbors
-                double si = ii + rect.left;
+                int jj = (j << dscale);
+                double sj = jj + rect.top;
+
+                // Rows of the band pyramids, indexed by mosaic column
+                ImageTypeShort drow = dptr->ptr[j - bt] - bl;
+                ImageTypeShort durow = NULL;
+                ImageTypeShort dvrow = NULL;
+                if (nC > 0)
+                {
+                    durow = band->pyrU[dscale].ptr[j - bt] - bl;
+                    dvrow = band->pyrV[dscale].ptr[j - bt] - bl;
+                }
+
+                for (int i = il; i <= ir; i++)
+                {
+                    int ii = (i << dscale);
+                    // project point and then triangulate to neighbors
+                    double si = ii + rect.left;
 
-                int inMask = ((unsigned) ii < imgMos.Y.width &&
-                        (unsigned) jj < imgMos.Y.height) ? 1 : 0;
+                    int inMask = ((unsigned) ii < imgMos.getWidth() &&
+                            (unsigned) jj < imgMos.getHeight()) ? 1 : 0;
 
-                if(inMask && imgMos.Y.ptr[jj][ii] != site_idx &&
-                        imgMos.V.ptr[jj][ii] != site_idx &&
-                        imgMos.Y.ptr[jj][ii] != 255)
-                    continue;
+                    // Mask of this pixel, looked up once in the canvas
+                    unsigned char *maskY = NULL;
+                    unsigned char maskV = 0;
+                    if (inMask)
+                    {
+                        maskY = imgMos.pixel(MOS_Y, ii, jj);
+                        maskV = imgMos.at(MOS_V, ii, jj);
+                    }
 
-                // Setup weights for cross-fading
-                // Weight of the intensity already in the output pixel
-                double wt0 = 0.0;
-                // Weight of the intensity from the input pixel (current frame)
-                double wt1 = 1.0;
+                    if(inMask && *maskY != site_idx &&
+                            maskV != site_idx &&
+                            *maskY != 255)
+                        continue;
 
-                if (m_wb.stripType == STRIP_TYPE_WIDE)
-                {
-                    if(inMask && imgMos.Y.ptr[jj][ii] != 255)
+                    // Setup weights for cross-fading
+                    // Weight of the intensity already in the output pixel
+                    double wt0 = 0.0;
+                    // Weight of the intensity from the input pixel (current frame)
+                    double wt1 = 1.0;
+
+                    if (m_wb.stripType == STRIP_TYPE_WIDE)
                     {
-                        // If not on a seam OR pyramid level exceeds
-                        // maximum level for cross-fading.
-                        if((imgMos.V.ptr[jj][ii] == 128) ||
-                            (dscale > STRIP_CROSS_FADE_MAX_PYR_LEVEL))
-                        {
-                            wt0 = 0.0;
-                            wt1 = 1.0;
-                        }
-                        else
+                        if(inMask && *maskY != 255)
                         {
-                            wt0 = 1.0;
-                            wt1 = ((imgMos.Y.ptr[jj][ii] == site_idx) ?
-                                    (double)imgMos.U.ptr[jj][ii] / 100.0 :
-                                    1.0 - (double)imgMos.U.ptr[jj][ii] / 100.0);
+                            // If not on a seam OR pyramid level exceeds
+                            // maximum level for cross-fading.
+                            if((maskV == 128) ||
+                                (dscale > STRIP_CROSS_FADE_MAX_PYR_LEVEL))
+                            {
+                                wt0 = 0.0;
+                                wt1 = 1.0;
+                            }
+                            else
+                            {
+                                wt0 = 1.0;
+                                wt1 = ((*maskY == site_idx) ?
+                                        (double)imgMos.at(MOS_U, ii, jj) / 100.0 :
+                                        1.0 - (double)imgMos.at(MOS_U, ii, jj) / 100.0);
+                            }
                         }
                     }
-                }
 
-                // Project this mosaic point into the original frame coordinate space
-                double xx, yy;
+                    // Project this mosaic point into the original frame coordinate space
+                    double xx, yy;
 
-                MosaicToFrame(inv_trs, si, sj, xx, yy);
+                    MosaicToFrame(inv_trs, si, sj, xx, yy);
 
-                if (xx < 0.0 || yy < 0.0 || xx > width - 1.0 || yy > height - 1.0)
-                {
-                    if(inMask)
+                    if (xx < 0.0 || yy < 0.0 || xx > width - 1.0 || yy > height - 1.0)
                     {
-                        imgMos.Y.ptr[jj][ii] = 255;
-                        wt0 = 0.0f;
-                        wt1 = 1.0f;
+                        if(inMask)
+                        {
+                            *maskY = 255;
+                            wt0 = 0.0f;
+                            wt1 = 1.0f;
+                        }
                     }
-                }
 
-                xx /= (1 << dscale);
-                yy /= (1 << dscale);
+                    xx /= (1 << dscale);
+                    yy /= (1 << dscale);
 
 
-                int x1 = (xx >= 0.0) ? (int) xx : (int) floor(xx);
-                int y1 = (yy >= 0.0) ? (int) yy : (int) floor(yy);
+                    int x1 = (xx >= 0.0) ? (int) xx : (int) floor(xx);
+                    int y1 = (yy >= 0.0) ? (int) yy : (int) floor(yy);
 
-                // Final destination in extended pyramid
-#ifndef LINEAR_INTERP
-                if(inSegment(x1, sptr->width, BORDER-1) &&
-                        inSegment(y1, sptr->height, BORDER-1))
-                {
-                    double xfrac = xx - x1;
-                    double yfrac = yy - y1;
-                    dptr->ptr[j][i] = (short) (wt0 * dptr->ptr[j][i] + .5 +
-                            wt1 * ciCalc(sptr, x1, y1, xfrac, yfrac));
-                    if (dvptr >= m_pMosaicVPyr && nC > 0)
+                    // Final destination in extended pyramid
+    #ifndef LINEAR_INTERP
+                    if(inSegment(x1, sptr->width, BORDER-1) &&
+                            inSegment(y1, sptr->height, BORDER-1))
                     {
-                        duptr->ptr[j][i] = (short) (wt0 * duptr->ptr[j][i] + .5 +
-                                wt1 * ciCalc(suptr, x1, y1, xfrac, yfrac));
-                        dvptr->ptr[j][i] = (short) (wt0 * dvptr->ptr[j][i] + .5 +
-                                wt1 * ciCalc(svptr, x1, y1, xfrac, yfrac));
+                        double xfrac = xx - x1;
+                        double yfrac = yy - y1;
+                        drow[i] = (short) (wt0 * drow[i] + .5 +
+                                wt1 * ciCalc(sptr, x1, y1, xfrac, yfrac));
+                        if (dvrow != NULL)
+                        {
+                            durow[i] = (short) (wt0 * durow[i] + .5 +
+                                    wt1 * ciCalc(suptr, x1, y1, xfrac, yfrac));
+                            dvrow[i] = (short) (wt0 * dvrow[i] + .5 +
+                                    wt1 * ciCalc(svptr, x1, y1, xfrac, yfrac));
+                        }
                     }
-                }
-#else
-                if(inSegment(x1, sptr->width, BORDER) && inSegment(y1, sptr->height, BORDER))
-                {
-                    int x2 = x1 + 1;
-                    int y2 = y1 + 1;
-                    double xfrac = xx - x1;
-                    double yfrac = yy - y1;
-                    double y1val = sptr->ptr[y1][x1] +
-                        (sptr->ptr[y1][x2] - sptr->ptr[y1][x1]) * xfrac;
-                    double y2val = sptr->ptr[y2][x1] +
-                        (sptr->ptr[y2][x2] - sptr->ptr[y2][x1]) * xfrac;
-                    dptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
-
-                    if (dvptr >= m_pMosaicVPyr && nC > 0)
+    #else
+                    if(inSegment(x1, sptr->width, BORDER) && inSegment(y1, sptr->height, BORDER))
                     {
-                        y1val = suptr->ptr[y1][x1] +
-                            (suptr->ptr[y1][x2] - suptr->ptr[y1][x1]) * xfrac;
-                        y2val = suptr->ptr[y2][x1] +
-                            (suptr->ptr[y2][x2] - suptr->ptr[y2][x1]) * xfrac;
+                        int x2 = x1 + 1;
+                        int y2 = y1 + 1;
+                        double xfrac = xx - x1;
+                        double yfrac = yy - y1;
+                        double y1val = sptr->ptr[y1][x1] +
+                            (sptr->ptr[y1][x2] - sptr->ptr[y1][x1]) * xfrac;
+                        double y2val = sptr->ptr[y2][x1] +
+                            (sptr->ptr[y2][x2] - sptr->ptr[y2][x1]) * xfrac;
+                        drow[i] = (short) (y1val + yfrac * (y2val - y1val));
+
+                        if (dvrow != NULL)
+                        {
+                            y1val = suptr->ptr[y1][x1] +
+                                (suptr->ptr[y1][x2] - suptr->ptr[y1][x1]) * xfrac;
+                            y2val = suptr->ptr[y2][x1] +
+                                (suptr->ptr[y2][x2] - suptr->ptr[y2][x1]) * xfrac;
 
-                        duptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
+                            durow[i] = (short) (y1val + yfrac * (y2val - y1val));
 
-                        y1val = svptr->ptr[y1][x1] +
-                            (svptr->ptr[y1][x2] - svptr->ptr[y1][x1]) * xfrac;
-                        y2val = svptr->ptr[y2][x1] +
-                            (svptr->ptr[y2][x2] - svptr->ptr[y2][x1]) * xfrac;
+                            y1val = svptr->ptr[y1][x1] +
+                                (svptr->ptr[y1][x2] - svptr->ptr[y1][x1]) * xfrac;
+                            y2val = svptr->ptr[y2][x1] +
+                                (svptr->ptr[y2][x2] - svptr->ptr[y2][x1]) * xfrac;
 
-                        dvptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
+                            dvrow[i] = (short) (y1val + yfrac * (y2val - y1val));
+                        }
                     }
-                }
-#endif
-                else
-                {
-                    clipToSegment(x1, sptr->width, BORDER);
-                    clipToSegment(y1, sptr->height, BORDER);
-
-                    dptr->ptr[j][i] = (short) (wt0 * dptr->ptr[j][i] + 0.5 +
-                            wt1 * sptr->ptr[y1][x1] );
-                    if (dvptr >= m_pMosaicVPyr && nC > 0)
+    #endif
+                    else
                     {
-                        dvptr->ptr[j][i] = (short) (wt0 * dvptr->ptr[j][i] +
-                                0.5 + wt1 * svptr->ptr[y1][x1] );
-                        duptr->ptr[j][i] = (short) (wt0 * duptr->ptr[j][i] +
-                                0.5 + wt1 * suptr->ptr[y1][x1] );
+                        clipToSegment(x1, sptr->width, BORDER);
+                        clipToSegment(y1, sptr->height, BORDER);
+
+                        drow[i] = (short) (wt0 * drow[i] + 0.5 +
+                                wt1 * sptr->ptr[y1][x1] );
+                        if (dvrow != NULL)
+                        {
+                            dvrow[i] = (short) (wt0 * dvrow[i] +
+                                    0.5 + wt1 * svptr->ptr[y1][x1] );
+                            durow[i] = (short) (wt0 * durow[i] +
+                                    0.5 + wt1 * suptr->ptr[y1][x1] );
+                        }
                     }
                 }
             }
@@ -1209,6 +1407,22 @@ void Blend::FrameToMosaicRect(int width, int height, double trs[3][3], BlendRect
     }
 }
 
+bool Blend::IsSeparatedStrip(MosaicFrame *a, MosaicFrame *b, double threshold)
+{
+    double midX = b->width / 2.0;
+    double midY = b->height / 2.0;
+
+    double z = ProjZ(a->trs, midX, midY, 1.0);
+    double prevX = ProjX(a->trs, midX, midY, z, 1.0);
+    double prevY = ProjY(a->trs, midX, midY, z, 1.0);
+
+    z = ProjZ(b->trs, midX, midY, 1.0);
+    double currX = ProjX(b->trs, midX, midY, z, 1.0);
+    double currY = ProjY(b->trs, midX, midY, z, 1.0);
+
+    return fabs(currX - prevX) > threshold || fabs(currY - prevY) > threshold;
+}
+
 void Blend::SelectRelevantFrames(MosaicFrame **frames, int frames_size,
         MosaicFrame **relevant_frames, int &relevant_frames_size)
 {
@@ -1216,37 +1430,18 @@ void Blend::SelectRelevantFrames(MosaicFrame **frames, int frames_size,
     MosaicFrame *last = frames[frames_size-1];
     MosaicFrame *mb;
 
-    double fxpos = first->trs[0][2], fypos = first->trs[1][2];
-
-    double midX = last->width / 2.0;
-    double midY = last->height / 2.0;
-    double z = ProjZ(first->trs, midX, midY, 1.0);
-    double firstX, firstY;
-    double prevX = firstX = ProjX(first->trs, midX, midY, z, 1.0);
-    double prevY = firstY = ProjY(first->trs, midX, midY, z, 1.0);
-
     relevant_frames[0] = first; // Add first frame by default
     relevant_frames_size = 1;
 
     for (int i = 0; i < frames_size - 1; i++)
     {
         mb = frames[i];
-        double currX, currY;
-        z = ProjZ(mb->trs, midX, midY, 1.0);
-        currX = ProjX(mb->trs, midX, midY, z, 1.0);
-        currY = ProjY(mb->trs, midX, midY, z, 1.0);
-        double deltaX = currX - prevX;
-        double deltaY = currY - prevY;
-        double center2centerDist = sqrt(deltaY * deltaY + deltaX * deltaX);
 
-        if (fabs(deltaX) > STRIP_SEPARATION_THRESHOLD_PXLS ||
-                fabs(deltaY) > STRIP_SEPARATION_THRESHOLD_PXLS)
+        if (IsSeparatedStrip(relevant_frames[relevant_frames_size - 1], mb,
+                STRIP_SEPARATION_THRESHOLD_PXLS))
         {
             relevant_frames[relevant_frames_size] = mb;
             relevant_frames_size++;
-
-            prevX = currX;
-            prevY = currY;
         }
     }
 
@@ -24,6 +24,7 @@
 #include "MosaicTypes.h"
 #include "Pyramid.h"
 #include "Delaunay.h"
+#include "MosaicCanvas.h"
 
 #define BLEND_RANGE_DEFAULT 6
 #define BORDER 8
@@ -47,6 +48,44 @@ const float STRIP_CROSS_FADE_WIDTH_PXLS = 2;
 // the blending algorithm.
 const int STRIP_CROSS_FADE_MAX_PYR_LEVEL = 2;
 
+// The final mosaic is blended in bands of about this many pixels along its
+// long side. The mosaic pyramids only exist for the bands that the frames
+// being merged reach, so that their memory does not grow with the length of
+// the panorama.
+const int BLEND_BAND_PXLS = 256;
+
+/**
+ *  Band of the mosaic blended on its own, see Blend::DoMergeAndBlend.
+ */
+class BlendBand
+{
+    public:
+        BlendBand()
+        {
+            pyrY = pyrU = pyrV = NULL;
+            pyramidBytes = 0;
+            pixels = NULL;
+            lastFrame = -1;
+            written = false;
+        }
+
+        // Part of the mosaic covered by the pyramids, without their border
+        MosaicRect rect;
+        PyramidShort *pyrY;
+        PyramidShort *pyrU;
+        PyramidShort *pyrV;
+        long long pyramidBytes;
+
+        // Part of the canvas the band is written to, and its blended pixels
+        // until then
+        MosaicRect held;
+        ImageType pixels;
+
+        // Index of the last frame that reaches the band, or -1
+        int lastFrame;
+        bool written;
+};
+
 /**
  *  Class for pyramid blending a mosaic.
  */
@@ -73,24 +112,38 @@ public:
 
   int initialize(int blendingType, int stripType, int frame_width, int frame_height);
 
-  int runBlend(MosaicFrame **frames, MosaicFrame **rframes, int frames_size, ImageType &imageMosaicYVU,
+  // Blends the frames into imgMos and crops it to the final mosaic, whose
+  // size is returned in mosaicWidth and mosaicHeight
+  int runBlend(MosaicFrame **frames, MosaicFrame **rframes, int frames_size, MosaicCanvas &imgMos,
         int &mosaicWidth, int &mosaicHeight, float &progress, bool &cancelComputation);
 
+  // Time spent in each stage of the last runBlend call
+  const BlendTimings &getTimings() { return m_timings; }
+
+  // True if the center of frame b is more than threshold pixels away from
+  // the center of frame a along x or y. In wide strip mode, a frame that is
+  // not separated from the last relevant frame is not blended.
+  static bool IsSeparatedStrip(MosaicFrame *a, MosaicFrame *b, double threshold);
+
 protected:
 
   PyramidShort *m_pFrameYPyr;
   PyramidShort *m_pFrameUPyr;
   PyramidShort *m_pFrameVPyr;
 
-  PyramidShort *m_pMosaicYPyr;
-  PyramidShort *m_pMosaicUPyr;
-  PyramidShort *m_pMosaicVPyr;
+  BlendBand *m_bands;
+  int m_nbands;
+  // Memory taken by the bands now and at most during the last blend
+  long long m_bandBytes;
+  long long m_peakBandBytes;
 
   CDelaunay m_Triangulator;
   CSite *m_AllSites;
 
   BlendParams m_wb;
 
+  BlendTimings m_timings;
+
   // Height and width of individual frames
   int width, height;
 
@@ -104,9 +157,9 @@ protected:
   void ClipBlendRect(CSite *csite, BlendRect &brect);
   void AlignToMiddleFrame(MosaicFrame **frames, int frames_size);
 
-  int  DoMergeAndBlend(MosaicFrame **frames, int nsite,  int width, int height, YUVinfo &imgMos, MosaicRect &rect, MosaicRect &cropping_rect, float &progress, bool &cancelComputation);
-  void ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, int site_idx);
-  void ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx);
+  int  DoMergeAndBlend(MosaicFrame **frames, int nsite,  int width, int height, MosaicCanvas &imgMos, MosaicRect &rect, MosaicRect &cropping_rect, float &progress, bool &cancelComputation);
+  void ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, MosaicCanvas &imgMos, int site_idx);
+  void ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, MosaicCanvas &imgMos, double trs[3][3], int site_idx, int firstBand, int lastBand);
 
   int  FillFramePyramid(MosaicFrame *mb);
 
@@ -115,8 +168,16 @@ protected:
   void SelectRelevantFrames(MosaicFrame **frames, int frames_size,
         MosaicFrame **relevant_frames, int &relevant_frames_size);
 
-  int  PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect);
-  void CropFinalMosaic(YUVinfo &imgMos, MosaicRect &cropping_rect);
+  void AllocateBands(int nsite, MosaicCanvas &imgMos, MosaicRect &rect);
+  bool FrameReachesBand(MosaicFrame *mb, MosaicRect &rect, BlendBand &band);
+  int  AllocateBandPyramids(BlendBand &band);
+  void AddBandBytes(long long bytes);
+  int  FlushBands(int site_idx, MosaicCanvas &imgMos, MosaicRect &cropping_rect, bool *rowGray, bool *colGray);
+  int  CollapseBand(BlendBand &band);
+  void WriteBand(BlendBand &band, MosaicCanvas &imgMos, MosaicRect &cropping_rect, bool *rowGray, bool *colGray);
+  void FreeBands();
+  void PerformFinalBlending(MosaicCanvas &imgMos, MosaicRect &cropping_rect, bool *rowGray, bool *colGray);
+  void CropFinalMosaic(MosaicCanvas &imgMos, MosaicRect &cropping_rect);
 
 private:
    static const float LIMIT_SIZE_MULTIPLIER = 5.0f * 2.0f;
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// FrameLog.cpp
+
+#include <errno.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "FrameLog.h"
+#include "Log.h"
+
+#define LOG_TAG "FRAME_LOG"
+
+const char FrameLog::MAGIC[8] = { 'M', 'O', 'S', 'A', 'I', 'C', 'F', 'L' };
+
+FrameLog::FrameLog()
+{
+    m_fp = NULL;
+    m_writing = false;
+    m_width = m_height = 0;
+    m_frames = 0;
+    m_nv21 = NULL;
+}
+
+FrameLog::~FrameLog()
+{
+    close();
+}
+
+bool FrameLog::create(const char *path, int width, int height)
+{
+    close();
+
+    m_fp = fopen(path, "wb");
+    if (m_fp == NULL)
+    {
+        LOGE("Cannot create frame log %s: %s", path, strerror(errno));
+        return false;
+    }
+
+    int32_t header[3] = { VERSION, width, height };
+    if (fwrite(MAGIC, sizeof(MAGIC), 1, m_fp) != 1 ||
+            fwrite(header, sizeof(header), 1, m_fp) != 1)
+    {
+        LOGE("Cannot write frame log %s", path);
+        close();
+        return false;
+    }
+
+    m_writing = true;
+    m_width = width;
+    m_height = height;
+    return true;
+}
+
+bool FrameLog::open(const char *path)
+{
+    close();
+
+    m_fp = fopen(path, "rb");
+    if (m_fp == NULL)
+    {
+        LOGE("Cannot open frame log %s: %s", path, strerror(errno));
+        return false;
+    }
+
+    char magic[sizeof(MAGIC)];
+    int32_t header[3];
+    if (fread(magic, sizeof(magic), 1, m_fp) != 1 ||
+            fread(header, sizeof(header), 1, m_fp) != 1 ||
+            memcmp(magic, MAGIC, sizeof(MAGIC)) != 0)
+    {
+        LOGE("%s is not a frame log", path);
+        close();
+        return false;
+    }
+    if (header[0] != VERSION || header[1] <= 0 || header[2] <= 0)
+    {
+        LOGE("Unsupported frame log %s: version %d, %dx%d", path, header[0],
+                header[1], header[2]);
+        close();
+        return false;
+    }
+
+    m_width = header[1];
+    m_height = header[2];
+    return true;
+}
+
+void FrameLog::close()
+{
+    if (m_fp != NULL)
+    {
+        if (fclose(m_fp) != 0 && m_writing)
+            LOGE("Frame log is incomplete: %s", strerror(errno));
+        m_fp = NULL;
+    }
+
+    delete [] m_nv21;
+    m_nv21 = NULL;
+    m_writing = false;
+    m_width = m_height = 0;
+    m_frames = 0;
+}
+
+bool FrameLog::appendNV21(long long timestamp_us, int ret_code,
+        const float trs[9], ImageType nv21)
+{
+    if (m_fp == NULL || !m_writing)
+        return false;
+
+    int64_t timestamp = timestamp_us;
+    int32_t ret = ret_code;
+    if (fwrite(&timestamp, sizeof(timestamp), 1, m_fp) != 1 ||
+            fwrite(&ret, sizeof(ret), 1, m_fp) != 1 ||
+            fwrite(trs, sizeof(float), 9, m_fp) != 9 ||
+            fwrite(nv21, 1, getImageBytes(), m_fp) != getImageBytes())
+    {
+        LOGE("Cannot write frame %d to the frame log", m_frames);
+        return false;
+    }
+    m_frames++;
+    return true;
+}
+
+bool FrameLog::appendYVU(long long timestamp_us, int ret_code,
+        const float trs[9], ImageType yvu)
+{
+    if (m_fp == NULL || !m_writing)
+        return false;
+
+    if (m_nv21 == NULL)
+        m_nv21 = new unsigned char[getImageBytes()];
+    ImageUtils::yvu2nv21(m_nv21, yvu, m_width, m_height);
+    return appendNV21(timestamp_us, ret_code, trs, m_nv21);
+}
+
+bool FrameLog::read(long long &timestamp_us, int &ret_code, float trs[9],
+        ImageType nv21)
+{
+    if (m_fp == NULL || m_writing)
+        return false;
+
+    int64_t timestamp;
+    int32_t ret;
+    if (fread(&timestamp, sizeof(timestamp), 1, m_fp) != 1)
+        return false;
+    if (fread(&ret, sizeof(ret), 1, m_fp) != 1 ||
+            fread(trs, sizeof(float), 9, m_fp) != 9 ||
+            fread(nv21, 1, getImageBytes(), m_fp) != getImageBytes())
+    {
+        LOGE("Frame log is truncated after %d frames", m_frames);
+        return false;
+    }
+
+    timestamp_us = timestamp;
+    ret_code = ret;
+    m_frames++;
+    return true;
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// FrameLog.h
+
+#ifndef FRAME_LOG_H
+#define FRAME_LOG_H
+
+#include <stdio.h>
+
+#include "ImageUtils.h"
+
+/**
+ *  Binary log of the frames of a capture, for replaying a capture from the
+ *  field through the mosaic pipeline off the device.
+ *
+ *  The file starts with a header of MAGIC, the version, and the width and
+ *  height of the frames, as 32-bit integers. Each frame follows as its
+ *  timestamp in microseconds (64-bit), the return code of its alignment
+ *  (32-bit), the 3x3 alignment transformation sent to the preview warp (9
+ *  floats, row major) and the image in NV21 layout. All values are in the
+ *  byte order of the device that wrote the log.
+ */
+class FrameLog
+{
+    public:
+        static const char MAGIC[8];
+        static const int VERSION = 1;
+
+        FrameLog();
+        ~FrameLog();
+
+        /**
+         *  Create the log at path for width x height frames, replacing any
+         *  existing file. Closes the previous log first.
+         *  \return true on success.
+         */
+        bool create(const char *path, int width, int height);
+
+        /**
+         *  Open the log at path for reading. Closes the previous log first.
+         *  \return true if the file is a frame log of a supported version.
+         */
+        bool open(const char *path);
+
+        void close();
+
+        bool isOpen() { return m_fp != NULL; }
+
+        int getWidth() { return m_width; }
+        int getHeight() { return m_height; }
+
+        /**
+         *  Frames written, or read so far.
+         */
+        int getFrameCount() { return m_frames; }
+
+        /**
+         *  Size in bytes of the NV21 image of a frame.
+         */
+        size_t getImageBytes() { return (size_t) m_width * m_height * 3 / 2; }
+
+        /**
+         *  Append a frame given as an NV21 image of getImageBytes().
+         *  \return false if the frame cannot be written.
+         */
+        bool appendNV21(long long timestamp_us, int ret_code,
+                const float trs[9], ImageType nv21);
+
+        /**
+         *  Append a frame given as a planar YVU image, converted with
+         *  ImageUtils::yvu2nv21(). An image converted from NV21 is logged
+         *  unchanged.
+         *  \return false if the frame cannot be written.
+         */
+        bool appendYVU(long long timestamp_us, int ret_code, const float trs[9],
+                ImageType yvu);
+
+        /**
+         *  Read the next frame into nv21, which must hold getImageBytes().
+         *  \return false at the end of the log or if it is truncated.
+         */
+        bool read(long long &timestamp_us, int &ret_code, float trs[9],
+                ImageType nv21);
+
+    private:
+        FILE *m_fp;
+        bool m_writing;
+        int m_width;
+        int m_height;
+        int m_frames;
+
+        // Conversion buffer of appendYVU()
+        ImageType m_nv21;
+};
+
+#endif
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// FramePool.cpp
+
+#include "FramePool.h"
+#include "Log.h"
+
+#define LOG_TAG "FRAME_POOL"
+
+// Never deleted: frames may be released back to the pool from any thread
+// until the process exits.
+static FramePool *gInstance = NULL;
+static pthread_once_t gInstanceOnce = PTHREAD_ONCE_INIT;
+
+void FramePool::createInstance()
+{
+    gInstance = new FramePool();
+}
+
+FramePool *FramePool::getInstance()
+{
+    pthread_once(&gInstanceOnce, createInstance);
+    return gInstance;
+}
+
+FramePool::FramePool()
+{
+    pthread_mutex_init(&m_lock, NULL);
+    m_idle = NULL;
+}
+
+size_t FramePool::imageBytes(int width, int height, int numChannels)
+{
+    return (size_t) width * height * numChannels;
+}
+
+ImageType FramePool::acquire(int width, int height, int numChannels)
+{
+    size_t bytes = imageBytes(width, height, numChannels);
+
+    pthread_mutex_lock(&m_lock);
+    Entry **link = &m_idle;
+    while (*link != NULL && (*link)->bytes != bytes)
+        link = &(*link)->next;
+
+    Entry *entry = *link;
+    if (entry != NULL)
+    {
+        *link = entry->next;
+        m_stats.pooledBytes -= bytes;
+        m_stats.pooledImages--;
+        m_stats.hits++;
+    }
+    else
+    {
+        m_stats.misses++;
+    }
+    pthread_mutex_unlock(&m_lock);
+
+    if (entry == NULL)
+        return ImageUtils::allocateImage(width, height, numChannels);
+
+    ImageType image = entry->image;
+    delete entry;
+    return image;
+}
+
+void FramePool::release(ImageType image, int width, int height, int numChannels)
+{
+    if (image == NULL)
+        return;
+
+    Entry *entry = new Entry;
+    entry->image = image;
+    entry->bytes = imageBytes(width, height, numChannels);
+
+    pthread_mutex_lock(&m_lock);
+    entry->next = m_idle;
+    m_idle = entry;
+    m_stats.pooledBytes += entry->bytes;
+    m_stats.pooledImages++;
+    pthread_mutex_unlock(&m_lock);
+}
+
+void FramePool::trim(long long maxBytes)
+{
+    pthread_mutex_lock(&m_lock);
+    // Keep the most recently released images that fit in maxBytes and
+    // unlink the rest.
+    long long kept = 0;
+    Entry **link = &m_idle;
+    while (*link != NULL && kept + (long long) (*link)->bytes <= maxBytes)
+    {
+        kept += (*link)->bytes;
+        link = &(*link)->next;
+    }
+    Entry *freed = *link;
+    *link = NULL;
+
+    int freedImages = 0;
+    for (Entry *e = freed; e != NULL; e = e->next)
+        freedImages++;
+    long long freedBytes = m_stats.pooledBytes - kept;
+    m_stats.pooledBytes = kept;
+    m_stats.pooledImages -= freedImages;
+    pthread_mutex_unlock(&m_lock);
+
+    while (freed != NULL)
+    {
+        Entry *next = freed->next;
+        ImageUtils::freeImage(freed->image);
+        delete freed;
+        freed = next;
+    }
+
+    if (freedImages > 0)
+        LOGV("Trimmed %d images (%lld bytes)", freedImages, freedBytes);
+    // LOGV is compiled out of host builds.
+    (void) freedBytes;
+}
+
+void FramePool::getStats(FramePoolStats &stats)
+{
+    pthread_mutex_lock(&m_lock);
+    stats = m_stats;
+    pthread_mutex_unlock(&m_lock);
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// FramePool.h
+
+#ifndef FRAME_POOL_H
+#define FRAME_POOL_H
+
+#include <pthread.h>
+#include <stddef.h>
+
+#include "ImageUtils.h"
+
+/**
+ *  Counters reported by FramePool::getStats().
+ */
+class FramePoolStats
+{
+    public:
+        FramePoolStats()
+        {
+            pooledBytes = 0;
+            pooledImages = 0;
+            hits = misses = 0;
+        }
+
+        long long pooledBytes;   // Bytes held by idle images in the pool
+        int pooledImages;        // Number of idle images in the pool
+        long long hits;          // Acquisitions served from the pool
+        long long misses;        // Acquisitions that had to allocate
+};
+
+/**
+ *  Process-wide pool of frame images. Mosaic frame buffers are large and
+ *  are allocated again every time panorama capture starts, so released
+ *  images are kept here and handed out again to the next request of the
+ *  same size, until trim() frees them.
+ *
+ *  All methods are thread safe.
+ */
+class FramePool
+{
+    public:
+        static FramePool *getInstance();
+
+        /**
+         *  Return an image of the given size, from the pool if possible.
+         *  Unlike ImageUtils::allocateImage(), the contents of a pooled
+         *  image are undefined.
+         */
+        ImageType acquire(int width, int height, int numChannels);
+
+        /**
+         *  Give an image obtained by acquire() back to the pool. NULL is
+         *  ignored.
+         */
+        void release(ImageType image, int width, int height, int numChannels);
+
+        /**
+         *  Free the least recently released images until the pool holds no
+         *  more than maxBytes.
+         */
+        void trim(long long maxBytes);
+
+        void getStats(FramePoolStats &stats);
+
+    private:
+        FramePool();
+        static void createInstance();
+
+        // Idle image; the list starts with the most recently released one.
+        struct Entry
+        {
+            ImageType image;
+            size_t bytes;
+            Entry *next;
+        };
+
+        static size_t imageBytes(int width, int height, int numChannels);
+
+        pthread_mutex_t m_lock;
+        Entry *m_idle;
+        FramePoolStats m_stats;
+};
+
+#endif
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// FrameSpill.cpp
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <unistd.h>
+
+#include "FrameSpill.h"
+#include "Log.h"
+
+#define LOG_TAG "FRAME_SPILL"
+
+FrameSpill::FrameSpill()
+{
+    m_fd = -1;
+    m_slot_bytes = m_chunk_bytes = 0;
+    m_chunks = NULL;
+    m_nr_chunks = m_max_chunks = 0;
+}
+
+FrameSpill::~FrameSpill()
+{
+    close();
+}
+
+bool FrameSpill::open(const char *dir, size_t slotBytes)
+{
+    close();
+
+    char path[1024];
+    snprintf(path, sizeof(path), "%s/mosaic-frames-XXXXXX", dir);
+    m_fd = mkstemp(path);
+    if (m_fd < 0)
+    {
+        LOGE("Cannot create a scratch file in %s: %s", dir, strerror(errno));
+        return false;
+    }
+    unlink(path);
+
+    // Page align the slots so that evict() only touches whole pages of
+    // one slot
+    size_t page = (size_t) sysconf(_SC_PAGESIZE);
+    m_slot_bytes = (slotBytes + page - 1) / page * page;
+    m_chunk_bytes = m_slot_bytes * SLOTS_PER_CHUNK;
+
+    // Fail now, while the caller can still keep the frames in memory,
+    // if there is no room for even the first chunk
+    if (!addChunk())
+    {
+        close();
+        return false;
+    }
+    return true;
+}
+
+void FrameSpill::close()
+{
+    for (int i = 0; i < m_nr_chunks; i++)
+        munmap(m_chunks[i], m_chunk_bytes);
+    delete [] m_chunks;
+    m_chunks = NULL;
+    m_nr_chunks = m_max_chunks = 0;
+
+    if (m_fd >= 0)
+    {
+        ::close(m_fd);
+        m_fd = -1;
+    }
+}
+
+bool FrameSpill::addChunk()
+{
+    if (m_nr_chunks == m_max_chunks)
+    {
+        int max_chunks = m_max_chunks ? 2 * m_max_chunks : 8;
+        ImageType *chunks = new ImageType[max_chunks];
+        memcpy(chunks, m_chunks, m_nr_chunks * sizeof(ImageType));
+        delete [] m_chunks;
+        m_chunks = chunks;
+        m_max_chunks = max_chunks;
+    }
+
+    // Reserve the blocks instead of only growing the file: a sparse file
+    // on a full disk would raise SIGBUS on the first write to the mapping
+    off_t offset = (off_t) m_nr_chunks * m_chunk_bytes;
+    int err = posix_fallocate(m_fd, offset, m_chunk_bytes);
+    if (err != 0)
+    {
+        LOGE("Cannot grow the scratch file to %lld bytes: %s",
+                (long long) (offset + m_chunk_bytes), strerror(err));
+        return false;
+    }
+
+    void *chunk = mmap(NULL, m_chunk_bytes, PROT_READ | PROT_WRITE, MAP_SHARED,
+            m_fd, offset);
+    if (chunk == MAP_FAILED)
+    {
+        LOGE("Cannot map the scratch file: %s", strerror(errno));
+        return false;
+    }
+
+    m_chunks[m_nr_chunks++] = (ImageType) chunk;
+    return true;
+}
+
+ImageType FrameSpill::slot(int index)
+{
+    if (m_fd < 0)
+        return NULL;
+
+    int chunk = index / SLOTS_PER_CHUNK;
+    while (chunk >= m_nr_chunks)
+    {
+        if (!addChunk())
+            return NULL;
+    }
+    return m_chunks[chunk] + (index % SLOTS_PER_CHUNK) * m_slot_bytes;
+}
+
+void FrameSpill::evict(int index)
+{
+    int chunk = index / SLOTS_PER_CHUNK;
+    if (chunk >= m_nr_chunks)
+        return;
+
+    // Shared file pages keep their contents when they are dropped
+    madvise(m_chunks[chunk] + (index % SLOTS_PER_CHUNK) * m_slot_bytes,
+            m_slot_bytes, MADV_DONTNEED);
+}
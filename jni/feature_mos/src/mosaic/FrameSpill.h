@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// FrameSpill.h
+
+#ifndef FRAME_SPILL_H
+#define FRAME_SPILL_H
+
+#include <stddef.h>
+
+#include "ImageUtils.h"
+
+/**
+ *  Frame storage in a memory-mapped scratch file, for captures with more
+ *  frames than fit in memory. The file grows by chunks of slots as slots
+ *  are requested; the address of a slot never changes while the spill is
+ *  open. evict() drops the resident pages of a slot; the next access
+ *  reads them back from the file.
+ *
+ *  The scratch file is unlinked as soon as it is created, so it goes away
+ *  with the process even if close() is never called.
+ */
+class FrameSpill
+{
+    public:
+        FrameSpill();
+        ~FrameSpill();
+
+        /**
+         *  Create the scratch file in directory dir for slots of slotBytes
+         *  bytes each, with room for the first chunk of slots. Closes a
+         *  previously opened file first.
+         *  \return true on success, false if the file cannot be created
+         *  or the disk has no room for it.
+         */
+        bool open(const char *dir, size_t slotBytes);
+
+        void close();
+
+        bool isOpen() { return m_fd >= 0; }
+
+        /**
+         *  Memory of slot index, mapping more of the file when needed.
+         *  The disk blocks of a mapped chunk are reserved, so writing to
+         *  a slot cannot fail later on.
+         *  \return NULL if the file cannot grow.
+         */
+        ImageType slot(int index);
+
+        /**
+         *  Drop the resident pages of slot index. Its contents stay in the
+         *  file.
+         */
+        void evict(int index);
+
+        /**
+         *  Number of bytes of the scratch file mapped so far.
+         */
+        long long mappedBytes() { return (long long) m_nr_chunks * m_chunk_bytes; }
+
+        static const int SLOTS_PER_CHUNK = 16;
+
+    private:
+        int m_fd;
+        size_t m_slot_bytes;
+        size_t m_chunk_bytes;
+
+        ImageType *m_chunks;
+        int m_nr_chunks;
+        int m_max_chunks;
+
+        bool addChunk();
+};
+
+#endif
@@ -21,10 +21,19 @@
 
 #include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
 #include <sys/time.h>
 
 #include "ImageUtils.h"
 
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+#include <arm_neon.h>
+#define IMAGEUTILS_USE_NEON
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define IMAGEUTILS_USE_SSE2
+#endif
+
 void ImageUtils::rgba2yvu(ImageType out, ImageType in, int width, int height)
 {
   int r,g,b, a;
@@ -278,6 +287,143 @@ void ImageUtils::yvu2bgr(ImageType out, ImageType in, int width, int height)
 }
 
 
+void ImageUtils::nv21toyvu(ImageType out, ImageType in, int width, int height)
+{
+  int frameSize = width * height;
+
+  ImageType ovp;
+  ImageType oup;
+
+  memcpy(out, in, frameSize * sizeof(ImageTypeBase));
+
+  for (int j = 0; j < height; j += 2) {
+    ovp = out + frameSize + j * width;
+    oup = ovp + frameSize;
+
+    ImageType iuvp = in + frameSize + (j >> 1) * width;
+
+    for (int i = 0; i < width; i += 2) {
+      unsigned char v = *iuvp++;
+      unsigned char u = *iuvp++;
+
+      *ovp++ = v;
+      *oup++ = u;
+
+      *ovp++ = v;
+      *oup++ = u;
+    }
+    memcpy(ovp, ovp - width, width * sizeof(ImageTypeBase));
+    memcpy(oup, oup - width, width * sizeof(ImageTypeBase));
+  }
+}
+
+void ImageUtils::yvu2nv21(ImageType out, ImageType in, int width, int height)
+{
+  int frameSize = width * height;
+
+  memcpy(out, in, frameSize * sizeof(ImageTypeBase));
+
+  ImageType ouvp = out + frameSize;
+  for (int j = 0; j < height; j += 2) {
+    ImageType ivp = in + frameSize + j * width;
+    ImageType iup = ivp + frameSize;
+
+    for (int i = 0; i < width; i += 2) {
+      *ouvp++ = ivp[i];
+      *ouvp++ = iup[i];
+    }
+  }
+}
+
+void ImageUtils::decimateyvu(ImageType out, ImageType in, int width, int height,
+    int factor)
+{
+  int outWidth = width / factor;
+  int outPlaneSize = outWidth * (height / factor);
+
+  for (int p = 0; p < 3; p++) {
+    ImageType plane = in + p * width * height;
+    ImageType outp = out + p * outPlaneSize;
+
+    for (int j = 0; j < height; j += factor) {
+      ImageType imp = plane + j * width;
+      for (int i = 0; i < width; i += factor) {
+        *outp++ = imp[i];
+      }
+    }
+  }
+}
+
+// Writes the V and U rows of one NV21 chroma row, replicating each sample
+// horizontally.
+static void expandChromaRow(ImageType v, ImageType u, ImageType vu, int width)
+{
+  int i = 0;
+
+#if defined(IMAGEUTILS_USE_NEON)
+  for (; i + 16 <= width; i += 16, vu += 16, v += 16, u += 16) {
+    uint8x8x2_t c = vld2_u8(vu);
+    uint8x8x2_t vv = vzip_u8(c.val[0], c.val[0]);
+    uint8x8x2_t uu = vzip_u8(c.val[1], c.val[1]);
+    vst1q_u8(v, vcombine_u8(vv.val[0], vv.val[1]));
+    vst1q_u8(u, vcombine_u8(uu.val[0], uu.val[1]));
+  }
+#elif defined(IMAGEUTILS_USE_SSE2)
+  // Each 16-bit lane holds one VU pair; duplicate its low (V) and high (U)
+  // byte across the lane.
+  const __m128i lowBytes = _mm_set1_epi16(0x00ff);
+  for (; i + 16 <= width; i += 16, vu += 16, v += 16, u += 16) {
+    __m128i c = _mm_loadu_si128((const __m128i *) vu);
+    __m128i cv = _mm_and_si128(c, lowBytes);
+    __m128i cu = _mm_srli_epi16(c, 8);
+    _mm_storeu_si128((__m128i *) v, _mm_or_si128(cv, _mm_slli_epi16(cv, 8)));
+    _mm_storeu_si128((__m128i *) u, _mm_or_si128(cu, _mm_slli_epi16(cu, 8)));
+  }
+#endif
+
+  for (; i < width; i += 2, vu += 2, v += 2, u += 2) {
+    v[0] = v[1] = vu[0];
+    u[0] = u[1] = vu[1];
+  }
+}
+
+void ImageUtils::nv21toyvuDecimated(ImageType out, ImageType outLowRes,
+    ImageType in, int width, int height, int factor)
+{
+  int frameSize = width * height;
+  int lowWidth = width / factor;
+  int lowFrameSize = lowWidth * (height / factor);
+
+  for (int j = 0; j < height; j += 2) {
+    ImageType iyp = in + j * width;
+    ImageType iuvp = in + frameSize + (j >> 1) * width;
+    ImageType ovp = out + frameSize + j * width;
+    ImageType oup = ovp + frameSize;
+
+    // Both rows of the pair share the chroma row
+    memcpy(out + j * width, iyp, 2 * width * sizeof(ImageTypeBase));
+    expandChromaRow(ovp, oup, iuvp, width);
+    memcpy(ovp + width, ovp, width * sizeof(ImageTypeBase));
+    memcpy(oup + width, oup, width * sizeof(ImageTypeBase));
+
+    for (int r = j; r < j + 2; r++) {
+      if (r % factor != 0)
+        continue;
+
+      ImageType lyp = outLowRes + (r / factor) * lowWidth;
+      ImageType lvp = lyp + lowFrameSize;
+      ImageType lup = lvp + lowFrameSize;
+      ImageType yrow = in + r * width;
+
+      for (int i = 0, x = 0; i < lowWidth; i++, x += factor) {
+        lyp[i] = yrow[x];
+        lvp[i] = iuvp[x & ~1];
+        lup[i] = iuvp[x | 1];
+      }
+    }
+  }
+}
+
 ImageType ImageUtils::readBinaryPPM(const char *filename, int &width, int &height)
 {
 
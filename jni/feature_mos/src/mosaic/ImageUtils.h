@@ -76,6 +76,65 @@ public:
   static void yvu2rgb(ImageType out, ImageType in, int width, int height);
   static void yvu2bgr(ImageType out, ImageType in, int width, int height);
 
+  /**
+   *  Convert image from NV21 (Y plane followed by interleaved VU at half
+   *  resolution) to YVU (non-interlaced), replicating each chroma sample
+   *  over its 2x2 block.
+   *
+   *  Arguments:
+   *    out: Resulting image (note must be preallocated before
+   *    call)
+   *    in: Input image
+   *    width: Width of input image, must be even
+   *    height: Height of input image, must be even
+   */
+  static void nv21toyvu(ImageType out, ImageType in, int width, int height);
+
+  /**
+   *  Convert image from YVU (non-interlaced) to NV21, taking the chroma of
+   *  each 2x2 block from its top left pixel. Reverses nv21toyvu() exactly.
+   *
+   *  Arguments:
+   *    out: Resulting image of width * height * 3 / 2 bytes (note must be
+   *    preallocated before call)
+   *    in: Input image
+   *    width: Width of input image, must be even
+   *    height: Height of input image, must be even
+   */
+  static void yvu2nv21(ImageType out, ImageType in, int width, int height);
+
+  /**
+   *  Decimate a YVU (non-interlaced) image by keeping every factor-th
+   *  pixel of every factor-th row of each plane.
+   *
+   *  Arguments:
+   *    out: Resulting image of width/factor x height/factor (note must
+   *    be preallocated before call)
+   *    in: Input image
+   *    width: Width of input image, must be a multiple of factor
+   *    height: Height of input image, must be a multiple of factor
+   *    factor: Decimation factor
+   */
+  static void decimateyvu(ImageType out, ImageType in, int width, int height,
+          int factor);
+
+  /**
+   *  Same as nv21toyvu() followed by decimateyvu(), but reads the input
+   *  once and writes both outputs in the same pass.
+   *
+   *  Arguments:
+   *    out: Full resolution YVU image (note must be preallocated before
+   *    call)
+   *    outLowRes: Decimated YVU image (note must be preallocated before
+   *    call)
+   *    in: NV21 input image
+   *    width: Width of input image, must be even and a multiple of factor
+   *    height: Height of input image, must be even and a multiple of factor
+   *    factor: Decimation factor
+   */
+  static void nv21toyvuDecimated(ImageType out, ImageType outLowRes,
+          ImageType in, int width, int height, int factor);
+
   /**
    *  Convert image from BGR to grayscale
    *
@@ -16,9 +16,18 @@
 #ifndef LOG_H_
 #define LOG_H
 
+#ifdef __ANDROID__
 #include <android/log.h>
 #define LOGV(...) __android_log_print(ANDROID_LOG_SILENT, LOG_TAG, __VA_ARGS__)
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+#else
+// Host builds of the mosaic library (perftests/panorama) print errors only
+#include <stdio.h>
+#define LOGV(...) ((void) 0)
+#define LOGI(...) ((void) 0)
+#define LOGE(...) (fprintf(stderr, "%s: ", LOG_TAG), fprintf(stderr, __VA_ARGS__), \
+        fputc('\n', stderr))
+#endif
 
 #endif
@@ -32,9 +32,9 @@
 Mosaic::Mosaic()
 {
     initialized = false;
-    imageMosaicYVU = NULL;
     frames_size = 0;
     max_frames = 200;
+    min_frame_separation = 0.0;
 }
 
 Mosaic::~Mosaic()
@@ -74,7 +74,10 @@ int Mosaic::initialize(int blendingType, int stripType, int width, int height, i
 
 
     mosaicWidth = mosaicHeight = 0;
-    imageMosaicYVU = NULL;
+    canvas.release();
+
+    if (nframes > max_frames)
+        max_frames = nframes;
 
     frames = new MosaicFrame *[max_frames];
     rframes = new MosaicFrame *[max_frames];
@@ -133,14 +136,46 @@ int Mosaic::addFrameRGB(ImageType imageRGB)
 
     if (frames_size > existing_frames_size)
         owned_frames[owned_size++] = imageYVU;
+    else if (frames_size > 0 && frames[frames_size - 1]->image == imageYVU)
+    {
+        // The new frame replaced the previous last frame, which was the
+        // last owned image.
+        ImageUtils::freeImage(owned_frames[owned_size - 1]);
+        owned_frames[owned_size - 1] = imageYVU;
+    }
     else
         ImageUtils::freeImage(imageYVU);
 
     return ret;
 }
 
+void Mosaic::growFrames()
+{
+    int new_max_frames = 2 * max_frames;
+
+    MosaicFrame **new_frames = new MosaicFrame *[new_max_frames];
+    MosaicFrame **new_rframes = new MosaicFrame *[new_max_frames];
+    ImageType *new_owned_frames = new ImageType[new_max_frames];
+
+    for (int i = 0; i < new_max_frames; i++)
+        new_frames[i] = (i < max_frames) ? frames[i] : NULL;
+    memcpy(new_owned_frames, owned_frames, owned_size * sizeof(ImageType));
+
+    delete [] frames;
+    delete [] rframes;
+    delete [] owned_frames;
+
+    frames = new_frames;
+    rframes = new_rframes;
+    owned_frames = new_owned_frames;
+    max_frames = new_max_frames;
+}
+
 int Mosaic::addFrame(ImageType imageYVU)
 {
+    if (frames_size == max_frames)
+        growFrames();
+
     if(frames[frames_size]==NULL)
         frames[frames_size] = new MosaicFrame(this->width,this->height,false);
 
@@ -183,6 +218,20 @@ int Mosaic::addFrame(ImageType imageYVU)
             default:
                 break;
         }
+
+        // The first frame is always kept. Any other frame stays only if it
+        // is separated from the frame kept before it, like in
+        // Blend::SelectRelevantFrames; the frame that was just added takes
+        // its place otherwise.
+        if (min_frame_separation > 0.0 && frames_size >= 3 &&
+                frames[frames_size - 1] == frame &&
+                !Blend::IsSeparatedStrip(frames[frames_size - 3],
+                    frames[frames_size - 2], min_frame_separation))
+        {
+            frames[frames_size - 1] = frames[frames_size - 2];
+            frames[frames_size - 2] = frame;
+            frames_size--;
+        }
     }
 
     return ret;
@@ -212,7 +261,7 @@ int Mosaic::createMosaic(float &progress, bool &cancelComputation)
     if (blender != NULL)
     {
         ret = blender->runBlend((MosaicFrame **) frames, (MosaicFrame **) rframes, 
-                frames_size, imageMosaicYVU,
+                frames_size, canvas,
                 mosaicWidth, mosaicHeight, progress, cancelComputation);
     }
 
@@ -236,9 +285,30 @@ ImageType Mosaic::getMosaic(int &width, int &height)
     width = mosaicWidth;
     height = mosaicHeight;
 
+    if (canvas.getWidth() == 0 || mosaicWidth <= 0 || mosaicHeight <= 0)
+        return NULL;
+
+    ImageType imageMosaicYVU = ImageUtils::allocateImage(mosaicWidth,
+            mosaicHeight, ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    if (imageMosaicYVU != NULL)
+        canvas.exportYVU(imageMosaicYVU);
     return imageMosaicYVU;
 }
 
+void Mosaic::getMosaicSize(int &width, int &height)
+{
+    width = mosaicWidth;
+    height = mosaicHeight;
+}
+
+void Mosaic::getMosaicNV21(ImageType nv21)
+{
+    if (canvas.getWidth() == 0 || mosaicWidth <= 0 || mosaicHeight <= 0)
+        return;
+
+    canvas.exportNV21(nv21);
+}
+
 
 
 int Mosaic::balanceRotations()
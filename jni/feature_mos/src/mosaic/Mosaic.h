@@ -65,6 +65,8 @@
 
     // Get back the result
     resultYVU = mosaic.getMosaic(mosaicWidth, mosaicHeight);
+    ...
+    ImageUtils::freeImage(resultYVU);
 
     printf("Got mosaic of size %d,%d\n", mosaicWidth, mosaicHeight);
 
@@ -111,6 +113,22 @@ public:
     */
   int addFrameRGB(ImageType imageRGB);
 
+   /*!
+    *   Drops frames that are redundant for wide strip blending as they come
+    *   in, so that only frames Blend would select are kept, plus the
+    *   latest one. A new frame whose predecessor is not separated by more
+    *   than min_separation pixels from the frame before it replaces that
+    *   predecessor, and the number of frames does not grow.
+    *   \param min_separation  Strip separation in pixels of the input
+    *                          frames; 0 (the default) keeps every frame.
+    */
+  void setMinFrameSeparation(double min_separation) { min_frame_separation = min_separation; }
+
+   /*!
+    *   Number of frames currently held for blending.
+    */
+  int getNumFrames() { return frames_size; }
+
    /*!
     *   After adding all frames, call this function to perform the final blending.
     *   \param progress     Variable to set the current progress in.
@@ -119,19 +137,52 @@ public:
   int createMosaic(float &progress, bool &cancelComputation);
 
     /*!
-    *   Obtains the resulting mosaic and its dimensions.
+    *   Obtains a copy of the resulting mosaic and its dimensions.
     *   \param width        Width of the resulting mosaic (returned)
     *   \param height       Height of the resulting mosaic (returned)
-    *   \return             Pointer to image.
+    *   \return             Pointer to a planar YVU image, to be freed with
+    *                       ImageUtils::freeImage(), or NULL if there is no
+    *                       mosaic.
     */
   ImageType getMosaic(int &width, int &height);
 
+    /*!
+    *   Obtains the dimensions of the resulting mosaic without copying it.
+    */
+  void getMosaicSize(int &width, int &height);
+
+    /*!
+    *   Writes the resulting mosaic to nv21 in NV21 layout, one tile at a
+    *   time.
+    *   \param nv21         Output of width * height * 3 / 2 bytes for the
+    *                       dimensions given by getMosaicSize().
+    */
+  void getMosaicNV21(ImageType nv21);
+
+    /*!
+    *   Frees the resulting mosaic once it has been obtained.
+    */
+  void releaseMosaic() { canvas.release(); }
+
+    /*!
+    *   Keeps the mosaic being blended in a scratch file in directory dir,
+    *   with only part of it in memory. NULL (the default) keeps it all in
+    *   memory. Takes effect at the next createMosaic().
+    */
+  void setScratchDir(const char *dir) { canvas.setScratchDir(dir); }
+
     /*!
     *   Provides access to the internal alignment object pointer.
     *   \return             Pointer to the aligner object.
     */
   Align* getAligner() { return aligner; }
 
+    /*!
+    *   Provides access to the internal blender object pointer.
+    *   \return             Pointer to the blender object.
+    */
+  Blend* getBlender() { return blender; }
+
     /*!
     *   Obtain initialization state.
     *
@@ -166,7 +217,10 @@ protected:
    */
   MosaicRect mosaicCroppingRect;
 
-  ImageType imageMosaicYVU;
+  /**
+   * Blended mosaic, cropped to mosaicWidth x mosaicHeight.
+   */
+  MosaicCanvas canvas;
 
   /**
    * Collection of frames that will make up mosaic.
@@ -181,6 +235,11 @@ protected:
   int frames_size;
   int max_frames;
 
+  double min_frame_separation;
+
+  // Doubles the capacity of the frame arrays
+  void growFrames();
+
   /**
     * Implicitly created frames, should be freed by Mosaic.
     */
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// MosaicCanvas.cpp
+
+#include <stdlib.h>
+#include <string.h>
+
+#include "MosaicCanvas.h"
+#include "Log.h"
+
+#define LOG_TAG "MOSAIC_CANVAS"
+
+static const int TILE_BYTES = MosaicCanvas::TILE_SIZE * MosaicCanvas::TILE_SIZE;
+
+MosaicCanvas::MosaicCanvas()
+{
+    m_width = m_height = 0;
+    m_tiles_x = m_tiles_y = m_nr_tiles = 0;
+    m_crop_left = m_crop_top = 0;
+    m_crop_right = m_crop_bottom = -1;
+    m_scratch_dir = NULL;
+    m_tile = NULL;
+    m_filled = NULL;
+    m_resident = NULL;
+    m_last_use = NULL;
+    m_resident_list = NULL;
+    m_nr_resident = m_max_resident = 0;
+    m_clock = 0;
+    for (int p = 0; p < NUM_PLANES; p++)
+    {
+        m_fill[p] = 0;
+        m_cur_tile[p] = -1;
+        m_cur_ptr[p] = NULL;
+    }
+}
+
+MosaicCanvas::~MosaicCanvas()
+{
+    release();
+    free(m_scratch_dir);
+}
+
+void MosaicCanvas::setScratchDir(const char *dir)
+{
+    free(m_scratch_dir);
+    m_scratch_dir = (dir != NULL) ? strdup(dir) : NULL;
+}
+
+bool MosaicCanvas::allocate(int width, int height,
+        const unsigned char fill[NUM_PLANES])
+{
+    release();
+
+    m_width = width;
+    m_height = height;
+    m_tiles_x = (width + TILE_MASK) >> TILE_SHIFT;
+    m_tiles_y = (height + TILE_MASK) >> TILE_SHIFT;
+    m_nr_tiles = m_tiles_x * m_tiles_y;
+    setCrop(0, 0, width - 1, height - 1);
+    memcpy(m_fill, fill, sizeof(m_fill));
+
+    int total = NUM_PLANES * m_nr_tiles;
+    m_tile = new ImageType[total];
+    m_filled = new bool[total];
+    m_resident = new bool[total];
+    m_last_use = new unsigned int[total];
+    memset(m_filled, 0, total * sizeof(bool));
+    memset(m_resident, 0, total * sizeof(bool));
+    memset(m_last_use, 0, total * sizeof(unsigned int));
+
+    // Mapping the whole file up front keeps the tile addresses fixed and
+    // means pixel() cannot fail later on. The spill reserves the disk
+    // blocks as it maps them, so a disk without room for the canvas ends
+    // up here, with the tiles in memory, instead of in SIGBUS on a write.
+    if (m_scratch_dir != NULL && m_spill.open(m_scratch_dir, TILE_BYTES) &&
+            m_spill.slot(total - 1) == NULL)
+    {
+        m_spill.close();
+    }
+
+    if (m_spill.isOpen())
+    {
+        for (int t = 0; t < total; t++)
+            m_tile[t] = m_spill.slot(t);
+
+        // Enough for a band of tiles across the canvas in every plane,
+        // which is how blending and export walk it
+        m_max_resident = NUM_PLANES * (m_tiles_x + m_tiles_y);
+        if (m_max_resident > total)
+            m_max_resident = total;
+        m_resident_list = new int[m_max_resident];
+        LOGV("%dx%d canvas in %d tiles, at most %d resident", width, height,
+                total, m_max_resident);
+    }
+    else
+    {
+        memset(m_tile, 0, total * sizeof(ImageType));
+        for (int t = 0; t < total; t++)
+        {
+            m_tile[t] = (ImageType) malloc(TILE_BYTES);
+            if (m_tile[t] == NULL)
+            {
+                LOGE("Could not allocate a %dx%d canvas", width, height);
+                release();
+                return false;
+            }
+        }
+    }
+
+    return true;
+}
+
+void MosaicCanvas::release()
+{
+    if (m_tile != NULL && !m_spill.isOpen())
+    {
+        for (int t = 0; t < NUM_PLANES * m_nr_tiles; t++)
+            free(m_tile[t]);
+    }
+    m_spill.close();
+
+    delete [] m_tile;
+    delete [] m_filled;
+    delete [] m_resident;
+    delete [] m_last_use;
+    delete [] m_resident_list;
+    m_tile = NULL;
+    m_filled = NULL;
+    m_resident = NULL;
+    m_last_use = NULL;
+    m_resident_list = NULL;
+    m_nr_resident = m_max_resident = 0;
+
+    m_width = m_height = 0;
+    m_tiles_x = m_tiles_y = m_nr_tiles = 0;
+    for (int p = 0; p < NUM_PLANES; p++)
+    {
+        m_cur_tile[p] = -1;
+        m_cur_ptr[p] = NULL;
+    }
+}
+
+void MosaicCanvas::touch(int plane, int tile)
+{
+    if (m_spill.isOpen())
+    {
+        if (!m_resident[tile])
+            makeResident(tile);
+        m_last_use[tile] = ++m_clock;
+    }
+
+    if (!m_filled[tile])
+    {
+        memset(m_tile[tile], m_fill[plane], TILE_BYTES);
+        m_filled[tile] = true;
+    }
+
+    m_cur_tile[plane] = tile;
+    m_cur_ptr[plane] = m_tile[tile];
+}
+
+void MosaicCanvas::makeResident(int tile)
+{
+    if (m_nr_resident < m_max_resident)
+    {
+        m_resident_list[m_nr_resident++] = tile;
+        m_resident[tile] = true;
+        return;
+    }
+
+    // Evict the least recently used tile that is not the current tile of
+    // a plane. Its contents stay in the scratch file.
+    int victim = -1;
+    for (int k = 0; k < m_nr_resident; k++)
+    {
+        int t = m_resident_list[k];
+        if (t == m_cur_tile[PLANE_Y] || t == m_cur_tile[PLANE_V] ||
+                t == m_cur_tile[PLANE_U])
+            continue;
+        if (victim < 0 || m_last_use[t] < m_last_use[m_resident_list[victim]])
+            victim = k;
+    }
+    if (victim < 0)
+    {
+        // Fewer resident tiles than planes; go over the budget
+        m_resident[tile] = true;
+        return;
+    }
+
+    int t = m_resident_list[victim];
+    m_spill.evict(t);
+    m_resident[t] = false;
+
+    m_resident_list[victim] = tile;
+    m_resident[tile] = true;
+}
+
+void MosaicCanvas::setCrop(int left, int top, int right, int bottom)
+{
+    m_crop_left = left;
+    m_crop_top = top;
+    m_crop_right = right;
+    m_crop_bottom = bottom;
+}
+
+void MosaicCanvas::copySpan(int plane, int x, int y, int n, ImageType out)
+{
+    while (n > 0)
+    {
+        int k = TILE_SIZE - (x & TILE_MASK);
+        if (k > n)
+            k = n;
+        memcpy(out, pixel(plane, x, y), k);
+        out += k;
+        x += k;
+        n -= k;
+    }
+}
+
+void MosaicCanvas::exportYVU(ImageType out)
+{
+    int width = getCropWidth();
+
+    for (int p = 0; p < NUM_PLANES; p++)
+    {
+        for (int y = m_crop_top; y <= m_crop_bottom; y++)
+        {
+            copySpan(p, m_crop_left, y, width, out);
+            out += width;
+        }
+    }
+}
+
+void MosaicCanvas::exportNV21(ImageType out)
+{
+    int width = getCropWidth();
+    int height = getCropHeight();
+
+    for (int y = m_crop_top; y <= m_crop_bottom; y++)
+    {
+        copySpan(PLANE_Y, m_crop_left, y, width, out);
+        out += width;
+    }
+
+    // The chroma of each 2x2 block is taken from its top left pixel
+    for (int j = 0; j < height / 2; j++)
+    {
+        int y = m_crop_top + 2 * j;
+        for (int i = 0; i + 1 < width; i += 2)
+        {
+            out[i] = *pixel(PLANE_V, m_crop_left + i, y);
+            out[i + 1] = *pixel(PLANE_U, m_crop_left + i, y);
+        }
+        out += width;
+    }
+}
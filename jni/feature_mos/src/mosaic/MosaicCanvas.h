@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// MosaicCanvas.h
+
+#ifndef MOSAIC_CANVAS_H
+#define MOSAIC_CANVAS_H
+
+#include "FrameSpill.h"
+#include "ImageUtils.h"
+
+/**
+ *  Planar YVU image of the final mosaic, stored in square tiles. With a
+ *  scratch directory the tiles live in a memory-mapped scratch file and
+ *  only the most recently used ones stay resident, so the memory used by
+ *  the canvas depends on its longest side rather than on its area.
+ *  Without one, the tiles are allocated on the heap.
+ *
+ *  Tiles are filled with the fill value of their plane the first time
+ *  they are accessed. The crop rectangle selects the part of the canvas
+ *  that is exported.
+ */
+class MosaicCanvas
+{
+    public:
+        static const int TILE_SHIFT = 8;
+        static const int TILE_SIZE = 1 << TILE_SHIFT;
+        static const int TILE_MASK = TILE_SIZE - 1;
+
+        // Planes in the order of the exported YVU image
+        static const int PLANE_Y = 0;
+        static const int PLANE_V = 1;
+        static const int PLANE_U = 2;
+        static const int NUM_PLANES = 3;
+
+        MosaicCanvas();
+        ~MosaicCanvas();
+
+        /**
+         *  Directory for the scratch file of the next allocate(), or NULL
+         *  to keep the tiles on the heap.
+         */
+        void setScratchDir(const char *dir);
+
+        /**
+         *  Set up a width x height canvas whose planes read as fill[plane]
+         *  until written. Frees the previous canvas.
+         *  \return false if the tiles cannot be allocated.
+         */
+        bool allocate(int width, int height, const unsigned char fill[NUM_PLANES]);
+
+        void release();
+
+        int getWidth() { return m_width; }
+        int getHeight() { return m_height; }
+
+        /**
+         *  Address of pixel (x, y) of plane. Only the pixels up to the end
+         *  of the tile row containing it are contiguous.
+         */
+        inline unsigned char *pixel(int plane, int x, int y)
+        {
+            int t = plane * m_nr_tiles + (y >> TILE_SHIFT) * m_tiles_x +
+                    (x >> TILE_SHIFT);
+            if (t != m_cur_tile[plane])
+                touch(plane, t);
+            return m_cur_ptr[plane] + ((y & TILE_MASK) << TILE_SHIFT) +
+                    (x & TILE_MASK);
+        }
+
+        inline unsigned char &at(int plane, int x, int y)
+        {
+            return *pixel(plane, x, y);
+        }
+
+        /**
+         *  Restrict the exported image to the inclusive rectangle
+         *  [left, right] x [top, bottom]. allocate() selects the whole
+         *  canvas.
+         */
+        void setCrop(int left, int top, int right, int bottom);
+
+        int getCropWidth() { return m_crop_right - m_crop_left + 1; }
+        int getCropHeight() { return m_crop_bottom - m_crop_top + 1; }
+
+        /**
+         *  Copy the cropped canvas to out as planar Y, V and U planes.
+         */
+        void exportYVU(ImageType out);
+
+        /**
+         *  Copy the cropped canvas to out in NV21 layout: the Y plane
+         *  followed by interleaved V and U subsampled by two in both
+         *  directions.
+         */
+        void exportNV21(ImageType out);
+
+        /**
+         *  Number of tiles that can be resident at once when the canvas is
+         *  backed by a scratch file.
+         */
+        int getMaxResidentTiles() { return m_max_resident; }
+
+        /**
+         *  Bytes of memory the tiles can take at once: all of them on the
+         *  heap, or the resident ones with a scratch file.
+         */
+        long long getMemoryBytes()
+        {
+            int tiles = m_spill.isOpen() ? m_max_resident : NUM_PLANES * m_nr_tiles;
+            return (long long) tiles * TILE_SIZE * TILE_SIZE;
+        }
+
+    private:
+        int m_width;
+        int m_height;
+        int m_tiles_x;
+        int m_tiles_y;
+        int m_nr_tiles;            // Tiles per plane
+
+        int m_crop_left, m_crop_top, m_crop_right, m_crop_bottom;
+
+        char *m_scratch_dir;
+        FrameSpill m_spill;
+
+        // Per tile of all planes
+        ImageType *m_tile;
+        bool *m_filled;
+        bool *m_resident;
+        unsigned int *m_last_use;
+        unsigned char m_fill[NUM_PLANES];
+
+        // Resident tiles when backed by the scratch file
+        int *m_resident_list;
+        int m_nr_resident;
+        int m_max_resident;
+        unsigned int m_clock;
+
+        // Tile of the last pixel() of each plane
+        int m_cur_tile[NUM_PLANES];
+        ImageType m_cur_ptr[NUM_PLANES];
+
+        void touch(int plane, int tile);
+        void makeResident(int tile);
+        void copySpan(int plane, int x, int y, int n, ImageType out);
+};
+
+#endif
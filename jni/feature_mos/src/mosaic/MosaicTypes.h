@@ -128,6 +128,33 @@ public:
 
 };
 
+/**
+ *  Time in milliseconds spent in each stage of the last blend.
+ */
+class BlendTimings
+{
+    public:
+        BlendTimings()
+        {
+            reset();
+        }
+
+        void reset()
+        {
+            delaunay = pyramid = blend = crop = 0.0;
+            scratch_bytes = 0;
+        }
+
+        double delaunay;  // Triangulation of the frame centers
+        double pyramid;   // Building and collapsing the Laplacian pyramids
+        double blend;     // Seam masks and merging of the frame pyramids
+        double crop;      // Cropping the gray border off the final mosaic
+
+        // Memory held for blending: the mosaic pyramids plus the canvas
+        // tiles that can be resident at once, in bytes
+        long long scratch_bytes;
+};
+
 /**
  *  Structure for describing a warp.
  */
@@ -21,6 +21,14 @@
 
 #include "Pyramid.h"
 
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+#include <arm_neon.h>
+#define PYRAMID_USE_NEON
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define PYRAMID_USE_SSE2
+#endif
+
 // We allocate the entire pyramid into one contiguous storage. This makes
 // cleanup easier than fragmented stuff. In addition, we added a "pitch"
 // field, so pointer manipulation is much simpler when it would be faster.
@@ -145,8 +153,302 @@ void PyramidShort::BorderSpread(PyramidShort *pyr, int left, int right,
     }
 }
 
-void PyramidShort::BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr,
-        int mode)
+// Row kernels used by the vectorized BorderReduceOdd and BorderExpandOdd.
+// Each one processes as many samples as possible with NEON or SSE2 and
+// finishes the row with the same scalar arithmetic as the reference code.
+// All intermediate sums are computed in 32 bits so the results stay
+// bit-exact with the scalar path.
+
+// s[k] = (p[2k-2] + 4 p[2k-1] + 6 p[2k] + 4 p[2k+1] + p[2k+2] + 8) >> 4
+static void ReduceRowHorz(ImageTypeShortBase *s, const ImageTypeShortBase *p,
+        int n)
+{
+    int k = 0;
+
+#if defined(PYRAMID_USE_NEON)
+    // The last load reads p[2k+17], so stop while the scalar loop would
+    // still read that far.
+    for (; k + 8 < n; k += 8, s += 8, p += 16) {
+        int16x8x2_t a = vld2q_s16(p - 2);
+        int16x8x2_t b = vld2q_s16(p);
+        int16x8_t c = vld2q_s16(p + 2).val[0];
+
+        int32x4_t lo = vaddl_s16(vget_low_s16(a.val[0]), vget_low_s16(c));
+        int32x4_t hi = vaddl_s16(vget_high_s16(a.val[0]), vget_high_s16(c));
+        int32x4_t lo4 = vaddl_s16(vget_low_s16(a.val[1]), vget_low_s16(b.val[1]));
+        int32x4_t hi4 = vaddl_s16(vget_high_s16(a.val[1]), vget_high_s16(b.val[1]));
+        lo = vaddq_s32(lo, vshlq_n_s32(lo4, 2));
+        hi = vaddq_s32(hi, vshlq_n_s32(hi4, 2));
+        lo = vmlal_n_s16(lo, vget_low_s16(b.val[0]), 6);
+        hi = vmlal_n_s16(hi, vget_high_s16(b.val[0]), 6);
+        lo = vshrq_n_s32(vaddq_s32(lo, vdupq_n_s32(8)), 4);
+        hi = vshrq_n_s32(vaddq_s32(hi, vdupq_n_s32(8)), 4);
+
+        vst1q_s16(s, vcombine_s16(vmovn_s32(lo), vmovn_s32(hi)));
+    }
+#elif defined(PYRAMID_USE_SSE2)
+    const __m128i eight = _mm_set1_epi32(8);
+    for (; k + 8 < n; k += 8, s += 8, p += 16) {
+        __m128i r[2];
+        for (int h = 0; h < 2; h++) {
+            const ImageTypeShortBase *q = p + (h << 3);
+            __m128i a = _mm_loadu_si128((const __m128i *) (q - 2));
+            __m128i b = _mm_loadu_si128((const __m128i *) q);
+            __m128i c = _mm_loadu_si128((const __m128i *) (q + 2));
+
+            // Split each 32-bit lane into its sign-extended even and odd
+            // shorts.
+            __m128i m2 = _mm_srai_epi32(_mm_slli_epi32(a, 16), 16);
+            __m128i m1 = _mm_srai_epi32(a, 16);
+            __m128i c0 = _mm_srai_epi32(_mm_slli_epi32(b, 16), 16);
+            __m128i p1 = _mm_srai_epi32(b, 16);
+            __m128i p2 = _mm_srai_epi32(_mm_slli_epi32(c, 16), 16);
+
+            __m128i sum = _mm_add_epi32(_mm_add_epi32(m2, p2), eight);
+            sum = _mm_add_epi32(sum, _mm_slli_epi32(_mm_add_epi32(m1, p1), 2));
+            sum = _mm_add_epi32(sum, _mm_add_epi32(_mm_slli_epi32(c0, 2),
+                    _mm_slli_epi32(c0, 1)));
+            r[h] = _mm_srai_epi32(sum, 4);
+        }
+        _mm_storeu_si128((__m128i *) s, _mm_packs_epi32(r[0], r[1]));
+    }
+#endif
+
+    for (; k < n; k++, s++, p += 2) {
+        *s = (short)((((int) p[-2]) + ((int) p[2]) + 8 +    // 1
+                    ((((int) p[-1]) + ((int) p[1])) << 2) + // 4
+                    ((int) *p) * 6) >> 4);          // 6
+    }
+}
+
+#if defined(PYRAMID_USE_SSE2)
+// Sign-extend the low and high four shorts of v into 32-bit lanes.
+static inline __m128i WidenLo(__m128i v)
+{
+    return _mm_srai_epi32(_mm_unpacklo_epi16(v, v), 16);
+}
+
+static inline __m128i WidenHi(__m128i v)
+{
+    return _mm_srai_epi32(_mm_unpackhi_epi16(v, v), 16);
+}
+#endif
+
+// s[k] = (p[k-2P] + 4 p[k-P] + 6 p[k] + 4 p[k+P] + p[k+2P] + 8) >> 4
+static void ReduceRowVert(ImageTypeShortBase *s, const ImageTypeShortBase *p,
+        int pitch, int n)
+{
+    int pitch2 = pitch << 1;
+    int k = 0;
+
+#if defined(PYRAMID_USE_NEON)
+    for (; k + 8 <= n; k += 8, s += 8, p += 8) {
+        int16x8_t m2 = vld1q_s16(p - pitch2);
+        int16x8_t m1 = vld1q_s16(p - pitch);
+        int16x8_t c0 = vld1q_s16(p);
+        int16x8_t p1 = vld1q_s16(p + pitch);
+        int16x8_t p2 = vld1q_s16(p + pitch2);
+
+        int32x4_t lo = vaddl_s16(vget_low_s16(m2), vget_low_s16(p2));
+        int32x4_t hi = vaddl_s16(vget_high_s16(m2), vget_high_s16(p2));
+        int32x4_t lo4 = vaddl_s16(vget_low_s16(m1), vget_low_s16(p1));
+        int32x4_t hi4 = vaddl_s16(vget_high_s16(m1), vget_high_s16(p1));
+        lo = vaddq_s32(lo, vshlq_n_s32(lo4, 2));
+        hi = vaddq_s32(hi, vshlq_n_s32(hi4, 2));
+        lo = vmlal_n_s16(lo, vget_low_s16(c0), 6);
+        hi = vmlal_n_s16(hi, vget_high_s16(c0), 6);
+        lo = vshrq_n_s32(vaddq_s32(lo, vdupq_n_s32(8)), 4);
+        hi = vshrq_n_s32(vaddq_s32(hi, vdupq_n_s32(8)), 4);
+
+        vst1q_s16(s, vcombine_s16(vmovn_s32(lo), vmovn_s32(hi)));
+    }
+#elif defined(PYRAMID_USE_SSE2)
+    const __m128i eight = _mm_set1_epi32(8);
+    for (; k + 8 <= n; k += 8, s += 8, p += 8) {
+        __m128i m2 = _mm_loadu_si128((const __m128i *) (p - pitch2));
+        __m128i m1 = _mm_loadu_si128((const __m128i *) (p - pitch));
+        __m128i c0 = _mm_loadu_si128((const __m128i *) p);
+        __m128i p1 = _mm_loadu_si128((const __m128i *) (p + pitch));
+        __m128i p2 = _mm_loadu_si128((const __m128i *) (p + pitch2));
+
+        __m128i lo = _mm_add_epi32(_mm_add_epi32(WidenLo(m2), WidenLo(p2)), eight);
+        __m128i hi = _mm_add_epi32(_mm_add_epi32(WidenHi(m2), WidenHi(p2)), eight);
+        lo = _mm_add_epi32(lo, _mm_slli_epi32(
+                _mm_add_epi32(WidenLo(m1), WidenLo(p1)), 2));
+        hi = _mm_add_epi32(hi, _mm_slli_epi32(
+                _mm_add_epi32(WidenHi(m1), WidenHi(p1)), 2));
+        __m128i clo = WidenLo(c0);
+        __m128i chi = WidenHi(c0);
+        lo = _mm_add_epi32(lo, _mm_add_epi32(_mm_slli_epi32(clo, 2),
+                _mm_slli_epi32(clo, 1)));
+        hi = _mm_add_epi32(hi, _mm_add_epi32(_mm_slli_epi32(chi, 2),
+                _mm_slli_epi32(chi, 1)));
+
+        _mm_storeu_si128((__m128i *) s, _mm_packs_epi32(
+                _mm_srai_epi32(lo, 4), _mm_srai_epi32(hi, 4)));
+    }
+#endif
+
+    for (; k < n; k++, s++, p++) {
+        *s = (short)((((int) p[-pitch2]) + ((int) p[pitch2]) + 8 + // 1
+                    ((((int) p[-pitch]) + ((int) p[pitch])) << 2) + // 4
+                    ((int) *p) * 6) >> 4);              // 6
+    }
+}
+
+// even[k] = (m1[k] + 6 c[k] + p1[k] + 4) >> 3
+// odd[k]  = (c[k] + p1[k] + 1) >> 1
+static void ExpandRowVert(ImageTypeShortBase *even, ImageTypeShortBase *odd,
+        const ImageTypeShortBase *m1, const ImageTypeShortBase *c,
+        const ImageTypeShortBase *p1, int n)
+{
+    int k = 0;
+
+#if defined(PYRAMID_USE_NEON)
+    for (; k + 8 <= n; k += 8) {
+        int16x8_t vm = vld1q_s16(m1 + k);
+        int16x8_t vc = vld1q_s16(c + k);
+        int16x8_t vp = vld1q_s16(p1 + k);
+
+        int32x4_t elo = vaddl_s16(vget_low_s16(vm), vget_low_s16(vp));
+        int32x4_t ehi = vaddl_s16(vget_high_s16(vm), vget_high_s16(vp));
+        elo = vmlal_n_s16(elo, vget_low_s16(vc), 6);
+        ehi = vmlal_n_s16(ehi, vget_high_s16(vc), 6);
+        elo = vshrq_n_s32(vaddq_s32(elo, vdupq_n_s32(4)), 3);
+        ehi = vshrq_n_s32(vaddq_s32(ehi, vdupq_n_s32(4)), 3);
+
+        int32x4_t olo = vaddl_s16(vget_low_s16(vc), vget_low_s16(vp));
+        int32x4_t ohi = vaddl_s16(vget_high_s16(vc), vget_high_s16(vp));
+        olo = vshrq_n_s32(vaddq_s32(olo, vdupq_n_s32(1)), 1);
+        ohi = vshrq_n_s32(vaddq_s32(ohi, vdupq_n_s32(1)), 1);
+
+        vst1q_s16(even + k, vcombine_s16(vmovn_s32(elo), vmovn_s32(ehi)));
+        vst1q_s16(odd + k, vcombine_s16(vmovn_s32(olo), vmovn_s32(ohi)));
+    }
+#elif defined(PYRAMID_USE_SSE2)
+    const __m128i four = _mm_set1_epi32(4);
+    const __m128i one = _mm_set1_epi32(1);
+    for (; k + 8 <= n; k += 8) {
+        __m128i vm = _mm_loadu_si128((const __m128i *) (m1 + k));
+        __m128i vc = _mm_loadu_si128((const __m128i *) (c + k));
+        __m128i vp = _mm_loadu_si128((const __m128i *) (p1 + k));
+
+        __m128i clo = WidenLo(vc), chi = WidenHi(vc);
+        __m128i plo = WidenLo(vp), phi = WidenHi(vp);
+
+        __m128i elo = _mm_add_epi32(_mm_add_epi32(WidenLo(vm), plo), four);
+        __m128i ehi = _mm_add_epi32(_mm_add_epi32(WidenHi(vm), phi), four);
+        elo = _mm_add_epi32(elo, _mm_add_epi32(_mm_slli_epi32(clo, 2),
+                _mm_slli_epi32(clo, 1)));
+        ehi = _mm_add_epi32(ehi, _mm_add_epi32(_mm_slli_epi32(chi, 2),
+                _mm_slli_epi32(chi, 1)));
+
+        __m128i olo = _mm_add_epi32(_mm_add_epi32(clo, plo), one);
+        __m128i ohi = _mm_add_epi32(_mm_add_epi32(chi, phi), one);
+
+        _mm_storeu_si128((__m128i *) (even + k), _mm_packs_epi32(
+                _mm_srai_epi32(elo, 3), _mm_srai_epi32(ehi, 3)));
+        _mm_storeu_si128((__m128i *) (odd + k), _mm_packs_epi32(
+                _mm_srai_epi32(olo, 1), _mm_srai_epi32(ohi, 1)));
+    }
+#endif
+
+    for (; k < n; k++) {
+        int t1 = c[k];
+        int t2 = p1[k];
+        even[k] = (short) ((6 * t1 + (m1[k] + t2) + 4) >> 3);
+        odd[k] = (short) ((t1 + t2 + 1) >> 1);
+    }
+}
+
+// out[2k]   += mode * ((s[k-1] + 6 s[k] + s[k+1] + 4) >> 3)
+// out[2k+1] += mode * ((s[k] + s[k+1] + 1) >> 1)
+static void ExpandRowHorz(ImageTypeShortBase *out, const ImageTypeShortBase *s,
+        int n, int mode)
+{
+    int k = 0;
+
+#if defined(PYRAMID_USE_NEON)
+    // The last load reads s[k+8], which the scalar loop reads as well as
+    // long as k + 8 <= n.
+    int16x8_t vmode = vdupq_n_s16((short) mode);
+    for (; k + 8 <= n; k += 8, out += 16, s += 8) {
+        int16x8_t vm = vld1q_s16(s - 1);
+        int16x8_t vc = vld1q_s16(s);
+        int16x8_t vp = vld1q_s16(s + 1);
+
+        int32x4_t elo = vaddl_s16(vget_low_s16(vm), vget_low_s16(vp));
+        int32x4_t ehi = vaddl_s16(vget_high_s16(vm), vget_high_s16(vp));
+        elo = vmlal_n_s16(elo, vget_low_s16(vc), 6);
+        ehi = vmlal_n_s16(ehi, vget_high_s16(vc), 6);
+        elo = vshrq_n_s32(vaddq_s32(elo, vdupq_n_s32(4)), 3);
+        ehi = vshrq_n_s32(vaddq_s32(ehi, vdupq_n_s32(4)), 3);
+
+        int32x4_t olo = vaddl_s16(vget_low_s16(vc), vget_low_s16(vp));
+        int32x4_t ohi = vaddl_s16(vget_high_s16(vc), vget_high_s16(vp));
+        olo = vshrq_n_s32(vaddq_s32(olo, vdupq_n_s32(1)), 1);
+        ohi = vshrq_n_s32(vaddq_s32(ohi, vdupq_n_s32(1)), 1);
+
+        // The scalar code truncates the sum back to 16 bits, which is
+        // exactly the wrap-around of the 16-bit multiply-accumulate.
+        int16x8x2_t o = vld2q_s16(out);
+        o.val[0] = vmlaq_s16(o.val[0], vcombine_s16(vmovn_s32(elo),
+                vmovn_s32(ehi)), vmode);
+        o.val[1] = vmlaq_s16(o.val[1], vcombine_s16(vmovn_s32(olo),
+                vmovn_s32(ohi)), vmode);
+        vst2q_s16(out, o);
+    }
+#elif defined(PYRAMID_USE_SSE2)
+    const __m128i four = _mm_set1_epi32(4);
+    const __m128i one = _mm_set1_epi32(1);
+    const __m128i vmode = _mm_set1_epi16((short) mode);
+    for (; k + 8 <= n; k += 8, out += 16, s += 8) {
+        __m128i vm = _mm_loadu_si128((const __m128i *) (s - 1));
+        __m128i vc = _mm_loadu_si128((const __m128i *) s);
+        __m128i vp = _mm_loadu_si128((const __m128i *) (s + 1));
+
+        __m128i clo = WidenLo(vc), chi = WidenHi(vc);
+        __m128i plo = WidenLo(vp), phi = WidenHi(vp);
+
+        __m128i elo = _mm_add_epi32(_mm_add_epi32(WidenLo(vm), plo), four);
+        __m128i ehi = _mm_add_epi32(_mm_add_epi32(WidenHi(vm), phi), four);
+        elo = _mm_add_epi32(elo, _mm_add_epi32(_mm_slli_epi32(clo, 2),
+                _mm_slli_epi32(clo, 1)));
+        ehi = _mm_add_epi32(ehi, _mm_add_epi32(_mm_slli_epi32(chi, 2),
+                _mm_slli_epi32(chi, 1)));
+        __m128i e = _mm_packs_epi32(_mm_srai_epi32(elo, 3),
+                _mm_srai_epi32(ehi, 3));
+
+        __m128i olo = _mm_add_epi32(_mm_add_epi32(clo, plo), one);
+        __m128i ohi = _mm_add_epi32(_mm_add_epi32(chi, phi), one);
+        __m128i o = _mm_packs_epi32(_mm_srai_epi32(olo, 1),
+                _mm_srai_epi32(ohi, 1));
+
+        // The scalar code truncates the sum back to 16 bits, which is
+        // exactly the wrap-around of the 16-bit multiply and add.
+        e = _mm_mullo_epi16(e, vmode);
+        o = _mm_mullo_epi16(o, vmode);
+        __m128i out0 = _mm_loadu_si128((const __m128i *) out);
+        __m128i out1 = _mm_loadu_si128((const __m128i *) (out + 8));
+        _mm_storeu_si128((__m128i *) out,
+                _mm_add_epi16(out0, _mm_unpacklo_epi16(e, o)));
+        _mm_storeu_si128((__m128i *) (out + 8),
+                _mm_add_epi16(out1, _mm_unpackhi_epi16(e, o)));
+    }
+#endif
+
+    for (; k < n; k++, out += 2, s++) {
+        int t1 = s[0];
+        int t2 = s[1];
+        out[0] = (short) (out[0] + (mode * ((6 * t1 + s[-1] + t2 + 4) >> 3)));
+        out[1] = (short) (out[1] + (mode * ((t1 + t2 + 1) >> 1)));
+    }
+}
+
+// Scalar reference implementation of BorderExpandOdd. The vectorized version
+// below must produce bit-exact results against this one.
+void PyramidShort::BorderExpandOddScalar(PyramidShort *in, PyramidShort *out,
+        PyramidShort *scr, int mode)
 {
     int i,j;
     int off = in->border / 2;
@@ -183,6 +485,32 @@ void PyramidShort::BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidS
 
 }
 
+void PyramidShort::BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr,
+        int mode)
+{
+    int j;
+    int off = in->border / 2;
+
+    // Vertical Filter
+    int start = -scr->border;
+    int count = scr->width + (scr->border << 1);
+    for (j = -off; j < in->height + off; j++) {
+        int j2 = j * 2;
+        ExpandRowVert(scr->ptr[j2] + start, scr->ptr[j2+1] + start,
+                in->ptr[j-1] + start, in->ptr[j] + start, in->ptr[j+1] + start,
+                count);
+    }
+
+    BorderSpread(scr, 0, 0, 3, 3);
+
+    // Horizontal Filter
+    int limit = out->height + out->border;
+    for (j = -out->border; j < limit; j++) {
+        ExpandRowHorz(out->ptr[j] - 2 * off, scr->ptr[j] - off,
+                scr->width + (off << 1), mode);
+    }
+}
+
 int PyramidShort::BorderExpand(PyramidShort *pyr, int nlev, int mode)
 {
     PyramidShort *tpyr = pyr + nlev - 1;
@@ -210,7 +538,10 @@ int PyramidShort::BorderExpand(PyramidShort *pyr, int nlev, int mode)
     return 1;
 }
 
-void PyramidShort::BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr)
+// Scalar reference implementation of BorderReduceOdd. The vectorized version
+// below must produce bit-exact results against this one.
+void PyramidShort::BorderReduceOddScalar(PyramidShort *in, PyramidShort *out,
+        PyramidShort *scr)
 {
     ImageTypeShortBase *s, *ns, *ls, *p, *np;
 
@@ -251,6 +582,33 @@ void PyramidShort::BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidS
 
 }
 
+void PyramidShort::BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr)
+{
+    ImageTypeShortBase *s, *ls, *p;
+
+    int off = scr->border - 2;
+    s = scr->ptr[-scr->border] - (off >> 1);
+    ls = scr->ptr[scr->height + scr->border - 1] + scr->pitch - (off >> 1);
+    int width = scr->width + scr->border;
+    p = in->ptr[-scr->border] - off;
+
+    // treat it as if the whole thing were the image
+    for (; s < ls; s += scr->pitch, p += in->pitch) {
+        ReduceRowHorz(s, p, width);
+    }
+
+    BorderSpread(scr, 5, 4 + ((in->width ^ 1) & 1), 0, 0); //
+
+    s = out->ptr[-(off >> 1)] - out->border;
+    ls = s + out->pitch * (out->height + off);
+    p = scr->ptr[-off] - out->border;
+    int pitch2 = scr->pitch << 1;
+    for (; s < ls; s += out->pitch, p += pitch2) {
+        ReduceRowVert(s, p, scr->pitch, out->pitch);
+    }
+    BorderSpread(out, 0, 0, 5, 5);
+}
+
 int PyramidShort::BorderReduce(PyramidShort *pyr, int nlev)
 {
     PyramidShort *scr = allocateImage(pyr[1].width, pyr[0].height, pyr->border);
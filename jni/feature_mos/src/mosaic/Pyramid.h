@@ -49,6 +49,12 @@ public:
   static int BorderExpand(PyramidShort *pyr, int nlev, int mode);
   static int BorderReduce(PyramidShort *pyr, int nlev);
   static void BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr);
+
+  // Scalar reference versions of the kernels above. BorderReduceOdd and
+  // BorderExpandOdd use NEON or SSE2 when available and must match these
+  // bit for bit.
+  static void BorderExpandOddScalar(PyramidShort *in, PyramidShort *out, PyramidShort *scr, int mode);
+  static void BorderReduceOddScalar(PyramidShort *in, PyramidShort *out, PyramidShort *scr);
 };
 
 #endif
@@ -0,0 +1,331 @@
+#include "CpuRenderer.h"
+
+#include <math.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "mosaic/Log.h"
+#define LOG_TAG "CpuRenderer"
+
+// Inverse of the YVURenderer conversion, in 1/1024 units: RGB from YVU
+// with the 0.063, 0.5 and 0.5 offsets removed. Filled in by the first
+// CpuRenderer.
+static int gYVUtoRGB[9];
+static bool gYVUtoRGBReady = false;
+
+static void ComputeYVUtoRGB()
+{
+    // Rows of the YVURenderer shader: Y, V and U from R, G and B
+    const double m[9] = {
+         0.257,  0.594,  0.098,
+         0.439, -0.368, -0.071,
+        -0.148, -0.291,  0.439 };
+
+    double det = m[0] * (m[4] * m[8] - m[5] * m[7]) -
+            m[1] * (m[3] * m[8] - m[5] * m[6]) +
+            m[2] * (m[3] * m[7] - m[4] * m[6]);
+    double inv[9] = {
+        m[4] * m[8] - m[5] * m[7], m[2] * m[7] - m[1] * m[8], m[1] * m[5] - m[2] * m[4],
+        m[5] * m[6] - m[3] * m[8], m[0] * m[8] - m[2] * m[6], m[2] * m[3] - m[0] * m[5],
+        m[3] * m[7] - m[4] * m[6], m[1] * m[6] - m[0] * m[7], m[0] * m[4] - m[1] * m[3] };
+
+    for (int i = 0; i < 9; i++) {
+        gYVUtoRGB[i] = (int) floor(inv[i] / det * 1024.0 + 0.5);
+    }
+    gYVUtoRGBReady = true;
+}
+
+static inline unsigned char Clamp255(int v)
+{
+    return (unsigned char) (v < 0 ? 0 : (v > 255 ? 255 : v));
+}
+
+// BT.601 video range conversion, as used for camera preview frames
+static inline void YUVtoRGBA(int y, int u, int v, unsigned char *rgba)
+{
+    int c = 298 * (y < 16 ? 0 : y - 16) + 128;
+    int d = u - 128;
+    int e = v - 128;
+
+    rgba[0] = Clamp255((c + 409 * e) >> 8);
+    rgba[1] = Clamp255((c - 100 * d - 208 * e) >> 8);
+    rgba[2] = Clamp255((c + 516 * d) >> 8);
+    rgba[3] = 255;
+}
+
+// The YVURenderer shader in 1/65536 units: Y, V and U from R, G and B, then
+// the offset in 1/255 units
+#define FIX16(c) ((int) floor((c) * 65536.0 + 0.5))
+static const int gRGBtoYVU[12] = {
+    FIX16(0.257), FIX16(0.594), FIX16(0.098), FIX16(0.063 * 255),
+    FIX16(0.439), FIX16(-0.368), FIX16(-0.071), FIX16(0.5 * 255),
+    FIX16(-0.148), FIX16(-0.291), FIX16(0.439), FIX16(0.5 * 255) };
+#undef FIX16
+
+// Rounded and clamped as the framebuffer stores the shader output
+static inline void RGBtoYVUA(int r, int g, int b, unsigned char *yvua)
+{
+    const int *m = gRGBtoYVU;
+    yvua[0] = Clamp255((m[0] * r + m[1] * g + m[2] * b + m[3] + 32768) >> 16);
+    yvua[1] = Clamp255((m[4] * r + m[5] * g + m[6] * b + m[7] + 32768) >> 16);
+    yvua[2] = Clamp255((m[8] * r + m[9] * g + m[10] * b + m[11] + 32768) >> 16);
+    yvua[3] = yvua[0];
+}
+
+CpuRenderer::CpuRenderer()
+{
+    mWidth = mHeight = 0;
+    mFactor = 1;
+    mMosaicWidth = mMosaicHeight = 0;
+    mFrame = NULL;
+    mMosaic[0] = mMosaic[1] = NULL;
+    mFront = 0;
+
+    if (!gYVUtoRGBReady) {
+        ComputeYVUtoRGB();
+    }
+}
+
+CpuRenderer::~CpuRenderer()
+{
+    Release();
+}
+
+bool CpuRenderer::Init(int widthHR, int heightHR, int factor, int mosaicWidth,
+        int mosaicHeight)
+{
+    Release();
+
+    mFrame = (unsigned char *) malloc(widthHR * heightHR * 4);
+    mMosaic[0] = (unsigned char *) malloc(mosaicWidth * mosaicHeight * 4);
+    mMosaic[1] = (unsigned char *) malloc(mosaicWidth * mosaicHeight * 4);
+    if (mFrame == NULL || mMosaic[0] == NULL || mMosaic[1] == NULL) {
+        LOGE("Could not allocate a %dx%d preview mosaic", mosaicWidth,
+                mosaicHeight);
+        Release();
+        return false;
+    }
+
+    mWidth = widthHR;
+    mHeight = heightHR;
+    mFactor = factor;
+    mMosaicWidth = mosaicWidth;
+    mMosaicHeight = mosaicHeight;
+    memset(mFrame, 0, widthHR * heightHR * 4);
+    Clear();
+    return true;
+}
+
+void CpuRenderer::Release()
+{
+    free(mFrame);
+    free(mMosaic[0]);
+    free(mMosaic[1]);
+    mFrame = NULL;
+    mMosaic[0] = mMosaic[1] = NULL;
+    mWidth = mHeight = 0;
+    mMosaicWidth = mMosaicHeight = 0;
+    mFront = 0;
+}
+
+void CpuRenderer::PreprocessNV21(const unsigned char *nv21,
+        unsigned char *yvuaHR, unsigned char *yvuaLR)
+{
+    const int w = mWidth;
+    const unsigned char *vu = nv21 + w * mHeight;
+
+    for (int y = 0; y < mHeight; y++) {
+        const unsigned char *yrow = nv21 + y * w;
+        const unsigned char *vurow = vu + (y >> 1) * w;
+        unsigned char *rgba = mFrame + y * w * 4;
+
+        for (int x = 0; x < w; x++, rgba += 4) {
+            YUVtoRGBA(yrow[x], vurow[x | 1], vurow[x & ~1], rgba);
+        }
+    }
+
+    if (yvuaHR != NULL) {
+        const unsigned char *rgba = mFrame;
+        for (int n = w * mHeight; n > 0; n--, rgba += 4, yvuaHR += 4) {
+            RGBtoYVUA(rgba[0], rgba[1], rgba[2], yvuaHR);
+        }
+    }
+
+    if (yvuaLR == NULL) return;
+
+    // Low-res pixel i has its center between high-res pixels x0 and x0 + 1
+    const int wl = mWidth / mFactor;
+    const int hl = mHeight / mFactor;
+    const int half = mFactor / 2 - 1;
+    for (int j = 0; j < hl; j++) {
+        const unsigned char *row0 = mFrame + (j * mFactor + half) * w * 4;
+        const unsigned char *row1 = row0 + w * 4;
+        unsigned char *out = yvuaLR + j * wl * 4;
+
+        for (int i = 0; i < wl; i++, out += 4) {
+            const unsigned char *p = row0 + (i * mFactor + half) * 4;
+            const unsigned char *q = row1 + (i * mFactor + half) * 4;
+            RGBtoYVUA((p[0] + p[4] + q[0] + q[4] + 2) >> 2,
+                    (p[1] + p[5] + q[1] + q[5] + 2) >> 2,
+                    (p[2] + p[6] + q[2] + q[6] + 2) >> 2, out);
+        }
+    }
+}
+
+void CpuRenderer::SetFrameYVUA(const unsigned char *yvua)
+{
+    const int *m = gYVUtoRGB;
+    const unsigned char *in = yvua;
+    unsigned char *rgba = mFrame;
+
+    // Offsets of 0.063, 0.5 and 0.5 in 1/255 units, scaled by 1024
+    for (int n = mWidth * mHeight; n > 0; n--) {
+        int y = in[0] * 1024 - 16451;
+        int v = in[1] * 1024 - 130560;
+        int u = in[2] * 1024 - 130560;
+
+        rgba[0] = Clamp255((m[0] * y + m[1] * v + m[2] * u + (1 << 19)) >> 20);
+        rgba[1] = Clamp255((m[3] * y + m[4] * v + m[5] * u + (1 << 19)) >> 20);
+        rgba[2] = Clamp255((m[6] * y + m[7] * v + m[8] * u + (1 << 19)) >> 20);
+        rgba[3] = 255;
+        in += 4;
+        rgba += 4;
+    }
+}
+
+void CpuRenderer::Clear()
+{
+    for (int b = 0; b < 2; b++) {
+        unsigned int *p = (unsigned int *) mMosaic[b];
+        unsigned char black[4] = { 0, 0, 0, 255 };
+        unsigned int pixel;
+        memcpy(&pixel, black, sizeof(pixel));
+        for (int n = mMosaicWidth * mMosaicHeight; n > 0; n--) {
+            *p++ = pixel;
+        }
+    }
+}
+
+// Copy row y of the frame into row y + py of the mosaic at px, clipped to
+// the mosaic
+static inline void PasteRow(unsigned char *mosaic, int mosaicWidth,
+        const unsigned char *frame, int width, int y, int px, int py)
+{
+    int left = px < 0 ? -px : 0;
+    int right = px + width > mosaicWidth ? mosaicWidth - px : width;
+    if (left >= right) return;
+
+    memcpy(mosaic + ((y + py) * mosaicWidth + px + left) * 4,
+            frame + (y * width + left) * 4, (right - left) * 4);
+}
+
+void CpuRenderer::Paste(int x, int y)
+{
+    for (int r = 0; r < mHeight; r++) {
+        if (r + y >= 0 && r + y < mMosaicHeight) {
+            PasteRow(mMosaic[mFront], mMosaicWidth, mFrame, mWidth, r, x, y);
+        }
+    }
+}
+
+void CpuRenderer::Warp(const double H[9], int x, int y)
+{
+    double det = H[0] * H[4] - H[1] * H[3];
+    if (det == 0.0) {
+        LOGE("Cannot warp the preview mosaic by a singular transformation");
+        return;
+    }
+
+    // The destination pixels are mapped back into the last mosaic
+    const double a[6] = {
+        H[4] / det, -H[1] / det, (H[1] * H[5] - H[2] * H[4]) / det,
+        -H[3] / det, H[0] / det, (H[2] * H[3] - H[0] * H[5]) / det };
+
+    const int w = mMosaicWidth;
+    const int h = mMosaicHeight;
+    const unsigned char *src = mMosaic[mFront];
+    unsigned char *dst = mMosaic[1 - mFront];
+
+    for (int py = 0; py < h; py++) {
+        unsigned char *out = dst + py * w * 4;
+        double rx = a[1] * py + a[2];
+        double ry = a[4] * py + a[5];
+
+        for (int px = 0; px < w; px++, out += 4) {
+            double sx = a[0] * px + rx;
+            double sy = a[3] * px + ry;
+
+            if (sx < 0.0 || sy < 0.0 || sx > w - 1 || sy > h - 1) {
+                out[0] = out[1] = out[2] = 0;
+                out[3] = 255;
+                continue;
+            }
+
+            // Bilinear, as GL_LINEAR samples the mosaic texture
+            int x0 = (int) sx;
+            int y0 = (int) sy;
+            int fx = (int) ((sx - x0) * 256.0 + 0.5);
+            int fy = (int) ((sy - y0) * 256.0 + 0.5);
+            int dx = (x0 < w - 1) ? 4 : 0;
+            int dy = (y0 < h - 1) ? w * 4 : 0;
+            const unsigned char *p = src + (y0 * w + x0) * 4;
+
+            for (int c = 0; c < 4; c++) {
+                int t = p[c] * (256 - fx) + p[c + dx] * fx;
+                int b = p[c + dy] * (256 - fx) + p[c + dy + dx] * fx;
+                out[c] = (unsigned char) ((t * (256 - fy) + b * fy + 32768) >> 16);
+            }
+        }
+
+        if (py >= y && py < y + mHeight) {
+            PasteRow(dst, w, mFrame, mWidth, py - y, x, y);
+        }
+    }
+    mFront = 1 - mFront;
+}
+
+void CpuRenderer::ReadPreview(double panOffset, int *argb)
+{
+    const int w = mMosaicWidth;
+    const unsigned char *src = mMosaic[mFront];
+
+    // The shift is the same for every pixel, and so are the weights
+    int shift = (int) floor(panOffset);
+    int f = (int) ((panOffset - shift) * 256.0 + 0.5);
+    if (f == 256) {
+        shift++;
+        f = 0;
+    }
+
+    for (int y = 0; y < mMosaicHeight; y++) {
+        const unsigned char *row = src + y * w * 4;
+        int *out = argb + y * w;
+
+        for (int x = 0; x < w; x++) {
+            // Source position x - panOffset lies between sx and sx + 1,
+            // with weight f on sx
+            int sx = x - shift - 1;
+            int r, g, b;
+            if (f == 0) {
+                sx++;
+                if (sx < 0 || sx > w - 1) {
+                    out[x] = 0xff000000;
+                    continue;
+                }
+                r = row[sx * 4];
+                g = row[sx * 4 + 1];
+                b = row[sx * 4 + 2];
+            } else {
+                if (sx < 0 || sx + 1 > w - 1) {
+                    out[x] = 0xff000000;
+                    continue;
+                }
+                const unsigned char *p = row + sx * 4;
+                r = (p[0] * f + p[4] * (256 - f) + 128) >> 8;
+                g = (p[1] * f + p[5] * (256 - f) + 128) >> 8;
+                b = (p[2] * f + p[6] * (256 - f) + 128) >> 8;
+            }
+            out[x] = 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+    }
+}
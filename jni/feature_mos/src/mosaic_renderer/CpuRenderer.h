@@ -0,0 +1,88 @@
+#pragma once
+
+// CPU implementation of the preview path of the GL renderers: the YVU
+// conversion and downsampling of YVURenderer, the flip-flop warp of the
+// preview mosaic done by the two WarpRenderers, and the viewfinder panning
+// of the preview WarpRenderer. It needs no GL context, so it can stand in
+// for the GL path when the GPU driver is unusable, and it serves as a
+// reference for checking the GL output.
+//
+// Images are stored row by row, top row first, as the frames read back
+// from the GL path are. The kernels run on the calling thread.
+class CpuRenderer {
+  public:
+    // Largest difference per channel between an RGB color and the one
+    // SetFrameYVUA() gets back from its YVURenderer conversion, for colors
+    // whose Y, V and U values are not clamped to 0 or 255
+    static const int YVUA_ROUND_TRIP_ERROR = 2;
+
+    CpuRenderer();
+    virtual ~CpuRenderer();
+
+    // Allocate the buffers for widthHR x heightHR input frames, which are
+    // downsampled by factor for the low-res output, and a mosaic of
+    // mosaicWidth x mosaicHeight. Both mosaic buffers are cleared.
+    bool Init(int widthHR, int heightHR, int factor, int mosaicWidth,
+            int mosaicHeight);
+    void Release();
+
+    // Convert an NV21 frame into the RGBA frame pasted into the mosaic,
+    // with the BT.601 conversion the camera preview texture uses, and from
+    // that into the interleaved YVUA images handed to the mosaicing
+    // library, with the coefficients and rounding of the YVURenderer
+    // shader. This is the color path of the GL renderers. The low-res RGB
+    // image averages the 2x2 high-res pixels around the center of each
+    // low-res pixel, which is what sampling the preview texture with
+    // GL_LINEAR gives, so its YVU values may be off by one from the GL
+    // ones. Either YVUA output may be NULL.
+    void PreprocessNV21(const unsigned char *nv21, unsigned char *yvuaHR,
+            unsigned char *yvuaLR);
+
+    // Set the RGBA frame pasted into the mosaic from an interleaved YVUA
+    // frame, inverting the YVURenderer conversion. Used to feed the frames
+    // read back from the GL path.
+    void SetFrameYVUA(const unsigned char *yvua);
+
+    // Clear both mosaic buffers to opaque black.
+    void Clear();
+
+    // Paste the current frame with its top-left corner at (x, y) into the
+    // mosaic shown last, as the viewfinder does.
+    void Paste(int x, int y);
+
+    // Warp the mosaic shown last by the affine transformation H (3x3, row
+    // major, in mosaic pixels), which maps the last mosaic into the
+    // coordinate system of the current frame, into the other buffer. Pixels
+    // that H does not cover are opaque black. The current frame is then
+    // pasted at (x, y) and the new mosaic becomes the one shown.
+    void Warp(const double H[9], int x, int y);
+
+    // Copy the mosaic shown last, shifted horizontally by panOffset pixels,
+    // into argb as packed ARGB pixels of GetMosaicWidth() x
+    // GetMosaicHeight(). Uncovered pixels are opaque black.
+    void ReadPreview(double panOffset, int *argb);
+
+    // RGBA mosaic shown last.
+    const unsigned char *GetMosaic() const { return mMosaic[mFront]; }
+    // RGBA frame pasted by Paste() and Warp().
+    const unsigned char *GetFrame() const { return mFrame; }
+
+    int GetMosaicWidth() const { return mMosaicWidth; }
+    int GetMosaicHeight() const { return mMosaicHeight; }
+
+  private:
+    // Not copyable
+    CpuRenderer(const CpuRenderer&);
+    CpuRenderer& operator=(const CpuRenderer&);
+
+    int mWidth;
+    int mHeight;
+    int mFactor;
+    int mMosaicWidth;
+    int mMosaicHeight;
+
+    // RGBA frame and the flip-flop RGBA mosaics
+    unsigned char *mFrame;
+    unsigned char *mMosaic[2];
+    int mFront;
+};
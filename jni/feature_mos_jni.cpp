@@ -19,13 +19,19 @@
  */
 #include <string.h>
 #include <jni.h>
+#include <malloc.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <time.h>
+#include <stdint.h>
+#include <pthread.h>
 #include <db_utilities_camera.h>
 
 #include "mosaic/AlignFeatures.h"
 #include "mosaic/Blend.h"
+#include "mosaic/FrameLog.h"
+#include "mosaic/FramePool.h"
+#include "mosaic/FrameSpill.h"
 #include "mosaic/Mosaic.h"
 #include "mosaic/Log.h"
 #define LOG_TAG "FEATURE_MOS_JNI"
@@ -36,36 +42,228 @@ extern "C" {
 
 #include "mosaic_renderer_jni.h"
 
-char buffer[1024];
-
 const int MAX_FRAMES = 100;
 
-static double mTx;
-
-int tWidth[NR];
-int tHeight[NR];
-
-ImageType tImage[NR][MAX_FRAMES];// = {{ImageUtils::IMAGE_TYPE_NOIMAGE}}; // YVU24 format image
-Mosaic *mosaic[NR] = {NULL,NULL};
-ImageType resultYVU = ImageUtils::IMAGE_TYPE_NOIMAGE;
-ImageType resultBGR = ImageUtils::IMAGE_TYPE_NOIMAGE;
-float gTRS[11]; // 9 elements of the transformation, 1 for frame-number, 1 for alignment error code.
-// Variables to keep track of the mosaic computation progress for both LR & HR.
-float gProgress[NR];
-// Variables to be able to cancel the mosaic computation when the GUI says so.
-bool gCancelComputation[NR];
-
-int c;
-int width=0, height=0;
-int mosaicWidth=0, mosaicHeight=0;
-
-//int blendingType = Blend::BLEND_TYPE_FULL;
-//int blendingType = Blend::BLEND_TYPE_CYLPAN;
-int blendingType = Blend::BLEND_TYPE_HORZ;
-int stripType = Blend::STRIP_TYPE_THIN;
-bool high_res = false;
-bool quarter_res[NR] = {false,false};
-float thresh_still[NR] = {5.0f,0.0f};
+// Layout of the array returned by getTimings(). Must match the TIMING_
+// constants in Mosaic.java.
+enum
+{
+    TIMING_FRAMES = 0,          // Frames aligned during capture
+    TIMING_ALIGN_LAST_MS,       // Alignment time of the last frame
+    TIMING_ALIGN_MEAN_MS,
+    TIMING_ALIGN_MAX_MS,
+    TIMING_DETECT_MEAN_MS,      // Mean time of each alignment stage
+    TIMING_MATCH_MEAN_MS,
+    TIMING_RANSAC_MEAN_MS,
+    TIMING_CORNERS_LAST,        // Corners detected in the last frame
+    TIMING_CORNERS_MEAN,
+    TIMING_INLIERS_LAST,        // Alignment inliers of the last frame
+    TIMING_INLIERS_MEAN,
+    TIMING_INLIERS_MIN,
+    TIMING_STITCH_ALIGN_MS,     // High resolution alignment of all frames
+    TIMING_STITCH_DELAUNAY_MS,  // Stages of the last blend
+    TIMING_STITCH_PYRAMID_MS,
+    TIMING_STITCH_BLEND_MS,
+    TIMING_STITCH_CROP_MS,
+    TIMING_STITCH_TOTAL_MS,     // Last createMosaic() call
+    TIMING_PEAK_NATIVE_BYTES,   // Highest native heap use seen
+    NUM_TIMINGS
+};
+
+// Alignment and stitching statistics of the current capture
+struct MosaicStats
+{
+    int frames;
+    double align_last_ms, align_total_ms, align_max_ms;
+    double detect_total_ms, match_total_ms, ransac_total_ms;
+    int corners_last;
+    long long corners_total;
+    // The inliers do not count the first frame, which is the reference
+    int inlier_frames;
+    int inliers_last, inliers_min;
+    long long inliers_total;
+
+    double stitch_align_ms;
+    BlendTimings blend;
+    double stitch_total_ms;
+
+    long long peak_bytes;
+
+    MosaicStats()
+    {
+        reset();
+    }
+
+    void reset()
+    {
+        frames = 0;
+        align_last_ms = align_total_ms = align_max_ms = 0.0;
+        detect_total_ms = match_total_ms = ransac_total_ms = 0.0;
+        corners_last = 0;
+        corners_total = 0;
+        inlier_frames = inliers_last = inliers_min = 0;
+        inliers_total = 0;
+        resetStitch();
+        peak_bytes = 0;
+    }
+
+    void resetStitch()
+    {
+        stitch_align_ms = 0.0;
+        blend.reset();
+        stitch_total_ms = 0.0;
+    }
+};
+
+// All the state of one mosaic capture. Each Java Mosaic object owns one of
+// these through its mNativeContext handle, so several mosaics can be
+// captured and stitched at the same time.
+struct MosaicContext
+{
+    int tWidth[NR];
+    int tHeight[NR];
+
+    ImageType tImage[NR][MAX_FRAMES]; // YVU24 format images
+    Mosaic *mosaic[NR];
+    // Mosaic blended by the last Finalize(), or -1
+    int result_mID;
+    int mosaicWidth, mosaicHeight;
+
+    // 9 elements of the transformation, 1 for frame-number, 1 for alignment
+    // error code.
+    float trs[11];
+    // Variables to keep track of the mosaic computation progress for both
+    // LR & HR.
+    float progress[NR];
+    // Variables to be able to cancel the mosaic computation when the GUI
+    // says so.
+    bool cancelComputation[NR];
+
+    int frame_number_HR;
+    int frame_number_LR;
+
+    int blendingType;
+    int stripType;
+    bool quarter_res[NR];
+    float thresh_still[NR];
+    // Number of threads used for corner detection during alignment
+    int alignment_workers;
+
+    MosaicStats stats;
+
+    // Unbounded capture (see setUnboundedCapture). The frames are written
+    // to a memory-mapped scratch file in spill_dir instead of tImage; each
+    // slot holds the HR frame followed by the LR frame.
+    char *spill_dir;
+    // Scratch directory of the blended mosaic (see setMosaicScratchDir)
+    char *canvas_dir;
+    FrameSpill spill;
+    int *spill_slot;        // Slot of each frame kept by mosaic[LR]
+    int spill_slot_size;    // Capacity of spill_slot
+    int next_slot;          // Slot the next incoming frame is written to
+    int nr_slots;           // Slots handed out so far
+
+    // Log of the incoming frames (see startFrameLog)
+    FrameLog frame_log;
+
+    MosaicContext()
+    {
+        for (int mID = 0; mID < NR; mID++)
+        {
+            tWidth[mID] = tHeight[mID] = 0;
+            for (int i = 0; i < MAX_FRAMES; i++)
+                tImage[mID][i] = NULL;
+            mosaic[mID] = NULL;
+            progress[mID] = 0.0f;
+            cancelComputation[mID] = false;
+            quarter_res[mID] = false;
+        }
+        result_mID = -1;
+        mosaicWidth = mosaicHeight = 0;
+        memset(trs, 0, sizeof(trs));
+        frame_number_HR = 0;
+        frame_number_LR = 0;
+        //blendingType = Blend::BLEND_TYPE_FULL;
+        //blendingType = Blend::BLEND_TYPE_CYLPAN;
+        blendingType = Blend::BLEND_TYPE_HORZ;
+        stripType = Blend::STRIP_TYPE_THIN;
+        thresh_still[LR] = 5.0f;
+        thresh_still[HR] = 0.0f;
+        alignment_workers = 1;
+        spill_dir = NULL;
+        canvas_dir = NULL;
+        spill_slot = NULL;
+        spill_slot_size = 0;
+        next_slot = nr_slots = 0;
+    }
+
+    ~MosaicContext()
+    {
+        closeFrameLog();
+        releaseFrames();
+        for (int mID = 0; mID < NR; mID++)
+            delete mosaic[mID];
+        free(spill_dir);
+        free(canvas_dir);
+    }
+
+    // Gives the frame buffers back to the process-wide pool, where the next
+    // capture at the same resolution picks them up again.
+    void releaseFrames()
+    {
+        FramePool *pool = FramePool::getInstance();
+        for (int mID = 0; mID < NR; mID++)
+        {
+            for (int i = 0; i < MAX_FRAMES; i++)
+            {
+                pool->release(tImage[mID][i], tWidth[mID], tHeight[mID],
+                        ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+                tImage[mID][i] = NULL;
+            }
+        }
+
+        spill.close();
+        delete [] spill_slot;
+        spill_slot = NULL;
+        spill_slot_size = 0;
+    }
+
+    // Starts a new capture in the spill
+    void resetSlots()
+    {
+        next_slot = 0;
+        nr_slots = 1;
+    }
+
+    void closeFrameLog()
+    {
+        if (frame_log.isOpen())
+            LOGV("Frame log closed after %d frames", frame_log.getFrameCount());
+        frame_log.close();
+    }
+};
+
+// Field ID of Mosaic.mNativeContext, looked up once by classInit().
+static jfieldID gNativeContextField = NULL;
+
+// The GL preview renderer has a single set of preview buffers
+// (gPreviewImage). They belong to the context that allocated its frame
+// memory last, which is the one that is capturing.
+static MosaicContext *gPreviewOwner = NULL;
+static pthread_mutex_t gPreviewOwnerLock = PTHREAD_MUTEX_INITIALIZER;
+
+static MosaicContext *getContext(JNIEnv* env, jobject thiz)
+{
+    MosaicContext *ctx = (MosaicContext *) (intptr_t)
+            env->GetLongField(thiz, gNativeContextField);
+    if (ctx == NULL)
+    {
+        jclass ex = env->FindClass("java/lang/IllegalStateException");
+        if (ex != NULL)
+            env->ThrowNew(ex, "Mosaic has been released");
+    }
+    return ctx;
+}
 
 /* return current time in milliseconds*/
 
@@ -81,96 +279,209 @@ now_ms(void)
 }
 #endif
 
-
-static int frame_number_HR = 0;
-static int frame_number_LR = 0;
-
-int Init(int mID, int nmax)
+// Bytes currently allocated on the native heap
+static long long NativeHeapBytes()
 {
-        double  t0, t1, time_c;
+    struct mallinfo info = mallinfo();
+#ifdef __BIONIC__
+    return info.uordblks;
+#else
+    // glibc does not count the chunks it maps directly in uordblks
+    return (long long) info.uordblks + info.hblkhd;
+#endif
+}
 
-        if(mosaic[mID]!=NULL)
-        {
-                delete mosaic[mID];
-                mosaic[mID] = NULL;
-        }
+static void SampleHeap(MosaicContext *ctx, long long extra_bytes)
+{
+    long long bytes = NativeHeapBytes() + extra_bytes;
+    if (bytes > ctx->stats.peak_bytes)
+        ctx->stats.peak_bytes = bytes;
+}
 
-        mosaic[mID] = new Mosaic();
+// Adds the alignment of the last low resolution frame to the statistics
+static void RecordAlignment(MosaicContext *ctx)
+{
+    MosaicStats &stats = ctx->stats;
+    Align *aligner = ctx->mosaic[LR]->getAligner();
+
+    double detect_ms, match_ms, ransac_ms;
+    aligner->getLastStageTimes(detect_ms, match_ms, ransac_ms);
+
+    stats.frames++;
+    stats.align_last_ms = aligner->getLastAlignTime();
+    stats.align_total_ms += stats.align_last_ms;
+    if (stats.align_last_ms > stats.align_max_ms)
+        stats.align_max_ms = stats.align_last_ms;
+    stats.detect_total_ms += detect_ms;
+    stats.match_total_ms += match_ms;
+    stats.ransac_total_ms += ransac_ms;
+
+    stats.corners_last = aligner->getLastCornerCount();
+    stats.corners_total += stats.corners_last;
+    if (stats.frames > 1)
+    {
+        stats.inliers_last = aligner->getLastInlierCount();
+        stats.inliers_total += stats.inliers_last;
+        if (stats.inlier_frames == 0 || stats.inliers_last < stats.inliers_min)
+            stats.inliers_min = stats.inliers_last;
+        stats.inlier_frames++;
+    }
 
-        t0 = now_ms();
+    SampleHeap(ctx, 0);
+}
 
-        // When processing higher than 720x480 video, process low-res at
-        // quarter resolution
-        if(tWidth[LR]>180)
-            quarter_res[LR] = true;
+static size_t FrameBytes(MosaicContext *ctx, int mID)
+{
+    return (size_t) ctx->tWidth[mID] * ctx->tHeight[mID] *
+            ImageUtils::IMAGE_TYPE_NUM_CHANNELS;
+}
 
+// Frame of resolution mID in spill slot, or NULL if the scratch file cannot
+// grow.
+static ImageType SlotImage(MosaicContext *ctx, int mID, int slot)
+{
+    ImageType base = ctx->spill.slot(slot);
+    if (base == NULL)
+        return NULL;
+    return (mID == HR) ? base : base + FrameBytes(ctx, HR);
+}
 
-        // Check for initialization and if not, initialize
-        if (!mosaic[mID]->isInitialized())
-        {
-                mosaic[mID]->initialize(blendingType, stripType, tWidth[mID], tHeight[mID],
-                        nmax, quarter_res[mID], thresh_still[mID]);
-        }
+// Frame k of resolution mID, out of the frames kept so far
+static ImageType FrameImage(MosaicContext *ctx, int mID, int k)
+{
+    if (!ctx->spill.isOpen())
+        return ctx->tImage[mID][k];
+    return SlotImage(ctx, mID, ctx->spill_slot[k]);
+}
 
-        t1 = now_ms();
-        time_c = t1 - t0;
-        LOGV("Init[%d]: %g ms [%d frames]",mID,time_c,nmax);
-        return 1;
+// Buffer for the next incoming frame of resolution mID, or NULL when no
+// more frames can be stored.
+static ImageType IncomingImage(MosaicContext *ctx, int mID)
+{
+    if (!ctx->spill.isOpen())
+    {
+        if (ctx->frame_number_HR >= MAX_FRAMES ||
+                ctx->frame_number_LR >= MAX_FRAMES)
+            return NULL;
+        return ctx->tImage[mID][ctx->frame_number_LR];
+    }
+    return SlotImage(ctx, mID, ctx->next_slot);
 }
 
-void GenerateQuarterResImagePlanar(ImageType im, int input_w, int input_h,
-        ImageType &out)
+// Appends an incoming frame of HR resolution and its alignment, in ctx->trs,
+// to the frame log, if there is one.
+static void LogFrame(MosaicContext *ctx, ImageType imageHR, int ret_code)
 {
-    ImageType imp;
-    ImageType outp;
+    if (!ctx->frame_log.isOpen())
+        return;
 
-    int count = 0;
+    long long timestamp_us = (long long) (now_ms() * 1000.0);
+    if (!ctx->frame_log.appendYVU(timestamp_us, ret_code, ctx->trs, imageHR))
+        ctx->closeFrameLog();
+}
 
-    for (int j = 0; j < input_h; j += H2L_FACTOR)
+// Records the incoming frame once mosaic[LR] has accepted it.
+static void KeepFrame(MosaicContext *ctx)
+{
+    if (!ctx->spill.isOpen())
     {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
+        ctx->frame_number_LR++;
+        ctx->frame_number_HR++;
+        return;
+    }
 
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
+    int kept = ctx->mosaic[LR]->getNumFrames();
+    if (kept > ctx->frame_number_LR)
+    {
+        if (kept > ctx->spill_slot_size)
         {
-            *outp++ = *(imp + i);
-            count++;
+            int size = ctx->spill_slot_size ? 2 * ctx->spill_slot_size
+                    : MAX_FRAMES;
+            int *slots = new int[size];
+            memcpy(slots, ctx->spill_slot, ctx->spill_slot_size * sizeof(int));
+            delete [] ctx->spill_slot;
+            ctx->spill_slot = slots;
+            ctx->spill_slot_size = size;
         }
-    }
+        ctx->spill_slot[kept - 1] = ctx->next_slot;
+        ctx->next_slot = ctx->nr_slots++;
 
-    for (int j = input_h; j < 2 * input_h; j += H2L_FACTOR)
+        // Only the last frame is needed again during capture, as the
+        // alignment reference. The others stay on disk until stitching.
+        if (kept >= 2)
+            ctx->spill.evict(ctx->spill_slot[kept - 2]);
+    }
+    else
     {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
+        // The frame replaced the previous last frame; its slot is free
+        int dropped = ctx->spill_slot[kept - 1];
+        ctx->spill_slot[kept - 1] = ctx->next_slot;
+        ctx->next_slot = dropped;
+    }
+
+    ctx->frame_number_LR = ctx->frame_number_HR = kept;
+}
 
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
+int Init(MosaicContext *ctx, int mID, int nmax)
+{
+        double  t0, t1, time_c;
+
+        if(ctx->mosaic[mID]!=NULL)
         {
-            *outp++ = *(imp + i);
-            count++;
+                delete ctx->mosaic[mID];
+                ctx->mosaic[mID] = NULL;
         }
-    }
 
-    for (int j = 2 * input_h; j < 3 * input_h; j += H2L_FACTOR)
-    {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
+        ctx->mosaic[mID] = new Mosaic();
+        ctx->mosaic[mID]->setScratchDir(ctx->canvas_dir);
+        if (ctx->result_mID == mID)
+            ctx->result_mID = -1;
+
+        t0 = now_ms();
+
+        // When processing higher than 720x480 video, process low-res at
+        // quarter resolution
+        if(ctx->tWidth[LR]>180)
+            ctx->quarter_res[LR] = true;
+
 
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
+        // Check for initialization and if not, initialize
+        if (!ctx->mosaic[mID]->isInitialized())
         {
-            *outp++ = *(imp + i);
-            count++;
+                ctx->mosaic[mID]->initialize(ctx->blendingType, ctx->stripType,
+                        ctx->tWidth[mID], ctx->tHeight[mID], nmax,
+                        ctx->quarter_res[mID], ctx->thresh_still[mID]);
         }
-    }
+
+        // Frames that wide strip blending would skip are not worth
+        // keeping in an unbounded capture
+        if (mID == LR && ctx->spill.isOpen() &&
+                ctx->stripType == Blend::STRIP_TYPE_WIDE)
+        {
+            ctx->mosaic[mID]->setMinFrameSeparation(
+                    STRIP_SEPARATION_THRESHOLD_PXLS / H2L_FACTOR);
+        }
+
+        ctx->mosaic[mID]->getAligner()->setAlignmentWorkers(ctx->alignment_workers);
+
+        t1 = now_ms();
+        time_c = t1 - t0;
+        LOGV("Init[%d]: %g ms [%d frames]",mID,time_c,nmax);
+        return 1;
 }
 
-int AddFrame(int mID, int k, float* trs1d)
+int AddFrame(MosaicContext *ctx, int mID, ImageType image, float* trs1d)
 {
-    double  t0, t1, time_c;
     double trs[3][3];
 
-    int ret_code = mosaic[mID]->addFrame(tImage[mID][k]);
+    int ret_code = ctx->mosaic[mID]->addFrame(image);
+    if (mID == LR)
+        RecordAlignment(ctx);
 
-    mosaic[mID]->getAligner()->getLastTRS(trs);
+    Align *aligner = ctx->mosaic[mID]->getAligner();
+    aligner->getLastTRS(trs);
+    LOGV("AddFrame[%d]: align %g ms (average %g ms)", mID,
+            aligner->getLastAlignTime(), aligner->getAverageAlignTime());
 
     if(trs1d!=NULL)
     {
@@ -189,19 +500,30 @@ int AddFrame(int mID, int k, float* trs1d)
     return ret_code;
 }
 
-int Finalize(int mID)
+int Finalize(MosaicContext *ctx, int mID)
 {
     double  t0, t1, time_c;
 
+    long long heap_bytes = NativeHeapBytes();
+
     t0 = now_ms();
     // Create the mosaic
-    int ret = mosaic[mID]->createMosaic(gProgress[mID], gCancelComputation[mID]);
+    int ret = ctx->mosaic[mID]->createMosaic(ctx->progress[mID],
+            ctx->cancelComputation[mID]);
     t1 = now_ms();
     time_c = t1 - t0;
     LOGV("CreateMosaic: %g ms",time_c);
 
-    // Get back the result
-    resultYVU = mosaic[mID]->getMosaic(mosaicWidth, mosaicHeight);
+    // The blending pyramids are freed by the time createMosaic returns,
+    // so add them to the heap use from before
+    ctx->stats.blend = ctx->mosaic[mID]->getBlender()->getTimings();
+    SampleHeap(ctx, 0);
+    if (heap_bytes + ctx->stats.blend.scratch_bytes > ctx->stats.peak_bytes)
+        ctx->stats.peak_bytes = heap_bytes + ctx->stats.blend.scratch_bytes;
+
+    // The result stays in the mosaic until it is exported
+    ctx->mosaic[mID]->getMosaicSize(ctx->mosaicWidth, ctx->mosaicHeight);
+    ctx->result_mID = mID;
 
     return ret;
 }
@@ -236,73 +558,125 @@ void YUV420toYVU24(ImageType yvu24, ImageType yuv420sp, int width, int height)
     }
 }
 
-void YUV420toYVU24_NEW(ImageType yvu24, ImageType yuv420sp, int width,
-        int height)
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_classInit(
+        JNIEnv* env, jclass clazz)
 {
-    int frameSize = width * height;
+    gNativeContextField = env->GetFieldID(clazz, "mNativeContext", "J");
+}
 
-    ImageType oyp = yvu24;
-    ImageType ovp = yvu24 + frameSize;
-    ImageType oup = yvu24 + frameSize + frameSize;
+JNIEXPORT jlong JNICALL Java_com_android_camera_Mosaic_createNativeContext(
+        JNIEnv* env, jclass clazz)
+{
+    return (jlong) (intptr_t) new MosaicContext();
+}
 
-    memcpy(yvu24, yuv420sp, frameSize * sizeof(unsigned char));
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_destroyNativeContext(
+        JNIEnv* env, jclass clazz, jlong handle)
+{
+    MosaicContext *ctx = (MosaicContext *) (intptr_t) handle;
 
-    for (int j = 0; j < height; j += 2)
+    pthread_mutex_lock(&gPreviewOwnerLock);
+    if (gPreviewOwner == ctx)
     {
-        unsigned char u = 0, v = 0;
-        int uvp = frameSize + (j >> 1) * width;
-        ovp = yvu24 + frameSize + j * width;
-        oup = ovp + frameSize;
-
-        ImageType iuvp = yuv420sp + uvp;
-
-        for (int i = 0; i < width; i += 2)
-        {
-            v = *iuvp++;
-            u = *iuvp++;
-
-            *ovp++ = v;
-            *oup++ = u;
-
-            *ovp++ = v;
-            *oup++ = u;
-
-        }
-        memcpy(ovp, ovp - width, width * sizeof(unsigned char));
-        memcpy(oup, oup - width, width * sizeof(unsigned char));
+        FreeTextureMemory();
+        gPreviewOwner = NULL;
     }
-}
+    pthread_mutex_unlock(&gPreviewOwnerLock);
 
+    delete ctx;
+}
 
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_allocateMosaicMemory(
         JNIEnv* env, jobject thiz, jint width, jint height)
 {
-    tWidth[HR] = width;
-    tHeight[HR] = height;
-    tWidth[LR] = int(width / H2L_FACTOR);
-    tHeight[LR] = int(height / H2L_FACTOR);
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return;
+
+    // The log is for frames of the old size
+    ctx->closeFrameLog();
+    ctx->releaseFrames();
+
+    ctx->tWidth[HR] = width;
+    ctx->tHeight[HR] = height;
+    ctx->tWidth[LR] = int(width / H2L_FACTOR);
+    ctx->tHeight[LR] = int(height / H2L_FACTOR);
+
+    FramePool *pool = FramePool::getInstance();
+    if (ctx->spill_dir != NULL && !ctx->spill.open(ctx->spill_dir,
+            FrameBytes(ctx, HR) + FrameBytes(ctx, LR)))
+    {
+        LOGE("Unbounded capture unavailable, keeping %d frames in memory",
+                MAX_FRAMES);
+    }
+    ctx->resetSlots();
 
-    for(int i=0; i<MAX_FRAMES; i++)
+    for(int i=0; i<MAX_FRAMES && !ctx->spill.isOpen(); i++)
     {
-            tImage[LR][i] = ImageUtils::allocateImage(tWidth[LR], tHeight[LR],
-                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
-            tImage[HR][i] = ImageUtils::allocateImage(tWidth[HR], tHeight[HR],
-                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+            ctx->tImage[LR][i] = pool->acquire(ctx->tWidth[LR],
+                    ctx->tHeight[LR], ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+            ctx->tImage[HR][i] = pool->acquire(ctx->tWidth[HR],
+                    ctx->tHeight[HR], ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
     }
 
-    AllocateTextureMemory(tWidth[HR], tHeight[HR], tWidth[LR], tHeight[LR]);
+    FramePoolStats stats;
+    pool->getStats(stats);
+    LOGV("Frame pool: %lld hits, %lld misses, %d images (%lld bytes) idle",
+            stats.hits, stats.misses, stats.pooledImages, stats.pooledBytes);
+
+    // The newest capture takes over the preview buffers from any mosaic
+    // that is still stitching in the background.
+    pthread_mutex_lock(&gPreviewOwnerLock);
+    if (gPreviewOwner != NULL)
+        FreeTextureMemory();
+    AllocateTextureMemory(ctx->tWidth[HR], ctx->tHeight[HR],
+            ctx->tWidth[LR], ctx->tHeight[LR]);
+    gPreviewOwner = ctx;
+    pthread_mutex_unlock(&gPreviewOwnerLock);
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_freeMosaicMemory(
         JNIEnv* env, jobject thiz)
 {
-    for(int i = 0; i < MAX_FRAMES; i++)
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return;
+
+    ctx->closeFrameLog();
+    ctx->releaseFrames();
+
+    pthread_mutex_lock(&gPreviewOwnerLock);
+    if (gPreviewOwner == ctx)
     {
-        ImageUtils::freeImage(tImage[LR][i]);
-        ImageUtils::freeImage(tImage[HR][i]);
+        FreeTextureMemory();
+        gPreviewOwner = NULL;
     }
+    pthread_mutex_unlock(&gPreviewOwnerLock);
+}
 
-    FreeTextureMemory();
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_trimFramePool(
+        JNIEnv* env, jclass clazz, jlong maxBytes)
+{
+    FramePool::getInstance()->trim(maxBytes);
+}
+
+JNIEXPORT jlongArray JNICALL Java_com_android_camera_Mosaic_getFramePoolStats(
+        JNIEnv* env, jclass clazz)
+{
+    FramePoolStats stats;
+    FramePool::getInstance()->getStats(stats);
+
+    jlong values[4];
+    values[0] = stats.pooledBytes;
+    values[1] = stats.pooledImages;
+    values[2] = stats.hits;
+    values[3] = stats.misses;
+
+    jlongArray array = env->NewLongArray(4);
+    if (array != 0)
+    {
+        env->SetLongArrayRegion(array, 0, 4, values);
+    }
+    return array;
 }
 
 
@@ -342,8 +716,6 @@ void decodeYUV444SP(unsigned char* rgb, unsigned char* yuv420sp, int width,
     }
 }
 
-static int count = 0;
-
 void ConvertYVUAiToPlanarYVU(unsigned char *planar, unsigned char *in, int width,
         int height)
 {
@@ -361,54 +733,88 @@ void ConvertYVUAiToPlanarYVU(unsigned char *planar, unsigned char *in, int width
     }
 }
 
-JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromGPU(
-        JNIEnv* env, jobject thiz)
+// Copies both resolutions of the current preview frame into imageLR and
+// imageHR. They are copied together because the renderer publishes the
+// next frame while this one is being aligned. Returns false, without
+// copying, if another mosaic has taken over the preview.
+static bool CopyPreviewImages(MosaicContext *ctx, ImageType imageLR,
+        ImageType imageHR)
 {
-    double  t0, t1, time_c;
-    t0 = now_ms();
-    int ret_code;
+    pthread_mutex_lock(&gPreviewOwnerLock);
+    bool owner = (gPreviewOwner == ctx);
+    if (owner)
+    {
+        sem_wait(&gPreviewImage_semaphore);
+        ConvertYVUAiToPlanarYVU(imageLR, gPreviewImage[LR],
+                ctx->tWidth[LR], ctx->tHeight[LR]);
+        ConvertYVUAiToPlanarYVU(imageHR, gPreviewImage[HR],
+                ctx->tWidth[HR], ctx->tHeight[HR]);
+        sem_post(&gPreviewImage_semaphore);
+    }
+    pthread_mutex_unlock(&gPreviewOwnerLock);
+    return owner;
+}
 
-    if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES)
+// Moves the viewfinder by the last alignment result, if this mosaic is the
+// one being previewed.
+static void UpdatePreviewWarp(MosaicContext *ctx)
+{
+    pthread_mutex_lock(&gPreviewOwnerLock);
+    if (gPreviewOwner == ctx)
+        UpdateWarpTransformation(ctx->trs);
+    pthread_mutex_unlock(&gPreviewOwnerLock);
+}
+
+static jfloatArray ReturnTRS(JNIEnv* env, MosaicContext *ctx, int ret_code)
+{
+    ctx->trs[9] = ctx->frame_number_HR;
+    ctx->trs[10] = ret_code;
+
+    jfloatArray bytes = env->NewFloatArray(11);
+    if(bytes != 0)
     {
-        double last_tx = mTx;
+        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) ctx->trs);
+    }
+    return bytes;
+}
 
-        sem_wait(&gPreviewImage_semaphore);
-        ConvertYVUAiToPlanarYVU(tImage[LR][frame_number_LR], gPreviewImage[LR],
-                tWidth[LR], tHeight[LR]);
+static void ResetTRS(MosaicContext *ctx)
+{
+    float *trs = ctx->trs;
+    trs[1] = trs[2] = trs[3] = trs[5] = trs[6] = trs[7] = 0.0f;
+    trs[0] = trs[4] = trs[8] = 1.0f;
+}
 
-        sem_post(&gPreviewImage_semaphore);
+JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromGPU(
+        JNIEnv* env, jobject thiz)
+{
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return NULL;
 
-        ret_code = AddFrame(LR, frame_number_LR, gTRS);
+    int ret_code = Mosaic::MOSAIC_RET_ERROR;
+
+    ImageType imageHR = IncomingImage(ctx, HR);
+    ImageType imageLR = IncomingImage(ctx, LR);
+
+    if(imageHR != NULL && imageLR != NULL &&
+            CopyPreviewImages(ctx, imageLR, imageHR))
+    {
+        ret_code = AddFrame(ctx, LR, imageLR, ctx->trs);
+        LogFrame(ctx, imageHR, ret_code);
 
         if(ret_code == Mosaic::MOSAIC_RET_OK || ret_code == Mosaic::MOSAIC_RET_FEW_INLIERS)
         {
-            // Copy into HR buffer only if this is a valid frame
-            sem_wait(&gPreviewImage_semaphore);
-            ConvertYVUAiToPlanarYVU(tImage[HR][frame_number_HR], gPreviewImage[HR],
-                    tWidth[HR], tHeight[HR]);
-            sem_post(&gPreviewImage_semaphore);
-
-            frame_number_LR++;
-            frame_number_HR++;
+            KeepFrame(ctx);
         }
     }
     else
     {
-        gTRS[1] = gTRS[2] = gTRS[3] = gTRS[5] = gTRS[6] = gTRS[7] = 0.0f;
-        gTRS[0] = gTRS[4] = gTRS[8] = 1.0f;
+        ResetTRS(ctx);
     }
 
-    UpdateWarpTransformation(gTRS);
+    UpdatePreviewWarp(ctx);
 
-    gTRS[9] = frame_number_HR;
-    gTRS[10] = ret_code;
-
-    jfloatArray bytes = env->NewFloatArray(11);
-    if(bytes != 0)
-    {
-        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) gTRS);
-    }
-    return bytes;
+    return ReturnTRS(env, ctx, ret_code);
 }
 
 
@@ -416,170 +822,311 @@ JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromG
 JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImage(
         JNIEnv* env, jobject thiz, jbyteArray photo_data)
 {
-    double  t0, t1, time_c;
-    t0 = now_ms();
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return NULL;
 
-    int ret_code;
+    int ret_code = Mosaic::MOSAIC_RET_ERROR;
 
-    if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES)
+    ImageType imageHR = IncomingImage(ctx, HR);
+    ImageType imageLR = IncomingImage(ctx, LR);
+
+    if(imageHR != NULL && imageLR != NULL)
     {
         jbyte *pixels = env->GetByteArrayElements(photo_data, 0);
 
-        YUV420toYVU24_NEW(tImage[HR][frame_number_HR], (ImageType)pixels,
-                tWidth[HR], tHeight[HR]);
-
-        env->ReleaseByteArrayElements(photo_data, pixels, 0);
+        // Writes the full and the quarter resolution frames in one pass
+        ImageUtils::nv21toyvuDecimated(imageHR, imageLR, (ImageType)pixels,
+                ctx->tWidth[HR], ctx->tHeight[HR], H2L_FACTOR);
 
-        double last_tx = mTx;
-
-        t0 = now_ms();
-        GenerateQuarterResImagePlanar(tImage[HR][frame_number_HR], tWidth[HR],
-                tHeight[HR], tImage[LR][frame_number_LR]);
+        env->ReleaseByteArrayElements(photo_data, pixels, JNI_ABORT);
 
 
-        sem_wait(&gPreviewImage_semaphore);
-        decodeYUV444SP(gPreviewImage[LR], tImage[LR][frame_number_LR],
-                gPreviewImageWidth[LR], gPreviewImageHeight[LR]);
-        sem_post(&gPreviewImage_semaphore);
+        pthread_mutex_lock(&gPreviewOwnerLock);
+        if (gPreviewOwner == ctx)
+        {
+            sem_wait(&gPreviewImage_semaphore);
+            decodeYUV444SP(gPreviewImage[LR], imageLR,
+                    gPreviewImageWidth[LR], gPreviewImageHeight[LR]);
+            sem_post(&gPreviewImage_semaphore);
+        }
+        pthread_mutex_unlock(&gPreviewOwnerLock);
 
-        ret_code = AddFrame(LR, frame_number_LR, gTRS);
+        ret_code = AddFrame(ctx, LR, imageLR, ctx->trs);
+        LogFrame(ctx, imageHR, ret_code);
 
         if(ret_code == Mosaic::MOSAIC_RET_OK || ret_code == Mosaic::MOSAIC_RET_FEW_INLIERS)
         {
-            frame_number_LR++;
-            frame_number_HR++;
+            KeepFrame(ctx);
         }
 
     }
     else
     {
-        gTRS[1] = gTRS[2] = gTRS[3] = gTRS[5] = gTRS[6] = gTRS[7] = 0.0f;
-        gTRS[0] = gTRS[4] = gTRS[8] = 1.0f;
+        ResetTRS(ctx);
     }
 
-    UpdateWarpTransformation(gTRS);
+    UpdatePreviewWarp(ctx);
 
-    gTRS[9] = frame_number_HR;
-    gTRS[10] = ret_code;
-
-    jfloatArray bytes = env->NewFloatArray(11);
-    if(bytes != 0)
-    {
-        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) gTRS);
-    }
-    return bytes;
+    return ReturnTRS(env, ctx, ret_code);
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setBlendingType(
         JNIEnv* env, jobject thiz, jint type)
 {
-    blendingType = int(type);
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return;
+
+    ctx->blendingType = int(type);
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setStripType(
         JNIEnv* env, jobject thiz, jint type)
 {
-    stripType = int(type);
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return;
+
+    ctx->stripType = int(type);
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setUnboundedCapture(
+        JNIEnv* env, jobject thiz, jstring scratch_dir)
+{
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return;
+
+    free(ctx->spill_dir);
+    ctx->spill_dir = NULL;
+    if (scratch_dir != NULL)
+    {
+        const char *dir = env->GetStringUTFChars(scratch_dir, NULL);
+        if (dir == NULL) return;
+        ctx->spill_dir = strdup(dir);
+        env->ReleaseStringUTFChars(scratch_dir, dir);
+    }
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setMosaicScratchDir(
+        JNIEnv* env, jobject thiz, jstring scratch_dir)
+{
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return;
+
+    free(ctx->canvas_dir);
+    ctx->canvas_dir = NULL;
+    if (scratch_dir != NULL)
+    {
+        const char *dir = env->GetStringUTFChars(scratch_dir, NULL);
+        if (dir == NULL) return;
+        ctx->canvas_dir = strdup(dir);
+        env->ReleaseStringUTFChars(scratch_dir, dir);
+    }
+}
+
+JNIEXPORT jboolean JNICALL Java_com_android_camera_Mosaic_startFrameLog(
+        JNIEnv* env, jobject thiz, jstring path)
+{
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return JNI_FALSE;
+
+    ctx->closeFrameLog();
+    if (ctx->tWidth[HR] == 0)
+        return JNI_FALSE;
+
+    const char *file = env->GetStringUTFChars(path, NULL);
+    if (file == NULL) return JNI_FALSE;
+    bool ok = ctx->frame_log.create(file, ctx->tWidth[HR], ctx->tHeight[HR]);
+    env->ReleaseStringUTFChars(path, file);
+    return ok ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_stopFrameLog(
+        JNIEnv* env, jobject thiz)
+{
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return;
+
+    ctx->closeFrameLog();
+}
+
+JNIEXPORT jboolean JNICALL Java_com_android_camera_Mosaic_isCaptureUnbounded(
+        JNIEnv* env, jobject thiz)
+{
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return JNI_FALSE;
+
+    return ctx->spill.isOpen() ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setAlignmentThreadCount(
+        JNIEnv* env, jobject thiz, jint count)
+{
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return;
+
+    ctx->alignment_workers = int(count);
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_reset(
         JNIEnv* env, jobject thiz)
 {
-    frame_number_HR = 0;
-    frame_number_LR = 0;
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return;
+
+    ctx->frame_number_HR = 0;
+    ctx->frame_number_LR = 0;
+    ctx->resetSlots();
+    // A new capture starts from the frame memory allocated for it
+    ctx->stats.reset();
+    SampleHeap(ctx, 0);
 
-    gProgress[LR] = 0.0;
-    gProgress[HR] = 0.0;
+    ctx->progress[LR] = 0.0;
+    ctx->progress[HR] = 0.0;
 
-    gCancelComputation[LR] = false;
-    gCancelComputation[HR] = false;
+    ctx->cancelComputation[LR] = false;
+    ctx->cancelComputation[HR] = false;
 
-    Init(LR,MAX_FRAMES);
+    Init(ctx, LR, MAX_FRAMES);
 }
 
 JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_reportProgress(
         JNIEnv* env, jobject thiz, jboolean hires, jboolean cancel_computation)
 {
-    if(bool(hires))
-        gCancelComputation[HR] = cancel_computation;
-    else
-        gCancelComputation[LR] = cancel_computation;
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return 0;
 
-    if(bool(hires))
-        return (jint) gProgress[HR];
-    else
-        return (jint) gProgress[LR];
+    int mID = bool(hires) ? HR : LR;
+    ctx->cancelComputation[mID] = cancel_computation;
+
+    return (jint) ctx->progress[mID];
 }
 
 JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_createMosaic(
         JNIEnv* env, jobject thiz, jboolean value)
 {
-    high_res = bool(value);
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return Mosaic::MOSAIC_RET_ERROR;
+
+    bool high_res = bool(value);
 
     int ret;
 
+    ctx->stats.resetStitch();
+    double start_ms = now_ms();
+
     if(high_res)
     {
         LOGV("createMosaic() - High-Res Mode");
         double  t0, t1, time_c;
 
-        gProgress[HR] = 0.0;
+        ctx->progress[HR] = 0.0;
         t0 = now_ms();
 
-        Init(HR, frame_number_HR);
+        Init(ctx, HR, ctx->frame_number_HR);
 
-        for(int k = 0; k < frame_number_HR; k++)
+        for(int k = 0; k < ctx->frame_number_HR; k++)
         {
-            if (gCancelComputation[HR])
+            if (ctx->cancelComputation[HR])
                 break;
-            AddFrame(HR, k, NULL);
-            gProgress[HR] += TIME_PERCENT_ALIGN/frame_number_HR;
+            AddFrame(ctx, HR, FrameImage(ctx, HR, k), NULL);
+            ctx->progress[HR] += TIME_PERCENT_ALIGN/ctx->frame_number_HR;
         }
 
-        if (gCancelComputation[HR])
+        if (ctx->cancelComputation[HR])
         {
             ret = Mosaic::MOSAIC_RET_CANCELLED;
         }
         else
         {
-            gProgress[HR] = TIME_PERCENT_ALIGN;
+            ctx->progress[HR] = TIME_PERCENT_ALIGN;
 
             t1 = now_ms();
             time_c = t1 - t0;
-            LOGV("AlignAll - %d frames [HR]: %g ms", frame_number_HR, time_c);
+            LOGV("AlignAll - %d frames [HR]: %g ms", ctx->frame_number_HR, time_c);
+            ctx->stats.stitch_align_ms = time_c;
 
-            ret = Finalize(HR);
+            ret = Finalize(ctx, HR);
 
-            gProgress[HR] = 100.0;
+            ctx->progress[HR] = 100.0;
         }
-
-        high_res = false;
     }
     else
     {
         LOGV("createMosaic() - Low-Res Mode");
-        gProgress[LR] = TIME_PERCENT_ALIGN;
+        ctx->progress[LR] = TIME_PERCENT_ALIGN;
 
-        ret = Finalize(LR);
+        ret = Finalize(ctx, LR);
 
-        gProgress[LR] = 100.0;
+        ctx->progress[LR] = 100.0;
     }
 
+    ctx->stats.stitch_total_ms = now_ms() - start_ms;
+
     return (jint) ret;
 }
 
+JNIEXPORT jdoubleArray JNICALL Java_com_android_camera_Mosaic_getTimings(
+        JNIEnv* env, jobject thiz)
+{
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return NULL;
+
+    const MosaicStats &stats = ctx->stats;
+    int frames = stats.frames > 0 ? stats.frames : 1;
+    int inlier_frames = stats.inlier_frames > 0 ? stats.inlier_frames : 1;
+
+    jdouble values[NUM_TIMINGS];
+    values[TIMING_FRAMES] = stats.frames;
+    values[TIMING_ALIGN_LAST_MS] = stats.align_last_ms;
+    values[TIMING_ALIGN_MEAN_MS] = stats.align_total_ms / frames;
+    values[TIMING_ALIGN_MAX_MS] = stats.align_max_ms;
+    values[TIMING_DETECT_MEAN_MS] = stats.detect_total_ms / frames;
+    values[TIMING_MATCH_MEAN_MS] = stats.match_total_ms / frames;
+    values[TIMING_RANSAC_MEAN_MS] = stats.ransac_total_ms / frames;
+    values[TIMING_CORNERS_LAST] = stats.corners_last;
+    values[TIMING_CORNERS_MEAN] = (double) stats.corners_total / frames;
+    values[TIMING_INLIERS_LAST] = stats.inliers_last;
+    values[TIMING_INLIERS_MEAN] = (double) stats.inliers_total / inlier_frames;
+    values[TIMING_INLIERS_MIN] = stats.inliers_min;
+    values[TIMING_STITCH_ALIGN_MS] = stats.stitch_align_ms;
+    values[TIMING_STITCH_DELAUNAY_MS] = stats.blend.delaunay;
+    values[TIMING_STITCH_PYRAMID_MS] = stats.blend.pyramid;
+    values[TIMING_STITCH_BLEND_MS] = stats.blend.blend;
+    values[TIMING_STITCH_CROP_MS] = stats.blend.crop;
+    values[TIMING_STITCH_TOTAL_MS] = stats.stitch_total_ms;
+    values[TIMING_PEAK_NATIVE_BYTES] = (double) stats.peak_bytes;
+
+    jdoubleArray array = env->NewDoubleArray(NUM_TIMINGS);
+    if (array != 0)
+    {
+        env->SetDoubleArrayRegion(array, 0, NUM_TIMINGS, values);
+    }
+    return array;
+}
+
 JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaic(
         JNIEnv* env, jobject thiz)
 {
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return NULL;
+
+    if (ctx->result_mID < 0) return NULL;
+
     int y,x;
+    int mosaicWidth;
+    int mosaicHeight;
+    ImageType resultYVU = ctx->mosaic[ctx->result_mID]->getMosaic(mosaicWidth,
+            mosaicHeight);
+    if (resultYVU == NULL) return NULL;
+
     int width = mosaicWidth;
     int height = mosaicHeight;
     int imageSize = width * height;
 
     // Convert back to RGB24
-    resultBGR = ImageUtils::allocateImage(mosaicWidth, mosaicHeight,
+    ImageType resultBGR = ImageUtils::allocateImage(mosaicWidth, mosaicHeight,
             ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
     ImageUtils::yvu2bgr(resultBGR, resultYVU, mosaicWidth, mosaicHeight);
+    ImageUtils::freeImage(resultYVU);
 
     LOGV("MosBytes: %d, W = %d, H = %d", imageSize, width, height);
 
@@ -616,26 +1163,15 @@ JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaic(
 JNIEXPORT jbyteArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21(
         JNIEnv* env, jobject thiz)
 {
-    int y,x;
-    int width;
-    int height;
+    MosaicContext *ctx = getContext(env, thiz);
+    if (ctx == NULL) return NULL;
 
-    width = mosaicWidth;
-    height = mosaicHeight;
+    if (ctx->result_mID < 0) return NULL;
 
-    int imageSize = 1.5*width * height;
+    int width = ctx->mosaicWidth;
+    int height = ctx->mosaicHeight;
 
-    // Convert YVU to NV21 format in-place
-    ImageType V = resultYVU+mosaicWidth*mosaicHeight;
-    ImageType U = V+mosaicWidth*mosaicHeight;
-    for(int j=0; j<mosaicHeight/2; j++)
-    {
-        for(int i=0; i<mosaicWidth; i+=2)
-        {
-            V[j*mosaicWidth+i] = V[(2*j)*mosaicWidth+i];        // V
-            V[j*mosaicWidth+i+1] = U[(2*j)*mosaicWidth+i];        // U
-        }
-    }
+    int imageSize = 1.5*width * height;
 
     LOGV("MosBytes: %d, W = %d, H = %d", imageSize, width, height);
 
@@ -654,13 +1190,25 @@ JNIEXPORT jbyteArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21(
     jbyteArray bytes = env->NewByteArray(imageSize+8);
     if (bytes == 0) {
         LOGE("Error in creating the image.");
-        ImageUtils::freeImage(resultYVU);
+        delete[] dims;
+        return 0;
+    }
+
+    // Export the mosaic tile by tile straight into the Java array, without
+    // a contiguous copy of the whole mosaic on the native heap
+    jbyte *nv21 = env->GetByteArrayElements(bytes, NULL);
+    if (nv21 == NULL) {
+        delete[] dims;
         return 0;
     }
-    env->SetByteArrayRegion(bytes, 0, imageSize, (jbyte*) resultYVU);
-    env->SetByteArrayRegion(bytes, imageSize, 8, (jbyte*) dims);
+    ctx->mosaic[ctx->result_mID]->getMosaicNV21((ImageType) nv21);
+    memcpy(nv21 + imageSize, dims, 8);
+    env->ReleaseByteArrayElements(bytes, nv21, 0);
+
+    ctx->mosaic[ctx->result_mID]->releaseMosaic();
+    ctx->result_mID = -1;
+
     delete[] dims;
-    ImageUtils::freeImage(resultYVU);
     return bytes;
 }
 
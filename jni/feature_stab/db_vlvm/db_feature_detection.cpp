@@ -26,6 +26,7 @@
 #include <iostream>
 #endif
 #include <float.h>
+#include <string.h>
 
 #define DB_SUB_PIXEL
 
@@ -716,6 +717,29 @@ void db_HarrisStrength_f(float **s,const float * const *img,int w,int h,
     }
 }
 
+/*Compute Harris corner strength of the rows top to bottom of img, over the
+same columns as db_HarrisStrength_u. Rows top-4 to bottom+4 of img are read.
+Different row ranges can be computed concurrently as long as each call has its
+own temp*/
+void db_HarrisStrengthRows_u(float **s, const unsigned char * const *img,int w,int top,int bottom,
+                                    /*temp should point to at least
+                                    18*128 of allocated memory*/
+                                    int *temp)
+{
+    int x,next_x,last;
+    int nc;
+
+    last=w-4;
+    for(x=3;x<=last;x=next_x)
+    {
+        next_x=x+124;
+        nc = db_mini(128,last-x+1);
+
+        /*Compute the Harris strength of a chunk*/
+        db_HarrisStrengthChunk_u(s,img,x,top,bottom,temp,nc);
+    }
+}
+
 /*Compute Harris corner strength of img. Strength is returned for the region
 with (3,3) as upper left and (w-4,h-4) as lower right, positioned in the
 same place in s. In other words,image should be at least 7 pixels wide and 7 pixels high
@@ -1489,11 +1513,26 @@ inline void db_SubPixel(float **strength, const double xd, const double yd, doub
     return;
 }
 
-/*Extract corners from the image part from (left,top) to (right,bottom).
-Store in x and y, extracting at most satnr corners in each block of size (bw,bh).
-The pointer temp_d should point to at least 5*bw*bh positions.
-area_factor holds how many corners max to extract per 10000 pixels*/
-void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int bottom,
+/*Shrink the region passed to db_ExtractCornersSaturated to the one actually
+searched for corners*/
+inline void db_ExtractionRegion(int &left,int &top,int &right,int &bottom)
+{
+#ifdef DB_SUB_PIXEL
+    // subpixel processing may sometimes push the corner ourside the real border
+    // increasing border size:
+    left++;
+    top++;
+    bottom--;
+    right--;
+#endif /*DB_SUB_PIXEL*/
+}
+
+/*Extract corners from the rows of blocks of (left,top) to (right,bottom) that
+start at y_begin, stepping by bh, up to but not including y_end. Blocks at the
+bottom are clipped to bottom. The region should already be adjusted with
+db_ExtractionRegion. See db_ExtractCornersSaturated*/
+void db_ExtractCornersSaturatedRows(float **strength,int left,int right,int bottom,
+                                int y_begin,int y_end,
                                 int bw,int bh,unsigned long area_factor,
                                 float threshold,double *temp_d,
                                 double *x_coord,double *y_coord,int *nr_corners)
@@ -1511,17 +1550,8 @@ void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int
     s_temp=y_temp+bwbh;
     select_temp=s_temp+bwbh;
 
-#ifdef DB_SUB_PIXEL
-    // subpixel processing may sometimes push the corner ourside the real border
-    // increasing border size:
-    left++;
-    top++;
-    bottom--;
-    right--;
-#endif /*DB_SUB_PIXEL*/
-
     nr_points=0;
-    for(y=top;y<=bottom;y=next_y)
+    for(y=y_begin;y<y_end && y<=bottom;y=next_y)
     {
         next_y=y+bh;
         last_y=next_y-1;
@@ -1561,6 +1591,20 @@ void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int
     *nr_corners=nr_points;
 }
 
+/*Extract corners from the image part from (left,top) to (right,bottom).
+Store in x and y, extracting at most satnr corners in each block of size (bw,bh).
+The pointer temp_d should point to at least 5*bw*bh positions.
+area_factor holds how many corners max to extract per 10000 pixels*/
+void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int bottom,
+                                int bw,int bh,unsigned long area_factor,
+                                float threshold,double *temp_d,
+                                double *x_coord,double *y_coord,int *nr_corners)
+{
+    db_ExtractionRegion(left,top,right,bottom);
+    db_ExtractCornersSaturatedRows(strength,left,right,bottom,top,bottom+1,bw,bh,area_factor,
+        threshold,temp_d,x_coord,y_coord,nr_corners);
+}
+
 db_CornerDetector_f::db_CornerDetector_f()
 {
     m_w=0; m_h=0;
@@ -1768,3 +1812,168 @@ void db_CornerDetector_u::ExtractCorners(float ** strength, double *x_coord, dou
             m_temp_d,x_coord,y_coord,nr_corners);
 }
 
+
+db_ParallelCornerDetector_u::db_ParallelCornerDetector_u() :
+    m_pool(DB_MAX_CORNER_WORKERS)
+{
+    m_nr_workers=1;
+    for(int i=0;i<DB_MAX_CORNER_WORKERS;i++)
+    {
+        m_workers[i].temp_i=NULL;
+        m_workers[i].temp_d=NULL;
+        m_workers[i].x=NULL;
+        m_workers[i].y=NULL;
+        m_workers[i].nr=0;
+    }
+}
+
+db_ParallelCornerDetector_u::~db_ParallelCornerDetector_u()
+{
+    FreeWorkers();
+}
+
+void db_ParallelCornerDetector_u::Clean()
+{
+    FreeWorkers();
+    db_CornerDetector_u::Clean();
+}
+
+unsigned long db_ParallelCornerDetector_u::Init(int im_width,int im_height,int target_nr_corners,
+                            int nr_horizontal_blocks,int nr_vertical_blocks,
+                            double absolute_threshold,double relative_threshold)
+{
+    unsigned long max_nr=db_CornerDetector_u::Init(im_width,im_height,target_nr_corners,
+        nr_horizontal_blocks,nr_vertical_blocks,absolute_threshold,relative_threshold);
+    AllocWorkers();
+    return(max_nr);
+}
+
+void db_ParallelCornerDetector_u::SetNrWorkers(int nr_workers)
+{
+    nr_workers=db_maxi(1,db_mini(DB_MAX_CORNER_WORKERS,nr_workers));
+    if(nr_workers==m_nr_workers) return;
+
+    m_pool.SetNrWorkers(nr_workers);
+    FreeWorkers();
+    m_nr_workers=nr_workers;
+    AllocWorkers();
+}
+
+/*Worker 0 is the calling thread and uses the buffers of the base class*/
+void db_ParallelCornerDetector_u::AllocWorkers()
+{
+    if(m_w==0) return;
+    for(int i=1;i<m_nr_workers;i++)
+    {
+        m_workers[i].temp_i=new int[18*128];
+        m_workers[i].temp_d=new double[5*m_bw*m_bh];
+    }
+    for(int i=0;i<m_nr_workers;i++)
+    {
+        m_workers[i].x=new double[m_max_nr];
+        m_workers[i].y=new double[m_max_nr];
+    }
+    m_workers[0].temp_i=m_temp_i;
+    m_workers[0].temp_d=m_temp_d;
+}
+
+void db_ParallelCornerDetector_u::FreeWorkers()
+{
+    for(int i=0;i<DB_MAX_CORNER_WORKERS;i++)
+    {
+        if(i>0)
+        {
+            delete [] m_workers[i].temp_i;
+            delete [] m_workers[i].temp_d;
+        }
+        delete [] m_workers[i].x;
+        delete [] m_workers[i].y;
+        m_workers[i].temp_i=NULL;
+        m_workers[i].temp_d=NULL;
+        m_workers[i].x=NULL;
+        m_workers[i].y=NULL;
+    }
+}
+
+void db_ParallelCornerDetector_u::RunPart(int index,int nr_parts) const
+{
+    Worker &worker=m_workers[index];
+
+    if(m_job==JOB_STRENGTH)
+    {
+        /*Split the rows 3..h-4 computed by db_HarrisStrength_u into bands*/
+        int rows=m_h-6;
+        int top=3+(rows*index)/nr_parts;
+        int bottom=3+(rows*(index+1))/nr_parts-1;
+        if(bottom>=top)
+            db_HarrisStrengthRows_u(m_strength,m_img,m_w,top,bottom,worker.temp_i);
+    }
+    else
+    {
+        /*Split the rows of blocks into bands so that the blocks are the same
+        as with a single worker*/
+        int left=BORDER,top=BORDER,right=m_w-BORDER-1,bottom=m_h-BORDER-1;
+        db_ExtractionRegion(left,top,right,bottom);
+        int nr_block_rows=db_maxi(0,(bottom-top+m_bh)/m_bh);
+        int y_begin=top+m_bh*((nr_block_rows*index)/nr_parts);
+        int y_end=top+m_bh*((nr_block_rows*(index+1))/nr_parts);
+        db_ExtractCornersSaturatedRows(m_strength,left,right,bottom,y_begin,y_end,
+            m_bw,m_bh,m_area_factor,m_threshold,worker.temp_d,
+            worker.x,worker.y,&worker.nr);
+    }
+}
+
+void db_ParallelCornerDetector_u::DetectCorners(const unsigned char * const *img,double *x_coord,double *y_coord,int *nr_corners,
+                                        const unsigned char * const *msk, unsigned char fgnd) const
+{
+    /*The pool drops to one worker if none of its threads could be started*/
+    if(m_pool.GetNrWorkers()<=1 || m_w==0)
+    {
+        db_CornerDetector_u::DetectCorners(img,x_coord,y_coord,nr_corners,msk,fgnd);
+        return;
+    }
+
+    m_img=img;
+    m_job=JOB_STRENGTH;
+    m_pool.Run(*this,m_nr_workers);
+
+    if(m_r_thresh)
+    {
+        float max_val=db_MaxImage_Aligned16_f(m_strength,3,3,m_w-6,m_h-6);
+        m_threshold= (float) db_maxd(m_a_thresh,max_val*m_r_thresh);
+    }
+    else m_threshold= (float) m_a_thresh;
+
+    m_job=JOB_EXTRACT;
+    int nr_parts=m_pool.Run(*this,m_nr_workers);
+
+    /*Merge in band order, which is the block order of the single threaded
+    detector*/
+    int nr=0;
+    for(int i=0;i<nr_parts;i++)
+    {
+        const Worker &worker=m_workers[i];
+        memcpy(x_coord+nr,worker.x,worker.nr*sizeof(double));
+        memcpy(y_coord+nr,worker.y,worker.nr*sizeof(double));
+        nr+=worker.nr;
+    }
+    *nr_corners=nr;
+
+    if ( msk )
+    {
+        int nr_corners_mask=0;
+
+        for ( int i = 0; i < *nr_corners; ++i)
+        {
+            int cor_x = db_roundi(*(x_coord+i));
+            int cor_y = db_roundi(*(y_coord+i));
+            if ( msk[cor_y][cor_x] == fgnd )
+            {
+                x_coord[nr_corners_mask] = x_coord[i];
+                y_coord[nr_corners_mask] = y_coord[i];
+                nr_corners_mask++;
+            }
+        }
+        *nr_corners = nr_corners_mask;
+    }
+}
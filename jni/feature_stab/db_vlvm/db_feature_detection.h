@@ -27,6 +27,7 @@
  */
 #include "db_utilities.h"
 #include "db_utilities_constants.h"
+#include "db_worker_pool.h"
 #include <stdlib.h> //for NULL
 
 /*!
@@ -176,4 +177,81 @@ protected:
     float **m_strength,*m_strength_mem;
 };
 
+
+/*!
+ * \class db_ParallelCornerDetector_u
+ * \ingroup FeatureDetection
+ * \brief Harris corner detector for byte images that splits the work over
+ * several threads.
+ *  The Harris strength image is computed in horizontal bands, one per worker,
+ * where each band reads the rows around it that the filters need. Once all
+ * bands are done, the 5x5 non-maximum suppression and the per-block corner
+ * selection run on the complete strength image, again split by rows of blocks.
+ * The corners are merged in block order, so the output is identical to
+ * db_CornerDetector_u for any number of workers.
+ */
+class DB_API db_ParallelCornerDetector_u : public db_CornerDetector_u,
+                                           private db_WorkerPool::Task
+{
+public:
+    db_ParallelCornerDetector_u();
+    virtual ~db_ParallelCornerDetector_u();
+
+    virtual unsigned long Init(int im_width,int im_height,
+                            int target_nr_corners=DB_DEFAULT_TARGET_NR_CORNERS,
+                            int nr_horizontal_blocks=DB_DEFAULT_NR_FEATURE_BLOCKS,
+                            int nr_vertical_blocks=DB_DEFAULT_NR_FEATURE_BLOCKS,
+                            double absolute_threshold=DB_DEFAULT_ABS_CORNER_THRESHOLD,
+                            double relative_threshold=DB_DEFAULT_REL_CORNER_THRESHOLD);
+
+    /*!
+     * Set the number of threads used by DetectCorners(), including the calling
+     * thread. A value of 1 (the default) runs everything on the calling thread.
+     * \param nr_workers  number of workers, clamped to [1,DB_MAX_CORNER_WORKERS]
+     */
+    void SetNrWorkers(int nr_workers);
+    /*!
+     * Number of threads DetectCorners() uses, which is below the number set
+     * if some of the threads could not be started.
+     */
+    int GetNrWorkers() const { return m_pool.GetNrWorkers(); }
+
+    virtual void DetectCorners(const unsigned char * const *img,double *x_coord,double *y_coord,int *nr_corners,
+        const unsigned char * const * msk=NULL, unsigned char fgnd=255) const;
+
+protected:
+    virtual void Clean();
+
+private:
+    /*Work done by each worker: one band of the strength image or one band of
+    block rows for the corner extraction*/
+    enum Job { JOB_STRENGTH, JOB_EXTRACT };
+
+    /*Buffers of one worker*/
+    struct Worker
+    {
+        int *temp_i;
+        double *temp_d;
+        double *x,*y;
+        int nr;
+    };
+
+    virtual void RunPart(int index,int nr_parts) const;
+    void AllocWorkers();
+    void FreeWorkers();
+
+    /*Not copyable*/
+    db_ParallelCornerDetector_u(const db_ParallelCornerDetector_u&);
+    db_ParallelCornerDetector_u& operator=(const db_ParallelCornerDetector_u&);
+
+    int m_nr_workers;
+    mutable Worker m_workers[DB_MAX_CORNER_WORKERS];
+    mutable db_WorkerPool m_pool;
+
+    /*State shared with the worker threads for the current call*/
+    mutable Job m_job;
+    mutable const unsigned char * const *m_img;
+    mutable float m_threshold;
+};
+
 #endif /*DB_FEATURE_DETECTION_H*/
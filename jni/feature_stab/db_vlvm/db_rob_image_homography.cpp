@@ -71,6 +71,51 @@ inline double db_RobImageHomography_Cost(double H[9],int point_count,double *x_i
     return(back);
 }
 
+/*Add the cost of correspondences first to last to the hypotheses
+hyp_perm[first_hyp] to hyp_perm[last_hyp]*/
+inline void db_RobImageHomography_UpdateCosts(double *hyp_cost_array,double *hyp_H_array,const int *hyp_perm,
+                                              int first_hyp,int last_hyp,double *x_i,double *xp_i,
+                                              int first,int last,double one_over_scale2)
+{
+    int j,c;
+    double acc,*hyp_point,*x_i_temp,*xp_i_temp;
+
+    for(j=first_hyp;j<=last_hyp;j++)
+    {
+        hyp_point=hyp_H_array+9*hyp_perm[j];
+        for(c=first;c<=last;)
+        {
+            /*Take log of product of ten reprojection
+            errors to reduce nr of expensive log operations*/
+            if(c+9<=last)
+            {
+                x_i_temp=x_i+(c<<1);
+                xp_i_temp=xp_i+(c<<1);
+
+                acc=db_ExpCauchyInhomogenousHomographyError(xp_i_temp,hyp_point,x_i_temp,one_over_scale2);
+                acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+2,hyp_point,x_i_temp+2,one_over_scale2);
+                acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+4,hyp_point,x_i_temp+4,one_over_scale2);
+                acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+6,hyp_point,x_i_temp+6,one_over_scale2);
+                acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+8,hyp_point,x_i_temp+8,one_over_scale2);
+                acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+10,hyp_point,x_i_temp+10,one_over_scale2);
+                acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+12,hyp_point,x_i_temp+12,one_over_scale2);
+                acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+14,hyp_point,x_i_temp+14,one_over_scale2);
+                acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+16,hyp_point,x_i_temp+16,one_over_scale2);
+                acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+18,hyp_point,x_i_temp+18,one_over_scale2);
+                c+=10;
+            }
+            else
+            {
+                for(acc=1.0;c<=last;c++)
+                {
+                    acc*=db_ExpCauchyInhomogenousHomographyError(xp_i+(c<<1),hyp_point,x_i+(c<<1),one_over_scale2);
+                }
+            }
+            hyp_cost_array[j]+=log(acc);
+        }
+    }
+}
+
 inline double db_RobImageHomography_Statistics(double H[9],int point_count,double *x_i,double *xp_i,double one_over_scale2,db_Statistics *stat,double thresh=DB_OUTLIER_THRESHOLD)
 {
     int c,i;
@@ -664,7 +709,8 @@ void db_RobImageHomography(
                               // raw image coordinates
                               double *im_raw, double *im_raw_p,
                               // final matches
-                              int *finalNumE)
+                              int *finalNumE,
+                              db_HypothesisScorer *scorer)
 {
     /*Random seed*/
     int r_seed;
@@ -674,10 +720,6 @@ void db_RobImageHomography(
     int i,j,c,point_count,hyp_count;
     int last_hyp,new_last_hyp,last_corr;
     int pos,point_pos,last_point;
-    /*Accumulator*/
-    double acc;
-    /*Hypothesis pointer*/
-    double *hyp_point;
     /*Random sample*/
     int s[4];
     /*Pivot for hypothesis pruning*/
@@ -689,8 +731,6 @@ void db_RobImageHomography(
     /*One over the squared scale of
     Cauchy distribution*/
     double one_over_scale2;
-    /*temporary pointers*/
-    double *x_i_temp,*xp_i_temp;
     /*Temporary space for inverse calibration matrices*/
     double K_inv[9];
     double Kp_inv[9];
@@ -940,40 +980,10 @@ void db_RobImageHomography(
         {
             /*Update cost with the next chunk*/
             last_corr=db_mini(i+chunk_size-1,point_count-1);
-            for(j=0;j<=last_hyp;j++)
-            {
-                hyp_point=hyp_H_array+9*hyp_perm[j];
-                for(c=i;c<=last_corr;)
-                {
-                    /*Take log of product of ten reprojection
-                    errors to reduce nr of expensive log operations*/
-                    if(c+9<=last_corr)
-                    {
-                        x_i_temp=x_i+(c<<1);
-                        xp_i_temp=xp_i+(c<<1);
-
-                        acc=db_ExpCauchyInhomogenousHomographyError(xp_i_temp,hyp_point,x_i_temp,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+2,hyp_point,x_i_temp+2,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+4,hyp_point,x_i_temp+4,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+6,hyp_point,x_i_temp+6,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+8,hyp_point,x_i_temp+8,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+10,hyp_point,x_i_temp+10,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+12,hyp_point,x_i_temp+12,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+14,hyp_point,x_i_temp+14,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+16,hyp_point,x_i_temp+16,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+18,hyp_point,x_i_temp+18,one_over_scale2);
-                        c+=10;
-                    }
-                    else
-                    {
-                        for(acc=1.0;c<=last_corr;c++)
-                        {
-                            acc*=db_ExpCauchyInhomogenousHomographyError(xp_i+(c<<1),hyp_point,x_i+(c<<1),one_over_scale2);
-                        }
-                    }
-                    hyp_cost_array[j]+=log(acc);
-                }
-            }
+            if(scorer) scorer->UpdateCosts(hyp_cost_array,hyp_H_array,hyp_perm,last_hyp,
+                x_i,xp_i,i,last_corr,one_over_scale2);
+            else db_RobImageHomography_UpdateCosts(hyp_cost_array,hyp_H_array,hyp_perm,0,last_hyp,
+                x_i,xp_i,i,last_corr,one_over_scale2);
             if (chunk_size<point_count){
                 /*Prune out half of the hypotheses*/
                 new_last_hyp=(last_hyp+1)/2-1;
@@ -1080,3 +1090,50 @@ void db_RobImageHomography(
         *finalNumE = point_count_new;
 
 }
+
+db_HypothesisScorer::db_HypothesisScorer() :
+    m_pool(DB_MAX_HYPOTHESIS_WORKERS)
+{
+}
+
+void db_HypothesisScorer::SetNrWorkers(int nr_workers)
+{
+    m_pool.SetNrWorkers(nr_workers);
+}
+
+void db_HypothesisScorer::RunPart(int index,int nr_parts) const
+{
+    int nr_hyp=m_last_hyp+1;
+    int first_hyp=(nr_hyp*index)/nr_parts;
+    int last_hyp=(nr_hyp*(index+1))/nr_parts-1;
+
+    if(last_hyp>=first_hyp)
+        db_RobImageHomography_UpdateCosts(m_hyp_cost_array,m_hyp_H_array,m_hyp_perm,first_hyp,last_hyp,
+            m_x_i,m_xp_i,m_first,m_last,m_one_over_scale2);
+}
+
+void db_HypothesisScorer::UpdateCosts(double *hyp_cost_array,double *hyp_H_array,const int *hyp_perm,int last_hyp,
+                                      double *x_i,double *xp_i,int first,int last,double one_over_scale2)
+{
+    /*The later rounds only have a handful of hypotheses left, which
+    are not worth waking the other threads for*/
+    int nr_parts=db_mini(m_pool.GetNrWorkers(),(last_hyp+1)/DB_MIN_HYPOTHESES_PER_WORKER);
+    if(nr_parts<=1)
+    {
+        db_RobImageHomography_UpdateCosts(hyp_cost_array,hyp_H_array,hyp_perm,0,last_hyp,
+            x_i,xp_i,first,last,one_over_scale2);
+        return;
+    }
+
+    m_hyp_cost_array=hyp_cost_array;
+    m_hyp_H_array=hyp_H_array;
+    m_hyp_perm=hyp_perm;
+    m_last_hyp=last_hyp;
+    m_x_i=x_i;
+    m_xp_i=xp_i;
+    m_first=first;
+    m_last=last;
+    m_one_over_scale2=one_over_scale2;
+
+    m_pool.Run(*this,nr_parts);
+}
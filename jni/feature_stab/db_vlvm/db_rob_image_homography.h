@@ -22,6 +22,7 @@
 #include "db_utilities.h"
 #include "db_robust.h"
 #include "db_metrics.h"
+#include "db_worker_pool.h"
 
 #include <stdlib.h> // for NULL
 
@@ -50,6 +51,67 @@
 #define DB_HOMOGRAPHY_TYPE_CAMROTATION_F    12
 #define DB_HOMOGRAPHY_TYPE_CAMROTATION_F_UD 13
 
+/*!
+ * \class db_HypothesisScorer
+ * \ingroup LMRobImageHomography
+ * \brief Scores homography hypotheses against a chunk of correspondences on
+ * a small pool of threads.
+ *  db_RobImageHomography() scores its hypotheses in chunks of correspondences
+ * and drops the worse half after each chunk (preemptive RANSAC). Each round can
+ * hand the surviving hypotheses to a db_HypothesisScorer, which splits them into
+ * contiguous ranges, one per worker. Every hypothesis is still scored by exactly
+ * one thread in the same order, so the costs, and the homography picked, are
+ * identical to the single-threaded estimate for any number of workers.
+ */
+class DB_API db_HypothesisScorer : private db_WorkerPool::Task
+{
+public:
+    db_HypothesisScorer();
+
+    /*!
+     * Set the number of threads used by UpdateCosts(), including the calling
+     * thread. A value of 1 (the default) scores everything on the calling thread.
+     * \param nr_workers  number of workers, clamped to [1,DB_MAX_HYPOTHESIS_WORKERS]
+     */
+    void SetNrWorkers(int nr_workers);
+    /*!
+     * Number of threads UpdateCosts() uses, which is below the number set if
+     * some of the threads could not be started.
+     */
+    int GetNrWorkers() const { return m_pool.GetNrWorkers(); }
+
+    /*!
+     * Add the cost of correspondences first to last to the cost of the hypotheses
+     * hyp_perm[0] to hyp_perm[last_hyp].
+     * \param hyp_cost_array  costs, indexed like hyp_perm
+     * \param hyp_H_array     all hypotheses, 9 doubles each
+     * \param hyp_perm        indices of the surviving hypotheses
+     * \param last_hyp        index of the last surviving hypothesis in hyp_perm
+     * \param x_i             inhomogenous points in the first image
+     * \param xp_i            inhomogenous points in the second image
+     * \param first           first correspondence of the chunk
+     * \param last            last correspondence of the chunk
+     * \param one_over_scale2 one over the squared scale of the Cauchy distribution
+     */
+    void UpdateCosts(double *hyp_cost_array,double *hyp_H_array,const int *hyp_perm,int last_hyp,
+                     double *x_i,double *xp_i,int first,int last,double one_over_scale2);
+
+private:
+    virtual void RunPart(int index,int nr_parts) const;
+
+    /*Not copyable*/
+    db_HypothesisScorer(const db_HypothesisScorer&);
+    db_HypothesisScorer& operator=(const db_HypothesisScorer&);
+
+    db_WorkerPool m_pool;
+
+    /*State shared with the worker threads for the current round*/
+    double *m_hyp_cost_array,*m_hyp_H_array,*m_x_i,*m_xp_i;
+    const int *m_hyp_perm;
+    int m_last_hyp,m_first,m_last;
+    double m_one_over_scale2;
+};
+
 /*!
 Solve for homography H such that xp~Hx
 \param H    best homography
@@ -83,6 +145,8 @@ Calibration matrices:
  \param scale           Cauchy scale coefficient (see db_ExpCauchyReprojectionError() )
  \param nr_samples      number of times to compute a hypothesis
  \param chunk_size      size of cost chunks
+
+ \param scorer  if not NULL, scores the hypotheses on several threads
 */
 DB_API void db_RobImageHomography(
                               /*Best homography*/
@@ -127,7 +191,9 @@ DB_API void db_RobImageHomography(
                               // raw image coordinates
                               double *im_raw=NULL, double *im_raw_p=NULL,
                               // final matches
-                              int *final_NumE=0);
+                              int *final_NumE=0,
+                              // threads for the hypothesis scoring
+                              db_HypothesisScorer *scorer=NULL);
 
 DB_API double db_RobImageHomography_Cost(double H[9],int point_count,double *x_i,
                                                 double *xp_i,double one_over_scale2);
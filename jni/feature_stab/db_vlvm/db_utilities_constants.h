@@ -47,6 +47,8 @@
 #define DB_DEFAULT_NR_SAMPLES 500
 #define DB_DEFAULT_CHUNK_SIZE 100
 #define DB_DEFAULT_GROUP_SIZE 10
+#define DB_MAX_HYPOTHESIS_WORKERS 8
+#define DB_MIN_HYPOTHESES_PER_WORKER 16
 
 /*Optimisation parameters*/
 #define DB_DEFAULT_MAX_POINTS 1000
@@ -66,6 +68,7 @@
 #define DB_DEFAULT_MAX_DISPARITY 0.1
 #define DB_DEFAULT_NO_DISPARITY -1.0
 #define DB_DEFAULT_MAX_TRACK_LENGTH 300
+#define DB_MAX_CORNER_WORKERS 8
 
 #define DB_DEFAULT_MAX_NR_CAMERAS 1000
 
@@ -89,6 +92,18 @@
  * Group size is the number of observation costs multiplied together
  * before a log of the product is added to the total cost.
 */
+/*!
+ * \def DB_MAX_HYPOTHESIS_WORKERS
+ * \ingroup LMRobImageHomography
+ * \brief Maximum number of threads db_HypothesisScorer splits the
+ * hypothesis scoring over.
+*/
+/*!
+ * \def DB_MIN_HYPOTHESES_PER_WORKER
+ * \ingroup LMRobImageHomography
+ * \brief Smallest number of hypotheses handed to each scoring thread.
+ * Rounds with fewer surviving hypotheses use fewer threads.
+*/
 
 /*!
  * \def DB_DEFAULT_TARGET_NR_CORNERS
@@ -102,6 +117,12 @@
  * for feature detection. The greater the number, the more uniform the distribution of
  * detected features.
 */
+/*!
+ * \def DB_MAX_CORNER_WORKERS
+ * \ingroup FeatureDetection
+ * \brief Maximum number of threads db_ParallelCornerDetector_u splits the
+ * detection over.
+*/
 /*!
  * \def DB_DEFAULT_ABS_CORNER_THRESHOLD
  * \ingroup FeatureDetection
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "db_worker_pool.h"
+
+db_WorkerPool::db_WorkerPool(int max_workers)
+{
+    m_max_workers=db_maxi(1,max_workers);
+    m_nr_workers=1;
+    m_nr_threads=0;
+    m_threads_started=false;
+    m_workers=new Worker[m_max_workers];
+    for(int i=0;i<m_max_workers;i++)
+    {
+        m_workers[i].owner=this;
+        m_workers[i].index=i;
+        m_workers[i].generation=0;
+    }
+    m_task=NULL;
+    m_nr_parts=1;
+    m_generation=0;
+    m_pending=0;
+    m_quit=false;
+    pthread_mutex_init(&m_lock,NULL);
+    pthread_cond_init(&m_start,NULL);
+    pthread_cond_init(&m_done,NULL);
+}
+
+db_WorkerPool::~db_WorkerPool()
+{
+    StopThreads();
+    delete [] m_workers;
+    pthread_cond_destroy(&m_done);
+    pthread_cond_destroy(&m_start);
+    pthread_mutex_destroy(&m_lock);
+}
+
+void db_WorkerPool::SetNrWorkers(int nr_workers)
+{
+    nr_workers=db_maxi(1,db_mini(m_max_workers,nr_workers));
+    if(nr_workers==m_nr_workers) return;
+    StopThreads();
+    m_nr_workers=nr_workers;
+}
+
+void db_WorkerPool::StartThreads()
+{
+    if(m_threads_started) return;
+    m_quit=false;
+    int i;
+    for(i=1;i<m_nr_workers;i++)
+    {
+        m_workers[i].generation=m_generation;
+        if(pthread_create(&m_workers[i].thread,NULL,WorkerLoop,&m_workers[i])!=0) break;
+    }
+    /*Only the threads that started take part*/
+    m_nr_threads=i-1;
+    m_nr_workers=i;
+    m_threads_started=true;
+}
+
+void db_WorkerPool::StopThreads()
+{
+    if(!m_threads_started) return;
+    pthread_mutex_lock(&m_lock);
+    m_quit=true;
+    pthread_cond_broadcast(&m_start);
+    pthread_mutex_unlock(&m_lock);
+    for(int i=1;i<=m_nr_threads;i++)
+    {
+        pthread_join(m_workers[i].thread,NULL);
+    }
+    m_nr_threads=0;
+    m_threads_started=false;
+}
+
+void *db_WorkerPool::WorkerLoop(void *arg)
+{
+    Worker *worker=(Worker*) arg;
+    db_WorkerPool *pool=worker->owner;
+    int seen=worker->generation;
+
+    for(;;)
+    {
+        pthread_mutex_lock(&pool->m_lock);
+        while(pool->m_generation==seen && !pool->m_quit)
+            pthread_cond_wait(&pool->m_start,&pool->m_lock);
+        if(pool->m_quit)
+        {
+            pthread_mutex_unlock(&pool->m_lock);
+            break;
+        }
+        seen=pool->m_generation;
+        pthread_mutex_unlock(&pool->m_lock);
+
+        /*Workers beyond the number of parts sit this task out*/
+        if(worker->index<pool->m_nr_parts) pool->m_task->RunPart(worker->index,pool->m_nr_parts);
+
+        pthread_mutex_lock(&pool->m_lock);
+        if(--pool->m_pending==0) pthread_cond_signal(&pool->m_done);
+        pthread_mutex_unlock(&pool->m_lock);
+    }
+    return NULL;
+}
+
+int db_WorkerPool::Run(const Task &task,int nr_parts)
+{
+    if(m_nr_workers>1) StartThreads();
+
+    nr_parts=db_maxi(1,db_mini(nr_parts,m_nr_workers));
+    if(nr_parts==1)
+    {
+        task.RunPart(0,1);
+        return 1;
+    }
+
+    m_task=&task;
+    m_nr_parts=nr_parts;
+
+    pthread_mutex_lock(&m_lock);
+    m_pending=m_nr_threads;
+    m_generation++;
+    pthread_cond_broadcast(&m_start);
+    pthread_mutex_unlock(&m_lock);
+
+    task.RunPart(0,nr_parts);
+
+    pthread_mutex_lock(&m_lock);
+    while(m_pending>0)
+        pthread_cond_wait(&m_done,&m_lock);
+    pthread_mutex_unlock(&m_lock);
+
+    m_task=NULL;
+    return nr_parts;
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef DB_WORKER_POOL_H
+#define DB_WORKER_POOL_H
+
+#include "db_utilities.h"
+
+#include <pthread.h>
+
+/*!
+ * \class db_WorkerPool
+ * \ingroup LMBasicUtilities
+ * \brief Small persistent pool of threads that runs the parts of a task
+ * concurrently.
+ *  The calling thread runs part 0 of each task and the pool threads the others.
+ * The threads are started on the first Run() and kept until the number of
+ * workers changes or the pool is destroyed. If a thread cannot be started, the
+ * pool keeps the threads it has, and with none runs every task on the calling
+ * thread alone.
+ */
+class DB_API db_WorkerPool
+{
+public:
+    /*!
+     * Work split into parts by Run(). Each part is run by exactly one thread.
+     */
+    class Task
+    {
+    public:
+        virtual ~Task() {}
+        /*!
+         * Run part index of nr_parts.
+         */
+        virtual void RunPart(int index,int nr_parts) const=0;
+    };
+
+    /*!
+     * \param max_workers  largest number of workers SetNrWorkers() accepts
+     */
+    db_WorkerPool(int max_workers);
+    ~db_WorkerPool();
+
+    /*!
+     * Set the number of threads used by Run(), including the calling thread.
+     * A value of 1 (the default) runs everything on the calling thread.
+     * \param nr_workers  number of workers, clamped to [1,max_workers]
+     */
+    void SetNrWorkers(int nr_workers);
+    /*!
+     * Number of workers Run() uses. This drops below the requested number once
+     * Run() fails to start some of the threads.
+     */
+    int GetNrWorkers() const { return m_nr_workers; }
+
+    /*!
+     * Run the parts of task on the calling thread and the pool threads, and wait
+     * until they are all done.
+     * \param task      work to run
+     * \param nr_parts  largest number of parts to split the task into
+     * \return  the number of parts the task was split into, at least 1
+     */
+    int Run(const Task &task,int nr_parts);
+
+private:
+    struct Worker
+    {
+        db_WorkerPool *owner;
+        int index;
+        pthread_t thread;
+        int generation;
+    };
+
+    static void *WorkerLoop(void *arg);
+    void StartThreads();
+    void StopThreads();
+
+    /*Not copyable*/
+    db_WorkerPool(const db_WorkerPool&);
+    db_WorkerPool& operator=(const db_WorkerPool&);
+
+    int m_max_workers;
+    int m_nr_workers;
+    /*Pool threads running, workers 1 to m_nr_threads*/
+    int m_nr_threads;
+    bool m_threads_started;
+    Worker *m_workers;
+
+    /*State shared with the pool threads for the current task*/
+    const Task *m_task;
+    int m_nr_parts;
+    int m_generation;
+    int m_pending;
+    bool m_quit;
+    pthread_mutex_t m_lock;
+    pthread_cond_t m_start;
+    pthread_cond_t m_done;
+};
+
+#endif /*DB_WORKER_POOL_H*/
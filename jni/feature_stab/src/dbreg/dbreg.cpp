@@ -18,6 +18,7 @@
 #include "dbreg.h"
 #include <string.h>
 #include <stdio.h>
+#include <time.h>
 
 
 #if PROFILE
@@ -25,6 +26,14 @@
 
 //#include <iostream>
 
+/* monotonic time in milliseconds, used for the stage timings */
+static double stage_time_ms(void)
+{
+  struct timespec res;
+  clock_gettime(CLOCK_MONOTONIC, &res);
+  return 1000.0*res.tv_sec + (double)res.tv_nsec/1e6;
+}
+
 db_FrameToReferenceRegistration::db_FrameToReferenceRegistration() :
   m_initialized(false),m_nr_matches(0),m_over_allocation(256),m_nr_bins(20),m_max_cost_pix(30), m_quarter_resolution(false)
 {
@@ -58,6 +67,8 @@ db_FrameToReferenceRegistration::db_FrameToReferenceRegistration() :
 
   profile_string = NULL;
 
+  m_detect_ms = m_match_ms = m_homography_ms = 0.0;
+
   db_Identity3x3(m_K);
   db_Identity3x3(m_H_ref_to_ins);
   db_Identity3x3(m_H_dref_to_ref);
@@ -268,6 +279,7 @@ int db_FrameToReferenceRegistration::UpdateReference(const unsigned char * const
 
   if(detect_corners)
   {
+    double t_detect = stage_time_ms();
     #if MB
     m_cd.DetectCorners(imptr, m_x_corners_ref,m_y_corners_ref,&m_nr_corners_ref);
     int nr = 0;
@@ -285,6 +297,7 @@ int db_FrameToReferenceRegistration::UpdateReference(const unsigned char * const
     #else
     m_cd.DetectCorners(imptr, m_x_corners_ref,m_y_corners_ref,&m_nr_corners_ref);
     #endif
+    m_detect_ms += stage_time_ms() - t_detect;
   }
   else
   {
@@ -344,6 +357,7 @@ bool db_FrameToReferenceRegistration::NeedReferenceUpdate()
 int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im, double H[9],bool force_reference,bool prewarp)
 {
   m_current_is_reference = false;
+  m_detect_ms = m_match_ms = m_homography_ms = 0.0;
   if(!m_reference_set || force_reference)
     {
       db_Identity3x3(m_H_ref_to_ins);
@@ -386,7 +400,9 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
 #if PROFILE
   iTimer1 = now_ms();
 #endif
+  double t_stage = stage_time_ms();
   m_cd.DetectCorners(imptr, m_x_corners_ins,m_y_corners_ins,&m_nr_corners_ins);
+  m_detect_ms += stage_time_ms() - t_stage;
   // @jke - Adding code to time the functions.  TODO: Remove after test
 # if PROFILE
   iTimer2 = now_ms();
@@ -399,6 +415,7 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
 #if PROFILE
   iTimer1 = now_ms();
 #endif
+  t_stage = stage_time_ms();
     if(prewarp)
   m_cm.Match(m_reference_image,imptr,m_x_corners_ref,m_y_corners_ref,m_nr_corners_ref,
          m_x_corners_ins,m_y_corners_ins,m_nr_corners_ins,
@@ -407,6 +424,7 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
   m_cm.Match(m_reference_image,imptr,m_x_corners_ref,m_y_corners_ref,m_nr_corners_ref,
          m_x_corners_ins,m_y_corners_ins,m_nr_corners_ins,
          m_match_index_ref,m_match_index_ins,&m_nr_matches);
+  m_match_ms = stage_time_ms() - t_stage;
   // @jke - Adding code to time the functions.  TODO: Remove after test
 # if PROFILE
   iTimer2 = now_ms();
@@ -434,9 +452,11 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
   iTimer1 = now_ms();
 #endif
   // perform the alignment:
+  t_stage = stage_time_ms();
   db_RobImageHomography(m_H_ref_to_ins, m_corners_ref, m_corners_ins, m_nr_matches, m_K, m_K, m_temp_double, m_temp_int,
             m_homography_type,NULL,m_max_iterations,m_max_nr_matches,m_scale,
-            m_nr_samples, m_chunk_size);
+            m_nr_samples, m_chunk_size, 0, NULL, NULL, NULL, NULL, NULL, &m_hyp_scorer);
+  m_homography_ms = stage_time_ms() - t_stage;
   // @jke - Adding code to time the functions.  TODO: Remove after test
 # if PROFILE
   iTimer2 = now_ms();
@@ -592,7 +612,7 @@ void db_FrameToReferenceRegistration::EstimateSecondaryModel(double H[9])
   // perform the alignment:
   db_RobImageHomography(m_H_ref_to_ins, m_corners_ref, m_corners_ins, m_nr_matches, m_K, m_K, m_temp_double, m_temp_int,
             m_homography_type,NULL,m_max_iterations,m_max_nr_matches,m_scale,
-            m_nr_samples, m_chunk_size);
+            m_nr_samples, m_chunk_size, 0, NULL, NULL, NULL, NULL, NULL, &m_hyp_scorer);
 
   db_Copy9(H,m_H_ref_to_ins);
 }
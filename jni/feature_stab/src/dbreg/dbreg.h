@@ -180,6 +180,18 @@ public:
     */
     void ResetSmoothing(bool enable) { m_do_motion_smoothing = enable; }
 
+    /*!
+     * Set the number of threads used for corner detection. Use this to spread the corner detection over several cores. The detected corners do not depend on this setting.
+     * \param nr_workers   number of threads, including the calling thread (1 by default).
+    */
+    void SetCornerDetectionWorkers(int nr_workers) { m_cd.SetNrWorkers(nr_workers); }
+
+    /*!
+     * Set the number of threads used to score the homography hypotheses. The estimated homography does not depend on this setting.
+     * \param nr_workers   number of threads, including the calling thread (1 by default).
+    */
+    void SetHypothesisScoringWorkers(int nr_workers) { m_hyp_scorer.SetNrWorkers(nr_workers); }
+
     /*!
      * Align an inspection image to an existing reference image, update the reference image if due and perform motion smoothing if enabled.
      * \param im                new inspection image
@@ -226,6 +238,11 @@ public:
     */
     int GetNrRefCorners() { return m_nr_corners_ref; }
 
+    /*!
+     * Returns the number of corners detected in the last inspection image.
+    */
+    int GetNrInsCorners() { return m_nr_corners_ins; }
+
     /*!
      * Returns the pointer to an array of indices that were found to be RANSAC inliers from the matched corner lists.
     */
@@ -236,6 +253,16 @@ public:
     */
     int  GetNrInliers() { return m_num_inlier_indices; }
 
+    /*!
+     * Returns the time in milliseconds spent in corner detection, feature matching and the robust homography estimate during the last call to AddFrame().
+    */
+    void GetLastStageTimes(double &detect_ms, double &match_ms, double &homography_ms) const
+    {
+        detect_ms = m_detect_ms;
+        match_ms = m_match_ms;
+        homography_ms = m_homography_ms;
+    }
+
     //std::vector<int>& GetInliers();
     //void Polish(std::vector<int> &inlier_indices);
 
@@ -319,9 +346,12 @@ protected:
     double m_H_dref_to_ref[9];
 
     // feature extraction and matching:
-    db_CornerDetector_u m_cd;
+    db_ParallelCornerDetector_u m_cd;
     db_Matcher_u        m_cm;
 
+    // scores the hypotheses of the robust homography estimate:
+    db_HypothesisScorer m_hyp_scorer;
+
     // length of corner arrays:
     unsigned long m_max_nr_corners;
 
@@ -343,6 +373,11 @@ protected:
     int * m_match_index_ins;
     int   m_nr_matches;
 
+    // time spent in each stage of the last AddFrame call, in milliseconds:
+    double m_detect_ms;
+    double m_match_ms;
+    double m_homography_ms;
+
     // pointer to internal copy of the reference image:
     unsigned char ** m_reference_image;
 
@@ -22,6 +22,7 @@
 #include <stdlib.h>
 #include "db_utilities_camera.h"
 #include "mosaic/ImageUtils.h"
+#include "mosaic_renderer/CpuRenderer.h"
 #include "mosaic_renderer/FrameBuffer.h"
 #include "mosaic_renderer/WarpRenderer.h"
 #include "mosaic_renderer/SurfaceTextureRenderer.h"
@@ -48,6 +49,11 @@ int gPreviewImageHeight[NR];
 // Semaphore to protect simultaneous read/writes from gPreviewImage
 sem_t gPreviewImage_semaphore;
 
+// Images the next transfer reads back into. They are swapped with
+// gPreviewImage once complete, so the readback does not hold the
+// semaphore and a reader never sees half a frame.
+unsigned char* gPreviewImageBack[NR];
+
 // Off-screen preview FBO width (large enough to store the entire
 // preview mosaic).
 int gPreviewFBOWidth;
@@ -74,8 +80,19 @@ FrameBuffer gBufferInput[NR];
 
 // Shader to convert RGBA textures into YVU textures for processing
 YVURenderer gYVURenderer[NR];
-// Off-screen FBOs to store the low-res and high-res YVU textures for processing
-FrameBuffer gBufferInputYVU[NR];
+// Off-screen FBOs to store the low-res and high-res YVU textures for
+// processing. transferGPUtoCPUAsync() converts each frame into the next
+// slot and reads it back during the following call, once the GPU has had a
+// frame's time to render it.
+FrameBuffer gBufferInputYVU[NUM_READBACK_SLOTS][NR];
+
+// Slot the next frame is converted into, and the slot waiting to be read
+// back (-1 if none) with the sequence number of its frame. Frames are
+// numbered from 0 when capture starts.
+int gReadbackSlot = 0;
+int gPendingSlot = -1;
+int gPendingSequence = -1;
+int gNextSequence = 0;
 
 // Shader to translate the flip-flop FBO - gBuffer[1-current] -> gBuffer[current]
 WarpRenderer gWarper1;
@@ -90,6 +107,17 @@ WarpRenderer gPreview;
 // Index of the gBuffer FBO gWarper1 is going to write into
 int gCurrentFBOIndex = 0;
 
+// CPU implementation of the renderers above. It replaces them when
+// gUseCpuRenderer is set, and runs next to them as a reference when
+// gCheckAgainstCpu is set.
+CpuRenderer gCpuRenderer;
+bool gUseCpuRenderer = false;
+bool gCheckAgainstCpu = false;
+
+// Scratch buffer for reading back the GL preview mosaic to compare it with
+// the one of gCpuRenderer
+unsigned char* gCheckImage = NULL;
+
 // 3x3 Matrices holding the transformation of this frame (gThisH1t) and of
 // the last frame (gLastH1t) w.r.t the first frame.
 double gThisH1t[9];
@@ -130,6 +158,12 @@ bool gPanViewfinder = true;
 GLfloat g_dAffinetransGL[16];
 double g_dAffinetrans[16];
 
+// The same transformation in preview FBO pixels (3x3, row-major), and the
+// viewfinder pan offset in pixels, for gCpuRenderer.
+double g_dAffinetransCPU[9];
+double g_dAffinetransPixels[9];
+double gPanOffsetCPU = 0.0f;
+
 // Affine transformation in GL 4x4 format (column-major) to translate the
 // preview FBO across the screen (viewfinder panning).
 GLfloat g_dAffinetransPanGL[16];
@@ -340,6 +374,11 @@ void UpdateWarpTransformation(float *trs)
     H[2] += gCenterOffsetX;
     H[5] += gCenterOffsetY;
 
+    for(int i = 0; i < 9; i++)
+    {
+        g_dAffinetransPixels[i] = H[i];
+    }
+
     // Hp = inv(Km) * H * Km
     // Km moves the coordinate system from openGL to image pixels so
     // that the alignment transform H can be applied to them.
@@ -395,8 +434,15 @@ void AllocateTextureMemory(int widthHR, int heightHR, int widthLR, int heightLR)
             gPreviewImageHeight[LR], 4);
     gPreviewImage[HR] = ImageUtils::allocateImage(gPreviewImageWidth[HR],
             gPreviewImageHeight[HR], 4);
+    gPreviewImageBack[LR] = ImageUtils::allocateImage(gPreviewImageWidth[LR],
+            gPreviewImageHeight[LR], 4);
+    gPreviewImageBack[HR] = ImageUtils::allocateImage(gPreviewImageWidth[HR],
+            gPreviewImageHeight[HR], 4);
     sem_post(&gPreviewImage_semaphore);
 
+    gPendingSlot = -1;
+    gNextSequence = 0;
+
     gPreviewFBOWidth = PREVIEW_FBO_WIDTH_SCALE * gPreviewImageWidth[HR];
     gPreviewFBOHeight = PREVIEW_FBO_HEIGHT_SCALE * gPreviewImageHeight[HR];
 
@@ -471,7 +517,12 @@ void FreeTextureMemory()
     sem_wait(&gPreviewImage_semaphore);
     ImageUtils::freeImage(gPreviewImage[LR]);
     ImageUtils::freeImage(gPreviewImage[HR]);
+    ImageUtils::freeImage(gPreviewImageBack[LR]);
+    ImageUtils::freeImage(gPreviewImageBack[HR]);
     sem_post(&gPreviewImage_semaphore);
+
+    ImageUtils::freeImage(gCheckImage);
+    gCheckImage = NULL;
 }
 
 extern "C"
@@ -487,12 +538,26 @@ extern "C"
             JNIEnv * env, jobject obj, jfloatArray stMatrix);
     JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_transferGPUtoCPU(
             JNIEnv * env, jobject obj);
+    JNIEXPORT jint JNICALL Java_com_android_camera_MosaicRenderer_transferGPUtoCPUAsync(
+            JNIEnv * env, jobject obj);
     JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_step(
             JNIEnv * env, jobject obj);
     JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_updateMatrix(
             JNIEnv * env, jobject obj);
     JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_setWarping(
             JNIEnv * env, jobject obj, jboolean flag);
+    JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_initCPU(
+            JNIEnv * env, jobject obj);
+    JNIEXPORT jint JNICALL Java_com_android_camera_MosaicRenderer_preprocessNV21(
+            JNIEnv * env, jobject obj, jbyteArray data);
+    JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_readPreview(
+            JNIEnv * env, jobject obj, jintArray argb);
+    JNIEXPORT jint JNICALL Java_com_android_camera_MosaicRenderer_getPreviewWidth(
+            JNIEnv * env, jobject obj);
+    JNIEXPORT jint JNICALL Java_com_android_camera_MosaicRenderer_getPreviewHeight(
+            JNIEnv * env, jobject obj);
+    JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_setReferenceCheck(
+            JNIEnv * env, jobject obj, jboolean flag);
 };
 
 
@@ -522,8 +587,11 @@ JNIEXPORT jint JNICALL Java_com_android_camera_MosaicRenderer_init(
     gBuffer[1].InitializeGLContext();
     gBufferInput[LR].InitializeGLContext();
     gBufferInput[HR].InitializeGLContext();
-    gBufferInputYVU[LR].InitializeGLContext();
-    gBufferInputYVU[HR].InitializeGLContext();
+    for (int slot = 0; slot < NUM_READBACK_SLOTS; slot++)
+    {
+        gBufferInputYVU[slot][LR].InitializeGLContext();
+        gBufferInputYVU[slot][HR].InitializeGLContext();
+    }
 
     glBindFramebuffer(GL_FRAMEBUFFER, 0);
 
@@ -578,6 +646,16 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_reset(
     gIsLandscapeOrientation = isLandscapeOrientation;
     calculateUILayoutScaling(width, height, gIsLandscapeOrientation);
 
+    if (gUseCpuRenderer || gCheckAgainstCpu)
+    {
+        gCpuRenderer.Init(gPreviewImageWidth[HR], gPreviewImageHeight[HR],
+                H2L_FACTOR, gPreviewFBOWidth, gPreviewFBOHeight);
+    }
+    if (gUseCpuRenderer)
+    {
+        return;
+    }
+
     gBuffer[0].Init(gPreviewFBOWidth, gPreviewFBOHeight, GL_RGBA);
     gBuffer[1].Init(gPreviewFBOWidth, gPreviewFBOHeight, GL_RGBA);
 
@@ -587,11 +665,16 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_reset(
     gBufferInput[HR].Init(gPreviewImageWidth[HR],
             gPreviewImageHeight[HR], GL_RGBA);
 
-    gBufferInputYVU[LR].Init(gPreviewImageWidth[LR],
-            gPreviewImageHeight[LR], GL_RGBA);
+    for (int slot = 0; slot < NUM_READBACK_SLOTS; slot++)
+    {
+        gBufferInputYVU[slot][LR].Init(gPreviewImageWidth[LR],
+                gPreviewImageHeight[LR], GL_RGBA);
 
-    gBufferInputYVU[HR].Init(gPreviewImageWidth[HR],
-            gPreviewImageHeight[HR], GL_RGBA);
+        gBufferInputYVU[slot][HR].Init(gPreviewImageWidth[HR],
+                gPreviewImageHeight[HR], GL_RGBA);
+    }
+    gReadbackSlot = 0;
+    gPendingSlot = -1;
 
     // bind the surface texture
     bindSurfaceTexture(gSurfaceTextureID[0]);
@@ -612,11 +695,11 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_reset(
     gSurfTexRenderer[HR].SetInputTextureName(gSurfaceTextureID[0]);
     gSurfTexRenderer[HR].SetInputTextureType(GL_TEXTURE_EXTERNAL_OES_ENUM);
 
-    gYVURenderer[LR].SetupGraphics(&gBufferInputYVU[LR]);
+    gYVURenderer[LR].SetupGraphics(&gBufferInputYVU[0][LR]);
     gYVURenderer[LR].SetInputTextureName(gBufferInput[LR].GetTextureName());
     gYVURenderer[LR].SetInputTextureType(GL_TEXTURE_2D);
 
-    gYVURenderer[HR].SetupGraphics(&gBufferInputYVU[HR]);
+    gYVURenderer[HR].SetupGraphics(&gBufferInputYVU[0][HR]);
     gYVURenderer[HR].SetInputTextureName(gBufferInput[HR].GetTextureName());
     gYVURenderer[HR].SetInputTextureType(GL_TEXTURE_2D);
 
@@ -667,63 +750,196 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_preprocess(
     gSurfTexRenderer[HR].DrawTexture(g_dAffinetransIdentGL);
 }
 
-#ifndef now_ms
-#include <time.h>
-static double
-now_ms(void)
-{
-    //struct timespec res;
-    struct timeval res;
-    //clock_gettime(CLOCK_REALTIME, &res);
-    gettimeofday(&res, NULL);
-    return 1000.0*res.tv_sec + (double)res.tv_usec/1e3;
-}
-#endif
-
-
-
-JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_transferGPUtoCPU(
-        JNIEnv * env, jobject obj)
+// Converts the frame rendered by preprocess() to YVU into slot.
+static void ConvertToYVU(int slot)
 {
-    double t0, t1, time_c;
-
+    gYVURenderer[LR].SetupGraphics(&gBufferInputYVU[slot][LR]);
     gYVURenderer[LR].DrawTexture();
+    gYVURenderer[HR].SetupGraphics(&gBufferInputYVU[slot][HR]);
     gYVURenderer[HR].DrawTexture();
+}
 
-    sem_wait(&gPreviewImage_semaphore);
+// Reads slot back into gPreviewImageBack.
+static void ReadBackYVU(int slot)
+{
     // Bind to the input LR FBO and read the Low-Res data from there...
-    glBindFramebuffer(GL_FRAMEBUFFER, gBufferInputYVU[LR].GetFrameBufferName());
-    t0 = now_ms();
+    glBindFramebuffer(GL_FRAMEBUFFER, gBufferInputYVU[slot][LR].GetFrameBufferName());
     glReadPixels(0,
                  0,
                  gBufferInput[LR].GetWidth(),
                  gBufferInput[LR].GetHeight(),
                  GL_RGBA,
                  GL_UNSIGNED_BYTE,
-                 gPreviewImage[LR]);
+                 gPreviewImageBack[LR]);
 
     checkGlError("glReadPixels LR (MosaicRenderer.transferGPUtoCPU())");
 
     // Bind to the input HR FBO and read the high-res data from there...
-    glBindFramebuffer(GL_FRAMEBUFFER, gBufferInputYVU[HR].GetFrameBufferName());
-    t0 = now_ms();
+    glBindFramebuffer(GL_FRAMEBUFFER, gBufferInputYVU[slot][HR].GetFrameBufferName());
     glReadPixels(0,
                  0,
                  gBufferInput[HR].GetWidth(),
                  gBufferInput[HR].GetHeight(),
                  GL_RGBA,
                  GL_UNSIGNED_BYTE,
-                 gPreviewImage[HR]);
+                 gPreviewImageBack[HR]);
 
     checkGlError("glReadPixels HR (MosaicRenderer.transferGPUtoCPU())");
+}
 
+// Makes the frame in gPreviewImageBack the one read by the mosaicing
+// library.
+static void PublishPreviewImage()
+{
+    sem_wait(&gPreviewImage_semaphore);
+    for (int mID = 0; mID < NR; mID++)
+    {
+        unsigned char* image = gPreviewImage[mID];
+        gPreviewImage[mID] = gPreviewImageBack[mID];
+        gPreviewImageBack[mID] = image;
+    }
     sem_post(&gPreviewImage_semaphore);
 }
 
+JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_transferGPUtoCPU(
+        JNIEnv * env, jobject obj)
+{
+    // A frame still waiting for the asynchronous transfer is superseded
+    gPendingSlot = -1;
+
+    ConvertToYVU(gReadbackSlot);
+    ReadBackYVU(gReadbackSlot);
+    PublishPreviewImage();
+    gNextSequence++;
+}
+
+JNIEXPORT jint JNICALL Java_com_android_camera_MosaicRenderer_transferGPUtoCPUAsync(
+        JNIEnv * env, jobject obj)
+{
+    // The reference check compares against the frame just rendered
+    if (gCheckAgainstCpu)
+    {
+        Java_com_android_camera_MosaicRenderer_transferGPUtoCPU(env, obj);
+        return gNextSequence - 1;
+    }
+
+    // Read back the frame converted by the last call before queueing the
+    // conversion of this one, so the readback only waits for work the GPU
+    // has had a frame to finish
+    int published = -1;
+    if (gPendingSlot >= 0)
+    {
+        ReadBackYVU(gPendingSlot);
+        PublishPreviewImage();
+        published = gPendingSequence;
+    }
+
+    ConvertToYVU(gReadbackSlot);
+    gPendingSlot = gReadbackSlot;
+    gPendingSequence = gNextSequence++;
+    gReadbackSlot = (gReadbackSlot + 1) % NUM_READBACK_SLOTS;
+
+    // Start the conversion now rather than at the next swap
+    glFlush();
+
+    return published;
+}
+
+// Runs the warp step of gCpuRenderer on the frame read back from the GL
+// path and logs how far the GL preview mosaic is from it.
+//
+// The frame just pasted is copied as is by both paths, but the CPU one gets
+// it back from the YVU readback, which is within
+// CpuRenderer::YVUA_ROUND_TRIP_ERROR levels of the GL frame unless its YVU
+// values were clamped. Larger differences there are counted as errors.
+// The rest of the mosaic is resampled on every frame by both paths, each
+// with its own rounding, so its differences add up over the sweep and are
+// only reported.
+static void CheckAgainstCpu()
+{
+    int width = gPreviewFBOWidth;
+    int height = gPreviewFBOHeight;
+    int frameWidth = gPreviewImageWidth[HR];
+    int frameHeight = gPreviewImageHeight[HR];
+    int frameX = (int) gCenterOffsetX;
+    int frameY = (int) gCenterOffsetY;
+
+    if (gCheckImage == NULL)
+    {
+        gCheckImage = ImageUtils::allocateImage(width, height, 4);
+    }
+
+    // Held until the end, as the frame is also needed to skip clamped pixels
+    sem_wait(&gPreviewImage_semaphore);
+    const unsigned char* frame = gPreviewImage[HR];
+    gCpuRenderer.SetFrameYVUA(frame);
+    gCpuRenderer.Warp(g_dAffinetransCPU, frameX, frameY);
+
+    // step() has already flipped gCurrentFBOIndex
+    glBindFramebuffer(GL_FRAMEBUFFER,
+            gBuffer[1 - gCurrentFBOIndex].GetFrameBufferName());
+    glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, gCheckImage);
+    checkGlError("glReadPixels (MosaicRenderer.step())");
+
+    const unsigned char* cpu = gCpuRenderer.GetMosaic();
+    long long sum = 0;
+    int maxDiff = 0;
+    int frameMaxDiff = 0;
+    int frameErrors = 0;
+    for (int y = 0; y < height; y++)
+    {
+        for (int x = 0; x < width; x++)
+        {
+            int i = (y * width + x) * 4;
+            int d = 0;
+            for (int c = 0; c < 3; c++)
+            {
+                int dc = abs(gCheckImage[i + c] - cpu[i + c]);
+                sum += dc;
+                if (dc > d) d = dc;
+            }
+            if (d > maxDiff) maxDiff = d;
+
+            int fx = x - frameX;
+            int fy = y - frameY;
+            if (fx < 0 || fx >= frameWidth || fy < 0 || fy >= frameHeight)
+                continue;
+            const unsigned char* yvu = frame + (fy * frameWidth + fx) * 4;
+            if (yvu[0] == 0 || yvu[0] == 255 || yvu[1] == 0 || yvu[1] == 255 ||
+                    yvu[2] == 0 || yvu[2] == 255)
+                continue;
+            if (d > frameMaxDiff) frameMaxDiff = d;
+            if (d > CpuRenderer::YVUA_ROUND_TRIP_ERROR) frameErrors++;
+        }
+    }
+    sem_post(&gPreviewImage_semaphore);
+
+    LOGI("GL preview mosaic vs CPU: mean difference %.3f, max %d, "
+            "max %d in the frame", (double) sum / (width * height * 3),
+            maxDiff, frameMaxDiff);
+    if (frameErrors > 0)
+    {
+        LOGE("GL preview mosaic vs CPU: %d frame pixels differ by more than %d",
+                frameErrors, CpuRenderer::YVUA_ROUND_TRIP_ERROR);
+    }
+}
+
 JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_step(
         JNIEnv * env, jobject obj)
 {
-    if(!gWarpImage) // ViewFinder
+    if (gUseCpuRenderer)
+    {
+        if (!gWarpImage) // ViewFinder
+        {
+            gCpuRenderer.Paste((int) gCenterOffsetX, (int) gCenterOffsetY);
+        }
+        else
+        {
+            gCpuRenderer.Warp(g_dAffinetransCPU, (int) gCenterOffsetX,
+                    (int) gCenterOffsetY);
+        }
+    }
+    else if(!gWarpImage) // ViewFinder
     {
         gWarper2.SetupGraphics(&gBuffer[gCurrentFBOIndex]);
         gPreview.SetInputTextureName(gBuffer[gCurrentFBOIndex].GetTextureName());
@@ -751,6 +967,11 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_step(
         gPreview.DrawTexture(g_dAffinetransPanGL);
 
         gCurrentFBOIndex = 1 - gCurrentFBOIndex;
+
+        if (gCheckAgainstCpu)
+        {
+            CheckAgainstCpu();
+        }
     }
 }
 
@@ -760,19 +981,29 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_setWarping(
     // TODO: Review this logic
     if(gWarpImage != (bool) flag) //switching from viewfinder to capture or vice-versa
     {
-        // Clear gBuffer[0]
-        gWarper1.SetupGraphics(&gBuffer[0]);
-        gWarper1.Clear(0.0, 0.0, 0.0, 1.0);
-        // Clear gBuffer[1]
-        gWarper1.SetupGraphics(&gBuffer[1]);
-        gWarper1.Clear(0.0, 0.0, 0.0, 1.0);
-        // Clear the screen to black.
-        gPreview.Clear(0.0, 0.0, 0.0, 1.0);
+        if (gUseCpuRenderer || gCheckAgainstCpu)
+        {
+            gCpuRenderer.Clear();
+        }
+        if (!gUseCpuRenderer)
+        {
+            // Clear gBuffer[0]
+            gWarper1.SetupGraphics(&gBuffer[0]);
+            gWarper1.Clear(0.0, 0.0, 0.0, 1.0);
+            // Clear gBuffer[1]
+            gWarper1.SetupGraphics(&gBuffer[1]);
+            gWarper1.Clear(0.0, 0.0, 0.0, 1.0);
+            // Clear the screen to black.
+            gPreview.Clear(0.0, 0.0, 0.0, 1.0);
+        }
 
         gLastTx = 0.0f;
         gPanOffset = 0.0f;
         gPanViewfinder = true;
 
+        gPendingSlot = -1;
+        gNextSequence = 0;
+
         db_Identity3x3(gThisH1t);
         db_Identity3x3(gLastH1t);
     }
@@ -789,4 +1020,65 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_updateMatrix(
         g_dAffinetransPanGL[i] = g_dAffinetransPan[i];
         g_dTranslationToFBOCenterGL[i] = g_dTranslationToFBOCenter[i];
     }
+
+    for(int i=0; i<9; i++)
+    {
+        g_dAffinetransCPU[i] = g_dAffinetransPixels[i];
+    }
+    gPanOffsetCPU = gPanOffset;
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_initCPU(
+        JNIEnv * env, jobject obj)
+{
+    gUseCpuRenderer = true;
+}
+
+JNIEXPORT jint JNICALL Java_com_android_camera_MosaicRenderer_preprocessNV21(
+        JNIEnv * env, jobject obj, jbyteArray data)
+{
+    jbyte *pixels = env->GetByteArrayElements(data, 0);
+
+    gCpuRenderer.PreprocessNV21((unsigned char*) pixels, gPreviewImageBack[HR],
+            gPreviewImageBack[LR]);
+    PublishPreviewImage();
+
+    env->ReleaseByteArrayElements(data, pixels, JNI_ABORT);
+
+    return gNextSequence++;
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_readPreview(
+        JNIEnv * env, jobject obj, jintArray argb)
+{
+    if (env->GetArrayLength(argb) < gPreviewFBOWidth * gPreviewFBOHeight)
+    {
+        LOGE("readPreview needs %d pixels", gPreviewFBOWidth * gPreviewFBOHeight);
+        return;
+    }
+
+    // The viewfinder does not pan
+    double panOffset = gWarpImage ? gPanOffsetCPU : 0.0;
+
+    jint *pixels = env->GetIntArrayElements(argb, 0);
+    gCpuRenderer.ReadPreview(panOffset, (int*) pixels);
+    env->ReleaseIntArrayElements(argb, pixels, 0);
+}
+
+JNIEXPORT jint JNICALL Java_com_android_camera_MosaicRenderer_getPreviewWidth(
+        JNIEnv * env, jobject obj)
+{
+    return gPreviewFBOWidth;
+}
+
+JNIEXPORT jint JNICALL Java_com_android_camera_MosaicRenderer_getPreviewHeight(
+        JNIEnv * env, jobject obj)
+{
+    return gPreviewFBOHeight;
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_setReferenceCheck(
+        JNIEnv * env, jobject obj, jboolean flag)
+{
+    gCheckAgainstCpu = (bool) flag;
 }
@@ -23,6 +23,9 @@ const int NR = 2; // Number of resolution modes
 
 const int H2L_FACTOR = 4; // Can be 2
 
+// Number of YVU FBOs cycled through by the asynchronous GPU to CPU transfer
+const int NUM_READBACK_SLOTS = 2;
+
 extern "C" void AllocateTextureMemory(int widthHR, int heightHR,
         int widthLR, int heightLR);
 extern "C" void FreeTextureMemory();
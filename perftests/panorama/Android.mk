@@ -18,3 +18,98 @@ LOCAL_MODULE_TAGS := tests
 LOCAL_MODULE := panorama_bench
 
 include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := pyramid_test.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := panorama_pyramid_test
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := matching_bench.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := panorama_matching_bench
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := conversion_test.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := panorama_conversion_test
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := replay.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := panorama_replay
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := renderer_test.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := panorama_renderer_test
+
+include $(BUILD_EXECUTABLE)
@@ -14,22 +14,86 @@
  * limitations under the License.
  */
 
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
 #include <time.h>
+#include <getopt.h>
 #include <sys/types.h>
 #include <sys/stat.h>
 #include <unistd.h>
 
 #include "mosaic/Mosaic.h"
 #include "mosaic/ImageUtils.h"
+#include "mosaic/Pyramid.h"
 
 #define MAX_FRAMES 200
 #define KERNEL_ITERATIONS 10
+#define PYRAMID_ITERATIONS 200
+#define PYRAMID_LEVELS 4
+
+// Default regression gates
+#define DEFAULT_MAX_REGRESSION_PERCENT 10.0
+#define DEFAULT_MIN_PSNR 40.0
+// Slack added to the baseline time of every stage, so that stages that take
+// a fraction of a millisecond do not fail on timer noise.
+#define REGRESSION_SLACK_MS 0.1
+// Largest difference in mosaic width or height accepted against the golden
+// image. The crop rectangle may shift by a few pixels between compilers.
+#define MAX_GOLDEN_SIZE_DIFFERENCE 8
 
 const int blendingType = Blend::BLEND_TYPE_HORZ;
 const int stripType = Blend::STRIP_TYPE_WIDE;
 
+ImageType rgbFrames[MAX_FRAMES];
 ImageType yvuFrames[MAX_FRAMES];
 
+// Timed stages. The per frame stages get one sample per frame and iteration,
+// the others one sample per iteration.
+enum Stage {
+    STAGE_YUV,       // RGB to planar YVU conversion of one frame
+    STAGE_DETECT,    // Corner detection of one frame
+    STAGE_MATCH,     // Corner matching of one frame
+    STAGE_RANSAC,    // Robust homography estimate of one frame
+    STAGE_ALIGN,     // Complete alignment of one frame
+    STAGE_DELAUNAY,  // Triangulation of the frame centers
+    STAGE_PYRAMID,   // Building and collapsing the Laplacian pyramids
+    STAGE_BLEND,     // Seam masks and merging of the frame pyramids
+    STAGE_CROP,      // Cropping the final mosaic
+    STAGE_STITCH,    // All of createMosaic
+    STAGE_TOTAL,     // Alignment of all frames plus stitching
+    NUM_STAGES
+};
+
+static const char *stageNames[NUM_STAGES] = {
+    "yuv", "detect", "match", "ransac", "align", "delaunay", "pyramid",
+    "blend", "crop", "stitch", "total"
+};
+
+// Growable array of timing samples in milliseconds
+struct Samples {
+    double *values;
+    int count, capacity;
+};
+
+static Samples samples[NUM_STAGES];
+
+static void addSample(int stage, double ms)
+{
+    Samples &s = samples[stage];
+    if (s.count == s.capacity) {
+        s.capacity = s.capacity ? 2 * s.capacity : 256;
+        s.values = (double *) realloc(s.values, s.capacity * sizeof(double));
+    }
+    s.values[s.count++] = ms;
+}
+
+struct StageStats {
+    int count;
+    double mean, p50, p95;
+};
+
 int loadImages(const char* basename, int &width, int &height)
 {
     char filename[512];
@@ -39,15 +103,237 @@ int loadImages(const char* basename, int &width, int &height)
     for (i = 0; i < MAX_FRAMES; i++) {
         sprintf(filename, "%s_%03d.ppm", basename, i + 1);
         if (stat(filename, &filestat) != 0) break;
-        ImageType rgbFrame = ImageUtils::readBinaryPPM(filename, width, height);
+        rgbFrames[i] = ImageUtils::readBinaryPPM(filename, width, height);
         yvuFrames[i] = ImageUtils::allocateImage(width, height,
                                 ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
-        ImageUtils::rgb2yvu(yvuFrames[i], rgbFrame, width, height);
-        ImageUtils::freeImage(rgbFrame);
     }
     return i;
 }
 
+static float elapsedSeconds(struct timespec &start, struct timespec &end)
+{
+    return (end.tv_sec - start.tv_sec) + (end.tv_nsec - start.tv_nsec)/1e9;
+}
+
+static double nowMs()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return 1000.0 * t.tv_sec + t.tv_nsec / 1e6;
+}
+
+static int compareDoubles(const void *a, const void *b)
+{
+    double x = *(const double *) a;
+    double y = *(const double *) b;
+    return (x > y) - (x < y);
+}
+
+// Nearest-rank percentile of count sorted values
+static double percentile(const double *sorted, int count, int pct)
+{
+    int rank = (int) ceil(pct / 100.0 * count);
+    return sorted[(rank < 1 ? 1 : rank) - 1];
+}
+
+static StageStats computeStats(int stage)
+{
+    StageStats stats;
+    double *sorted = samples[stage].values;
+
+    stats.count = samples[stage].count;
+    stats.mean = stats.p50 = stats.p95 = 0.0;
+    if (stats.count == 0) return stats;
+
+    // The samples are not needed in their original order any more
+    qsort(sorted, stats.count, sizeof(double), compareDoubles);
+
+    double sum = 0.0;
+    for (int i = 0; i < stats.count; i++) sum += sorted[i];
+    stats.mean = sum / stats.count;
+    stats.p50 = percentile(sorted, stats.count, 50);
+    stats.p95 = percentile(sorted, stats.count, 95);
+    return stats;
+}
+
+static bool writeCsv(const char *filename, StageStats *stats)
+{
+    FILE *fp = fopen(filename, "w");
+    if (fp == NULL) return false;
+    fprintf(fp, "stage,samples,mean_ms,p50_ms,p95_ms\n");
+    for (int s = 0; s < NUM_STAGES; s++) {
+        fprintf(fp, "%s,%d,%.4f,%.4f,%.4f\n", stageNames[s], stats[s].count,
+                stats[s].mean, stats[s].p50, stats[s].p95);
+    }
+    fclose(fp);
+    return true;
+}
+
+static bool writeJson(const char *filename, StageStats *stats, int frames,
+        int iterations, int workers, int mosaicWidth, int mosaicHeight,
+        double psnr)
+{
+    FILE *fp = fopen(filename, "w");
+    if (fp == NULL) return false;
+    fprintf(fp, "{\n  \"frames\": %d,\n  \"iterations\": %d,\n"
+            "  \"alignment_threads\": %d,\n"
+            "  \"mosaic_width\": %d,\n  \"mosaic_height\": %d,\n",
+            frames, iterations, workers, mosaicWidth, mosaicHeight);
+    if (psnr >= 0) fprintf(fp, "  \"psnr_db\": %.2f,\n", psnr);
+    fprintf(fp, "  \"stages\": {\n");
+    for (int s = 0; s < NUM_STAGES; s++) {
+        fprintf(fp, "    \"%s\": { \"samples\": %d, \"mean_ms\": %.4f, "
+                "\"p50_ms\": %.4f, \"p95_ms\": %.4f }%s\n", stageNames[s],
+                stats[s].count, stats[s].mean, stats[s].p50, stats[s].p95,
+                s < NUM_STAGES - 1 ? "," : "");
+    }
+    fprintf(fp, "  }\n}\n");
+    fclose(fp);
+    return true;
+}
+
+// Compares the median time of each stage to a CSV file written by an earlier
+// run with --csv. Returns the number of stages that got slower than allowed.
+static int checkBaseline(const char *filename, StageStats *stats,
+        double maxRegressionPercent)
+{
+    FILE *fp = fopen(filename, "r");
+    if (fp == NULL) {
+        printf("Could not read baseline %s\n", filename);
+        return 1;
+    }
+
+    int failures = 0;
+    char line[256];
+    while (fgets(line, sizeof(line), fp) != NULL) {
+        char name[32];
+        int count;
+        double mean, p50, p95;
+        if (sscanf(line, "%31[^,],%d,%lf,%lf,%lf", name, &count, &mean,
+                   &p50, &p95) != 5) {
+            continue;  // header
+        }
+        for (int s = 0; s < NUM_STAGES; s++) {
+            if (strcmp(name, stageNames[s]) != 0 || stats[s].count == 0) {
+                continue;
+            }
+            double limit = p50 * (1.0 + maxRegressionPercent / 100.0)
+                    + REGRESSION_SLACK_MS;
+            if (stats[s].p50 > limit) {
+                printf("REGRESSION %s: p50 %.2f ms, baseline %.2f ms "
+                       "(limit %.2f ms)\n", name, stats[s].p50, p50, limit);
+                failures++;
+            }
+        }
+    }
+    fclose(fp);
+    return failures;
+}
+
+// PSNR of an RGB image against the golden image, over the region they have
+// in common starting at the top left corner. Returns -1 if the golden image
+// cannot be read or the sizes are too different to compare.
+static double psnrAgainstGolden(const char *filename, ImageType rgb,
+        int width, int height)
+{
+    int goldenWidth, goldenHeight;
+    ImageType golden = ImageUtils::readBinaryPPM(filename, goldenWidth,
+                                                 goldenHeight);
+    if (golden == NULL) {
+        printf("Could not read golden image %s\n", filename);
+        return -1;
+    }
+    if (abs(goldenWidth - width) > MAX_GOLDEN_SIZE_DIFFERENCE ||
+            abs(goldenHeight - height) > MAX_GOLDEN_SIZE_DIFFERENCE) {
+        printf("Mosaic is %dx%d, golden image is %dx%d\n", width, height,
+               goldenWidth, goldenHeight);
+        ImageUtils::freeImage(golden);
+        return -1;
+    }
+
+    int w = width < goldenWidth ? width : goldenWidth;
+    int h = height < goldenHeight ? height : goldenHeight;
+    double sse = 0.0;
+    for (int j = 0; j < h; j++) {
+        ImageType a = rgb + j * width * 3;
+        ImageType b = golden + j * goldenWidth * 3;
+        for (int i = 0; i < w * 3; i++) {
+            double d = (double) a[i] - b[i];
+            sse += d * d;
+        }
+    }
+    ImageUtils::freeImage(golden);
+
+    if (sse == 0.0) return 99.0;
+    double mse = sse / ((double) w * h * 3);
+    return 10.0 * log10(255.0 * 255.0 / mse);
+}
+
+// Times the pyramid reduce/expand kernels on a pyramid of the given size,
+// both the vectorized version used by the blender and the scalar reference.
+void benchmarkPyramidKernels(int width, int height)
+{
+    struct timespec t1, t2;
+
+    PyramidShort *pyr = PyramidShort::allocatePyramidPacked(PYRAMID_LEVELS,
+            (real) width, (real) height, BORDER);
+    PyramidShort *scr = PyramidShort::allocateImage(pyr[1].width,
+            pyr[0].height, BORDER);
+    scr->width = pyr[1].width;
+    scr->height = pyr[0].height;
+
+    for (int j = -BORDER; j < height + BORDER; j++) {
+        for (int i = -BORDER; i < width + BORDER; i++) {
+            pyr->ptr[j][i] = (short) ((i * 7 + j * 13) & 0xff);
+        }
+    }
+
+    // Megapixels of level 0 filtered per second
+    float mpix = (float) width * height * PYRAMID_ITERATIONS / 1e6;
+
+    const char *names[] = { "BorderReduceOdd", "BorderExpandOdd" };
+    for (int kernel = 0; kernel < 2; kernel++) {
+        float seconds[2];
+        for (int scalar = 0; scalar < 2; scalar++) {
+            clock_gettime(CLOCK_MONOTONIC, &t1);
+            for (int n = 0; n < PYRAMID_ITERATIONS; n++) {
+                if (kernel == 0 && scalar) {
+                    PyramidShort::BorderReduceOddScalar(pyr, pyr + 1, scr);
+                } else if (kernel == 0) {
+                    PyramidShort::BorderReduceOdd(pyr, pyr + 1, scr);
+                } else if (scalar) {
+                    PyramidShort::BorderExpandOddScalar(pyr + 1, pyr, scr, 1);
+                } else {
+                    PyramidShort::BorderExpandOdd(pyr + 1, pyr, scr, 1);
+                }
+            }
+            clock_gettime(CLOCK_MONOTONIC, &t2);
+            seconds[scalar] = elapsedSeconds(t1, t2);
+        }
+        printf("%s %dx%d: %.1f Mpixel/s (scalar %.1f Mpixel/s, %.2fx)\n",
+               names[kernel], width, height, mpix / seconds[0],
+               mpix / seconds[1], seconds[1] / seconds[0]);
+    }
+
+    PyramidShort::freeImage(scr);
+    PyramidShort::freeImage(pyr);
+}
+
+static void usage(const char *name)
+{
+    printf("Usage: %s [options] input_basename output_filename "
+           "[alignment_threads]\n"
+           "  -n, --iterations N      number of mosaics to create (default %d)\n"
+           "  --csv FILE              write the stage timings as CSV\n"
+           "  --json FILE             write the stage timings as JSON\n"
+           "  --baseline FILE         fail if a stage is slower than in this CSV\n"
+           "  --max-regression PCT    allowed slowdown per stage (default %.0f%%)\n"
+           "  --golden FILE           fail if the mosaic drifts from this image\n"
+           "  --min-psnr DB           smallest accepted PSNR (default %.0f dB)\n",
+           name, KERNEL_ITERATIONS, DEFAULT_MAX_REGRESSION_PERCENT,
+           DEFAULT_MIN_PSNR);
+}
+
 int main(int argc, char **argv)
 {
     struct timespec t1, t2, t3;
@@ -58,12 +344,52 @@ int main(int argc, char **argv)
     const char *basename;
     const char *filename;
 
-    if (argc != 3) {
-        printf("Usage: %s input_dir output_filename\n", argv[0]);
+    int alignmentWorkers = 1;
+    int iterations = KERNEL_ITERATIONS;
+    const char *csvFilename = NULL;
+    const char *jsonFilename = NULL;
+    const char *baselineFilename = NULL;
+    const char *goldenFilename = NULL;
+    double maxRegressionPercent = DEFAULT_MAX_REGRESSION_PERCENT;
+    double minPsnr = DEFAULT_MIN_PSNR;
+
+    enum { OPT_CSV = 256, OPT_JSON, OPT_BASELINE, OPT_MAX_REGRESSION,
+           OPT_GOLDEN, OPT_MIN_PSNR };
+    static const struct option options[] = {
+        { "iterations", required_argument, NULL, 'n' },
+        { "csv", required_argument, NULL, OPT_CSV },
+        { "json", required_argument, NULL, OPT_JSON },
+        { "baseline", required_argument, NULL, OPT_BASELINE },
+        { "max-regression", required_argument, NULL, OPT_MAX_REGRESSION },
+        { "golden", required_argument, NULL, OPT_GOLDEN },
+        { "min-psnr", required_argument, NULL, OPT_MIN_PSNR },
+        { NULL, 0, NULL, 0 }
+    };
+
+    int opt;
+    while ((opt = getopt_long(argc, argv, "n:", options, NULL)) != -1) {
+        switch (opt) {
+            case 'n': iterations = atoi(optarg) > 0 ? atoi(optarg) : 1; break;
+            case OPT_CSV: csvFilename = optarg; break;
+            case OPT_JSON: jsonFilename = optarg; break;
+            case OPT_BASELINE: baselineFilename = optarg; break;
+            case OPT_MAX_REGRESSION: maxRegressionPercent = atof(optarg); break;
+            case OPT_GOLDEN: goldenFilename = optarg; break;
+            case OPT_MIN_PSNR: minPsnr = atof(optarg); break;
+            default:
+                usage(argv[0]);
+                return 1;
+        }
+    }
+
+    int positional = argc - optind;
+    if (positional != 2 && positional != 3) {
+        usage(argv[0]);
         return 0;
     } else {
-        basename = argv[1];
-        filename = argv[2];
+        basename = argv[optind];
+        filename = argv[optind + 1];
+        if (positional == 3) alignmentWorkers = atoi(argv[optind + 2]);
     }
 
     // Load the images outside the computational kernel
@@ -77,16 +403,35 @@ int main(int argc, char **argv)
 
     printf("%d frames loaded\n", totalFrames);
 
+    int mosaicWidth = 0, mosaicHeight = 0;
+    double psnr = -1;
 
     // Interesting stuff is here
-    for (int iteration = 0; iteration < KERNEL_ITERATIONS; iteration++)  {
+    for (int iteration = 0; iteration < iterations; iteration++)  {
+        for (int i = 0; i < totalFrames; i++) {
+            double t0 = nowMs();
+            ImageUtils::rgb2yvu(yvuFrames[i], rgbFrames[i], width, height);
+            addSample(STAGE_YUV, nowMs() - t0);
+        }
+
         Mosaic mosaic;
 
         mosaic.initialize(blendingType, stripType, width, height, -1, false, 0);
+        mosaic.getAligner()->setAlignmentWorkers(alignmentWorkers);
 
         clock_gettime(CLOCK_MONOTONIC, &t1);
         for (int i = 0; i < totalFrames; i++) {
             mosaic.addFrame(yvuFrames[i]);
+
+            double detect, match, ransac;
+            mosaic.getAligner()->getLastStageTimes(detect, match, ransac);
+            addSample(STAGE_DETECT, detect);
+            // The first frame only becomes the reference
+            if (i > 0) {
+                addSample(STAGE_MATCH, match);
+                addSample(STAGE_RANSAC, ransac);
+            }
+            addSample(STAGE_ALIGN, mosaic.getAligner()->getLastAlignTime());
         }
         clock_gettime(CLOCK_MONOTONIC, &t2);
 
@@ -95,7 +440,6 @@ int main(int argc, char **argv)
 
         mosaic.createMosaic(progress, cancelComputation);
 
-        int mosaicWidth, mosaicHeight;
         ImageType resultYVU = mosaic.getMosaic(mosaicWidth, mosaicHeight);
 
         ImageType imageRGB = ImageUtils::allocateImage(
@@ -112,10 +456,19 @@ int main(int argc, char **argv)
 
         totalElapsedTime += elapsedTime;
 
+        const BlendTimings &blendTimings = mosaic.getBlender()->getTimings();
+        addSample(STAGE_DELAUNAY, blendTimings.delaunay);
+        addSample(STAGE_PYRAMID, blendTimings.pyramid);
+        addSample(STAGE_BLEND, blendTimings.blend);
+        addSample(STAGE_CROP, blendTimings.crop);
+        addSample(STAGE_STITCH, stitchImageTime * 1000.0);
+        addSample(STAGE_TOTAL, elapsedTime * 1000.0);
+
         printf("Iteration %d: %dx%d moasic created: "
-               "%.2f seconds (%.2f + %.2f)\n",
+               "%.2f seconds (%.2f + %.2f), %.2f ms per frame alignment\n",
                iteration, mosaicWidth, mosaicHeight,
-               elapsedTime, addImageTime, stitchImageTime);
+               elapsedTime, addImageTime, stitchImageTime,
+               mosaic.getAligner()->getAverageAlignTime());
 
         // Write the output only once for correctness check
         if (iteration == 0) {
@@ -123,9 +476,58 @@ int main(int argc, char **argv)
                                 mosaicHeight);
             ImageUtils::writeBinaryPPM(imageRGB, filename, mosaicWidth,
                                        mosaicHeight);
+            if (goldenFilename != NULL) {
+                psnr = psnrAgainstGolden(goldenFilename, imageRGB,
+                                         mosaicWidth, mosaicHeight);
+            }
         }
+        ImageUtils::freeImage(imageRGB);
+        ImageUtils::freeImage(resultYVU);
     }
     printf("Total elapsed time: %.2f seconds\n", totalElapsedTime);
 
+    StageStats stats[NUM_STAGES];
+    printf("\n%-10s %8s %10s %10s %10s\n", "stage", "samples", "mean ms",
+           "p50 ms", "p95 ms");
+    for (int s = 0; s < NUM_STAGES; s++) {
+        stats[s] = computeStats(s);
+        printf("%-10s %8d %10.2f %10.2f %10.2f\n", stageNames[s],
+               stats[s].count, stats[s].mean, stats[s].p50, stats[s].p95);
+    }
+    printf("\n");
+
+    benchmarkPyramidKernels(width, height);
+
+    if (csvFilename != NULL && !writeCsv(csvFilename, stats)) {
+        printf("Could not write %s\n", csvFilename);
+        return 1;
+    }
+    if (jsonFilename != NULL && !writeJson(jsonFilename, stats, totalFrames,
+            iterations, alignmentWorkers, mosaicWidth, mosaicHeight, psnr)) {
+        printf("Could not write %s\n", jsonFilename);
+        return 1;
+    }
+
+    int failures = 0;
+    if (baselineFilename != NULL) {
+        failures += checkBaseline(baselineFilename, stats,
+                                  maxRegressionPercent);
+    }
+    if (goldenFilename != NULL) {
+        if (psnr < 0) {
+            failures++;
+        } else {
+            printf("PSNR against golden image: %.2f dB\n", psnr);
+            if (psnr < minPsnr) {
+                printf("DRIFT: PSNR below %.2f dB\n", minPsnr);
+                failures++;
+            }
+        }
+    }
+
+    if (failures > 0) {
+        printf("FAILED: %d regression check(s)\n", failures);
+        return 1;
+    }
     return 0;
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Checks that the fused NV21 conversion gives the same full and low
+// resolution frames as nv21toyvu() followed by decimateyvu(), and times
+// both for a preview sized frame. Also checks that yvu2nv21(), used by the
+// frame log, gives back the NV21 frame that nv21toyvu() converted.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "mosaic/ImageUtils.h"
+
+#define TIMING_ITERATIONS 200
+
+static int sizes[][2] = {
+    { 176, 144 }, { 320, 240 }, { 640, 480 }, { 720, 480 }, { 1280, 720 },
+    { 1920, 1080 }, { 8, 8 }, { 40, 24 },
+};
+
+static int factors[] = { 4, 2 };
+
+static float elapsedSeconds(struct timespec &start, struct timespec &end)
+{
+    return (end.tv_sec - start.tv_sec) + (end.tv_nsec - start.tv_nsec)/1e9;
+}
+
+static ImageType randomNV21(int width, int height)
+{
+    int bytes = width * height * 3 / 2;
+    ImageType nv21 = ImageUtils::allocateImage(width, height, 2);
+    for (int i = 0; i < bytes; i++) {
+        nv21[i] = (unsigned char) (rand() & 0xff);
+    }
+    return nv21;
+}
+
+static bool testConversion(int width, int height, int factor)
+{
+    int lowWidth = width / factor;
+    int lowHeight = height / factor;
+    int bytes = width * height * ImageUtils::IMAGE_TYPE_NUM_CHANNELS;
+    int lowBytes = lowWidth * lowHeight * ImageUtils::IMAGE_TYPE_NUM_CHANNELS;
+
+    ImageType nv21 = randomNV21(width, height);
+    ImageType ref = ImageUtils::allocateImage(width, height,
+            ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    ImageType refLow = ImageUtils::allocateImage(lowWidth, lowHeight,
+            ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    ImageType fused = ImageUtils::allocateImage(width, height,
+            ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    ImageType fusedLow = ImageUtils::allocateImage(lowWidth, lowHeight,
+            ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+
+    ImageUtils::nv21toyvu(ref, nv21, width, height);
+    ImageUtils::decimateyvu(refLow, ref, width, height, factor);
+    ImageUtils::nv21toyvuDecimated(fused, fusedLow, nv21, width, height, factor);
+
+    bool ok = memcmp(ref, fused, bytes) == 0 &&
+            memcmp(refLow, fusedLow, lowBytes) == 0;
+
+    ImageUtils::freeImage(fusedLow);
+    ImageUtils::freeImage(fused);
+    ImageUtils::freeImage(refLow);
+    ImageUtils::freeImage(ref);
+    ImageUtils::freeImage(nv21);
+    return ok;
+}
+
+static bool testRoundTrip(int width, int height)
+{
+    ImageType nv21 = randomNV21(width, height);
+    ImageType yvu = ImageUtils::allocateImage(width, height,
+            ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    ImageType back = ImageUtils::allocateImage(width, height, 2);
+
+    ImageUtils::nv21toyvu(yvu, nv21, width, height);
+    ImageUtils::yvu2nv21(back, yvu, width, height);
+    bool ok = memcmp(nv21, back, width * height * 3 / 2) == 0;
+
+    ImageUtils::freeImage(back);
+    ImageUtils::freeImage(yvu);
+    ImageUtils::freeImage(nv21);
+    return ok;
+}
+
+static void timeConversion(int width, int height, int factor)
+{
+    struct timespec t1, t2, t3;
+    int lowWidth = width / factor;
+    int lowHeight = height / factor;
+
+    ImageType nv21 = randomNV21(width, height);
+    ImageType out = ImageUtils::allocateImage(width, height,
+            ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    ImageType outLow = ImageUtils::allocateImage(lowWidth, lowHeight,
+            ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+
+    clock_gettime(CLOCK_MONOTONIC, &t1);
+    for (int k = 0; k < TIMING_ITERATIONS; k++) {
+        ImageUtils::nv21toyvu(out, nv21, width, height);
+        ImageUtils::decimateyvu(outLow, out, width, height, factor);
+    }
+    clock_gettime(CLOCK_MONOTONIC, &t2);
+    for (int k = 0; k < TIMING_ITERATIONS; k++) {
+        ImageUtils::nv21toyvuDecimated(out, outLow, nv21, width, height, factor);
+    }
+    clock_gettime(CLOCK_MONOTONIC, &t3);
+
+    float chained = elapsedSeconds(t1, t2) * 1000 / TIMING_ITERATIONS;
+    float fused = elapsedSeconds(t2, t3) * 1000 / TIMING_ITERATIONS;
+    printf("%dx%d: two passes %.3f ms, fused %.3f ms (%.2fx)\n", width, height,
+           chained, fused, chained / fused);
+
+    ImageUtils::freeImage(outLow);
+    ImageUtils::freeImage(out);
+    ImageUtils::freeImage(nv21);
+}
+
+int main(int argc, char **argv)
+{
+    int failures = 0;
+
+    srand(1);
+    for (unsigned int f = 0; f < sizeof(factors) / sizeof(factors[0]); f++) {
+        for (unsigned int i = 0; i < sizeof(sizes) / sizeof(sizes[0]); i++) {
+            int w = sizes[i][0];
+            int h = sizes[i][1];
+
+            bool ok = testConversion(w, h, factors[f]);
+            printf("%4dx%-4d factor %d %s\n", w, h, factors[f],
+                   ok ? "ok" : "MISMATCH");
+
+            failures += !ok;
+        }
+    }
+
+    for (unsigned int i = 0; i < sizeof(sizes) / sizeof(sizes[0]); i++) {
+        int w = sizes[i][0];
+        int h = sizes[i][1];
+
+        bool ok = testRoundTrip(w, h);
+        printf("%4dx%-4d round trip %s\n", w, h, ok ? "ok" : "MISMATCH");
+
+        failures += !ok;
+    }
+
+    timeConversion(1280, 720, 4);
+
+    if (failures) {
+        printf("%d conversion mismatches\n", failures);
+        return 1;
+    }
+    printf("The fused conversion matches the two pass conversion\n");
+    return 0;
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Times the corner matcher on a pair of input frames for a range of corner
+// counts. The input frames do not have
+// enough corners for the largest counts, so those are measured on the frames
+// scaled up 2x. 3000 corners are measured at both scales to compare them.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+
+#include "mosaic/ImageUtils.h"
+#include "db_utilities.h"
+#include "db_feature_detection.h"
+#include "db_feature_matching.h"
+
+#define MATCH_ITERATIONS 20
+#define MAX_SCALE 2
+
+static struct {
+    int corners;
+    int scale;
+} targets[] = {
+    { 100, 1 }, { 250, 1 }, { 500, 1 }, { 1000, 1 }, { 2000, 1 }, { 3000, 1 },
+    { 3000, 2 }, { 4000, 2 }, { 5000, 2 },
+};
+
+static float elapsedSeconds(struct timespec &start, struct timespec &end)
+{
+    return (end.tv_sec - start.tv_sec) + (end.tv_nsec - start.tv_nsec)/1e9;
+}
+
+static unsigned char **loadGray(const char *filename, int &width, int &height)
+{
+    ImageType rgb = ImageUtils::readBinaryPPM(filename, width, height);
+    if (rgb == NULL) return NULL;
+
+    unsigned char **img = db_AllocImage_u(width, height);
+    for (int j = 0; j < height; j++) {
+        unsigned char *src = rgb + j * width * 3;
+        for (int i = 0; i < width; i++, src += 3) {
+            img[j][i] = (unsigned char) ((77 * src[0] + 150 * src[1] + 29 * src[2]) >> 8);
+        }
+    }
+    ImageUtils::freeImage(rgb);
+    return img;
+}
+
+// Returns img scaled up by scale, with bilinear interpolation.
+static unsigned char **scaleUp(unsigned char **img, int width, int height, int scale)
+{
+    unsigned char **out = db_AllocImage_u(width * scale, height * scale);
+    for (int j = 0; j < height * scale; j++) {
+        int y = db_mini(j / scale, height - 2);
+        int fy = j - y * scale;
+        for (int i = 0; i < width * scale; i++) {
+            int x = db_mini(i / scale, width - 2);
+            int fx = i - x * scale;
+            int top = img[y][x] * (scale - fx) + img[y][x + 1] * fx;
+            int bottom = img[y + 1][x] * (scale - fx) + img[y + 1][x + 1] * fx;
+            out[j][i] = (unsigned char) ((top * (scale - fy) + bottom * fy)
+                    / (scale * scale));
+        }
+    }
+    return out;
+}
+
+// Returns the milliseconds per call of Match() and the number of matches.
+static float timeMatch(db_Matcher_u &matcher, unsigned char **ref, unsigned char **ins,
+        double *xr, double *yr, int nr, double *xi, double *yi, int ni,
+        int *id_r, int *id_i, int &nr_matches)
+{
+    struct timespec t1, t2;
+
+    clock_gettime(CLOCK_MONOTONIC, &t1);
+    for (int k = 0; k < MATCH_ITERATIONS; k++) {
+        matcher.Match(ref, ins, xr, yr, nr, xi, yi, ni, id_r, id_i, &nr_matches);
+    }
+    clock_gettime(CLOCK_MONOTONIC, &t2);
+
+    return elapsedSeconds(t1, t2) * 1000 / MATCH_ITERATIONS;
+}
+
+int main(int argc, char **argv)
+{
+    if (argc < 3) {
+        printf("Usage: %s reference.ppm inspection.ppm\n", argv[0]);
+        return 1;
+    }
+
+    int width, height, w2, h2;
+    unsigned char **ref = loadGray(argv[1], width, height);
+    unsigned char **ins = loadGray(argv[2], w2, h2);
+    if (ref == NULL || ins == NULL || width != w2 || height != h2) {
+        printf("Could not load a pair of frames of the same size\n");
+        return 1;
+    }
+
+    unsigned char **refs[MAX_SCALE + 1], **inss[MAX_SCALE + 1];
+    refs[1] = ref;
+    inss[1] = ins;
+    for (int scale = 2; scale <= MAX_SCALE; scale++) {
+        refs[scale] = scaleUp(ref, width, height, scale);
+        inss[scale] = scaleUp(ins, width, height, scale);
+    }
+
+    printf("scale  corners(ref/ins)  matches  match ms  us per corner\n");
+    for (unsigned int t = 0; t < sizeof(targets) / sizeof(targets[0]); t++) {
+        // Small targets get fewer blocks, since the per block quota is
+        // rounded down and would otherwise be zero.
+        int blocks = db_mini(DB_DEFAULT_NR_FEATURE_BLOCKS,
+                db_maxi(1, (int) sqrt(targets[t].corners / 4.0)));
+        int scale = targets[t].scale;
+        int w = width * scale;
+        int h = height * scale;
+
+        db_CornerDetector_u detector;
+        int max_corners = detector.Init(w, h, targets[t].corners, blocks, blocks,
+                DB_DEFAULT_ABS_CORNER_THRESHOLD / 5000.0, 0.0);
+
+        double *xr = new double[max_corners];
+        double *yr = new double[max_corners];
+        double *xi = new double[max_corners];
+        double *yi = new double[max_corners];
+        int nr, ni;
+        detector.DetectCorners(refs[scale], xr, yr, &nr);
+        detector.DetectCorners(inss[scale], xi, yi, &ni);
+
+        db_Matcher_u matcher;
+        int max_matches = matcher.Init(w, h, DB_DEFAULT_MAX_DISPARITY, max_corners);
+
+        int *id_r = new int[max_matches];
+        int *id_i = new int[max_matches];
+        int matches;
+
+        float ms = timeMatch(matcher, refs[scale], inss[scale],
+                xr, yr, nr, xi, yi, ni, id_r, id_i, matches);
+
+        printf("%4dx  %5d/%-5d        %5d  %8.2f  %13.2f\n", scale, nr, ni,
+               matches, ms, ms * 1000 / db_maxi(1, nr));
+
+        delete [] id_r;
+        delete [] id_i;
+        delete [] xr;
+        delete [] yr;
+        delete [] xi;
+        delete [] yi;
+    }
+
+    for (int scale = 2; scale <= MAX_SCALE; scale++) {
+        db_FreeImage_u(refs[scale], height * scale);
+        db_FreeImage_u(inss[scale], height * scale);
+    }
+    db_FreeImage_u(ref, height);
+    db_FreeImage_u(ins, height);
+    return 0;
+}
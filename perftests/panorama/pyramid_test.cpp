@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Checks that the vectorized PyramidShort kernels are bit-exact with the
+// scalar reference implementations.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "mosaic/Pyramid.h"
+#include "mosaic/Blend.h"
+
+static const int LEVELS = 4;
+
+static int sizes[][2] = {
+    { 320, 240 }, { 321, 241 }, { 173, 97 }, { 64, 48 }, { 33, 17 },
+    { 1454, 330 },
+};
+
+// Size in bytes of the packed storage of a pyramid, starting at the top
+// left corner of the border of level 0.
+static unsigned int storageBytes(PyramidShort *pyr, int levels)
+{
+    int lines;
+    return PyramidShort::calcStorage(pyr->width, pyr->height,
+            (real) (pyr->border << 1), levels, &lines) * sizeof(short);
+}
+
+static short *storageBase(PyramidShort *pyr)
+{
+    return pyr->ptr[-pyr->border] - pyr->border;
+}
+
+static void fillRandom(PyramidShort *pyr, int levels, bool laplacian)
+{
+    short *base = storageBase(pyr);
+    unsigned int count = storageBytes(pyr, levels) / sizeof(short);
+    for (unsigned int i = 0; i < count; i++) {
+        // Gaussian levels hold 8 bit pixels; Laplacian levels can hold any
+        // value, including ones that overflow when accumulated.
+        base[i] = laplacian ? (short) (rand() & 0xffff) : (short) (rand() & 0xff);
+    }
+}
+
+static PyramidShort *clonePyramid(PyramidShort *src, int levels)
+{
+    PyramidShort *dst = PyramidShort::allocatePyramidPacked(levels,
+            src->width, src->height, src->border);
+    memcpy(storageBase(dst), storageBase(src), storageBytes(src, levels));
+    return dst;
+}
+
+static bool samePyramid(PyramidShort *a, PyramidShort *b, int levels)
+{
+    return memcmp(storageBase(a), storageBase(b), storageBytes(a, levels)) == 0;
+}
+
+static bool testReduce(int width, int height)
+{
+    PyramidShort *ref = PyramidShort::allocatePyramidPacked(LEVELS,
+            (real) width, (real) height, BORDER);
+    fillRandom(ref, LEVELS, false);
+    PyramidShort::BorderSpread(ref, BORDER, BORDER, BORDER, BORDER);
+    PyramidShort *vec = clonePyramid(ref, LEVELS);
+
+    PyramidShort *scr = PyramidShort::allocateImage(ref[1].width,
+            ref[0].height, BORDER);
+
+    bool ok = true;
+    for (int lev = 0; lev < LEVELS - 1 && ok; lev++) {
+        scr->width = ref[lev + 1].width;
+        scr->height = ref[lev].height;
+        PyramidShort::BorderReduceOddScalar(ref + lev, ref + lev + 1, scr);
+        PyramidShort::BorderReduceOdd(vec + lev, vec + lev + 1, scr);
+        ok = samePyramid(ref, vec, LEVELS);
+    }
+
+    PyramidShort::freeImage(scr);
+    PyramidShort::freeImage(vec);
+    PyramidShort::freeImage(ref);
+    return ok;
+}
+
+static bool testExpand(int width, int height, int mode)
+{
+    PyramidShort *ref = PyramidShort::allocatePyramidPacked(LEVELS,
+            (real) width, (real) height, BORDER);
+    fillRandom(ref, LEVELS, true);
+    PyramidShort *vec = clonePyramid(ref, LEVELS);
+
+    PyramidShort *scr = PyramidShort::allocateImage(ref[1].width,
+            ref[0].height, BORDER);
+
+    bool ok = true;
+    for (int lev = LEVELS - 1; lev > 0 && ok; lev--) {
+        scr->width = ref[lev].width;
+        scr->height = ref[lev - 1].height;
+        PyramidShort::BorderExpandOddScalar(ref + lev, ref + lev - 1, scr, mode);
+        PyramidShort::BorderExpandOdd(vec + lev, vec + lev - 1, scr, mode);
+        ok = samePyramid(ref, vec, LEVELS);
+    }
+
+    PyramidShort::freeImage(scr);
+    PyramidShort::freeImage(vec);
+    PyramidShort::freeImage(ref);
+    return ok;
+}
+
+int main(int argc, char **argv)
+{
+    int failures = 0;
+
+    srand(1);
+    for (unsigned int i = 0; i < sizeof(sizes) / sizeof(sizes[0]); i++) {
+        int w = sizes[i][0];
+        int h = sizes[i][1];
+
+        bool reduce = testReduce(w, h);
+        bool expandAdd = testExpand(w, h, 1);
+        bool expandSub = testExpand(w, h, -1);
+
+        printf("%4dx%-4d reduce %s, expand(+1) %s, expand(-1) %s\n", w, h,
+               reduce ? "ok" : "MISMATCH",
+               expandAdd ? "ok" : "MISMATCH",
+               expandSub ? "ok" : "MISMATCH");
+
+        failures += !reduce + !expandAdd + !expandSub;
+    }
+
+    if (failures) {
+        printf("%d kernel mismatches\n", failures);
+        return 1;
+    }
+    printf("All pyramid kernels match the scalar reference\n");
+    return 0;
+}
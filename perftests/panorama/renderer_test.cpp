@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Checks the CPU implementation of the preview renderer: the RGB frame
+// against the BT.601 conversion of the NV21 frame, the YVUA images it hands
+// to the mosaicing library against the YVURenderer shader applied to that
+// frame and to its 2x2 averages, the warp and the viewfinder pan against
+// shifted copies, and the inverse YVU conversion against the shader
+// conversion. Then times the kernels for a preview sized frame.
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "mosaic_renderer/CpuRenderer.h"
+
+#define TIMING_ITERATIONS 50
+#define FACTOR 4
+
+static int sizes[][2] = {
+    { 176, 144 }, { 320, 240 }, { 640, 480 }, { 40, 24 },
+};
+
+static float elapsedSeconds(struct timespec &start, struct timespec &end)
+{
+    return (end.tv_sec - start.tv_sec) + (end.tv_nsec - start.tv_nsec)/1e9;
+}
+
+static unsigned char *randomBytes(int bytes)
+{
+    unsigned char *p = (unsigned char *) malloc(bytes);
+    for (int i = 0; i < bytes; i++) {
+        p[i] = (unsigned char) (rand() & 0xff);
+    }
+    return p;
+}
+
+// Renders a random mosaic by pasting random frames, so that the warp has
+// something other than black to sample
+static void fillMosaic(CpuRenderer &renderer, int width, int height)
+{
+    unsigned char *nv21 = randomBytes(width * height * 3 / 2);
+    renderer.PreprocessNV21(nv21, NULL, NULL);
+    for (int y = -height / 2; y < renderer.GetMosaicHeight(); y += height / 2) {
+        for (int x = -width / 2; x < renderer.GetMosaicWidth(); x += width / 2) {
+            renderer.Paste(x, y);
+        }
+    }
+    free(nv21);
+}
+
+// The YVURenderer shader on RGB in 0..255, rounded as the framebuffer
+// stores it
+static void shaderYVU(double r, double g, double b, int yvu[3])
+{
+    r /= 255.0;
+    g /= 255.0;
+    b /= 255.0;
+    double v[3] = {
+        0.257 * r + 0.594 * g + 0.098 * b + 0.063,
+        0.439 * r - 0.368 * g - 0.071 * b + 0.5,
+        -0.148 * r - 0.291 * g + 0.439 * b + 0.5 };
+    for (int k = 0; k < 3; k++) {
+        double q = floor(v[k] * 255.0 + 0.5);
+        yvu[k] = (int) (q < 0 ? 0 : (q > 255 ? 255 : q));
+    }
+}
+
+// Whether the YVUA pixel matches the shader output for r, g and b. The
+// fixed point coefficients may round values within a hair of .5 the other
+// way, which is below the precision of the GPU.
+static bool matchesShader(const unsigned char *yvua, int r, int g, int b)
+{
+    int yvu[3];
+    shaderYVU(r, g, b, yvu);
+    for (int k = 0; k < 3; k++) {
+        if (abs(yvua[k] - yvu[k]) > 1) return false;
+    }
+    return yvua[3] == yvua[0];
+}
+
+static bool testPreprocess(int width, int height)
+{
+    int wl = width / FACTOR;
+    int hl = height / FACTOR;
+    int n = width * height;
+    unsigned char *nv21 = randomBytes(n * 3 / 2);
+    unsigned char *hr = (unsigned char *) malloc(n * 4);
+    unsigned char *lr = (unsigned char *) malloc(wl * hl * 4);
+
+    CpuRenderer renderer;
+    renderer.Init(width, height, FACTOR, 2 * width, height);
+    renderer.PreprocessNV21(nv21, hr, lr);
+    const unsigned char *frame = renderer.GetFrame();
+
+    // BT.601 video range, within the rounding of the integer conversion
+    bool ok = true;
+    for (int y = 0; y < height && ok; y++) {
+        for (int x = 0; x < width && ok; x++) {
+            const unsigned char *vu = nv21 + n + (y / 2) * width + (x & ~1);
+            int luma = nv21[y * width + x];
+            double c = 1.164 * (luma < 16 ? 0 : luma - 16);
+            double d = vu[1] - 128;
+            double e = vu[0] - 128;
+            double rgb[3] = {
+                c + 1.596 * e, c - 0.391 * d - 0.813 * e, c + 2.018 * d };
+            const unsigned char *p = frame + (y * width + x) * 4;
+            for (int k = 0; k < 3 && ok; k++) {
+                double v = rgb[k] < 0 ? 0 : (rgb[k] > 255 ? 255 : rgb[k]);
+                ok = fabs(p[k] - v) <= 1.5;
+            }
+            ok = ok && p[3] == 255;
+        }
+    }
+
+    for (int i = 0; i < n && ok; i++) {
+        const unsigned char *p = frame + 4 * i;
+        ok = matchesShader(hr + 4 * i, p[0], p[1], p[2]);
+    }
+
+    for (int j = 0; j < hl && ok; j++) {
+        for (int i = 0; i < wl && ok; i++) {
+            int x = i * FACTOR + FACTOR / 2 - 1;
+            int y = j * FACTOR + FACTOR / 2 - 1;
+            int avg[3];
+            for (int k = 0; k < 3; k++) {
+                avg[k] = (frame[(y * width + x) * 4 + k] +
+                        frame[(y * width + x + 1) * 4 + k] +
+                        frame[((y + 1) * width + x) * 4 + k] +
+                        frame[((y + 1) * width + x + 1) * 4 + k] + 2) >> 2;
+            }
+            ok = matchesShader(lr + (j * wl + i) * 4, avg[0], avg[1], avg[2]);
+        }
+    }
+
+    free(lr);
+    free(hr);
+    free(nv21);
+    return ok;
+}
+
+static bool testWarp(int width, int height)
+{
+    int mw = 2 * width;
+    int mh = height;
+    double cx = mw / 2 - width / 2;
+    double cy = mh / 2 - height / 2;
+
+    // A translation by whole pixels must move the mosaic unchanged
+    CpuRenderer renderer;
+    renderer.Init(width, height, FACTOR, mw, mh);
+    srand(width);
+    fillMosaic(renderer, width, height);
+    unsigned char *before = (unsigned char *) malloc(mw * mh * 4);
+    memcpy(before, renderer.GetMosaic(), mw * mh * 4);
+
+    double T[9] = { 1, 0, 7, 0, 1, -3, 0, 0, 1 };
+    renderer.Warp(T, (int) cx, (int) cy);
+    const unsigned char *after = renderer.GetMosaic();
+    const unsigned char *frame = renderer.GetFrame();
+
+    bool ok = true;
+    for (int y = 0; y < mh && ok; y++) {
+        for (int x = 0; x < mw && ok; x++) {
+            const unsigned char *p = after + (y * mw + x) * 4;
+            const unsigned char *q;
+            unsigned char black[4] = { 0, 0, 0, 255 };
+            if (x >= cx && x < cx + width && y >= cy && y < cy + height) {
+                q = frame + ((y - (int) cy) * width + x - (int) cx) * 4;
+            } else if (x - 7 < 0 || x - 7 >= mw || y + 3 < 0 || y + 3 >= mh) {
+                q = black;
+            } else {
+                q = before + ((y + 3) * mw + x - 7) * 4;
+            }
+            ok = memcmp(p, q, 4) == 0;
+        }
+    }
+
+    free(before);
+    return ok;
+}
+
+static bool testPreview(int width, int height)
+{
+    int mw = 2 * width;
+    int mh = height;
+    bool ok = true;
+
+    int *argb = new int[mw * mh];
+    CpuRenderer renderer;
+    renderer.Init(width, height, FACTOR, mw, mh);
+    srand(width);
+    fillMosaic(renderer, width, height);
+    const unsigned char *mosaic = renderer.GetMosaic();
+
+    // Whole pixels shift the mosaic unchanged
+    renderer.ReadPreview(-5.0, argb);
+    for (int y = 0; y < mh && ok; y++) {
+        for (int x = 0; x < mw && ok; x++) {
+            int sx = x + 5;
+            int expected = 0xff000000;
+            if (sx < mw) {
+                const unsigned char *p = mosaic + (y * mw + sx) * 4;
+                expected |= (p[0] << 16) | (p[1] << 8) | p[2];
+            }
+            ok = argb[y * mw + x] == expected;
+        }
+    }
+
+    delete [] argb;
+    return ok;
+}
+
+// The frames read back from the GL path are converted by the YVURenderer
+// shader, which SetFrameYVUA() inverts
+static bool testFrameYVUA(int width, int height)
+{
+    int n = width * height;
+    unsigned char *rgb = randomBytes(n * 3);
+    unsigned char *yvua = (unsigned char *) malloc(n * 4);
+
+    for (int i = 0; i < n; i++) {
+        int yvu[3];
+        shaderYVU(rgb[3 * i], rgb[3 * i + 1], rgb[3 * i + 2], yvu);
+        for (int k = 0; k < 3; k++) {
+            yvua[4 * i + k] = (unsigned char) yvu[k];
+        }
+        yvua[4 * i + 3] = yvua[4 * i];
+    }
+
+    CpuRenderer renderer;
+    renderer.Init(width, height, FACTOR, 2 * width, height);
+    renderer.SetFrameYVUA(yvua);
+    const unsigned char *frame = renderer.GetFrame();
+
+    // Only colors the YVU image can represent come back, within the
+    // rounding of the YVU values
+    int maxDiff = 0;
+    for (int i = 0; i < n; i++) {
+        unsigned char y = yvua[4 * i], v = yvua[4 * i + 1], u = yvua[4 * i + 2];
+        if (y == 0 || y == 255 || v == 0 || v == 255 || u == 0 || u == 255) {
+            continue;
+        }
+        for (int k = 0; k < 3; k++) {
+            int d = abs(frame[4 * i + k] - rgb[3 * i + k]);
+            if (d > maxDiff) maxDiff = d;
+        }
+    }
+
+    free(yvua);
+    free(rgb);
+    return maxDiff <= CpuRenderer::YVUA_ROUND_TRIP_ERROR;
+}
+
+static void timeKernels(int width, int height)
+{
+    int mw = 2 * width;
+    int mh = height;
+    unsigned char *nv21 = randomBytes(width * height * 3 / 2);
+    unsigned char *hr = (unsigned char *) malloc(width * height * 4);
+    unsigned char *lr = (unsigned char *) malloc(width * height * 4);
+    int *argb = new int[mw * mh];
+    double s = sin(0.01), c = cos(0.01);
+    double H[9] = { c, -s, 4.5, s, c, 0.25, 0, 0, 1 };
+
+    struct timespec t1, t2, t3, t4;
+    CpuRenderer renderer;
+    renderer.Init(width, height, FACTOR, mw, mh);
+
+    clock_gettime(CLOCK_MONOTONIC, &t1);
+    for (int k = 0; k < TIMING_ITERATIONS; k++) {
+        renderer.PreprocessNV21(nv21, hr, lr);
+    }
+    clock_gettime(CLOCK_MONOTONIC, &t2);
+    for (int k = 0; k < TIMING_ITERATIONS; k++) {
+        renderer.Warp(H, mw / 2 - width / 2, 0);
+    }
+    clock_gettime(CLOCK_MONOTONIC, &t3);
+    for (int k = 0; k < TIMING_ITERATIONS; k++) {
+        renderer.ReadPreview(10.5, argb);
+    }
+    clock_gettime(CLOCK_MONOTONIC, &t4);
+
+    printf("%dx%d: preprocess %.3f ms, warp %.3f ms, preview %.3f ms\n",
+           width, height,
+           elapsedSeconds(t1, t2) * 1000 / TIMING_ITERATIONS,
+           elapsedSeconds(t2, t3) * 1000 / TIMING_ITERATIONS,
+           elapsedSeconds(t3, t4) * 1000 / TIMING_ITERATIONS);
+
+    delete [] argb;
+    free(lr);
+    free(hr);
+    free(nv21);
+}
+
+int main(int argc, char **argv)
+{
+    int failures = 0;
+
+    srand(1);
+    for (unsigned int i = 0; i < sizeof(sizes) / sizeof(sizes[0]); i++) {
+        int w = sizes[i][0];
+        int h = sizes[i][1];
+
+        bool preprocess = testPreprocess(w, h);
+        bool warp = testWarp(w, h);
+        bool preview = testPreview(w, h);
+        bool frame = testFrameYVUA(w, h);
+        printf("%4dx%-4d preprocess %s, warp %s, preview %s, yvua %s\n", w, h,
+               preprocess ? "ok" : "MISMATCH", warp ? "ok" : "MISMATCH",
+               preview ? "ok" : "MISMATCH", frame ? "ok" : "MISMATCH");
+
+        failures += !preprocess + !warp + !preview + !frame;
+    }
+
+    timeKernels(640, 480);
+
+    if (failures) {
+        printf("%d renderer mismatches\n", failures);
+        return 1;
+    }
+    printf("The CPU renderer matches the reference kernels\n");
+    return 0;
+}
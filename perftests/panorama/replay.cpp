@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Replays a frame log written by Mosaic.startFrameLog() through the same
+// steps as a capture on the device: every frame is converted from NV21 to
+// full and low resolution like setSourceImage(), aligned at low resolution,
+// and kept if the alignment accepts it; the kept frames are then stitched
+// at full resolution like createMosaic(true). Reports the latency of each
+// frame, the throughput, the stitch time and how far the replayed alignment
+// is from the one recorded on the device.
+//
+// With --realtime, frames are delivered at their recorded timestamps and a
+// frame is dropped when a newer one arrives before the previous frame is
+// done, like MosaicFrameProcessor does with the preview frames.
+//
+// --from-ppm writes a log from a numbered PPM sequence such as input/test
+// instead, aligned like on the device, to try the replay without a recorded
+// capture. Replaying such a log on the same build must give back the same
+// alignment.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
+#include <time.h>
+#include <getopt.h>
+#include <sys/types.h>
+#include <sys/stat.h>
+
+#include "mosaic/FrameLog.h"
+#include "mosaic/ImageUtils.h"
+#include "mosaic/Mosaic.h"
+
+// Same settings as the capture in feature_mos_jni.cpp and
+// MosaicFrameProcessor
+#define H2L_FACTOR 4
+#define THRESH_STILL_LR 5.0f
+#define QUARTER_RES_MIN_WIDTH 180
+const int blendingType = Blend::BLEND_TYPE_HORZ;
+const int stripType = Blend::STRIP_TYPE_WIDE;
+
+// Frame spacing of logs made with --from-ppm
+#define PPM_FRAME_INTERVAL_US 33333
+
+static double nowMs()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return 1000.0 * t.tv_sec + t.tv_nsec / 1e6;
+}
+
+static int compareDoubles(const void *a, const void *b)
+{
+    double x = *(const double *) a;
+    double y = *(const double *) b;
+    return (x > y) - (x < y);
+}
+
+// Nearest-rank percentile of count sorted values
+static double percentile(const double *sorted, int count, int pct)
+{
+    int rank = (int) ceil(pct / 100.0 * count);
+    return sorted[(rank < 1 ? 1 : rank) - 1];
+}
+
+// The low resolution alignment of a capture, as done for each frame by
+// setSourceImage(), and the frames it keeps for stitching
+class Capture
+{
+public:
+    Capture(int width, int height, int alignmentWorkers)
+        : width(width), height(height), lowWidth(width / H2L_FACTOR),
+          lowHeight(height / H2L_FACTOR), kept(0), capacity(64)
+    {
+        lowRes.initialize(blendingType, stripType, lowWidth, lowHeight, -1,
+                          lowWidth > QUARTER_RES_MIN_WIDTH, THRESH_STILL_LR);
+        lowRes.getAligner()->setAlignmentWorkers(alignmentWorkers);
+        framesHR = (ImageType *) calloc(capacity, sizeof(ImageType));
+        framesLR = (ImageType *) calloc(capacity, sizeof(ImageType));
+    }
+
+    ~Capture()
+    {
+        for (int k = 0; k < capacity; k++) {
+            ImageUtils::freeImage(framesHR[k]);
+            ImageUtils::freeImage(framesLR[k]);
+        }
+        free(framesHR);
+        free(framesLR);
+    }
+
+    // Aligns an NV21 frame. Returns the return code of Mosaic::addFrame()
+    // and the alignment in trs, as sent to the preview warp.
+    int addFrame(ImageType nv21, float trs[9])
+    {
+        if (framesHR[kept] == NULL) {
+            framesHR[kept] = ImageUtils::allocateImage(width, height,
+                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+            framesLR[kept] = ImageUtils::allocateImage(lowWidth, lowHeight,
+                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+        }
+
+        ImageUtils::nv21toyvuDecimated(framesHR[kept], framesLR[kept], nv21,
+                width, height, H2L_FACTOR);
+        int ret = lowRes.addFrame(framesLR[kept]);
+
+        double t[3][3];
+        lowRes.getAligner()->getLastTRS(t);
+        for (int k = 0; k < 9; k++) {
+            trs[k] = t[k / 3][k % 3];
+        }
+
+        if (isAccepted(ret)) {
+            kept = lowRes.getNumFrames();
+            if (kept == capacity) {
+                framesHR = (ImageType *) realloc(framesHR,
+                        2 * capacity * sizeof(ImageType));
+                framesLR = (ImageType *) realloc(framesLR,
+                        2 * capacity * sizeof(ImageType));
+                memset(framesHR + capacity, 0, capacity * sizeof(ImageType));
+                memset(framesLR + capacity, 0, capacity * sizeof(ImageType));
+                capacity *= 2;
+            }
+        }
+        return ret;
+    }
+
+    static bool isAccepted(int ret)
+    {
+        return ret == Mosaic::MOSAIC_RET_OK ||
+                ret == Mosaic::MOSAIC_RET_FEW_INLIERS;
+    }
+
+    int getKeptFrames() { return kept; }
+    ImageType getFrameHR(int k) { return framesHR[k]; }
+
+private:
+    int width, height;
+    int lowWidth, lowHeight;
+    Mosaic lowRes;
+
+    // Frames kept so far, plus the buffers of the next incoming frame
+    ImageType *framesHR;
+    ImageType *framesLR;
+    int kept, capacity;
+};
+
+// Writes the frames of a PPM sequence to a log, aligned the way the device
+// does it, so that replaying the log gives back the same alignment
+static int writeLogFromPPM(const char *basename, const char *logFilename,
+        int alignmentWorkers)
+{
+    char filename[512];
+    struct stat filestat;
+    FrameLog log;
+    Capture *capture = NULL;
+    ImageType yvu = NULL, nv21 = NULL;
+    int width = 0, height = 0;
+
+    int i;
+    for (i = 0; ; i++) {
+        sprintf(filename, "%s_%03d.ppm", basename, i + 1);
+        if (stat(filename, &filestat) != 0) break;
+
+        int w, h;
+        ImageType rgb = ImageUtils::readBinaryPPM(filename, w, h);
+        if (rgb == NULL) break;
+        if (i == 0) {
+            width = w;
+            height = h;
+            if (!log.create(logFilename, width, height)) {
+                printf("Could not create %s\n", logFilename);
+                return 1;
+            }
+            yvu = ImageUtils::allocateImage(width, height,
+                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+            nv21 = (ImageType) malloc(log.getImageBytes());
+            capture = new Capture(width, height, alignmentWorkers);
+        } else if (w != width || h != height) {
+            printf("%s is %dx%d, the first frame is %dx%d\n", filename, w, h,
+                   width, height);
+            return 1;
+        }
+
+        ImageUtils::rgb2yvu(yvu, rgb, width, height);
+        ImageUtils::freeImage(rgb);
+        ImageUtils::yvu2nv21(nv21, yvu, width, height);
+
+        float trs[9];
+        int ret = capture->addFrame(nv21, trs);
+        if (!log.appendNV21((long long) i * PPM_FRAME_INTERVAL_US, ret, trs,
+                nv21)) {
+            printf("Could not write %s\n", logFilename);
+            return 1;
+        }
+    }
+
+    if (i == 0) {
+        printf("Image files not found. Make sure %s exists.\n", basename);
+        return 1;
+    }
+    log.close();
+    delete capture;
+    ImageUtils::freeImage(yvu);
+    free(nv21);
+    printf("%d frames of %dx%d written to %s\n", i, width, height,
+           logFilename);
+    return 0;
+}
+
+static void usage(const char *name)
+{
+    printf("Usage: %s [options] frame_log [output_filename]\n"
+           "       %s --from-ppm input_basename frame_log\n"
+           "  --realtime              deliver the frames at their timestamps\n"
+           "                          and drop the ones that come too late\n"
+           "  -t, --threads N         alignment threads (default 1)\n",
+           name, name);
+}
+
+int main(int argc, char **argv)
+{
+    bool realtime = false;
+    bool fromPPM = false;
+    int alignmentWorkers = 1;
+
+    static const struct option options[] = {
+        { "realtime", no_argument, NULL, 'r' },
+        { "threads", required_argument, NULL, 't' },
+        { "from-ppm", no_argument, NULL, 'p' },
+        { NULL, 0, NULL, 0 }
+    };
+
+    int opt;
+    while ((opt = getopt_long(argc, argv, "t:", options, NULL)) != -1) {
+        switch (opt) {
+            case 'r': realtime = true; break;
+            case 'p': fromPPM = true; break;
+            case 't': alignmentWorkers = atoi(optarg) > 0 ? atoi(optarg) : 1; break;
+            default:
+                usage(argv[0]);
+                return 1;
+        }
+    }
+
+    int positional = argc - optind;
+    if (fromPPM) {
+        if (positional != 2) {
+            usage(argv[0]);
+            return 1;
+        }
+        return writeLogFromPPM(argv[optind], argv[optind + 1],
+                               alignmentWorkers);
+    }
+    if (positional != 1 && positional != 2) {
+        usage(argv[0]);
+        return 1;
+    }
+    const char *logFilename = argv[optind];
+    const char *filename = positional == 2 ? argv[optind + 1] : NULL;
+
+    FrameLog log;
+    if (!log.open(logFilename)) {
+        printf("Could not read frame log %s\n", logFilename);
+        return 1;
+    }
+
+    int width = log.getWidth();
+    int height = log.getHeight();
+    printf("Replaying %s: %dx%d frames%s\n", logFilename, width, height,
+           realtime ? " in real time" : "");
+
+    Capture capture(width, height, alignmentWorkers);
+
+    // The two most recent frames read, so that a frame can be dropped when
+    // the next one arrives before it would be processed
+    ImageType nv21[2];
+    long long timestamp[2];
+    int recordedRet[2];
+    float recordedTrs[2][9];
+    for (int k = 0; k < 2; k++) {
+        nv21[k] = (ImageType) malloc(log.getImageBytes());
+    }
+
+    double *latency = NULL;
+    int processed = 0, dropped = 0, retMismatches = 0;
+    double totalMs = 0.0, maxDrift = 0.0;
+    double busyUntil = 0.0;
+    long long firstTimestamp = 0, lastTimestamp = 0;
+
+    int cur = 0;
+    bool have = log.read(timestamp[cur], recordedRet[cur], recordedTrs[cur],
+                         nv21[cur]);
+    if (have) firstTimestamp = timestamp[cur];
+    while (have) {
+        int next = 1 - cur;
+        bool haveNext = log.read(timestamp[next], recordedRet[next],
+                                 recordedTrs[next], nv21[next]);
+        lastTimestamp = timestamp[cur];
+
+        double arrival = (timestamp[cur] - firstTimestamp) / 1000.0;
+        if (realtime && haveNext &&
+                (timestamp[next] - firstTimestamp) / 1000.0 <= busyUntil) {
+            dropped++;
+            cur = next;
+            continue;
+        }
+
+        float trs[9];
+        double t0 = nowMs();
+        int ret = capture.addFrame(nv21[cur], trs);
+        double ms = nowMs() - t0;
+
+        latency = (double *) realloc(latency, (processed + 1) * sizeof(double));
+        latency[processed++] = ms;
+        totalMs += ms;
+        busyUntil = (arrival > busyUntil ? arrival : busyUntil) + ms;
+
+        // Translation drift of the frames both runs accepted
+        bool accepted = Capture::isAccepted(ret);
+        if (accepted != Capture::isAccepted(recordedRet[cur])) {
+            retMismatches++;
+        } else if (accepted) {
+            double dx = fabs(trs[2] - recordedTrs[cur][2]);
+            double dy = fabs(trs[5] - recordedTrs[cur][5]);
+            if (dx > maxDrift) maxDrift = dx;
+            if (dy > maxDrift) maxDrift = dy;
+        }
+
+        cur = next;
+        have = haveNext;
+    }
+    log.close();
+    free(nv21[0]);
+    free(nv21[1]);
+
+    if (processed == 0) {
+        printf("No frames in %s\n", logFilename);
+        return 1;
+    }
+
+    int kept = capture.getKeptFrames();
+    qsort(latency, processed, sizeof(double), compareDoubles);
+    double duration = (lastTimestamp - firstTimestamp) / 1e6;
+    printf("%d frames: %d aligned, %d dropped, %d kept\n",
+           processed + dropped, processed, dropped, kept);
+    printf("Frame latency: mean %.2f ms, p50 %.2f ms, p95 %.2f ms, "
+           "max %.2f ms\n", totalMs / processed,
+           percentile(latency, processed, 50),
+           percentile(latency, processed, 95), latency[processed - 1]);
+    printf("Throughput: %.1f frames/s", 1000.0 * processed / totalMs);
+    if (duration > 0) {
+        printf(", recorded at %.1f frames/s",
+               (processed + dropped - 1) / duration);
+    }
+    printf("\n");
+    printf("Alignment against the recording: %d accept/reject mismatches, "
+           "max translation drift %.2f pixels\n", retMismatches, maxDrift);
+    free(latency);
+
+    if (kept == 0) {
+        printf("No frame was kept, nothing to stitch\n");
+        return 1;
+    }
+
+    double t0 = nowMs();
+    Mosaic highRes;
+    highRes.initialize(blendingType, stripType, width, height, kept, false,
+                       0.0f);
+    highRes.getAligner()->setAlignmentWorkers(alignmentWorkers);
+    for (int k = 0; k < kept; k++) {
+        highRes.addFrame(capture.getFrameHR(k));
+    }
+    double t1 = nowMs();
+
+    float progress = 0.0;
+    bool cancelComputation = false;
+    int ret = highRes.createMosaic(progress, cancelComputation);
+    double t2 = nowMs();
+
+    int mosaicWidth = 0, mosaicHeight = 0;
+    ImageType resultYVU = highRes.getMosaic(mosaicWidth, mosaicHeight);
+    printf("Stitch: %dx%d mosaic in %.2f ms (align %.2f + blend %.2f)\n",
+           mosaicWidth, mosaicHeight, t2 - t0, t1 - t0, t2 - t1);
+
+    if (filename != NULL && resultYVU != NULL) {
+        ImageType imageRGB = ImageUtils::allocateImage(mosaicWidth,
+                mosaicHeight, ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+        ImageUtils::yvu2rgb(imageRGB, resultYVU, mosaicWidth, mosaicHeight);
+        ImageUtils::writeBinaryPPM(imageRGB, filename, mosaicWidth,
+                                   mosaicHeight);
+        ImageUtils::freeImage(imageRGB);
+    }
+    ImageUtils::freeImage(resultYVU);
+
+    return ret == Mosaic::MOSAIC_RET_OK ? 0 : 1;
+}
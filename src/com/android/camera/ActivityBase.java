@@ -54,6 +54,7 @@ abstract public class ActivityBase extends AbstractGalleryActivity
 
     private static final String TAG = "ActivityBase";
     private static final boolean LOGV = false;
+    private static final String TRACE_FILE_NAME = "camera_trace.json";
     private static final int CAMERA_APP_VIEW_TOGGLE_TIME = 100;  // milliseconds
     private static final String ACTION_DELETE_PICTURE =
             "com.android.gallery3d.action.DELETE_PICTURE";
@@ -113,17 +114,33 @@ abstract public class ActivityBase extends AbstractGalleryActivity
     protected class CameraOpenThread extends Thread {
         @Override
         public void run() {
-            try {
-                mCameraDevice = Util.openCamera(ActivityBase.this, mCameraId);
-                mParameters = mCameraDevice.getParameters();
-            } catch (CameraHardwareException e) {
-                mOpenCameraFail = true;
-            } catch (CameraDisabledException e) {
-                mCameraDisabled = true;
-            }
+            openCameraDevice();
         }
     }
 
+    private void openCameraDevice() {
+        try {
+            mCameraDevice = Util.openCamera(ActivityBase.this, mCameraId);
+            mParameters = mCameraDevice.getParameters();
+        } catch (CameraHardwareException e) {
+            mOpenCameraFail = true;
+        } catch (CameraDisabledException e) {
+            mCameraDisabled = true;
+        }
+    }
+
+    // Adds to startUp a task doing the same as CameraOpenThread, which cancels
+    // startUp if the camera cannot be opened.
+    protected StartupGraph.Task addCameraOpenTask(final StartupGraph startUp) {
+        return startUp.addTask("open camera", new Runnable() {
+            @Override
+            public void run() {
+                openCameraDevice();
+                if (mOpenCameraFail || mCameraDisabled) startUp.cancel();
+            }
+        });
+    }
+
     @Override
     public void onCreate(Bundle icicle) {
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_SECURE);
@@ -139,6 +156,7 @@ abstract public class ActivityBase extends AbstractGalleryActivity
         requestWindowFeature(Window.FEATURE_ACTION_BAR_OVERLAY);
 
         super.onCreate(icicle);
+        CameraTrace.mark(CameraTrace.ACTIVITY_CREATE);
     }
 
     public boolean isPanoramaActivity() {
@@ -147,6 +165,7 @@ abstract public class ActivityBase extends AbstractGalleryActivity
 
     @Override
     protected void onResume() {
+        CameraTrace.mark(CameraTrace.ACTIVITY_RESUME);
         super.onResume();
         LocalBroadcastManager manager = LocalBroadcastManager.getInstance(this);
         manager.registerReceiver(mDeletePictureReceiver, mDeletePictureFilter);
@@ -154,7 +173,9 @@ abstract public class ActivityBase extends AbstractGalleryActivity
 
     @Override
     protected void onPause() {
+        CameraTrace.mark(CameraTrace.ACTIVITY_PAUSE);
         super.onPause();
+        if (CameraTrace.isDumpEnabled()) dumpTrace();
         LocalBroadcastManager manager = LocalBroadcastManager.getInstance(this);
         manager.unregisterReceiver(mDeletePictureReceiver);
 
@@ -252,10 +273,23 @@ abstract public class ActivityBase extends AbstractGalleryActivity
         }
     }
 
+    private void dumpTrace() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) return;
+        final File file = new File(dir, TRACE_FILE_NAME);
+        new Thread("CameraTraceDump") {
+            @Override
+            public void run() {
+                CameraTrace.dump(file);
+            }
+        }.start();
+    }
+
     protected void updateThumbnailView() {
         if (mThumbnail != null) {
             mThumbnailView.setBitmap(mThumbnail.getBitmap());
             mThumbnailView.setVisibility(View.VISIBLE);
+            CameraTrace.mark(CameraTrace.THUMBNAIL_PAINT);
         } else {
             mThumbnailView.setBitmap(null);
             mThumbnailView.setVisibility(View.GONE);
@@ -38,7 +38,6 @@ import android.media.CameraProfile;
 import android.media.MediaActionSound;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.ConditionVariable;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -102,6 +101,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     private static final int START_PREVIEW_DONE = 11;
     private static final int OPEN_CAMERA_FAIL = 12;
     private static final int CAMERA_DISABLED = 13;
+    private static final int CAPABILITIES_CHANGED = 14;
 
     // The subset of parameters we need to update in setCameraParameters().
     private static final int UPDATE_PARAM_INITIALIZE = 1;
@@ -233,6 +233,9 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     private final CameraErrorCallback mErrorCallback = new CameraErrorCallback();
 
     private long mFocusStartTime;
+    // Whether the AUTO_FOCUS and CAPTURE trace spans are open.
+    private boolean mAutoFocusTraced;
+    private boolean mCaptureTraced;
     private long mShutterCallbackTime;
     private long mPostViewPictureCallbackTime;
     private long mRawPictureCallbackTime;
@@ -260,45 +263,64 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
     private boolean mQuickCapture;
 
-    CameraStartUpThread mCameraStartUpThread;
-    ConditionVariable mStartPreviewPrerequisiteReady = new ConditionVariable();
+    StartupGraph mCameraStartUp;
+    // Completed once the initialization needed by startPreview is done.
+    private StartupGraph.Task mStartPreviewPrerequisites;
 
-    // The purpose is not to block the main thread in onCreate and onResume.
-    private class CameraStartUpThread extends Thread {
-        private volatile boolean mCancelled;
-
-        public void cancel() {
-            mCancelled = true;
+    // Opens the camera and starts the preview in the background. The purpose
+    // is not to block the main thread in onCreate and onResume.
+    private void startCameraStartUp(boolean waitForPrerequisites) {
+        final StartupGraph graph = new StartupGraph("Camera startup");
+        StartupGraph.Task open = graph.addTask("open camera", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mCameraDevice = Util.openCamera(Camera.this, mCameraId);
+                    mParameters = mCameraDevice.getParameters();
+                } catch (CameraHardwareException e) {
+                    graph.cancel();
+                    mHandler.sendEmptyMessage(OPEN_CAMERA_FAIL);
+                } catch (CameraDisabledException e) {
+                    graph.cancel();
+                    mHandler.sendEmptyMessage(CAMERA_DISABLED);
+                }
+            }
+        });
+        StartupGraph.Task[] parametersDependencies = new StartupGraph.Task[] {open};
+        if (waitForPrerequisites) {
+            mStartPreviewPrerequisites = graph.addExternalTask("prerequisites");
+            parametersDependencies = new StartupGraph.Task[] {open, mStartPreviewPrerequisites};
         }
-
-        @Override
-        public void run() {
-            try {
-                // We need to check whether the activity is paused before long
-                // operations to ensure that onPause() can be done ASAP.
-                if (mCancelled) return;
-                mCameraDevice = Util.openCamera(Camera.this, mCameraId);
-                mParameters = mCameraDevice.getParameters();
-                // Wait until all the initialization needed by startPreview are
-                // done.
-                mStartPreviewPrerequisiteReady.block();
-
+        StartupGraph.Task setParameters = graph.addTask("set parameters", new Runnable() {
+            @Override
+            public void run() {
                 initializeCapabilities();
                 if (mFocusManager == null) initializeFocusManager();
-                if (mCancelled) return;
                 setCameraParameters(UPDATE_PARAM_ALL);
                 mHandler.sendEmptyMessage(CAMERA_OPEN_DONE);
-                if (mCancelled) return;
+            }
+        }, parametersDependencies);
+        // Keep the capabilities for the next start.
+        graph.addTask("check capabilities", new Runnable() {
+            @Override
+            public void run() {
+                if (CapabilitySnapshot.update(Camera.this, mCameraId, mInitialParams)) {
+                    // The settings may have been built from the old snapshot.
+                    mHandler.sendEmptyMessage(CAPABILITIES_CHANGED);
+                }
+            }
+        }, setParameters);
+        graph.addTask("start preview", new Runnable() {
+            @Override
+            public void run() {
                 startPreview();
                 mHandler.sendEmptyMessage(START_PREVIEW_DONE);
                 mOnResumeTime = SystemClock.uptimeMillis();
                 mHandler.sendEmptyMessage(CHECK_DISPLAY_ROTATION);
-            } catch (CameraHardwareException e) {
-                mHandler.sendEmptyMessage(OPEN_CAMERA_FAIL);
-            } catch (CameraDisabledException e) {
-                mHandler.sendEmptyMessage(CAMERA_DISABLED);
             }
-        }
+        }, setParameters);
+        mCameraStartUp = graph;
+        graph.start();
     }
 
     /**
@@ -365,15 +387,24 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                     break;
                 }
 
+                case CAPABILITIES_CHANGED: {
+                    // Sent after CAMERA_OPEN_DONE, so the settings exist.
+                    boolean enabled = mIndicatorControlContainer.isEnabled();
+                    mIndicatorControlContainer.dismissSettingPopup();
+                    initializeIndicatorControl();
+                    mIndicatorControlContainer.setEnabled(enabled);
+                    break;
+                }
+
                 case START_PREVIEW_DONE: {
-                    mCameraStartUpThread = null;
+                    mCameraStartUp = null;
                     setCameraState(IDLE);
                     startFaceDetection();
                     break;
                 }
 
                 case OPEN_CAMERA_FAIL: {
-                    mCameraStartUpThread = null;
+                    mCameraStartUp = null;
                     mOpenCameraFail = true;
                     Util.showErrorAndFinish(Camera.this,
                             R.string.cannot_connect_camera);
@@ -381,7 +412,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                 }
 
                 case CAMERA_DISABLED: {
-                    mCameraStartUpThread = null;
+                    mCameraStartUp = null;
                     mCameraDisabled = true;
                     Util.showErrorAndFinish(Camera.this,
                             R.string.camera_disabled);
@@ -398,6 +429,9 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                 mPreviewFrameLayout.getHeight());
         if (mIndicatorControlContainer == null) {
             initializeIndicatorControl();
+        } else {
+            // The settings may have been built before the camera was open.
+            updateSceneModeUI();
         }
         // This should be enabled after preview is started.
         mIndicatorControlContainer.setEnabled(false);
@@ -739,6 +773,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
             implements android.hardware.Camera.ShutterCallback {
         @Override
         public void onShutter() {
+            CameraTrace.mark(CameraTrace.SHUTTER);
             mShutterCallbackTime = System.currentTimeMillis();
             mShutterLag = mShutterCallbackTime - mCaptureStartTime;
             Log.v(TAG, "mShutterLag = " + mShutterLag + "ms");
@@ -749,6 +784,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         @Override
         public void onPictureTaken(
                 byte [] data, android.hardware.Camera camera) {
+            CameraTrace.mark(CameraTrace.POSTVIEW_PICTURE);
             mPostViewPictureCallbackTime = System.currentTimeMillis();
             Log.v(TAG, "mShutterToPostViewCallbackTime = "
                     + (mPostViewPictureCallbackTime - mShutterCallbackTime)
@@ -760,6 +796,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         @Override
         public void onPictureTaken(
                 byte [] rawData, android.hardware.Camera camera) {
+            CameraTrace.mark(CameraTrace.RAW_PICTURE);
             mRawPictureCallbackTime = System.currentTimeMillis();
             Log.v(TAG, "mShutterToRawCallbackTime = "
                     + (mRawPictureCallbackTime - mShutterCallbackTime) + "ms");
@@ -780,6 +817,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                 return;
             }
 
+            CameraTrace.begin(CameraTrace.JPEG_PICTURE);
             mJpegPictureCallbackTime = System.currentTimeMillis();
             // If postview callback has arrived, the captured image is displayed
             // in postview callback. If not, the captured image is displayed in
@@ -841,6 +879,8 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
             Log.v(TAG, "mJpegCallbackFinishTime = "
                     + mJpegCallbackFinishTime + "ms");
             mJpegPictureCallbackTime = 0;
+            CameraTrace.end(CameraTrace.JPEG_PICTURE);
+            endCaptureTrace();
         }
     }
 
@@ -851,6 +891,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                 boolean focused, android.hardware.Camera camera) {
             if (mPaused) return;
 
+            endAutoFocusTrace();
             mAutoFocusTime = System.currentTimeMillis() - mFocusStartTime;
             Log.v(TAG, "mAutoFocusTime = " + mAutoFocusTime + "ms");
             setCameraState(IDLE);
@@ -1012,8 +1053,10 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         private void storeImage(final byte[] data, Uri uri, String title,
                 Location loc, int width, int height, int thumbnailWidth,
                 int orientation) {
+            CameraTrace.begin(CameraTrace.IMAGE_SAVE);
             boolean ok = Storage.updateImage(mContentResolver, uri, title, loc,
                     orientation, data, width, height);
+            CameraTrace.end(CameraTrace.IMAGE_SAVE);
             if (ok) {
                 boolean needThumbnail;
                 synchronized (this) {
@@ -1157,6 +1200,8 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                 || mCameraState == SWITCHING_CAMERA) {
             return false;
         }
+        CameraTrace.begin(CameraTrace.CAPTURE);
+        mCaptureTraced = true;
         mCaptureStartTime = System.currentTimeMillis();
         mPostViewPictureCallbackTime = 0;
         mJpegImageData = null;
@@ -1220,8 +1265,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
         // To reduce startup time, open the camera and start the preview in
         // another thread.
-        mCameraStartUpThread = new CameraStartUpThread();
-        mCameraStartUpThread.start();
+        startCameraStartUp(true);
 
         setContentView(R.layout.camera);
 
@@ -1238,7 +1282,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         resetExposureCompensation();
         // Starting the preview needs preferences, camera screen nail, and
         // focus area indicator.
-        mStartPreviewPrerequisiteReady.open();
+        mCameraStartUp.complete(mStartPreviewPrerequisites);
 
         initializeControlByIntent();
         mRotateDialog = new RotateDialogController(this, R.layout.rotate_dialog);
@@ -1247,6 +1291,10 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         initializeMiscControls();
         mLocationManager = new LocationManager(this, this);
         initOnScreenIndicator();
+        // Build the settings from the capabilities seen on the last start, if
+        // any, instead of waiting for the camera to open.
+        Parameters snapshot = CapabilitySnapshot.load(this, mCameraId);
+        if (snapshot != null) initializeIndicatorControl(snapshot);
         // Make sure all views are disabled before camera is open.
         enableCameraControls(false);
     }
@@ -1274,17 +1322,22 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         }
     }
 
-    private void loadCameraPreferences() {
-        CameraSettings settings = new CameraSettings(this, mInitialParams,
+    private void loadCameraPreferences(Parameters capabilities) {
+        CameraSettings settings = new CameraSettings(this, capabilities,
                 mCameraId, CameraHolder.instance().getCameraInfo());
         mPreferenceGroup = settings.getPreferenceGroup(R.xml.camera_preferences);
     }
 
     private void initializeIndicatorControl() {
+        initializeIndicatorControl(mInitialParams);
+        updateSceneModeUI();
+    }
+
+    private void initializeIndicatorControl(Parameters capabilities) {
         // setting the indicator buttons.
         mIndicatorControlContainer =
                 (IndicatorControlContainer) findViewById(R.id.indicator_control);
-        loadCameraPreferences();
+        loadCameraPreferences(capabilities);
         final String[] SETTING_KEYS = {
                 CameraSettings.KEY_FLASH_MODE,
                 CameraSettings.KEY_WHITE_BALANCE,
@@ -1313,11 +1366,10 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
         CameraPicker.setImageResourceId(R.drawable.ic_switch_photo_facing_holo_light);
         mIndicatorControlContainer.initialize(this, mPreferenceGroup,
-                mParameters.isZoomSupported(),
+                capabilities.isZoomSupported(),
                 SETTING_KEYS, OTHER_SETTING_KEYS);
         mCameraPicker = (CameraPicker) mIndicatorControlContainer.findViewById(
                 R.id.camera_picker);
-        updateSceneModeUI();
         mIndicatorControlContainer.setListener(this);
     }
 
@@ -1578,10 +1630,9 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         mZoomValue = 0;
 
         // Start the preview if it is not started.
-        if (mCameraState == PREVIEW_STOPPED && mCameraStartUpThread == null) {
+        if (mCameraState == PREVIEW_STOPPED && mCameraStartUp == null) {
             resetExposureCompensation();
-            mCameraStartUpThread = new CameraStartUpThread();
-            mCameraStartUpThread.start();
+            startCameraStartUp(false);
         }
 
         if (!mIsImageCaptureIntent) getLastThumbnail();
@@ -1605,12 +1656,12 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         }
     }
 
-    void waitCameraStartUpThread() {
+    void waitCameraStartUp() {
         try {
-            if (mCameraStartUpThread != null) {
-                mCameraStartUpThread.cancel();
-                mCameraStartUpThread.join();
-                mCameraStartUpThread = null;
+            if (mCameraStartUp != null) {
+                mCameraStartUp.cancel();
+                mCameraStartUp.await();
+                mCameraStartUp = null;
                 setCameraState(IDLE);
             }
         } catch (InterruptedException e) {
@@ -1623,8 +1674,8 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         mPaused = true;
         super.onPause();
 
-        // Wait the camera start up thread to finish.
-        waitCameraStartUpThread();
+        // Wait for the camera start up to finish.
+        waitCameraStartUp();
 
         stopPreview();
         // Close the camera now because other activities may need to use it.
@@ -1670,6 +1721,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         mHandler.removeMessages(SWITCH_CAMERA);
         mHandler.removeMessages(SWITCH_CAMERA_START_ANIMATION);
         mHandler.removeMessages(CAMERA_OPEN_DONE);
+        mHandler.removeMessages(CAPABILITIES_CHANGED);
         mHandler.removeMessages(START_PREVIEW_DONE);
         mHandler.removeMessages(OPEN_CAMERA_FAIL);
         mHandler.removeMessages(CAMERA_DISABLED);
@@ -1806,13 +1858,31 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
     @Override
     public void autoFocus() {
+        CameraTrace.begin(CameraTrace.AUTO_FOCUS);
+        mAutoFocusTraced = true;
         mFocusStartTime = System.currentTimeMillis();
         mCameraDevice.autoFocus(mAutoFocusCallback);
         setCameraState(FOCUSING);
     }
 
+    // The callbacks that end the AUTO_FOCUS and CAPTURE spans do not come
+    // when the focus is cancelled or the camera closed, so the spans are
+    // ended there too.
+    private void endAutoFocusTrace() {
+        if (!mAutoFocusTraced) return;
+        mAutoFocusTraced = false;
+        CameraTrace.end(CameraTrace.AUTO_FOCUS);
+    }
+
+    private void endCaptureTrace() {
+        if (!mCaptureTraced) return;
+        mCaptureTraced = false;
+        CameraTrace.end(CameraTrace.CAPTURE);
+    }
+
     @Override
     public void cancelAutoFocus() {
+        endAutoFocusTrace();
         mCameraDevice.cancelAutoFocus();
         setCameraState(IDLE);
         setCameraParameters(UPDATE_PARAM_PREFERENCE);
@@ -1895,6 +1965,8 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     }
 
     private void closeCamera() {
+        endAutoFocusTrace();
+        endCaptureTrace();
         if (mCameraDevice != null) {
             mCameraDevice.setZoomChangeListener(null);
             mCameraDevice.setFaceDetectionListener(null);
@@ -1920,24 +1992,28 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     private void startPreview() {
         mFocusManager.resetTouchFocus();
 
-        mCameraDevice.setErrorCallback(mErrorCallback);
-
         // If we're previewing already, stop the preview first (this will blank
         // the screen).
         if (mCameraState != PREVIEW_STOPPED) stopPreview();
 
+        // Configure the camera in a single round trip to the camera thread.
+        CameraManager.Batch batch = new CameraManager.Batch(mCameraDevice);
+        batch.setErrorCallback(mErrorCallback);
         setDisplayOrientation();
-        mCameraDevice.setDisplayOrientation(mCameraDisplayOrientation);
+        batch.setDisplayOrientation(mCameraDisplayOrientation);
 
         if (!mSnapshotOnIdle) {
             // If the focus mode is continuous autofocus, call cancelAutoFocus to
             // resume it because it may have been paused by autoFocus call.
             if (Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(mFocusManager.getFocusMode())) {
-                mCameraDevice.cancelAutoFocus();
+                batch.cancelAutoFocus();
             }
             mFocusManager.setAeAwbLock(false); // Unlock AE and AWB.
         }
-        setCameraParameters(UPDATE_PARAM_ALL);
+        updateCameraParameters(UPDATE_PARAM_ALL);
+        batch.setParameters(mParameters);
+        // Wait for it, as mParameters may change again right after.
+        batch.submit().throwIfFailed();
 
         if (mSurfaceTexture == null) {
             Size size = mParameters.getPreviewSize();
@@ -2242,6 +2318,11 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     // the subsets actually need updating. The PREFERENCE set needs extra
     // locking because the preference can be changed from GLThread as well.
     private void setCameraParameters(int updateSet) {
+        updateCameraParameters(updateSet);
+        mCameraDevice.setParameters(mParameters);
+    }
+
+    private void updateCameraParameters(int updateSet) {
         if ((updateSet & UPDATE_PARAM_INITIALIZE) != 0) {
             updateCameraParametersInitialize();
         }
@@ -2253,8 +2334,6 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         if ((updateSet & UPDATE_PARAM_PREFERENCE) != 0) {
             updateCameraParametersPreference();
         }
-
-        mCameraDevice.setParameters(mParameters);
     }
 
     // If the Camera is idle, update the parameters immediately, otherwise
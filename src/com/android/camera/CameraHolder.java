@@ -39,7 +39,8 @@ import java.io.IOException;
  * called before {@code release()}, CameraHolder will try to hold the {@code
  * android.hardware.Camera} instance for a while, so if {@code open()} is
  * called soon after, we can avoid the cost of {@code open()} in {@code
- * android.hardware.Camera}.
+ * android.hardware.Camera}. How long is decided by a {@link
+ * CameraRetentionPolicy} from the recent openings.
  *
  * <p>This is used in switching between {@code Camera} and {@code VideoCamera}
  * activities.
@@ -48,6 +49,8 @@ public class CameraHolder {
     private static final String TAG = "CameraHolder";
     private CameraProxy mCameraDevice;
     private long mKeepBeforeTime;  // Keep the Camera before this time.
+    private long mIdleSince;  // When the kept Camera was released, or 0.
+    private final CameraRetentionPolicy mRetentionPolicy = new CameraRetentionPolicy();
     private final Handler mHandler;
     private boolean mCameraOpened;  // true if camera is opened
     private final int mNumberOfCameras;
@@ -139,12 +142,13 @@ public class CameraHolder {
     public synchronized CameraProxy open(int cameraId)
             throws CameraHardwareException {
         Assert(!mCameraOpened);
+        CameraTrace.begin(CameraTrace.CAMERA_OPEN);
+        long start = System.currentTimeMillis();
         if (mCameraDevice != null && mCameraId != cameraId) {
-            mCameraDevice.release();
-            mCameraDevice = null;
-            mCameraId = -1;
+            closeDevice(start);
         }
-        if (mCameraDevice == null) {
+        boolean warm = (mCameraDevice != null);
+        if (!warm) {
             try {
                 Log.v(TAG, "open camera " + cameraId);
                 if (mMockCameraInfo == null) {
@@ -157,6 +161,7 @@ public class CameraHolder {
                 mCameraId = cameraId;
             } catch (RuntimeException e) {
                 Log.e(TAG, "fail to connect Camera", e);
+                CameraTrace.end(CameraTrace.CAMERA_OPEN);
                 throw new CameraHardwareException(e);
             }
             mParameters = mCameraDevice.getParameters();
@@ -165,6 +170,7 @@ public class CameraHolder {
                 mCameraDevice.reconnect();
             } catch (IOException e) {
                 Log.e(TAG, "reconnect failed.");
+                CameraTrace.end(CameraTrace.CAMERA_OPEN);
                 throw new CameraHardwareException(e);
             }
             mCameraDevice.setParameters(mParameters);
@@ -172,6 +178,16 @@ public class CameraHolder {
         mCameraOpened = true;
         mHandler.removeMessages(RELEASE_CAMERA);
         mKeepBeforeTime = 0;
+
+        long now = System.currentTimeMillis();
+        if (warm && mIdleSince != 0) {
+            mRetentionPolicy.onIdleEnd(start - mIdleSince, now);
+            mIdleSince = 0;
+        }
+        mRetentionPolicy.onOpen(cameraId, warm, now - start, now);
+        Log.v(TAG, (warm ? "warm" : "cold") + " open in " + (now - start) + " ms, "
+                + mRetentionPolicy);
+        CameraTrace.end(CameraTrace.CAMERA_OPEN);
         return mCameraDevice;
     }
 
@@ -196,16 +212,26 @@ public class CameraHolder {
         Assert(mCameraDevice != null);
 
         long now = System.currentTimeMillis();
+        if (mCameraOpened) mRetentionPolicy.onRelease(mCameraId, now);
         if (now < mKeepBeforeTime) {
             if (mCameraOpened) {
                 mCameraOpened = false;
                 mCameraDevice.stopPreview();
+                mIdleSince = now;
             }
             mHandler.sendEmptyMessageDelayed(RELEASE_CAMERA,
                     mKeepBeforeTime - now);
             return;
         }
         mCameraOpened = false;
+        closeDevice(now);
+    }
+
+    private void closeDevice(long now) {
+        if (mIdleSince != 0) {
+            mRetentionPolicy.onIdleEnd(now - mIdleSince, now);
+            mIdleSince = 0;
+        }
         mCameraDevice.release();
         mCameraDevice = null;
         // We must set this to null because it has a reference to Camera.
@@ -219,8 +245,15 @@ public class CameraHolder {
         // calling activity. The activity may not have a chance to call open()
         // before the user switches to another activity.
 
-        // Keep the camera instance for 3 seconds.
-        mKeepBeforeTime = System.currentTimeMillis() + 3000;
+        // Keep the camera instance for as long as mRetentionPolicy expects
+        // it to be opened again.
+        long now = System.currentTimeMillis();
+        mKeepBeforeTime = now + mRetentionPolicy.getRetention(mCameraId, now);
+    }
+
+    /** Hit rate and time saved by keeping the camera. */
+    public CameraRetentionPolicy getRetentionPolicy() {
+        return mRetentionPolicy;
     }
 
     public int getBackCameraId() {
@@ -36,6 +36,7 @@ import android.os.Message;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 public class CameraManager {
     private static final String TAG = "CameraManager";
@@ -46,6 +47,8 @@ public class CameraManager {
 
     private Parameters mParameters;
     private IOException mReconnectException;
+    // Parameters on the device, to skip applying the same ones again.
+    private final ParametersTracker mParametersTracker = new ParametersTracker();
 
     private static final int RELEASE = 1;
     private static final int RECONNECT = 2;
@@ -69,6 +72,7 @@ public class CameraManager {
     private static final int GET_PARAMETERS = 20;
     private static final int SET_PARAMETERS_ASYNC = 21;
     private static final int WAIT_FOR_IDLE = 22;
+    private static final int RUN_BATCH = 23;
 
     private Handler mCameraHandler;
     private CameraProxy mCameraProxy;
@@ -91,124 +95,188 @@ public class CameraManager {
 
         @Override
         public void handleMessage(final Message msg) {
+            if (msg.what == RUN_BATCH) {
+                runBatch((BatchResult) msg.obj);
+                return;
+            }
+            boolean signal;
             try {
-                switch (msg.what) {
-                    case RELEASE:
-                        mCamera.release();
-                        mCamera = null;
-                        mCameraProxy = null;
-                        break;
-
-                    case RECONNECT:
-                        mReconnectException = null;
-                        try {
-                            mCamera.reconnect();
-                        } catch (IOException ex) {
-                            mReconnectException = ex;
-                        }
-                        break;
-
-                    case UNLOCK:
-                        mCamera.unlock();
-                        break;
-
-                    case LOCK:
-                        mCamera.lock();
-                        break;
-
-                    case SET_PREVIEW_TEXTURE_ASYNC:
-                        try {
-                            mCamera.setPreviewTexture((SurfaceTexture) msg.obj);
-                        } catch(IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                        return;  // no need to call mSig.open()
-
-                    case START_PREVIEW_ASYNC:
-                        mCamera.startPreview();
-                        return;  // no need to call mSig.open()
-
-                    case STOP_PREVIEW:
-                        mCamera.stopPreview();
-                        break;
-
-                    case SET_PREVIEW_CALLBACK_WITH_BUFFER:
-                        mCamera.setPreviewCallbackWithBuffer(
-                            (PreviewCallback) msg.obj);
-                        break;
-
-                    case ADD_CALLBACK_BUFFER:
-                        mCamera.addCallbackBuffer((byte[]) msg.obj);
-                        break;
-
-                    case AUTO_FOCUS:
-                        mCamera.autoFocus((AutoFocusCallback) msg.obj);
-                        break;
-
-                    case CANCEL_AUTO_FOCUS:
-                        mCamera.cancelAutoFocus();
-                        break;
-
-                    case SET_AUTO_FOCUS_MOVE_CALLBACK:
-                        mCamera.setAutoFocusMoveCallback(
-                            (AutoFocusMoveCallback) msg.obj);
-                        break;
-
-                    case SET_DISPLAY_ORIENTATION:
-                        mCamera.setDisplayOrientation(msg.arg1);
-                        break;
-
-                    case SET_ZOOM_CHANGE_LISTENER:
-                        mCamera.setZoomChangeListener(
-                            (OnZoomChangeListener) msg.obj);
-                        break;
-
-                    case SET_FACE_DETECTION_LISTENER:
-                        mCamera.setFaceDetectionListener(
-                            (FaceDetectionListener) msg.obj);
-                        break;
-
-                    case START_FACE_DETECTION:
-                        mCamera.startFaceDetection();
-                        break;
-
-                    case STOP_FACE_DETECTION:
-                        mCamera.stopFaceDetection();
-                        break;
-
-                    case SET_ERROR_CALLBACK:
-                        mCamera.setErrorCallback((ErrorCallback) msg.obj);
-                        break;
-
-                    case SET_PARAMETERS:
-                        mCamera.setParameters((Parameters) msg.obj);
-                        break;
-
-                    case GET_PARAMETERS:
-                        mParameters = mCamera.getParameters();
-                        break;
-
-                    case SET_PARAMETERS_ASYNC:
-                        mCamera.setParameters((Parameters) msg.obj);
-                        return;  // no need to call mSig.open()
-
-                    case WAIT_FOR_IDLE:
-                        // do nothing
-                        break;
-                }
+                signal = runOperation(msg.what, msg.arg1, msg.obj);
             } catch (RuntimeException e) {
-                if (msg.what != RELEASE && mCamera != null) {
-                    try {
-                        mCamera.release();
-                    } catch (Exception ex) {
-                        Log.e(TAG, "Fail to release the camera.");
-                    }
-                    mCamera = null;
-                    mCameraProxy = null;
-                }
+                if (msg.what != RELEASE) releaseAfterFailure();
                 throw e;
             }
-            mSig.open();
+            if (signal) mSig.open();
+        }
+    }
+
+    // Runs one operation on the camera handler thread. Returns false if the
+    // caller does not wait for it.
+    private boolean runOperation(int what, int arg1, Object obj) {
+        switch (what) {
+            case RELEASE:
+                // Already released if a batched operation failed.
+                if (mCamera != null) mCamera.release();
+                mCamera = null;
+                mCameraProxy = null;
+                if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, "Parameters: " + mParametersTracker);
+                }
+                break;
+
+            case RECONNECT:
+                mParametersTracker.invalidate();
+                mReconnectException = null;
+                try {
+                    mCamera.reconnect();
+                } catch (IOException ex) {
+                    mReconnectException = ex;
+                }
+                break;
+
+            case UNLOCK:
+                mCamera.unlock();
+                break;
+
+            case LOCK:
+                mCamera.lock();
+                break;
+
+            case SET_PREVIEW_TEXTURE_ASYNC:
+                try {
+                    mCamera.setPreviewTexture((SurfaceTexture) obj);
+                } catch(IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return false;  // no need to call mSig.open()
+
+            case START_PREVIEW_ASYNC:
+                mCamera.startPreview();
+                return false;  // no need to call mSig.open()
+
+            case STOP_PREVIEW:
+                mCamera.stopPreview();
+                break;
+
+            case SET_PREVIEW_CALLBACK_WITH_BUFFER:
+                mCamera.setPreviewCallbackWithBuffer(
+                    (PreviewCallback) obj);
+                break;
+
+            case ADD_CALLBACK_BUFFER:
+                mCamera.addCallbackBuffer((byte[]) obj);
+                break;
+
+            case AUTO_FOCUS:
+                mCamera.autoFocus((AutoFocusCallback) obj);
+                break;
+
+            case CANCEL_AUTO_FOCUS:
+                mCamera.cancelAutoFocus();
+                break;
+
+            case SET_AUTO_FOCUS_MOVE_CALLBACK:
+                mCamera.setAutoFocusMoveCallback(
+                    (AutoFocusMoveCallback) obj);
+                break;
+
+            case SET_DISPLAY_ORIENTATION:
+                mCamera.setDisplayOrientation(arg1);
+                break;
+
+            case SET_ZOOM_CHANGE_LISTENER:
+                mCamera.setZoomChangeListener(
+                    (OnZoomChangeListener) obj);
+                break;
+
+            case SET_FACE_DETECTION_LISTENER:
+                mCamera.setFaceDetectionListener(
+                    (FaceDetectionListener) obj);
+                break;
+
+            case START_FACE_DETECTION:
+                mCamera.startFaceDetection();
+                break;
+
+            case STOP_FACE_DETECTION:
+                mCamera.stopFaceDetection();
+                break;
+
+            case SET_ERROR_CALLBACK:
+                mCamera.setErrorCallback((ErrorCallback) obj);
+                break;
+
+            case SET_PARAMETERS:
+                applyParameters((Parameters) obj);
+                break;
+
+            case GET_PARAMETERS:
+                mParameters = readParameters();
+                break;
+
+            case SET_PARAMETERS_ASYNC:
+                applyParameters((Parameters) obj);
+                return false;  // no need to call mSig.open()
+
+            case WAIT_FOR_IDLE:
+                // do nothing
+                break;
+        }
+        return true;
+    }
+
+    // Runs the operations of a batch in order. An operation that fails
+    // releases the camera, as a failing single call does, and the remaining
+    // ones are not run.
+    private void runBatch(BatchResult result) {
+        ArrayList<Operation> ops = result.mOperations;
+        for (int i = 0; i < ops.size(); i++) {
+            Operation op = ops.get(i);
+            try {
+                if (op.what == GET_PARAMETERS) {
+                    // Not through mParameters, which a waiting getParameters()
+                    // may still have to read.
+                    result.mParameters = readParameters();
+                } else {
+                    runOperation(op.what, op.arg1, op.obj);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Batched camera operation " + op.what + " failed", e);
+                result.mErrors[i] = e;
+                releaseAfterFailure();
+                break;
+            }
+            result.mExecuted[i] = true;
+        }
+        result.mDone.open();
+    }
+
+    // Applies params unless they are already on the device.
+    private void applyParameters(Parameters params) {
+        String flattened = params.flatten();
+        if (!mParametersTracker.needsApply(flattened)) return;
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "Changed parameters: " + mParametersTracker.getDirtyKeys(flattened));
+        }
+        mCamera.setParameters(params);
+        mParametersTracker.onApplied(flattened);
+    }
+
+    private Parameters readParameters() {
+        Parameters params = mCamera.getParameters();
+        mParametersTracker.onRead(params.flatten());
+        return params;
+    }
+
+    private void releaseAfterFailure() {
+        if (mCamera != null) {
+            try {
+                mCamera.release();
+            } catch (Exception ex) {
+                Log.e(TAG, "Fail to release the camera.");
+            }
+            mCamera = null;
+            mCameraProxy = null;
         }
     }
 
@@ -222,29 +290,77 @@ public class CameraManager {
         // CalledFromWrongThreadException: Only the original thread that created
         // a view hierarchy can touch its views.
         mCamera = android.hardware.Camera.open(cameraId);
+        mParametersTracker.reset();
         if (mCamera != null) {
-            mCameraProxy = new CameraProxy();
+            mCameraProxy = new AndroidCameraProxyImpl();
             return mCameraProxy;
         } else {
             return null;
         }
     }
 
-    public class CameraProxy {
-        private CameraProxy() {
+    /**
+     * The camera device as used by the activities. {@link #cameraOpen(int)}
+     * returns one that runs the calls on the camera handler thread; the tests
+     * inject other implementations through CameraHolder.
+     */
+    public interface CameraProxy {
+        public android.hardware.Camera getCamera();
+        public void release();
+        public void reconnect() throws IOException;
+        public void unlock();
+        public void lock();
+
+        public void setPreviewTextureAsync(SurfaceTexture surfaceTexture);
+        public void startPreviewAsync();
+        public void stopPreview();
+        public void setPreviewCallbackWithBuffer(PreviewCallback cb);
+        public void addCallbackBuffer(byte[] callbackBuffer);
+        public void autoFocus(AutoFocusCallback cb);
+        public void cancelAutoFocus();
+        public void setAutoFocusMoveCallback(AutoFocusMoveCallback cb);
+        public void takePicture(ShutterCallback shutter, PictureCallback raw,
+                PictureCallback postview, PictureCallback jpeg);
+        public void setDisplayOrientation(int degrees);
+        public void setZoomChangeListener(OnZoomChangeListener listener);
+        public void setFaceDetectionListener(FaceDetectionListener listener);
+        public void startFaceDetection();
+        public void stopFaceDetection();
+        public void setErrorCallback(ErrorCallback cb);
+        public void setParameters(Parameters params);
+        public void setParametersAsync(Parameters params);
+        public Parameters getParameters();
+        public void waitForIdle();
+
+        /** Counts of the parameters applied and of those skipped as unchanged. */
+        public ParametersTracker getParametersTracker();
+    }
+
+    private class AndroidCameraProxyImpl implements CameraProxy {
+        private AndroidCameraProxyImpl() {
             Assert(mCamera != null);
         }
 
+        @Override
         public android.hardware.Camera getCamera() {
+            // The parameters may now be changed without going through us.
+            mParametersTracker.stopTracking();
             return mCamera;
         }
 
+        @Override
+        public ParametersTracker getParametersTracker() {
+            return mParametersTracker;
+        }
+
+        @Override
         public void release() {
             mSig.close();
             mCameraHandler.sendEmptyMessage(RELEASE);
             mSig.block();
         }
 
+        @Override
         public void reconnect() throws IOException {
             mSig.close();
             mCameraHandler.sendEmptyMessage(RECONNECT);
@@ -254,62 +370,73 @@ public class CameraManager {
             }
         }
 
+        @Override
         public void unlock() {
             mSig.close();
             mCameraHandler.sendEmptyMessage(UNLOCK);
             mSig.block();
         }
 
+        @Override
         public void lock() {
             mSig.close();
             mCameraHandler.sendEmptyMessage(LOCK);
             mSig.block();
         }
 
+        @Override
         public void setPreviewTextureAsync(final SurfaceTexture surfaceTexture) {
             mCameraHandler.obtainMessage(SET_PREVIEW_TEXTURE_ASYNC, surfaceTexture).sendToTarget();
         }
 
+        @Override
         public void startPreviewAsync() {
             mCameraHandler.sendEmptyMessage(START_PREVIEW_ASYNC);
         }
 
+        @Override
         public void stopPreview() {
             mSig.close();
             mCameraHandler.sendEmptyMessage(STOP_PREVIEW);
             mSig.block();
         }
 
+        @Override
         public void setPreviewCallbackWithBuffer(final PreviewCallback cb) {
             mSig.close();
             mCameraHandler.obtainMessage(SET_PREVIEW_CALLBACK_WITH_BUFFER, cb).sendToTarget();
             mSig.block();
         }
 
+        @Override
         public void addCallbackBuffer(byte[] callbackBuffer) {
             mSig.close();
             mCameraHandler.obtainMessage(ADD_CALLBACK_BUFFER, callbackBuffer).sendToTarget();
             mSig.block();
         }
 
+        @Override
         public void autoFocus(AutoFocusCallback cb) {
             mSig.close();
             mCameraHandler.obtainMessage(AUTO_FOCUS, cb).sendToTarget();
             mSig.block();
         }
 
+        @Override
         public void cancelAutoFocus() {
             mSig.close();
             mCameraHandler.sendEmptyMessage(CANCEL_AUTO_FOCUS);
             mSig.block();
         }
 
+        @Override
         public void setAutoFocusMoveCallback(AutoFocusMoveCallback cb) {
 //            mSig.close();
 //            mCameraHandler.obtainMessage(SET_AUTO_FOCUS_MOVE_CALLBACK, cb).sendToTarget();
 //            mSig.block();
         }
 
+        @Override
         public void takePicture(final ShutterCallback shutter, final PictureCallback raw,
                 final PictureCallback postview, final PictureCallback jpeg) {
             mSig.close();
@@ -324,6 +451,7 @@ public class CameraManager {
             mSig.block();
         }
 
+        @Override
         public void setDisplayOrientation(int degrees) {
             mSig.close();
             mCameraHandler.obtainMessage(SET_DISPLAY_ORIENTATION, degrees, 0)
@@ -331,47 +459,55 @@ public class CameraManager {
             mSig.block();
         }
 
+        @Override
         public void setZoomChangeListener(OnZoomChangeListener listener) {
             mSig.close();
             mCameraHandler.obtainMessage(SET_ZOOM_CHANGE_LISTENER, listener).sendToTarget();
             mSig.block();
         }
 
+        @Override
         public void setFaceDetectionListener(FaceDetectionListener listener) {
             mSig.close();
             mCameraHandler.obtainMessage(SET_FACE_DETECTION_LISTENER, listener).sendToTarget();
             mSig.block();
         }
 
+        @Override
         public void startFaceDetection() {
             mSig.close();
             mCameraHandler.sendEmptyMessage(START_FACE_DETECTION);
             mSig.block();
         }
 
+        @Override
         public void stopFaceDetection() {
             mSig.close();
             mCameraHandler.sendEmptyMessage(STOP_FACE_DETECTION);
             mSig.block();
         }
 
+        @Override
         public void setErrorCallback(ErrorCallback cb) {
             mSig.close();
             mCameraHandler.obtainMessage(SET_ERROR_CALLBACK, cb).sendToTarget();
             mSig.block();
         }
 
+        @Override
         public void setParameters(Parameters params) {
             mSig.close();
             mCameraHandler.obtainMessage(SET_PARAMETERS, params).sendToTarget();
             mSig.block();
         }
 
+        @Override
         public void setParametersAsync(Parameters params) {
             mCameraHandler.removeMessages(SET_PARAMETERS_ASYNC);
             mCameraHandler.obtainMessage(SET_PARAMETERS_ASYNC, params).sendToTarget();
         }
 
+        @Override
         public Parameters getParameters() {
             mSig.close();
             mCameraHandler.sendEmptyMessage(GET_PARAMETERS);
@@ -379,10 +515,235 @@ public class CameraManager {
             return mParameters;
         }
 
+        @Override
         public void waitForIdle() {
             mSig.close();
             mCameraHandler.sendEmptyMessage(WAIT_FOR_IDLE);
             mSig.block();
         }
     }
+
+    private static class Operation {
+        final int what;
+        final int arg1;
+        final Object obj;
+
+        Operation(int what, int arg1, Object obj) {
+            this.what = what;
+            this.arg1 = arg1;
+            this.obj = obj;
+        }
+    }
+
+    /**
+     * Queues camera operations, to be run in order with a single hop to the
+     * camera handler thread instead of one blocking round trip each. The
+     * operations are numbered from 0 in the order they are queued. If one of
+     * them fails, the camera is released, as it is when a single call fails,
+     * and the ones after it are not run. The cameras injected by the tests run
+     * the operations one call each, on the calling thread.
+     */
+    public static class Batch {
+        private final CameraProxy mCamera;
+        private final ArrayList<Operation> mOperations = new ArrayList<Operation>();
+        private boolean mSubmitted;
+
+        public Batch(CameraProxy camera) {
+            mCamera = camera;
+        }
+
+        private Batch add(int what, int arg1, Object obj) {
+            Assert(!mSubmitted);
+            mOperations.add(new Operation(what, arg1, obj));
+            return this;
+        }
+
+        public Batch setErrorCallback(ErrorCallback cb) {
+            return add(SET_ERROR_CALLBACK, 0, cb);
+        }
+
+        public Batch setDisplayOrientation(int degrees) {
+            return add(SET_DISPLAY_ORIENTATION, degrees, null);
+        }
+
+        public Batch setPreviewTexture(SurfaceTexture surfaceTexture) {
+            return add(SET_PREVIEW_TEXTURE_ASYNC, 0, surfaceTexture);
+        }
+
+        public Batch startPreview() {
+            return add(START_PREVIEW_ASYNC, 0, null);
+        }
+
+        public Batch stopPreview() {
+            return add(STOP_PREVIEW, 0, null);
+        }
+
+        public Batch cancelAutoFocus() {
+            return add(CANCEL_AUTO_FOCUS, 0, null);
+        }
+
+        public Batch setZoomChangeListener(OnZoomChangeListener listener) {
+            return add(SET_ZOOM_CHANGE_LISTENER, 0, listener);
+        }
+
+        public Batch setFaceDetectionListener(FaceDetectionListener listener) {
+            return add(SET_FACE_DETECTION_LISTENER, 0, listener);
+        }
+
+        public Batch startFaceDetection() {
+            return add(START_FACE_DETECTION, 0, null);
+        }
+
+        public Batch stopFaceDetection() {
+            return add(STOP_FACE_DETECTION, 0, null);
+        }
+
+        // The parameters are flattened on the camera handler thread, so the
+        // caller must not change them until the batch is done, as with
+        // CameraProxy.setParametersAsync().
+        public Batch setParameters(Parameters params) {
+            return add(SET_PARAMETERS, 0, params);
+        }
+
+        // The result is returned by BatchResult.getParameters().
+        public Batch getParameters() {
+            return add(GET_PARAMETERS, 0, null);
+        }
+
+        /**
+         * Sends the queued operations to the camera handler thread and
+         * returns without waiting for them. The result must still be checked
+         * before the camera is used again, as a failure releases it.
+         */
+        public BatchResult submit() {
+            Assert(!mSubmitted);
+            mSubmitted = true;
+            BatchResult result = new BatchResult(mOperations);
+            if (mCamera instanceof AndroidCameraProxyImpl) {
+                sCameraManager.mCameraHandler.obtainMessage(RUN_BATCH, result)
+                        .sendToTarget();
+            } else {
+                // A camera injected by the tests.
+                result.runOn(mCamera);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Completion of a submitted {@link Batch}. The getters wait for all its
+     * operations to be run.
+     */
+    public static class BatchResult {
+        private final ArrayList<Operation> mOperations;
+        private final ConditionVariable mDone = new ConditionVariable();
+        private final RuntimeException[] mErrors;
+        private final boolean[] mExecuted;
+        private Parameters mParameters;
+
+        private BatchResult(ArrayList<Operation> operations) {
+            mOperations = operations;
+            mErrors = new RuntimeException[operations.size()];
+            mExecuted = new boolean[operations.size()];
+        }
+
+        // Runs the operations one call each on camera.
+        private void runOn(CameraProxy camera) {
+            for (int i = 0; i < mOperations.size(); i++) {
+                Operation op = mOperations.get(i);
+                try {
+                    switch (op.what) {
+                        case SET_ERROR_CALLBACK:
+                            camera.setErrorCallback((ErrorCallback) op.obj);
+                            break;
+                        case SET_DISPLAY_ORIENTATION:
+                            camera.setDisplayOrientation(op.arg1);
+                            break;
+                        case SET_PREVIEW_TEXTURE_ASYNC:
+                            camera.setPreviewTextureAsync((SurfaceTexture) op.obj);
+                            break;
+                        case START_PREVIEW_ASYNC:
+                            camera.startPreviewAsync();
+                            break;
+                        case STOP_PREVIEW:
+                            camera.stopPreview();
+                            break;
+                        case CANCEL_AUTO_FOCUS:
+                            camera.cancelAutoFocus();
+                            break;
+                        case SET_ZOOM_CHANGE_LISTENER:
+                            camera.setZoomChangeListener((OnZoomChangeListener) op.obj);
+                            break;
+                        case SET_FACE_DETECTION_LISTENER:
+                            camera.setFaceDetectionListener((FaceDetectionListener) op.obj);
+                            break;
+                        case START_FACE_DETECTION:
+                            camera.startFaceDetection();
+                            break;
+                        case STOP_FACE_DETECTION:
+                            camera.stopFaceDetection();
+                            break;
+                        case SET_PARAMETERS:
+                            camera.setParameters((Parameters) op.obj);
+                            break;
+                        case GET_PARAMETERS:
+                            mParameters = camera.getParameters();
+                            break;
+                    }
+                } catch (RuntimeException e) {
+                    mErrors[i] = e;
+                    break;
+                }
+                mExecuted[i] = true;
+            }
+            mDone.open();
+        }
+
+        public boolean isDone() {
+            return mDone.block(0);
+        }
+
+        public void waitForCompletion() {
+            mDone.block();
+        }
+
+        public int getOperationCount() {
+            return mOperations.size();
+        }
+
+        // Whether the operation was run and succeeded.
+        public boolean isExecuted(int index) {
+            waitForCompletion();
+            return mExecuted[index];
+        }
+
+        // The exception thrown by the operation, or null if it succeeded or
+        // was not run because an earlier one failed.
+        public RuntimeException getError(int index) {
+            waitForCompletion();
+            return mErrors[index];
+        }
+
+        public boolean isSuccessful() {
+            waitForCompletion();
+            for (boolean executed : mExecuted) {
+                if (!executed) return false;
+            }
+            return true;
+        }
+
+        // Throws the exception of the failed operation, if any.
+        public void throwIfFailed() {
+            waitForCompletion();
+            for (RuntimeException e : mErrors) {
+                if (e != null) throw e;
+            }
+        }
+
+        // The parameters read by the last getParameters() of the batch.
+        public Parameters getParameters() {
+            waitForCompletion();
+            return mParameters;
+        }
+    }
 }
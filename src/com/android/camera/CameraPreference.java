@@ -18,8 +18,6 @@ package com.android.camera;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.content.res.TypedArray;
-import android.util.AttributeSet;
 
 /**
  * The base class of all Preferences used in Camera. The preferences can be
@@ -27,7 +25,9 @@ import android.util.AttributeSet;
  */
 public abstract class CameraPreference {
 
-    private final String mTitle;
+    // The title is resolved from mTitleId when first asked for.
+    private final int mTitleId;
+    private String mTitle;
     private SharedPreferences mSharedPreferences;
     private final Context mContext;
 
@@ -38,15 +38,16 @@ public abstract class CameraPreference {
         public void onCameraPickerClicked(int cameraId);
     }
 
-    public CameraPreference(Context context, AttributeSet attrs) {
+    public CameraPreference(Context context, PreferenceNode node) {
         mContext = context;
-        TypedArray a = context.obtainStyledAttributes(
-                attrs, R.styleable.CameraPreference, 0, 0);
-        mTitle = a.getString(R.styleable.CameraPreference_title);
-        a.recycle();
+        mTitleId = node.mTitleId;
+        mTitle = node.mTitle;
     }
 
     public String getTitle() {
+        if (mTitle == null && mTitleId != 0) {
+            mTitle = mContext.getString(mTitleId);
+        }
         return mTitle;
     }
 
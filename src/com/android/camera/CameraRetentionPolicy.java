@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.util.Arrays;
+
+/**
+ * Decides how long {@link CameraHolder} keeps a released camera open, from
+ * the recent history of the user releasing a camera and opening one again.
+ *
+ * <p>A kept camera only helps if the same camera is opened again before it
+ * is closed, as when switching between the still and video modes. So the
+ * camera is kept long enough to cover most of the recent reopenings of the
+ * same camera, and not at all if the user recently went on to other cameras
+ * instead. The time a camera is kept open unused is bounded per release and
+ * over a sliding window, as an idle open camera costs memory and power.
+ *
+ * <p>All times are in milliseconds, from the clock of the caller.
+ */
+public class CameraRetentionPolicy {
+    // Retention before enough history is known, as the fixed keep() time
+    // used before.
+    static final long DEFAULT_RETENTION = 3000;
+    // Upper bound of a single retention.
+    static final long MAX_RETENTION = 10000;
+    // Upper bound of the time spent kept open unused over BUDGET_WINDOW.
+    static final long IDLE_BUDGET = 30000;
+    static final long BUDGET_WINDOW = 5 * 60 * 1000;
+    // Added to the predicted reopening time.
+    static final long MARGIN = 500;
+
+    private static final int HISTORY_SIZE = 16;
+    // Transitions from a camera needed before predicting from them.
+    private static final int MIN_HISTORY = 3;
+    // Fraction of the recent reopenings that the retention should cover.
+    private static final float COVERAGE = 0.8f;
+
+    // Ring of the recent transitions from releasing a camera to opening one
+    private final int[] mFromId = new int[HISTORY_SIZE];
+    private final int[] mToId = new int[HISTORY_SIZE];
+    private final long[] mGap = new long[HISTORY_SIZE];
+    private int mHistoryCount;
+    private int mHistoryNext;
+
+    private int mReleasedId = -1;
+    private long mReleaseTime;
+
+    // Idle time spent within the current budget window
+    private long mBudgetWindowStart;
+    private long mIdleSpent;
+
+    // Metrics
+    private int mWarmOpens;
+    private int mColdOpens;
+    private long mColdOpenTotal;
+    private long mWarmOpenTotal;
+    private long mIdleTotal;
+
+    /** Called when the camera cameraId is released by the user. */
+    public synchronized void onRelease(int cameraId, long now) {
+        mReleasedId = cameraId;
+        mReleaseTime = now;
+    }
+
+    /**
+     * Called when a camera is opened. warm tells whether the kept camera was
+     * reused, and duration how long the open took.
+     */
+    public synchronized void onOpen(int cameraId, boolean warm, long duration, long now) {
+        if (mReleasedId != -1) {
+            mFromId[mHistoryNext] = mReleasedId;
+            mToId[mHistoryNext] = cameraId;
+            mGap[mHistoryNext] = now - mReleaseTime;
+            mHistoryNext = (mHistoryNext + 1) % HISTORY_SIZE;
+            if (mHistoryCount < HISTORY_SIZE) mHistoryCount++;
+            mReleasedId = -1;
+        }
+        if (warm) {
+            mWarmOpens++;
+            mWarmOpenTotal += duration;
+        } else {
+            mColdOpens++;
+            mColdOpenTotal += duration;
+        }
+    }
+
+    /**
+     * Called when a kept camera stops being idle, because it is reused or
+     * closed, after being kept unused for idle milliseconds.
+     */
+    public synchronized void onIdleEnd(long idle, long now) {
+        updateBudgetWindow(now);
+        mIdleSpent += idle;
+        mIdleTotal += idle;
+    }
+
+    /**
+     * Returns how long to keep the camera cameraId open after it is released
+     * at now, or 0 to close it right away.
+     */
+    public synchronized long getRetention(int cameraId, long now) {
+        updateBudgetWindow(now);
+        long budget = Math.max(0, IDLE_BUDGET - mIdleSpent);
+
+        // Transitions from this camera, and the gaps of those reopening it
+        // soon enough for a retention to cover. Later reopenings count as
+        // misses, as going on to another camera does.
+        int count = 0;
+        long[] reopenGaps = new long[mHistoryCount];
+        int reopenCount = 0;
+        for (int i = 0; i < mHistoryCount; i++) {
+            if (mFromId[i] != cameraId) continue;
+            count++;
+            if (mToId[i] == cameraId && mGap[i] <= MAX_RETENTION) {
+                reopenGaps[reopenCount++] = mGap[i];
+            }
+        }
+
+        long retention;
+        if (count < MIN_HISTORY) {
+            retention = DEFAULT_RETENTION;
+        } else if (reopenCount * 2 < count) {
+            // The user mostly goes on to other cameras, or comes back late.
+            retention = 0;
+        } else {
+            Arrays.sort(reopenGaps, 0, reopenCount);
+            int index = (int) Math.ceil(reopenCount * COVERAGE) - 1;
+            retention = reopenGaps[index] + MARGIN;
+        }
+        return Math.min(Math.min(retention, MAX_RETENTION), budget);
+    }
+
+    private void updateBudgetWindow(long now) {
+        if (now - mBudgetWindowStart >= BUDGET_WINDOW || now < mBudgetWindowStart) {
+            mBudgetWindowStart = now;
+            mIdleSpent = 0;
+        }
+    }
+
+    public synchronized int getWarmOpens() {
+        return mWarmOpens;
+    }
+
+    public synchronized int getColdOpens() {
+        return mColdOpens;
+    }
+
+    /** Fraction of the opens that reused a kept camera. */
+    public synchronized float getHitRate() {
+        int opens = mWarmOpens + mColdOpens;
+        return opens == 0 ? 0 : (float) mWarmOpens / opens;
+    }
+
+    /** Time saved by the warm opens, against the mean cold open time. */
+    public synchronized long getTimeSaved() {
+        if (mColdOpens == 0) return 0;
+        long meanCold = mColdOpenTotal / mColdOpens;
+        return Math.max(0, meanCold * mWarmOpens - mWarmOpenTotal);
+    }
+
+    /** Total time cameras were kept open unused. */
+    public synchronized long getIdleTime() {
+        return mIdleTotal;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "opens: " + mWarmOpens + " warm, " + mColdOpens + " cold, hit rate "
+                + getHitRate() + ", " + getTimeSaved() + " ms saved, "
+                + mIdleTotal + " ms kept idle";
+    }
+}
@@ -211,6 +211,7 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
     @Override
     public void onFrameAvailable(SurfaceTexture surfaceTexture) {
         synchronized (mLock) {
+            if (!mFirstFrameArrived) CameraTrace.mark(CameraTrace.FIRST_PREVIEW_FRAME);
             mFirstFrameArrived = true;
             if (mVisible) {
                 if (mAnimState == ANIM_SWITCH_WAITING_FIRST_FRAME) {
@@ -536,111 +536,39 @@ public class CameraSettings {
     }
 
     public static int readExposure(ComboPreferences preferences) {
-        String exposure = preferences.getString(
-                CameraSettings.KEY_EXPOSURE,
-                EXPOSURE_DEFAULT_VALUE);
-        try {
-            return Integer.parseInt(exposure);
-        } catch (Exception ex) {
-            Log.e(TAG, "Invalid exposure: " + exposure);
-        }
-        return 0;
+        return preferences.getSnapshot().getExposure();
     }
     // Add Brightness by wk.m
     public static int readBrightness(ComboPreferences preferences) {
-        String brightness = preferences.getString(
-                CameraSettings.KEY_BRIGHTNESS,
-                BRIGHTNESS_DEFAULT_VALUE);
-        try {
-            return Integer.parseInt(brightness);
-        } catch (Exception ex) {
-            Log.e(TAG, "Invalid brightness: " + brightness);
-        }
-        return 0;
+        return preferences.getSnapshot().getBrightness();
     }
     // Add Saturation by wk.m
     public static int readSaturation(ComboPreferences preferences) {
-        String saturation = preferences.getString(
-                CameraSettings.KEY_SATURATION,
-                SATURATION_DEFAULT_VALUE);
-        try {
-            return Integer.parseInt(saturation);
-        } catch (Exception ex) {
-            Log.e(TAG, "Invalid saturation: " + saturation);
-        }
-        return 0;
+        return preferences.getSnapshot().getSaturation();
     }
     // Add Sharpness by wk.m
     public static int readSharpness(ComboPreferences preferences) {
-        String sharpness = preferences.getString(
-                CameraSettings.KEY_SHARPNESS,
-                SHARPNESS_DEFAULT_VALUE);
-        try {
-            return Integer.parseInt(sharpness);
-        } catch (Exception ex) {
-            Log.e(TAG, "Invalid sharpness: " + sharpness);
-        }
-        return 0;
+        return preferences.getSnapshot().getSharpness();
     }
     // Add Hue by wk.m
     public static int readHue(ComboPreferences preferences) {
-        String hue = preferences.getString(
-                CameraSettings.KEY_HUE,
-                HUE_DEFAULT_VALUE);
-        try {
-            return Integer.parseInt(hue);
-        } catch (Exception ex) {
-            Log.e(TAG, "Invalid hue: " + hue);
-        }
-        return 0;
+        return preferences.getSnapshot().getHue();
     }
     // Add WDR by wk.m
     public static int readWdr(ComboPreferences preferences) {
-        String wdr = preferences.getString(
-                CameraSettings.KEY_WDR,
-                WDR_DEFAULT_VALUE);
-        try {
-            return Integer.parseInt(wdr);
-        } catch (Exception ex) {
-            Log.e(TAG, "Invalid wdr: " + wdr);
-        }
-        return 0;
+        return preferences.getSnapshot().getWdr();
     }
     // Add Jpeg Quality by wk.m
     public static int readJpegQuality(ComboPreferences preferences) {
-        String jpeg_qual = preferences.getString(
-                CameraSettings.KEY_JPEG_QUAL,
-                JPEG_QUAL_DEFAULT_VALUE);
-        try {
-            return Integer.parseInt(jpeg_qual);
-        } catch (Exception ex) {
-            Log.e(TAG, "Invalid jpeg_qual: " + jpeg_qual);
-        }
-        return 0;
+        return preferences.getSnapshot().getJpegQuality();
     }
     // Add AE Lock by hm choi
     public static boolean readAELock(ComboPreferences preferences) {
-        String ae_lock = preferences.getString(
-                CameraSettings.KEY_AE_LOCK,
-                AE_LOCK_DEFAULT_VALUE);
-        try {
-            return ae_lock.equals("1");
-        } catch (Exception ex) {
-            Log.e(TAG, "Invalid ae_lock: " + ae_lock);
-        }
-        return false;
+        return preferences.getSnapshot().isAeLocked();
     }
     // Add AWB Lock by hm choi
     public static boolean readAWBLock(ComboPreferences preferences) {
-        String awb_lock = preferences.getString(
-                CameraSettings.KEY_AWB_LOCK,
-                AWB_LOCK_DEFAULT_VALUE);
-        try {
-            return awb_lock.equals("1");
-        } catch (Exception ex) {
-            Log.e(TAG, "Invalid awb_lock: " + awb_lock);
-        }
-        return false;
+        return preferences.getSnapshot().isAwbLocked();
     }
 
     public static int readEffectType(SharedPreferences pref) {
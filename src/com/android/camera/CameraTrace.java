@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Records the startup, capture and mode switch events of the camera app in a
+ * ring buffer, with the thread and the time of each. Recording an event takes
+ * no allocation, so it can be done on any path. The buffer can be dumped in
+ * the JSON format of chrome://tracing.
+ *
+ * <p>Events are begun and ended to record a span, or marked for an instant.
+ * The buffer is dumped on each pause of the activities if the log level of
+ * the "CameraTrace" tag is verbose:
+ * adb shell setprop log.tag.CameraTrace VERBOSE
+ */
+public class CameraTrace {
+    private static final String TAG = "CameraTrace";
+
+    // Events
+    public static final int ACTIVITY_CREATE = 0;
+    public static final int ACTIVITY_RESUME = 1;
+    public static final int ACTIVITY_PAUSE = 2;
+    public static final int MODE_SWITCH = 3;
+    public static final int CAMERA_OPEN = 4;
+    public static final int FIRST_PREVIEW_FRAME = 5;
+    public static final int THUMBNAIL_PAINT = 6;
+    public static final int AUTO_FOCUS = 7;
+    public static final int CAPTURE = 8;
+    public static final int SHUTTER = 9;
+    public static final int RAW_PICTURE = 10;
+    public static final int POSTVIEW_PICTURE = 11;
+    public static final int JPEG_PICTURE = 12;
+    public static final int IMAGE_SAVE = 13;
+    public static final int VIDEO_RECORDING_START = 14;
+    public static final int VIDEO_RECORDING_STOP = 15;
+    public static final int PANORAMA_CAPTURE = 16;
+    public static final int PANORAMA_MOSAIC = 17;
+
+    private static final String[] EVENT_NAMES = {
+        "activity create",
+        "activity resume",
+        "activity pause",
+        "mode switch",
+        "camera open",
+        "first preview frame",
+        "thumbnail paint",
+        "auto focus",
+        "capture",
+        "shutter",
+        "raw picture",
+        "postview picture",
+        "jpeg picture",
+        "image save",
+        "video recording start",
+        "video recording stop",
+        "panorama capture",
+        "panorama mosaic",
+    };
+
+    // Phases, as in the chrome://tracing format
+    public static final char BEGIN = 'B';
+    public static final char END = 'E';
+    public static final char INSTANT = 'i';
+
+    private static final int CAPACITY = 4096;
+
+    // Ring buffer. sCount is the number of events ever recorded, the last
+    // CAPACITY of which are kept.
+    private static final short[] sEvents = new short[CAPACITY];
+    private static final char[] sPhases = new char[CAPACITY];
+    private static final int[] sThreads = new int[CAPACITY];
+    private static final long[] sTimes = new long[CAPACITY];
+    private static long sCount;
+
+    private CameraTrace() {
+    }
+
+    /** Records the beginning of a span of event. */
+    public static void begin(int event) {
+        record(event, BEGIN);
+    }
+
+    /** Records the end of a span of event, on the thread that began it. */
+    public static void end(int event) {
+        record(event, END);
+    }
+
+    /** Records an instant event. */
+    public static void mark(int event) {
+        record(event, INSTANT);
+    }
+
+    private static void record(int event, char phase) {
+        int tid = Process.myTid();
+        long now = System.nanoTime();
+        synchronized (CameraTrace.class) {
+            int i = (int) (sCount % CAPACITY);
+            sEvents[i] = (short) event;
+            sPhases[i] = phase;
+            sThreads[i] = tid;
+            sTimes[i] = now;
+            sCount++;
+        }
+    }
+
+    /**
+     * Returns the System.nanoTime() of the last time event was marked, begun
+     * or ended, or -1 if it is not in the buffer.
+     */
+    public static synchronized long getLastTime(int event) {
+        int size = (int) Math.min(sCount, CAPACITY);
+        for (int n = 1; n <= size; n++) {
+            int i = (int) ((sCount - n) % CAPACITY);
+            if (sEvents[i] == event) return sTimes[i];
+        }
+        return -1;
+    }
+
+    /**
+     * Copies to times the System.nanoTime() of the phase of event recorded
+     * after since, oldest first, and returns how many were copied.
+     */
+    public static synchronized int getTimes(int event, char phase, long since,
+            long[] times) {
+        int size = (int) Math.min(sCount, CAPACITY);
+        int count = 0;
+        for (int n = 0; n < size && count < times.length; n++) {
+            int i = (int) ((sCount - size + n) % CAPACITY);
+            if (sEvents[i] == event && sPhases[i] == phase && sTimes[i] > since) {
+                times[count++] = sTimes[i];
+            }
+        }
+        return count;
+    }
+
+    /** Drops all the recorded events. */
+    public static synchronized void clear() {
+        sCount = 0;
+    }
+
+    public static boolean isDumpEnabled() {
+        return Log.isLoggable(TAG, Log.VERBOSE);
+    }
+
+    /** Writes the recorded events to file in the chrome://tracing format. */
+    public static void dump(File file) {
+        short[] events;
+        char[] phases;
+        int[] threads;
+        long[] times;
+        int size;
+        synchronized (CameraTrace.class) {
+            size = (int) Math.min(sCount, CAPACITY);
+            events = new short[size];
+            phases = new char[size];
+            threads = new int[size];
+            times = new long[size];
+            for (int n = 0; n < size; n++) {
+                int i = (int) ((sCount - size + n) % CAPACITY);
+                events[n] = sEvents[i];
+                phases[n] = sPhases[i];
+                threads[n] = sThreads[i];
+                times[n] = sTimes[i];
+            }
+        }
+
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(file));
+            writeJson(writer, events, phases, threads, times, size);
+            Log.v(TAG, "Dumped " + size + " events to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to dump the trace to " + file, e);
+        } finally {
+            Util.closeSilently(writer);
+        }
+    }
+
+    private static void writeJson(Writer writer, short[] events, char[] phases,
+            int[] threads, long[] times, int size) throws IOException {
+        int pid = Process.myPid();
+        writer.write("{\"traceEvents\":[");
+        for (int n = 0; n < size; n++) {
+            if (n > 0) writer.write(",");
+            writer.write("\n{\"name\":\"" + EVENT_NAMES[events[n]]
+                    + "\",\"cat\":\"camera\",\"ph\":\"" + phases[n]
+                    + "\",\"ts\":" + times[n] / 1000 + "." + (times[n] % 1000) / 100
+                    + ",\"pid\":" + pid + ",\"tid\":" + threads[n]
+                    + (phases[n] == INSTANT ? ",\"s\":\"t\"}" : "}"));
+        }
+        writer.write("\n]}\n");
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Camera.Parameters;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.TreeMap;
+
+/**
+ * Keeps the parameters of each camera as first read after opening it, so that
+ * the settings can be built from them on the next start before the camera is
+ * open. The snapshots are dropped when the build changes, as the camera HAL
+ * may have changed with it.
+ *
+ * <p>The parameters are kept whole, in the flattened form of
+ * Parameters.flatten(), as the settings also check for the presence of keys.
+ * Only the capabilities, like the supported values and the ranges, are
+ * compared to detect that a snapshot is out of date.
+ */
+public class CapabilitySnapshot {
+    private static final String TAG = "CapabilitySnapshot";
+
+    private static final String PREFS_NAME = "camera_capabilities";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_PARAMETERS_PREFIX = "parameters_";
+    // Increase when the content of the snapshots changes.
+    private static final int VERSION = 1;
+
+    private CapabilitySnapshot() {
+    }
+
+    /**
+     * Returns the parameters of cameraId from the snapshot, or null if there is
+     * none for this build.
+     */
+    public static Parameters load(Context context, int cameraId) {
+        String flattened = loadFlattened(context, cameraId);
+        if (flattened == null) return null;
+        Parameters parameters = android.hardware.Camera.getEmptyParameters();
+        parameters.unflatten(flattened);
+        return parameters;
+    }
+
+    private static String loadFlattened(Context context, int cameraId) {
+        SharedPreferences prefs = getPreferences(context);
+        if (!isCurrent(prefs)) return null;
+        return prefs.getString(KEY_PARAMETERS_PREFIX + cameraId, null);
+    }
+
+    /**
+     * Checks the live parameters of cameraId against the snapshot, and saves
+     * them if there is no snapshot or it is out of date. Returns true if the
+     * snapshot was out of date. Meant to run in the background.
+     */
+    public static boolean update(Context context, int cameraId, Parameters live) {
+        String flattened = live.flatten();
+        String snapshot = loadFlattened(context, cameraId);
+        if (snapshot != null && !hasDrifted(snapshot, flattened)) return false;
+
+        SharedPreferences prefs = getPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        if (!isCurrent(prefs)) {
+            // Drop the snapshots of the other cameras from an older build.
+            editor.clear();
+            editor.putInt(KEY_VERSION, VERSION);
+            editor.putString(KEY_FINGERPRINT, Build.FINGERPRINT);
+        }
+        editor.putString(KEY_PARAMETERS_PREFIX + cameraId, flattened);
+        editor.apply();
+        if (snapshot != null) {
+            Log.w(TAG, "Capabilities of camera " + cameraId + " changed");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the flattened parameters differ in their capabilities.
+     * The other keys come and go with the settings, like the GPS ones.
+     */
+    public static boolean hasDrifted(String snapshot, String live) {
+        return !getCapabilities(snapshot).equals(getCapabilities(live));
+    }
+
+    // The keys whose values do not change with the settings, like
+    // "preview-size-values", "zoom-supported", "max-zoom" or
+    // "exposure-compensation-step".
+    private static boolean isCapability(String key) {
+        return key.endsWith("-values") || key.endsWith("-supported")
+                || key.startsWith("max-") || key.startsWith("min-")
+                || key.endsWith("-step") || key.equals("zoom-ratios");
+    }
+
+    // Same splitting as Camera.Parameters.unflatten().
+    private static TreeMap<String, String> getCapabilities(String flattened) {
+        TreeMap<String, String> values = new TreeMap<String, String>();
+        for (String pair : flattened.split(";")) {
+            int pos = pair.indexOf('=');
+            if (pos == -1) continue;
+            String key = pair.substring(0, pos);
+            if (isCapability(key)) values.put(key, pair.substring(pos + 1));
+        }
+        return values;
+    }
+
+    // Returns whether the snapshots are from this version and build.
+    private static boolean isCurrent(SharedPreferences prefs) {
+        return prefs.getInt(KEY_VERSION, 0) == VERSION
+                && Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null));
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -30,6 +30,9 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
     private SharedPreferences mPrefGlobal;  // global preferences
     private SharedPreferences mPrefLocal;  // per-camera preferences
     private CopyOnWriteArrayList<OnSharedPreferenceChangeListener> mListeners;
+    // Resolved values, or null once the preferences changed.
+    private volatile PreferenceSnapshot mSnapshot;
+    private int mSnapshotVersion;
     private static WeakHashMap<Context, ComboPreferences> sMap =
             new WeakHashMap<Context, ComboPreferences>();
 
@@ -58,6 +61,29 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
         mPrefLocal = context.getSharedPreferences(
                 prefName, Context.MODE_PRIVATE);
         mPrefLocal.registerOnSharedPreferenceChangeListener(this);
+        invalidateSnapshot();
+    }
+
+    /**
+     * Returns the current values. The snapshot is only built again after a
+     * change, so reading it needs no lookup in the two preferences.
+     */
+    public PreferenceSnapshot getSnapshot() {
+        PreferenceSnapshot snapshot = mSnapshot;
+        if (snapshot != null) return snapshot;
+        synchronized (this) {
+            if (mSnapshot == null) {
+                mSnapshot = new PreferenceSnapshot(++mSnapshotVersion,
+                        mPrefGlobal.getAll(),
+                        mPrefLocal == null ? null : mPrefLocal.getAll());
+            }
+            return mSnapshot;
+        }
+    }
+
+    // Called after each change, as a snapshot built before it is stale.
+    private synchronized void invalidateSnapshot() {
+        mSnapshot = null;
     }
 
     public SharedPreferences getGlobal() {
@@ -74,57 +100,32 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
     }
 
     private static boolean isGlobal(String key) {
-        return key.equals(CameraSettings.KEY_VIDEO_TIME_LAPSE_FRAME_INTERVAL)
-                || key.equals(CameraSettings.KEY_CAMERA_ID)
-                || key.equals(CameraSettings.KEY_RECORD_LOCATION)
-                || key.equals(CameraSettings.KEY_CAMERA_FIRST_USE_HINT_SHOWN)
-                || key.equals(CameraSettings.KEY_VIDEO_FIRST_USE_HINT_SHOWN)
-                || key.equals(CameraSettings.KEY_VIDEO_EFFECT);
+        return PreferenceSnapshot.isGlobal(key);
     }
 
     @Override
     public String getString(String key, String defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getString(key, defValue);
-        } else {
-            return mPrefLocal.getString(key, defValue);
-        }
+        return getSnapshot().getString(key, defValue);
     }
 
     @Override
     public int getInt(String key, int defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getInt(key, defValue);
-        } else {
-            return mPrefLocal.getInt(key, defValue);
-        }
+        return getSnapshot().getInt(key, defValue);
     }
 
     @Override
     public long getLong(String key, long defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getLong(key, defValue);
-        } else {
-            return mPrefLocal.getLong(key, defValue);
-        }
+        return getSnapshot().getLong(key, defValue);
     }
 
     @Override
     public float getFloat(String key, float defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getFloat(key, defValue);
-        } else {
-            return mPrefLocal.getFloat(key, defValue);
-        }
+        return getSnapshot().getFloat(key, defValue);
     }
 
     @Override
     public boolean getBoolean(String key, boolean defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getBoolean(key, defValue);
-        } else {
-            return mPrefLocal.getBoolean(key, defValue);
-        }
+        return getSnapshot().getBoolean(key, defValue);
     }
 
     // This method is not used.
@@ -153,13 +154,17 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
         public boolean commit() {
             boolean result1 = mEditorGlobal.commit();
             boolean result2 = mEditorLocal.commit();
+            invalidateSnapshot();
             return result1 && result2;
         }
 
+        // The change listeners are only called later when not on the main
+        // thread, so drop the snapshot here too.
         @Override
         public void apply() {
             mEditorGlobal.apply();
             mEditorLocal.apply();
+            invalidateSnapshot();
         }
 
         // Note: clear() and remove() affects both local and global preferences.
@@ -256,6 +261,7 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
             String key) {
+        invalidateSnapshot();
         for (OnSharedPreferenceChangeListener listener : mListeners) {
             listener.onSharedPreferenceChanged(this, key);
         }
@@ -19,31 +19,38 @@ package com.android.camera;
 import android.content.Context;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
-import android.util.AttributeSet;
 
 import java.util.List;
 
 /** A {@code ListPreference} where each entry has a corresponding icon. */
 public class IconListPreference extends ListPreference {
+    private final Resources mResources;
     private int mSingleIconId;
+    // The arrays of ids are read from these resources when first needed, as
+    // many preferences are dropped as unsupported before being shown.
+    private final int mIconsRes;
+    private final int mLargeIconsRes;
+    private final int mImagesRes;
+    private boolean mIdsLoaded;
     private int mIconIds[];
     private int mLargeIconIds[];
     private int mImageIds[];
 
-    public IconListPreference(Context context, AttributeSet attrs) {
-        super(context, attrs);
-        TypedArray a = context.obtainStyledAttributes(
-                attrs, R.styleable.IconListPreference, 0, 0);
-        Resources res = context.getResources();
-        mSingleIconId = a.getResourceId(
-                R.styleable.IconListPreference_singleIcon, 0);
-        mIconIds = getIds(res, a.getResourceId(
-                R.styleable.IconListPreference_icons, 0));
-        mLargeIconIds = getIds(res, a.getResourceId(
-                R.styleable.IconListPreference_largeIcons, 0));
-        mImageIds = getIds(res, a.getResourceId(
-                R.styleable.IconListPreference_images, 0));
-        a.recycle();
+    public IconListPreference(Context context, PreferenceNode node) {
+        super(context, node);
+        mResources = context.getResources();
+        mSingleIconId = node.mSingleIconId;
+        mIconsRes = node.mIconsId;
+        mLargeIconsRes = node.mLargeIconsId;
+        mImagesRes = node.mImagesId;
+    }
+
+    private void loadIds() {
+        if (mIdsLoaded) return;
+        mIconIds = getIds(mResources, mIconsRes);
+        mLargeIconIds = getIds(mResources, mLargeIconsRes);
+        mImageIds = getIds(mResources, mImagesRes);
+        mIdsLoaded = true;
     }
 
     public int getSingleIcon() {
@@ -51,22 +58,27 @@ public class IconListPreference extends ListPreference {
     }
 
     public int[] getIconIds() {
+        loadIds();
         return mIconIds;
     }
 
     public int[] getLargeIconIds() {
+        loadIds();
         return mLargeIconIds;
     }
 
     public int[] getImageIds() {
+        loadIds();
         return mImageIds;
     }
 
     public void setIconIds(int[] iconIds) {
+        loadIds();
         mIconIds = iconIds;
     }
 
     public void setLargeIconIds(int[] largeIconIds) {
+        loadIds();
         mLargeIconIds = largeIconIds;
     }
 
@@ -84,6 +96,7 @@ public class IconListPreference extends ListPreference {
 
     @Override
     public void filterUnsupported(List<String> supported) {
+        loadIds();
         CharSequence entryValues[] = getEntryValues();
         IntArray iconIds = new IntArray();
         IntArray largeIconIds = new IntArray();
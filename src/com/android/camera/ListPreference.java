@@ -18,10 +18,8 @@ package com.android.camera;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.content.res.TypedArray;
-import android.util.AttributeSet;
+import android.content.res.Resources;
 import android.util.Log;
-import android.util.TypedValue;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -34,39 +32,61 @@ public class ListPreference extends CameraPreference {
     private static final String TAG = "ListPreference";
     private final String mKey;
     private String mValue;
-    private final CharSequence[] mDefaultValues;
+    private CharSequence[] mDefaultValues;
+
+    // The arrays are read from these resources when first needed, as many
+    // preferences are dropped as unsupported or never shown.
+    private final Resources mResources;
+    private final int mDefaultValueId;
+    private final boolean mDefaultValueIsArray;
+    private final String mDefaultValue;
+    private final int mEntriesId;
+    private final int mEntryValuesId;
+    private boolean mEntriesLoaded;
 
     private CharSequence[] mEntries;
     private CharSequence[] mEntryValues;
     private boolean mLoaded = false;
 
-    public ListPreference(Context context, AttributeSet attrs) {
-        super(context, attrs);
-
-        TypedArray a = context.obtainStyledAttributes(
-                attrs, R.styleable.ListPreference, 0, 0);
-
-        mKey = Util.checkNotNull(
-                a.getString(R.styleable.ListPreference_key));
-
-        // We allow the defaultValue attribute to be a string or an array of
-        // strings. The reason we need multiple default values is that some
-        // of them may be unsupported on a specific platform (for example,
-        // continuous auto-focus). In that case the first supported value
-        // in the array will be used.
-        int attrDefaultValue = R.styleable.ListPreference_defaultValue;
-        TypedValue tv = a.peekValue(attrDefaultValue);
-        if (tv != null && tv.type == TypedValue.TYPE_REFERENCE) {
-            mDefaultValues = a.getTextArray(attrDefaultValue);
-        } else {
-            mDefaultValues = new CharSequence[1];
-            mDefaultValues[0] = a.getString(attrDefaultValue);
+    public ListPreference(Context context, PreferenceNode node) {
+        super(context, node);
+        mResources = context.getResources();
+
+        mKey = Util.checkNotNull(node.mKey);
+        mDefaultValueId = node.mDefaultValueId;
+        mDefaultValueIsArray = node.mDefaultValueIsArray;
+        mDefaultValue = node.mDefaultValue;
+        mEntriesId = node.mEntriesId;
+        mEntryValuesId = node.mEntryValuesId;
+    }
+
+    private void loadEntries() {
+        if (mEntriesLoaded) return;
+        mEntriesLoaded = true;
+        setEntries(getTextArray(mEntriesId));
+        setEntryValues(getTextArray(mEntryValuesId));
+    }
+
+    private CharSequence[] getTextArray(int id) {
+        return id == 0 ? null : mResources.getTextArray(id);
+    }
+
+    public CharSequence[] getDefaultValues() {
+        if (mDefaultValues == null) {
+            // We allow the defaultValue attribute to be a string or an array
+            // of strings. The reason we need multiple default values is that
+            // some of them may be unsupported on a specific platform (for
+            // example, continuous auto-focus). In that case the first
+            // supported value in the array will be used.
+            if (mDefaultValueIsArray) {
+                mDefaultValues = mResources.getTextArray(mDefaultValueId);
+            } else {
+                mDefaultValues = new CharSequence[1];
+                mDefaultValues[0] = mDefaultValueId != 0
+                        ? mResources.getString(mDefaultValueId) : mDefaultValue;
+            }
         }
-
-        setEntries(a.getTextArray(R.styleable.ListPreference_entries));
-        setEntryValues(a.getTextArray(
-                R.styleable.ListPreference_entryValues));
-        a.recycle();
+        return mDefaultValues;
     }
 
     public String getKey() {
@@ -74,18 +94,22 @@ public class ListPreference extends CameraPreference {
     }
 
     public CharSequence[] getEntries() {
+        loadEntries();
         return mEntries;
     }
 
     public CharSequence[] getEntryValues() {
+        loadEntries();
         return mEntryValues;
     }
 
     public void setEntries(CharSequence entries[]) {
+        loadEntries();
         mEntries = entries == null ? new CharSequence[0] : entries;
     }
 
     public void setEntryValues(CharSequence values[]) {
+        loadEntries();
         mEntryValues = values == null ? new CharSequence[0] : values;
     }
 
@@ -100,12 +124,14 @@ public class ListPreference extends CameraPreference {
 
     // Find the first value in mDefaultValues which is supported.
     private String findSupportedDefaultValue() {
-        for (int i = 0; i < mDefaultValues.length; i++) {
+        CharSequence[] defaultValues = getDefaultValues();
+        loadEntries();
+        for (int i = 0; i < defaultValues.length; i++) {
             for (int j = 0; j < mEntryValues.length; j++) {
-                // Note that mDefaultValues[i] may be null (if unspecified
+                // Note that defaultValues[i] may be null (if unspecified
                 // in the xml file).
-                if (mEntryValues[j].equals(mDefaultValues[i])) {
-                    return mDefaultValues[i].toString();
+                if (mEntryValues[j].equals(defaultValues[i])) {
+                    return defaultValues[i].toString();
                 }
             }
         }
@@ -119,10 +145,12 @@ public class ListPreference extends CameraPreference {
     }
 
     public void setValueIndex(int index) {
+        loadEntries();
         setValue(mEntryValues[index].toString());
     }
 
     public int findIndexOfValue(String value) {
+        loadEntries();
         for (int i = 0, n = mEntryValues.length; i < n; ++i) {
             if (Util.equals(mEntryValues[i], value)) return i;
         }
@@ -130,6 +158,7 @@ public class ListPreference extends CameraPreference {
     }
 
     public String getEntry() {
+        loadEntries();
         return mEntries[findIndexOfValue(getValue())].toString();
     }
 
@@ -145,6 +174,7 @@ public class ListPreference extends CameraPreference {
     }
 
     public void filterUnsupported(List<String> supported) {
+        loadEntries();
         ArrayList<CharSequence> entries = new ArrayList<CharSequence>();
         ArrayList<CharSequence> entryValues = new ArrayList<CharSequence>();
         for (int i = 0, len = mEntryValues.length; i < len; i++) {
@@ -159,6 +189,7 @@ public class ListPreference extends CameraPreference {
     }
 
     public void print() {
+        loadEntries();
         Log.v(TAG, "Preference key=" + getKey() + ". value=" + getValue());
         for (int i = 0; i < mEntryValues.length; i++) {
             Log.v(TAG, "entryValues[" + i + "]=" + mEntryValues[i]);
@@ -60,6 +60,7 @@ public class MenuHelper {
     }
 
     public static void gotoMode(int mode, Activity activity) {
+        CameraTrace.mark(CameraTrace.MODE_SWITCH);
         String action, className;
         switch (mode) {
             case ModePicker.MODE_PANORAMA:
@@ -31,7 +31,11 @@ package com.android.camera;
  *
  * mosaic.createMosaic(highRes);
  * byte[] result = mosaic.getFinalMosaic();
+ * mosaic.release();
  *
+ * Each instance has its own native state, so several mosaics can be captured
+ * and stitched at the same time. Only the instance that allocated its frame
+ * memory last feeds the GL preview (see setSourceImageFromGPU()).
  */
 public class Mosaic {
     /**
@@ -92,10 +96,78 @@ public class Mosaic {
     public static final int MOSAIC_RET_FEW_INLIERS = 2;
 
 
+    /**
+     * Indices into the array returned by getFramePoolStats().
+     */
+    public static final int FRAME_POOL_IDLE_BYTES = 0;
+    public static final int FRAME_POOL_IDLE_IMAGES = 1;
+    public static final int FRAME_POOL_HITS = 2;
+    public static final int FRAME_POOL_MISSES = 3;
+
+    /**
+     * Indices into the array returned by getTimings(). Times are in
+     * milliseconds. The alignment entries cover the frames of the current
+     * capture and the stitch entries the last createMosaic() call.
+     */
+    public static final int TIMING_FRAMES = 0;
+    public static final int TIMING_ALIGN_LAST_MS = 1;
+    public static final int TIMING_ALIGN_MEAN_MS = 2;
+    public static final int TIMING_ALIGN_MAX_MS = 3;
+    public static final int TIMING_DETECT_MEAN_MS = 4;
+    public static final int TIMING_MATCH_MEAN_MS = 5;
+    public static final int TIMING_RANSAC_MEAN_MS = 6;
+    public static final int TIMING_CORNERS_LAST = 7;
+    public static final int TIMING_CORNERS_MEAN = 8;
+    public static final int TIMING_INLIERS_LAST = 9;
+    public static final int TIMING_INLIERS_MEAN = 10;
+    public static final int TIMING_INLIERS_MIN = 11;
+    public static final int TIMING_STITCH_ALIGN_MS = 12;
+    public static final int TIMING_STITCH_DELAUNAY_MS = 13;
+    public static final int TIMING_STITCH_PYRAMID_MS = 14;
+    public static final int TIMING_STITCH_BLEND_MS = 15;
+    public static final int TIMING_STITCH_CROP_MS = 16;
+    public static final int TIMING_STITCH_TOTAL_MS = 17;
+    public static final int TIMING_PEAK_NATIVE_BYTES = 18;
+    public static final int NUM_TIMINGS = 19;
+
     static {
         System.loadLibrary("jni_mosaic");
+        classInit();
+    }
+
+    // Handle to the native state of this mosaic, or 0 once released. Read
+    // by the native methods.
+    private long mNativeContext;
+
+    public Mosaic() {
+        mNativeContext = createNativeContext();
     }
 
+    /**
+     * Free the native state of this mosaic, including the frame memory. The
+     * mosaic cannot be used afterwards and no other method may be running
+     * on it when this is called.
+     */
+    public synchronized void release() {
+        if (mNativeContext != 0) {
+            destroyNativeContext(mNativeContext);
+            mNativeContext = 0;
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            release();
+        } finally {
+            super.finalize();
+        }
+    }
+
+    private static native void classInit();
+    private static native long createNativeContext();
+    private static native void destroyNativeContext(long context);
+
     /**
      * Allocate memory for the image frames at the given resolution.
      *
@@ -110,6 +182,26 @@ public class Mosaic {
      */
     public native void freeMosaicMemory();
 
+    /**
+     * The frame memory of freeMosaicMemory() and release() is kept in a
+     * process-wide pool, so that the next allocateMosaicMemory() at the same
+     * resolution does not have to allocate it again. Free the least recently
+     * used pooled frames until the pool holds at most the given size.
+     *
+     * @param maxBytes the number of bytes the pool may keep; 0 empties it.
+     */
+    public static native void trimFramePool(long maxBytes);
+
+    /**
+     * Get the counters of the frame pool.
+     *
+     * @return Long array indexed by the FRAME_POOL_* constants: the bytes
+     *         and the number of idle frames held by the pool, and how many
+     *         frame allocations were served from the pool or had to
+     *         allocate.
+     */
+    public static native long[] getFramePoolStats();
+
     /**
      * Pass the input image frame to the native layer. Each time the a new
      * source image t is set, the transformation matrix from the first source
@@ -129,7 +221,8 @@ public class Mosaic {
      * be called when the image data is already on the native side in a fixed
      * byte array. In implementation, this array is filled by the GL thread
      * using glReadPixels directly from GPU memory (where it is accessed by
-     * an associated SurfaceTexture).
+     * an associated SurfaceTexture). The frame is dropped if another mosaic
+     * has allocated its frame memory since this one did.
      *
      * @return Float array of length 11; first 9 entries correspond to the 3x3
      *         transformation matrix between the first frame and the passed frame;
@@ -154,6 +247,67 @@ public class Mosaic {
      */
     public native void setStripType(int type);
 
+    /**
+     * Set the number of threads used to detect features and to score the
+     * alignment hypotheses of each frame. The alignment result is the same
+     * for any number of threads.
+     * Takes effect at the next reset().
+     *
+     * @param count the number of threads, including the calling thread.
+     */
+    public native void setAlignmentThreadCount(int count);
+
+    /**
+     * Let a capture take any number of frames by keeping them in a scratch
+     * file in scratchDir instead of in memory. With wide strips, frames that
+     * would not be blended are dropped as they come in, so the frame count
+     * reported by setSourceImage() may stop growing. The high resolution
+     * frames are aligned again on the kept frames only, so the result can
+     * differ slightly from a capture kept in memory.
+     * Takes effect at the next allocateMosaicMemory(); if the scratch file
+     * cannot be created, the capture is limited as usual.
+     *
+     * @param scratchDir the directory for the scratch file, or null to keep
+     *        the frames in memory.
+     */
+    public native void setUnboundedCapture(String scratchDir);
+
+    /**
+     * Keep the mosaic being blended in a scratch file in scratchDir, with
+     * only the part being worked on in memory, so that the memory needed to
+     * stitch does not grow with the size of the panorama.
+     * Takes effect at the next reset() for the low resolution mosaic and at
+     * the next createMosaic(true) for the high resolution one.
+     *
+     * @param scratchDir the directory for the scratch file, or null to keep
+     *        the mosaic in memory.
+     */
+    public native void setMosaicScratchDir(String scratchDir);
+
+    /**
+     * @return true if the frames of the current capture are kept in a
+     *         scratch file and their number is not limited.
+     */
+    public native boolean isCaptureUnbounded();
+
+    /**
+     * Write every frame passed to setSourceImage() or
+     * setSourceImageFromGPU() from now on to a frame log at path, with its
+     * timestamp and the alignment sent to the preview warp, so that the
+     * capture can be replayed off the device with panorama_replay. Must be
+     * called after allocateMosaicMemory().
+     *
+     * @param path the file to create or replace.
+     * @return false if the log cannot be created.
+     */
+    public native boolean startFrameLog(String path);
+
+    /**
+     * Close the frame log started by startFrameLog(), if any. It is also
+     * closed when the frame memory is allocated or freed.
+     */
+    public native void stopFrameLog();
+
     /**
      * Tell the native layer to create the final mosaic after all the input frame
      * data have been collected.
@@ -187,6 +341,19 @@ public class Mosaic {
      */
     public native byte[] getFinalMosaicNV21();
 
+    /**
+     * Get the alignment and stitching statistics of the current capture.
+     * They are cleared by reset().
+     *
+     * @return an array of NUM_TIMINGS values, indexed by the TIMING_
+     *         constants. The corner and inlier counts come from the low
+     *         resolution alignment during capture; the inlier counts leave
+     *         out the first frame, which is the alignment reference. The
+     *         peak native memory is sampled after each frame and around
+     *         stitching, so it is approximate.
+     */
+    public native double[] getTimings();
+
     /**
      * Reset the state of the frame arrays which maintain the captured frame data.
      * Also re-initializes the native mosaic object to make it ready for capturing a new mosaic.
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.util.Log;
+
+/**
+ * Hands the frames of a panorama capture from the preview renderer to the
+ * mosaicer, which aligns them on a thread of its own, and measures how long
+ * each frame spends in every stage on the way.
+ *
+ * The renderer calls {@link #onFrameRendered} on its thread once per frame.
+ * The transfer to CPU memory runs there and may hand over an earlier frame
+ * than the one just rendered, as the GL readback does. While a frame is
+ * being aligned, only the newest of the frames handed over meanwhile is kept
+ * for the next alignment; the others are counted as dropped.
+ */
+public class MosaicFramePipeline {
+    private static final String TAG = "MosaicFramePipeline";
+
+    /** Moves a rendered frame to the memory the aligner reads from. */
+    public interface Transfer {
+        /**
+         * Called on the render thread after each frame is rendered. Frames
+         * are numbered from 0 in the order of these calls since
+         * {@link #start()}.
+         *
+         * @return the number of the frame handed over to the aligner by this
+         *         call, or -1 if none was.
+         */
+        int transfer();
+    }
+
+    /** Aligns the frames handed over by the {@link Transfer}. */
+    public interface Aligner {
+        /** Aligns the frame handed over last. Called on the aligner thread. */
+        void alignFrame();
+    }
+
+    // Stages of the latency breakdown, in nanoseconds per frame.
+    // From the frame being available to its rendering starting.
+    public static final int STAGE_QUEUE = 0;
+    // From the rendering starting to the transfer starting.
+    public static final int STAGE_RENDER = 1;
+    // The transfer call on the render thread.
+    public static final int STAGE_TRANSFER = 2;
+    // From the end of the frame's own transfer call to it being handed over.
+    public static final int STAGE_READBACK_DELAY = 3;
+    // From the frame being handed over to its alignment starting.
+    public static final int STAGE_ALIGN_WAIT = 4;
+    // The alignment on the aligner thread.
+    public static final int STAGE_ALIGN = 5;
+    // From the frame being available to its alignment ending.
+    public static final int STAGE_TOTAL = 6;
+    public static final int NUM_STAGES = 7;
+
+    private static final String[] STAGE_NAMES = {
+            "queue", "render", "transfer", "readback delay", "align wait",
+            "align", "total"};
+
+    // Frames handed over later than this after their own transfer call are
+    // no longer tracked.
+    private static final int RING_SIZE = 8;
+
+    private final Aligner mAligner;
+    private Thread mThread;
+    private boolean mRunning;
+
+    // Timestamps of the last RING_SIZE frames, indexed by frame number.
+    private final long[] mAvailableNs = new long[RING_SIZE];
+    private final long[] mTransferEndNs = new long[RING_SIZE];
+    private final long[] mHandedOverNs = new long[RING_SIZE];
+    private int mNextFrame;
+    // Frame handed over and not aligned yet, or -1.
+    private int mPendingFrame = -1;
+    private boolean mAligning;
+
+    private final int[] mStageCount = new int[NUM_STAGES];
+    private final long[] mStageTotalNs = new long[NUM_STAGES];
+    private final long[] mStageMaxNs = new long[NUM_STAGES];
+    private int mAlignedFrames;
+    private int mDroppedFrames;
+
+    public MosaicFramePipeline(Aligner aligner) {
+        mAligner = aligner;
+    }
+
+    /** Resets the frame numbers and the statistics and starts the aligner. */
+    public synchronized void start() {
+        if (mRunning) return;
+        mNextFrame = 0;
+        mPendingFrame = -1;
+        for (int i = 0; i < NUM_STAGES; i++) {
+            mStageCount[i] = 0;
+            mStageTotalNs[i] = 0;
+            mStageMaxNs[i] = 0;
+        }
+        mAlignedFrames = 0;
+        mDroppedFrames = 0;
+        mRunning = true;
+        mThread = new Thread("PanoramaAligner") {
+            @Override
+            public void run() {
+                runAligner();
+            }
+        };
+        mThread.start();
+    }
+
+    /**
+     * Stops the aligner. A frame being aligned is finished first, so the
+     * mosaicer is idle when this returns; a frame handed over and not aligned
+     * yet is dropped.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            if (!mRunning) return;
+            mRunning = false;
+            if (mPendingFrame >= 0) {
+                mPendingFrame = -1;
+                mDroppedFrames++;
+            }
+            notifyAll();
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread == Thread.currentThread()) return;
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Called on the render thread once a frame is rendered. Runs the transfer
+     * and hands the frame it returns over to the aligner.
+     *
+     * @param availableNs when the frame became available, from
+     *        {@link System#nanoTime()}
+     * @param renderStartNs when its rendering started
+     */
+    public void onFrameRendered(long availableNs, long renderStartNs, Transfer transfer) {
+        long transferStartNs = System.nanoTime();
+        int handedOver = transfer.transfer();
+        long transferEndNs = System.nanoTime();
+
+        synchronized (this) {
+            if (!mRunning) return;
+            int frame = mNextFrame++;
+            int slot = frame % RING_SIZE;
+            mAvailableNs[slot] = availableNs;
+            mTransferEndNs[slot] = transferEndNs;
+            addSample(STAGE_QUEUE, renderStartNs - availableNs);
+            addSample(STAGE_RENDER, transferStartNs - renderStartNs);
+            addSample(STAGE_TRANSFER, transferEndNs - transferStartNs);
+
+            if (handedOver < 0 || handedOver > frame || handedOver <= frame - RING_SIZE) {
+                return;
+            }
+            slot = handedOver % RING_SIZE;
+            mHandedOverNs[slot] = transferEndNs;
+            addSample(STAGE_READBACK_DELAY, transferEndNs - mTransferEndNs[slot]);
+            if (mPendingFrame >= 0) mDroppedFrames++;
+            mPendingFrame = handedOver;
+            notifyAll();
+        }
+    }
+
+    private void runAligner() {
+        while (true) {
+            long availableNs;
+            long handedOverNs;
+            synchronized (this) {
+                while (mRunning && mPendingFrame < 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Keep waiting; only stop() ends the aligner.
+                    }
+                }
+                if (!mRunning) return;
+                int slot = mPendingFrame % RING_SIZE;
+                availableNs = mAvailableNs[slot];
+                handedOverNs = mHandedOverNs[slot];
+                mPendingFrame = -1;
+                mAligning = true;
+            }
+
+            long alignStartNs = System.nanoTime();
+            try {
+                mAligner.alignFrame();
+            } finally {
+                long alignEndNs = System.nanoTime();
+                synchronized (this) {
+                    mAligning = false;
+                    mAlignedFrames++;
+                    addSample(STAGE_ALIGN_WAIT, alignStartNs - handedOverNs);
+                    addSample(STAGE_ALIGN, alignEndNs - alignStartNs);
+                    addSample(STAGE_TOTAL, alignEndNs - availableNs);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void addSample(int stage, long ns) {
+        mStageCount[stage]++;
+        mStageTotalNs[stage] += ns;
+        if (ns > mStageMaxNs[stage]) mStageMaxNs[stage] = ns;
+    }
+
+    /** Whether a frame is being aligned right now. */
+    public synchronized boolean isAligning() {
+        return mAligning;
+    }
+
+    public synchronized int getAlignedFrames() {
+        return mAlignedFrames;
+    }
+
+    /** Frames handed over and replaced by a newer one before being aligned. */
+    public synchronized int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    public synchronized int getSampleCount(int stage) {
+        return mStageCount[stage];
+    }
+
+    public synchronized double getMeanMillis(int stage) {
+        int count = mStageCount[stage];
+        return count == 0 ? 0 : mStageTotalNs[stage] / (count * 1e6);
+    }
+
+    public synchronized double getMaxMillis(int stage) {
+        return mStageMaxNs[stage] / 1e6;
+    }
+
+    /** Logs the latency breakdown of the frames since {@link #start()}. */
+    public synchronized void logLatency() {
+        Log.v(TAG, "frames: " + mStageCount[STAGE_TRANSFER]
+                + " rendered, " + mAlignedFrames + " aligned, "
+                + mDroppedFrames + " dropped");
+        for (int i = 0; i < NUM_STAGES; i++) {
+            Log.v(TAG, String.format("%s: mean %.2f ms, max %.2f ms",
+                    STAGE_NAMES[i], getMeanMillis(i), getMaxMillis(i)));
+        }
+    }
+}
@@ -16,8 +16,13 @@
 
 package com.android.camera;
 
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
 import android.util.Log;
 
+import java.io.File;
+
 /**
  * Class to handle the processing of each frame by Mosaicer.
  */
@@ -31,6 +36,14 @@ public class MosaicFrameProcessor {
     private static final int Y_COORD_INDEX = 5;
     private static final int HR_TO_LR_DOWNSAMPLE_FACTOR = 4;
     private static final int WINDOW_SIZE = 3;
+    private static final int MAX_ALIGNMENT_THREADS = 4;
+    // A frame is only aligned if it is predicted to have moved by at least
+    // the strip separation below which wide strip blending drops frames
+    // (STRIP_SEPARATION_THRESHOLD_PXLS in Blend.h), in low-res pixels.
+    private static final float MIN_SKIP_TRANSLATION = 10f / HR_TO_LR_DOWNSAMPLE_FACTOR;
+    // Frames skipped in a row at most, so that a pan that starts or speeds
+    // up is noticed within a few frames.
+    private static final int MAX_SKIPPED_FRAMES = 3;
 
     private Mosaic mMosaicer;
     private boolean mIsMosaicMemoryAllocated = false;
@@ -40,6 +53,9 @@ public class MosaicFrameProcessor {
 
     private int mFillIn = 0;
     private int mTotalFrameCount = 0;
+    private int mMaxFrameCount = MAX_NUMBER_OF_FRAMES;
+    private File mScratchDir;
+    private File mFrameLogDir;
     private long mLastProcessedFrameTimestamp = 0;
     private int mLastProcessFrameIdx = -1;
     private int mCurrProcessFrameIdx = -1;
@@ -57,28 +73,66 @@ public class MosaicFrameProcessor {
     private float mTotalTranslationY = 0f;
     private float mTotalDeltaTime = 0f;
 
+    // Frames passed to and skipped before alignment in this capture, and
+    // the time spent aligning the former.
+    private int mAlignedFrameCount = 0;
+    private int mSkippedFrameCount = 0;
+    private int mConsecutiveSkips = 0;
+    private long mAlignTimeNs = 0;
+
     private ProgressListener mProgressListener;
 
     private int mPreviewWidth;
     private int mPreviewHeight;
     private int mPreviewBufferSize;
 
-    private static MosaicFrameProcessor sMosaicFrameProcessor; // singleton
-
     public interface ProgressListener {
         public void onProgress(boolean isFinished, float panningRateX, float panningRateY,
                 float progressX, float progressY);
     }
 
-    public static MosaicFrameProcessor getInstance() {
-        if (sMosaicFrameProcessor == null) {
-            sMosaicFrameProcessor = new MosaicFrameProcessor();
-        }
-        return sMosaicFrameProcessor;
+    public MosaicFrameProcessor() {
+        mMosaicer = new Mosaic();
     }
 
-    private MosaicFrameProcessor() {
-        mMosaicer = new Mosaic();
+    private static ComponentCallbacks2 sTrimCallbacks;
+
+    // Trims the frame pool on the memory callbacks of the whole app, since
+    // the pool outlives the panorama activity.
+    public static synchronized void registerTrimCallbacks(Context appContext) {
+        if (sTrimCallbacks != null) return;
+        sTrimCallbacks = new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        };
+        appContext.registerComponentCallbacks(sTrimCallbacks);
+    }
+
+    // Trims the native frame pool shared by all mosaics. The frames are kept
+    // while the app only has its UI hidden, so that coming back to panorama
+    // mode does not allocate them again, and dropped under memory pressure.
+    public static void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                        && level < ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)) {
+            Mosaic.trimFramePool(0);
+        }
+        long[] stats = Mosaic.getFramePoolStats();
+        Log.v(TAG, "trimMemory(" + level + "): frame pool "
+                + stats[Mosaic.FRAME_POOL_IDLE_BYTES] + " bytes, "
+                + stats[Mosaic.FRAME_POOL_HITS] + " hits, "
+                + stats[Mosaic.FRAME_POOL_MISSES] + " misses");
     }
 
     public void setProgressListener(ProgressListener listener) {
@@ -95,23 +149,45 @@ public class MosaicFrameProcessor {
         mPreviewBufferSize = bufSize;
         setupMosaicer(mPreviewWidth, mPreviewHeight, mPreviewBufferSize);
         setStripType(Mosaic.STRIPTYPE_WIDE);
+        // Feature detection runs on the preview path, so spread it over the
+        // available cores to keep up with the preview frame rate.
+        mMosaicer.setAlignmentThreadCount(Math.min(MAX_ALIGNMENT_THREADS,
+                Runtime.getRuntime().availableProcessors()));
         reset();
     }
 
     public void clear() {
         if (mIsMosaicMemoryAllocated) {
+            mMosaicer.stopFrameLog();
             mMosaicer.freeMosaicMemory();
             mIsMosaicMemoryAllocated = false;
         }
-        synchronized (this) {
-            notify();
-        }
+    }
+
+    // Frees the native mosaic. The processor cannot be used afterwards.
+    public void release() {
+        clear();
+        mMosaicer.release();
     }
 
     public boolean isMosaicMemoryAllocated() {
         return mIsMosaicMemoryAllocated;
     }
 
+    // Keeps the frames and the stitched mosaic of the next captures in
+    // scratch files in dir, so they are not limited to MAX_NUMBER_OF_FRAMES
+    // and stitching does not need the whole mosaic in memory. Takes effect
+    // at the next initialize(); null keeps them in memory.
+    public void setScratchDir(File dir) {
+        mScratchDir = dir;
+    }
+
+    // Logs the frames of each following capture to a new file in dir, for
+    // replay with panorama_replay; null stops logging.
+    public void setFrameLogDir(File dir) {
+        mFrameLogDir = dir;
+    }
+
     public void setStripType(int type) {
         mMosaicer.setStripType(type);
     }
@@ -119,9 +195,13 @@ public class MosaicFrameProcessor {
     private void setupMosaicer(int previewWidth, int previewHeight, int bufSize) {
         Log.v(TAG, "setupMosaicer w, h=" + previewWidth + ',' + previewHeight + ',' + bufSize);
 
-        if (mIsMosaicMemoryAllocated) throw new RuntimeException("MosaicFrameProcessor in use!");
         mIsMosaicMemoryAllocated = true;
+        String scratchDir = mScratchDir != null ? mScratchDir.getAbsolutePath() : null;
+        mMosaicer.setUnboundedCapture(scratchDir);
+        mMosaicer.setMosaicScratchDir(scratchDir);
         mMosaicer.allocateMosaicMemory(previewWidth, previewHeight);
+        mMaxFrameCount = mMosaicer.isCaptureUnbounded()
+                ? Integer.MAX_VALUE : MAX_NUMBER_OF_FRAMES;
     }
 
     public void reset() {
@@ -139,15 +219,21 @@ public class MosaicFrameProcessor {
         mPanningRateY = 0;
         mLastProcessFrameIdx = -1;
         mCurrProcessFrameIdx = -1;
+        mAlignedFrameCount = 0;
+        mSkippedFrameCount = 0;
+        mConsecutiveSkips = 0;
+        mAlignTimeNs = 0;
         for (int i = 0; i < WINDOW_SIZE; ++i) {
             mDeltaX[i] = 0f;
             mDeltaY[i] = 0f;
             mDeltaTime[i] = 0f;
         }
+        mMosaicer.stopFrameLog();
         mMosaicer.reset();
     }
 
     public int createMosaic(boolean highRes) {
+        mMosaicer.stopFrameLog();
         return mMosaicer.createMosaic(highRes);
     }
 
@@ -155,6 +241,49 @@ public class MosaicFrameProcessor {
         return mMosaicer.getFinalMosaicNV21();
     }
 
+    public double[] getTimings() {
+        return mMosaicer.getTimings();
+    }
+
+    // Fraction of the frames of this capture that were skipped before
+    // alignment because the device had hardly moved.
+    public float getSkipRatio() {
+        int total = mAlignedFrameCount + mSkippedFrameCount;
+        return total > 0 ? (float) mSkippedFrameCount / total : 0f;
+    }
+
+    // Estimated alignment time saved by skipping frames in this capture,
+    // from the mean time of the aligned ones.
+    public long getSkipSavedMillis() {
+        if (mAlignedFrameCount == 0) return 0;
+        return mAlignTimeNs / mAlignedFrameCount * mSkippedFrameCount / 1000000;
+    }
+
+    // Logs the statistics of the current capture, after createMosaic().
+    public void logTimings() {
+        double[] t = mMosaicer.getTimings();
+        Log.v(TAG, "Skipped " + mSkippedFrameCount + " of "
+                + (mAlignedFrameCount + mSkippedFrameCount) + " frames ("
+                + Math.round(getSkipRatio() * 100) + "%), saving about "
+                + getSkipSavedMillis() + " ms of alignment");
+        Log.v(TAG, "Aligned " + (int) t[Mosaic.TIMING_FRAMES] + " frames: "
+                + t[Mosaic.TIMING_ALIGN_MEAN_MS] + " ms mean, "
+                + t[Mosaic.TIMING_ALIGN_MAX_MS] + " ms max (detect "
+                + t[Mosaic.TIMING_DETECT_MEAN_MS] + ", match "
+                + t[Mosaic.TIMING_MATCH_MEAN_MS] + ", ransac "
+                + t[Mosaic.TIMING_RANSAC_MEAN_MS] + "), "
+                + t[Mosaic.TIMING_CORNERS_MEAN] + " corners and "
+                + t[Mosaic.TIMING_INLIERS_MEAN] + " inliers mean, "
+                + (int) t[Mosaic.TIMING_INLIERS_MIN] + " inliers min");
+        Log.v(TAG, "Stitched in " + t[Mosaic.TIMING_STITCH_TOTAL_MS] + " ms (align "
+                + t[Mosaic.TIMING_STITCH_ALIGN_MS] + ", delaunay "
+                + t[Mosaic.TIMING_STITCH_DELAUNAY_MS] + ", pyramid "
+                + t[Mosaic.TIMING_STITCH_PYRAMID_MS] + ", blend "
+                + t[Mosaic.TIMING_STITCH_BLEND_MS] + ", crop "
+                + t[Mosaic.TIMING_STITCH_CROP_MS] + "), peak native memory "
+                + (long) t[Mosaic.TIMING_PEAK_NATIVE_BYTES] + " bytes");
+    }
+
     // Processes the last filled image frame through the mosaicer and
     // updates the UI to show progress.
     // When done, processes and displays the final mosaic.
@@ -181,10 +310,14 @@ public class MosaicFrameProcessor {
 
             // TODO: make the termination condition regarding reaching
             // MAX_NUMBER_OF_FRAMES solely determined in the library.
-            if (mTotalFrameCount < MAX_NUMBER_OF_FRAMES) {
+            if (mTotalFrameCount < mMaxFrameCount) {
                 // If we are still collecting new frames for the current mosaic,
-                // process the new frame.
-                calculateTranslationRate(timestamp);
+                // process the new frame unless it adds nothing to it.
+                if (shouldSkipFrame(timestamp)) {
+                    mSkippedFrameCount++;
+                } else {
+                    calculateTranslationRate(timestamp);
+                }
 
                 // Publish progress of the ongoing processing
                 if (mProgressListener != null) {
@@ -202,8 +335,39 @@ public class MosaicFrameProcessor {
         }
     }
 
+    // Predicts the translation since the last aligned frame from the recent
+    // panning rate, and skips the frame if it would not move the mosaic by a
+    // strip. The frame is aligned anyway until the rate is known and after
+    // MAX_SKIPPED_FRAMES skipped frames.
+    private boolean shouldSkipFrame(long now) {
+        if (mAlignedFrameCount <= WINDOW_SIZE || mTotalDeltaTime <= 0f
+                || mConsecutiveSkips >= MAX_SKIPPED_FRAMES) {
+            mConsecutiveSkips = 0;
+            return false;
+        }
+        float elapsed = (now - mLastProcessedFrameTimestamp) / 1000.0f;
+        float predictedX = mTotalTranslationX / mTotalDeltaTime * elapsed;
+        float predictedY = mTotalTranslationY / mTotalDeltaTime * elapsed;
+        if (Math.max(predictedX, predictedY) >= MIN_SKIP_TRANSLATION) {
+            mConsecutiveSkips = 0;
+            return false;
+        }
+        mConsecutiveSkips++;
+        return true;
+    }
+
     public void calculateTranslationRate(long now) {
+        if (mAlignedFrameCount == 0 && mFrameLogDir != null) {
+            File log = new File(mFrameLogDir, "panorama_" + now + ".framelog");
+            if (mMosaicer.startFrameLog(log.getAbsolutePath())) {
+                Log.v(TAG, "Logging frames to " + log);
+            }
+        }
+
+        long alignStart = System.nanoTime();
         float[] frameData = mMosaicer.setSourceImageFromGPU();
+        mAlignTimeNs += System.nanoTime() - alignStart;
+        mAlignedFrameCount++;
         int ret_code = (int) frameData[MOSAIC_RET_CODE_INDEX];
         mTotalFrameCount  = (int) frameData[FRAME_COUNT_INDEX];
         float translationCurrX = frameData[X_COORD_INDEX];
@@ -35,6 +35,9 @@ public class MosaicPreviewRenderer {
     private static final String TAG = "MosaicPreviewRenderer";
     private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
     private static final boolean DEBUG = false;
+    // Enable with "adb shell setprop log.tag.PanoramaRendererCheck VERBOSE"
+    // to compare the GL preview mosaic with the CPU renderer on every frame.
+    private static final String RENDERER_CHECK_TAG = "PanoramaRendererCheck";
 
     private int mWidth;
     private int mHeight;
@@ -57,6 +60,15 @@ public class MosaicPreviewRenderer {
     private EGL10 mEgl;
     private GL10 mGl;
 
+    // Set by the client, read on the EGL thread.
+    private volatile MosaicFramePipeline mFramePipeline;
+    private final MosaicFramePipeline.Transfer mReadback = new MosaicFramePipeline.Transfer() {
+        @Override
+        public int transfer() {
+            return MosaicRenderer.transferGPUtoCPUAsync();
+        }
+    };
+
     private class EGLHandler extends Handler {
         public static final int MSG_INIT_EGL_SYNC = 0;
         public static final int MSG_SHOW_PREVIEW_FRAME_SYNC = 1;
@@ -83,7 +95,7 @@ public class MosaicPreviewRenderer {
                     doShowPreviewFrame();
                     break;
                 case MSG_ALIGN_FRAME:
-                    doAlignFrame();
+                    doAlignFrame((Long) msg.obj);
                     break;
                 case MSG_RELEASE:
                     doRelease();
@@ -91,15 +103,23 @@ public class MosaicPreviewRenderer {
             }
         }
 
-        private void doAlignFrame() {
+        private void doAlignFrame(long availableNs) {
+            long renderStartNs = System.nanoTime();
             mInputSurfaceTexture.updateTexImage();
             mInputSurfaceTexture.getTransformMatrix(mTransformMatrix);
 
             MosaicRenderer.setWarping(true);
             // Call preprocess to render it to low-res and high-res RGB textures.
             MosaicRenderer.preprocess(mTransformMatrix);
-            // Now, transfer the textures from GPU to CPU memory for processing
-            MosaicRenderer.transferGPUtoCPU();
+            MosaicFramePipeline pipeline = mFramePipeline;
+            if (pipeline != null) {
+                // Start reading this frame back and hand the previous one
+                // over to the aligner thread of the pipeline.
+                pipeline.onFrameRendered(availableNs, renderStartNs, mReadback);
+            } else {
+                // Now, transfer the textures from GPU to CPU memory for processing
+                MosaicRenderer.transferGPUtoCPU();
+            }
             MosaicRenderer.updateMatrix();
             draw();
             mEgl.eglSwapBuffers(mEglDisplay, mEglSurface);
@@ -151,6 +171,8 @@ public class MosaicPreviewRenderer {
             mGl = (GL10) mEglContext.getGL();
 
             mInputSurfaceTexture = new SurfaceTexture(MosaicRenderer.init());
+            MosaicRenderer.setReferenceCheck(
+                    Log.isLoggable(RENDERER_CHECK_TAG, Log.VERBOSE));
             MosaicRenderer.reset(mWidth, mHeight, mIsLandscape);
         }
 
@@ -205,7 +227,17 @@ public class MosaicPreviewRenderer {
     }
 
     public void alignFrame() {
-        mEglHandler.sendEmptyMessage(EGLHandler.MSG_ALIGN_FRAME);
+        mEglHandler.obtainMessage(EGLHandler.MSG_ALIGN_FRAME,
+                Long.valueOf(System.nanoTime())).sendToTarget();
+    }
+
+    /**
+     * Hands the frames transferred by {@link #alignFrame()} over to pipeline,
+     * which aligns them asynchronously. Without a pipeline the transfer is
+     * synchronous and the caller aligns each frame after alignFrame().
+     */
+    public void setFramePipeline(MosaicFramePipeline pipeline) {
+        mFramePipeline = pipeline;
     }
 
     public SurfaceTexture getInputSurfaceTexture() {
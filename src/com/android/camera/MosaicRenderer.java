@@ -63,6 +63,18 @@ public class MosaicRenderer
       */
      public static native void transferGPUtoCPU();
 
+     /**
+      * Pipelined version of transferGPUtoCPU(). Reads back the frame queued
+      * by the previous call, whose conversion the GPU has had a frame to
+      * finish, makes it available to the mosaicing library, and queues the
+      * conversion of the frame rendered by preprocess(). Frames are numbered
+      * from 0 when setWarping() switches to capture.
+      *
+      * @return the number of the frame made available, or -1 if none was
+      *         queued.
+      */
+     public static native int transferGPUtoCPUAsync();
+
      /**
       * Function to be called in onDrawFrame() to update the screen with
       * the new frame data.
@@ -86,4 +98,47 @@ public class MosaicRenderer
       * @param flag boolean flag to set the warping to true or false.
       */
      public static native void setWarping(boolean flag);
+
+     /**
+      * Switch the renderer to its CPU implementation, for devices whose GPU
+      * driver cannot run the GL path. Call this instead of init(); reset(),
+      * step(), updateMatrix() and setWarping() then run on the CPU, and
+      * preprocessNV21() replaces preprocess() and transferGPUtoCPU().
+      * The result is drawn by the caller from readPreview().
+      */
+     public static native void initCPU();
+
+     /**
+      * CPU counterpart of preprocess() followed by transferGPUtoCPU(): converts
+      * a preview frame into the low-res and high-res data read by
+      * Mosaic.setSourceImageFromGPU() and into the frame drawn by step().
+      *
+      * @param data preview frame in NV21 format.
+      * @return the number of the frame, counted as by transferGPUtoCPUAsync().
+      */
+     public static native int preprocessNV21(byte[] data);
+
+     /**
+      * Copy the preview mosaic rendered by the CPU implementation, panned as
+      * the GL path draws it to the screen, into argb. The image is in the
+      * landscape orientation and is getPreviewWidth() x getPreviewHeight()
+      * pixels; the caller scales and rotates it to the view.
+      *
+      * @param argb packed ARGB pixels, row by row.
+      */
+     public static native void readPreview(int[] argb);
+
+     public static native int getPreviewWidth();
+
+     public static native int getPreviewHeight();
+
+     /**
+      * When enabled, each warped frame of the GL path is also rendered by
+      * the CPU implementation and the difference between the two preview
+      * mosaics is logged. Must be set before reset(). For debugging only, as
+      * it reads back the whole preview mosaic every frame.
+      *
+      * @param flag boolean flag to enable or disable the check.
+      */
+     public static native void setReferenceCheck(boolean flag);
 }
@@ -34,7 +34,6 @@ import android.hardware.Camera.Size;
 import android.media.ExifInterface;
 import android.media.MediaActionSound;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -83,6 +82,13 @@ public class PanoramaActivity extends ActivityBase implements
     private static final int SCREEN_DELAY = 2 * 60 * 1000;
 
     private static final String TAG = "PanoramaActivity";
+    // Captures are logged for replay when this tag is loggable, e.g. after
+    // "adb shell setprop log.tag.PanoramaFrameLog VERBOSE".
+    private static final String FRAME_LOG_TAG = "PanoramaFrameLog";
+    // Captures keep their frames and mosaic in scratch files, without the
+    // in-memory frame limit, only when this tag is loggable, e.g. after
+    // "adb shell setprop log.tag.PanoramaUnbounded VERBOSE".
+    private static final String UNBOUNDED_CAPTURE_TAG = "PanoramaUnbounded";
     private static final int PREVIEW_STOPPED = 0;
     private static final int PREVIEW_ACTIVE = 1;
     private static final int CAPTURE_STATE_VIEWFINDER = 0;
@@ -121,7 +127,6 @@ public class PanoramaActivity extends ActivityBase implements
     private String mDialogTitle;
     private String mDialogOkString;
     private String mDialogPanoramaFailedString;
-    private String mDialogWaitingPreviousString;
 
     private int mIndicatorColor;
     private int mIndicatorColorFast;
@@ -135,12 +140,14 @@ public class PanoramaActivity extends ActivityBase implements
     private ModePicker mModePicker;
     private MosaicFrameProcessor mMosaicFrameProcessor;
     private boolean mMosaicFrameProcessorInitialized;
-    private AsyncTask <Void, Void, Void> mWaitProcessorTask;
     private long mTimeTaken;
     private Handler mMainHandler;
     private SurfaceTexture mCameraTexture;
     private boolean mThreadRunning;
     private boolean mCancelComputation;
+    // Set by onDestroy(). A stitch still running then releases the processor
+    // when it finishes.
+    private boolean mDestroyed;
     private float[] mTransformMatrix;
     private float mHorizontalViewAngle;
     private float mVerticalViewAngle;
@@ -163,19 +170,7 @@ public class PanoramaActivity extends ActivityBase implements
 
     private Runnable mUpdateTexImageRunnable;
     private Runnable mOnFrameAvailableRunnable;
-
-    private class SetupCameraThread extends Thread {
-        @Override
-        public void run() {
-            try {
-                setupCamera();
-            } catch (CameraHardwareException e) {
-                mOpenCameraFail = true;
-            } catch (CameraDisabledException e) {
-                mCameraDisabled = true;
-            }
-        }
-    }
+    private MosaicFramePipeline mFramePipeline;
 
     private class MosaicJpeg {
         public MosaicJpeg(byte[] data, int width, int height) {
@@ -262,13 +257,14 @@ public class PanoramaActivity extends ActivityBase implements
 
                 if (mGLRootView.getVisibility() != View.VISIBLE) {
                     mMosaicPreviewRenderer.showPreviewFrameSync();
+                    CameraTrace.mark(CameraTrace.FIRST_PREVIEW_FRAME);
                     mGLRootView.setVisibility(View.VISIBLE);
                 } else {
                     if (mCaptureState == CAPTURE_STATE_VIEWFINDER) {
                         mMosaicPreviewRenderer.showPreviewFrame();
                     } else {
+                        // The frame is aligned on the thread of mFramePipeline.
                         mMosaicPreviewRenderer.alignFrame();
-                        mMosaicFrameProcessor.processFrame();
                     }
                 }
             }
@@ -287,20 +283,36 @@ public class PanoramaActivity extends ActivityBase implements
         mOrientationEventListener = new PanoOrientationEventListener(this);
 
         mTransformMatrix = new float[16];
-        mMosaicFrameProcessor = MosaicFrameProcessor.getInstance();
+        mMosaicFrameProcessor = new MosaicFrameProcessor();
+        MosaicFrameProcessor.registerTrimCallbacks(getApplicationContext());
+        if (Log.isLoggable(UNBOUNDED_CAPTURE_TAG, Log.VERBOSE)) {
+            mMosaicFrameProcessor.setScratchDir(getCacheDir());
+        }
+        mFramePipeline = new MosaicFramePipeline(new MosaicFramePipeline.Aligner() {
+            @Override
+            public void alignFrame() {
+                mMosaicFrameProcessor.processFrame();
+            }
+        });
+        if (Log.isLoggable(FRAME_LOG_TAG, Log.VERBOSE)) {
+            mMosaicFrameProcessor.setFrameLogDir(getExternalFilesDir(null));
+        }
 
         Resources appRes = getResources();
         mPreparePreviewString = appRes.getString(R.string.pano_dialog_prepare_preview);
         mDialogTitle = appRes.getString(R.string.pano_dialog_title);
         mDialogOkString = appRes.getString(R.string.dialog_ok);
         mDialogPanoramaFailedString = appRes.getString(R.string.pano_dialog_panorama_failed);
-        mDialogWaitingPreviousString = appRes.getString(R.string.pano_dialog_waiting_previous);
 
         mGLRootView = (GLRootView) getGLRoot();
 
         mMainHandler = new Handler() {
             @Override
             public void handleMessage(Message msg) {
+                if (mDestroyed) {
+                    onBackgroundThreadFinishedAfterDestroy(msg);
+                    return;
+                }
                 switch (msg.what) {
                     case MSG_LOW_RES_FINAL_MOSAIC_READY:
                         onBackgroundThreadFinished();
@@ -354,13 +366,6 @@ public class PanoramaActivity extends ActivityBase implements
         return true;
     }
 
-    private void setupCamera() throws CameraHardwareException, CameraDisabledException {
-        openCamera();
-        Parameters parameters = mCameraDevice.getParameters();
-        setupCaptureParams(parameters);
-        configureCamera(parameters);
-    }
-
     private void releaseCamera() {
         if (mCameraDevice != null) {
             mCameraDevice.setPreviewCallbackWithBuffer(null);
@@ -480,9 +485,10 @@ public class PanoramaActivity extends ActivityBase implements
         if (mMosaicPreviewRenderer != null) mMosaicPreviewRenderer.release();
         mMosaicPreviewRenderer = new MosaicPreviewRenderer(
                 mCameraScreenNail.getSurfaceTexture(), w, h, isLandscape);
+        mMosaicPreviewRenderer.setFramePipeline(mFramePipeline);
 
         mCameraTexture = mMosaicPreviewRenderer.getInputSurfaceTexture();
-        if (!mPaused && !mThreadRunning && mWaitProcessorTask == null) {
+        if (!mPaused && !mThreadRunning) {
             resetToPreview();
         }
     }
@@ -533,6 +539,7 @@ public class PanoramaActivity extends ActivityBase implements
     }
 
     public void startCapture() {
+        CameraTrace.begin(CameraTrace.PANORAMA_CAPTURE);
         // Reset values so we can do this again.
         mCancelComputation = false;
         mTimeTaken = System.currentTimeMillis();
@@ -545,22 +552,21 @@ public class PanoramaActivity extends ActivityBase implements
 
         mMosaicFrameProcessor.setProgressListener(new MosaicFrameProcessor.ProgressListener() {
             @Override
-            public void onProgress(boolean isFinished, float panningRateX, float panningRateY,
-                    float progressX, float progressY) {
-                float accumulatedHorizontalAngle = progressX * mHorizontalViewAngle;
-                float accumulatedVerticalAngle = progressY * mVerticalViewAngle;
-                if (isFinished
-                        || (Math.abs(accumulatedHorizontalAngle) >= DEFAULT_SWEEP_ANGLE)
-                        || (Math.abs(accumulatedVerticalAngle) >= DEFAULT_SWEEP_ANGLE)) {
-                    stopCapture(false);
-                } else {
-                    float panningRateXInDegree = panningRateX * mHorizontalViewAngle;
-                    float panningRateYInDegree = panningRateY * mVerticalViewAngle;
-                    updateProgress(panningRateXInDegree, panningRateYInDegree,
-                            accumulatedHorizontalAngle, accumulatedVerticalAngle);
-                }
+            public void onProgress(final boolean isFinished, final float panningRateX,
+                    final float panningRateY, final float progressX, final float progressY) {
+                // This runs on the aligner thread of mFramePipeline.
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The capture may have stopped since the frame was aligned.
+                        if (mCaptureState != CAPTURE_STATE_MOSAIC) return;
+                        updateCaptureProgress(isFinished, panningRateX, panningRateY,
+                                progressX, progressY);
+                    }
+                });
             }
         });
+        mFramePipeline.start();
 
         if (mModePicker != null) mModePicker.setEnabled(false);
 
@@ -574,13 +580,34 @@ public class PanoramaActivity extends ActivityBase implements
         keepScreenOn();
     }
 
+    private void updateCaptureProgress(boolean isFinished, float panningRateX,
+            float panningRateY, float progressX, float progressY) {
+        float accumulatedHorizontalAngle = progressX * mHorizontalViewAngle;
+        float accumulatedVerticalAngle = progressY * mVerticalViewAngle;
+        if (isFinished
+                || (Math.abs(accumulatedHorizontalAngle) >= DEFAULT_SWEEP_ANGLE)
+                || (Math.abs(accumulatedVerticalAngle) >= DEFAULT_SWEEP_ANGLE)) {
+            stopCapture(false);
+        } else {
+            float panningRateXInDegree = panningRateX * mHorizontalViewAngle;
+            float panningRateYInDegree = panningRateY * mVerticalViewAngle;
+            updateProgress(panningRateXInDegree, panningRateYInDegree,
+                    accumulatedHorizontalAngle, accumulatedVerticalAngle);
+        }
+    }
+
     private void stopCapture(boolean aborted) {
+        CameraTrace.end(CameraTrace.PANORAMA_CAPTURE);
         mCaptureState = CAPTURE_STATE_VIEWFINDER;
         mCaptureIndicator.setVisibility(View.GONE);
         hideTooFastIndication();
         hideDirectionIndicators();
         mThumbnailView.setEnabled(true);
 
+        // Wait for the frame being aligned, so the mosaic is no longer
+        // changing when the final one is generated or the processor cleared.
+        mFramePipeline.stop();
+        if (Log.isLoggable(TAG, Log.VERBOSE)) mFramePipeline.logLatency();
         mMosaicFrameProcessor.setProgressListener(null);
         stopCameraPreview();
 
@@ -845,6 +872,22 @@ public class PanoramaActivity extends ActivityBase implements
         mRotateDialog.dismissDialog();
     }
 
+    // The activity is gone, so there is nothing left to show: only keep the
+    // thumbnail of a saved panorama and free the native mosaic.
+    private void onBackgroundThreadFinishedAfterDestroy(Message msg) {
+        switch (msg.what) {
+            case MSG_RESET_TO_PREVIEW_WITH_THUMBNAIL:
+                saveThumbnailToFile();
+                // fall through
+            case MSG_LOW_RES_FINAL_MOSAIC_READY:
+            case MSG_GENERATE_FINAL_MOSAIC_ERROR:
+            case MSG_RESET_TO_PREVIEW:
+                mThreadRunning = false;
+                mMosaicFrameProcessor.release();
+                break;
+        }
+    }
+
     private void cancelHighResComputation() {
         mCancelComputation = true;
         synchronized (mWaitObject) {
@@ -943,8 +986,6 @@ public class PanoramaActivity extends ActivityBase implements
 
     private void clearMosaicFrameProcessorIfNeeded() {
         if (!mPaused || mThreadRunning) return;
-        // Only clear the processor if it is initialized by this activity
-        // instance. Other activity instances may be using it.
         if (mMosaicFrameProcessorInitialized) {
             mMosaicFrameProcessor.clear();
             mMosaicFrameProcessorInitialized = false;
@@ -985,10 +1026,6 @@ public class PanoramaActivity extends ActivityBase implements
         }
 
         clearMosaicFrameProcessorIfNeeded();
-        if (mWaitProcessorTask != null) {
-            mWaitProcessorTask.cancel(true);
-            mWaitProcessorTask = null;
-        }
         resetScreenOn();
         if (mCameraSound != null) {
             mCameraSound.release();
@@ -1029,6 +1066,15 @@ public class PanoramaActivity extends ActivityBase implements
         updateThumbnailView();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDestroyed = true;
+        // A mosaic still being stitched in the background keeps using the
+        // processor; it is released when the stitch posts its result.
+        if (!mThreadRunning) mMosaicFrameProcessor.release();
+    }
+
     @Override
     protected void onResume() {
         mPaused = false;
@@ -1037,10 +1083,42 @@ public class PanoramaActivity extends ActivityBase implements
 
         mCaptureState = CAPTURE_STATE_VIEWFINDER;
 
-        SetupCameraThread setupCameraThread = new SetupCameraThread();
-        setupCameraThread.start();
+        final StartupGraph startUp = new StartupGraph("Panorama startup");
+        StartupGraph.Task open = startUp.addTask("open camera", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    openCamera();
+                } catch (CameraHardwareException e) {
+                    mOpenCameraFail = true;
+                    startUp.cancel();
+                } catch (CameraDisabledException e) {
+                    mCameraDisabled = true;
+                    startUp.cancel();
+                }
+            }
+        });
+        startUp.addTask("configure camera", new Runnable() {
+            @Override
+            public void run() {
+                Parameters parameters = mCameraDevice.getParameters();
+                setupCaptureParams(parameters);
+                configureCamera(parameters);
+            }
+        }, open);
+        // Set up sound playback for shutter button while the camera opens.
+        final MediaActionSound cameraSound = new MediaActionSound();
+        startUp.addTask("load sounds", new Runnable() {
+            @Override
+            public void run() {
+                cameraSound.load(MediaActionSound.START_VIDEO_RECORDING);
+                cameraSound.load(MediaActionSound.STOP_VIDEO_RECORDING);
+            }
+        });
+        mCameraSound = cameraSound;
+        startUp.start();
         try {
-            setupCameraThread.join();
+            startUp.await();
         } catch (InterruptedException ex) {
             // ignore
         }
@@ -1053,27 +1131,17 @@ public class PanoramaActivity extends ActivityBase implements
             return;
         }
 
-        // Set up sound playback for shutter button
-        mCameraSound = new MediaActionSound();
-        mCameraSound.load(MediaActionSound.START_VIDEO_RECORDING);
-        mCameraSound.load(MediaActionSound.STOP_VIDEO_RECORDING);
-
-        // Check if another panorama instance is using the mosaic frame processor.
+        // Each activity instance has its own mosaic frame processor, so there
+        // is no need to wait for a previous instance to finish stitching.
         mRotateDialog.dismissDialog();
-        if (!mThreadRunning && mMosaicFrameProcessor.isMosaicMemoryAllocated()) {
-            mGLRootView.setVisibility(View.GONE);
-            mRotateDialog.showWaitingDialog(mDialogWaitingPreviousString);
-            mWaitProcessorTask = new WaitProcessorTask().execute();
-        } else {
-            if (!mThreadRunning) mGLRootView.setVisibility(View.VISIBLE);
-            // Camera must be initialized before MosaicFrameProcessor is
-            // initialized. The preview size has to be decided by camera device.
-            initMosaicFrameProcessorIfNeeded();
-            int w = mPreviewArea.getWidth();
-            int h = mPreviewArea.getHeight();
-            if (w != 0 && h != 0) {  // The layout has been calculated.
-                configMosaicPreview(w, h);
-            }
+        if (!mThreadRunning) mGLRootView.setVisibility(View.VISIBLE);
+        // Camera must be initialized before MosaicFrameProcessor is
+        // initialized. The preview size has to be decided by camera device.
+        initMosaicFrameProcessorIfNeeded();
+        int w = mPreviewArea.getWidth();
+        int h = mPreviewArea.getHeight();
+        if (w != 0 && h != 0) {  // The layout has been calculated.
+            configMosaicPreview(w, h);
         }
         getLastThumbnail();
         keepScreenOnAwhile();
@@ -1091,7 +1159,10 @@ public class PanoramaActivity extends ActivityBase implements
      *         is an error in generating the final mosaic.
      */
     public MosaicJpeg generateFinalMosaic(boolean highRes) {
+        CameraTrace.begin(CameraTrace.PANORAMA_MOSAIC);
         int mosaicReturnCode = mMosaicFrameProcessor.createMosaic(highRes);
+        CameraTrace.end(CameraTrace.PANORAMA_MOSAIC);
+        mMosaicFrameProcessor.logTimings();
         if (mosaicReturnCode == Mosaic.MOSAIC_RET_CANCELLED) {
             return null;
         } else if (mosaicReturnCode == Mosaic.MOSAIC_RET_ERROR) {
@@ -1147,15 +1218,25 @@ public class PanoramaActivity extends ActivityBase implements
         // the screen).
         if (mCameraState != PREVIEW_STOPPED) stopCameraPreview();
 
+        if (mCameraTexture != null) mCameraTexture.setOnFrameAvailableListener(this);
+
         // Set the display orientation to 0, so that the underlying mosaic library
         // can always get undistorted mPreviewWidth x mPreviewHeight image data
         // from SurfaceTexture.
-        mCameraDevice.setDisplayOrientation(0);
-
-        if (mCameraTexture != null) mCameraTexture.setOnFrameAvailableListener(this);
-        mCameraDevice.setPreviewTextureAsync(mCameraTexture);
-
-        mCameraDevice.startPreviewAsync();
+        CameraManager.BatchResult result = new CameraManager.Batch(mCameraDevice)
+                .setDisplayOrientation(0)
+                .setPreviewTexture(mCameraTexture)
+                .startPreview()
+                .submit();
+        // A failed operation releases the camera, which then cannot be used.
+        if (!result.isSuccessful()) {
+            Log.e(TAG, "startPreview or setPreviewTexture failed");
+            CameraHolder.instance().release();
+            mCameraDevice = null;
+            mCameraState = PREVIEW_STOPPED;
+            Util.showErrorAndFinish(this, R.string.cannot_connect_camera);
+            return;
+        }
         mCameraState = PREVIEW_ACTIVE;
     }
 
@@ -1197,34 +1278,4 @@ public class PanoramaActivity extends ActivityBase implements
         mMainHandler.removeMessages(MSG_CLEAR_SCREEN_DELAY);
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
     }
-
-    private class WaitProcessorTask extends AsyncTask<Void, Void, Void> {
-        @Override
-        protected Void doInBackground(Void... params) {
-            synchronized (mMosaicFrameProcessor) {
-                while (!isCancelled() && mMosaicFrameProcessor.isMosaicMemoryAllocated()) {
-                    try {
-                        mMosaicFrameProcessor.wait();
-                    } catch (Exception e) {
-                        // ignore
-                    }
-                }
-            }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void result) {
-            mWaitProcessorTask = null;
-            mRotateDialog.dismissDialog();
-            mGLRootView.setVisibility(View.VISIBLE);
-            initMosaicFrameProcessorIfNeeded();
-            int w = mPreviewArea.getWidth();
-            int h = mPreviewArea.getHeight();
-            if (w != 0 && h != 0) {  // The layout has been calculated.
-                configMosaicPreview(w, h);
-            }
-            resetToPreview();
-        }
-    }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Tracks the flattened camera parameters last known to be on the device, that
+ * is last applied or read back, so that applying the same parameters again can
+ * be skipped. It also counts the parameters applied and skipped.
+ *
+ * The flattened form is the one of Camera.Parameters.flatten():
+ * "key1=value1;key2=value2;...".
+ */
+public class ParametersTracker {
+    // Flattened parameters on the device, or null if unknown.
+    private String mDeviceState;
+    private boolean mTracking = true;
+
+    private int mAppliedCount;
+    private long mAppliedBytes;
+    private int mSkippedCount;
+    private long mSkippedBytes;
+
+    /**
+     * Returns whether flattened differs from the parameters on the device, and
+     * so has to be applied. Counts it as skipped otherwise.
+     */
+    public synchronized boolean needsApply(String flattened) {
+        if (flattened.equals(mDeviceState)) {
+            mSkippedCount++;
+            mSkippedBytes += flattened.length();
+            return false;
+        }
+        return true;
+    }
+
+    /** Records that flattened has been applied to the device. */
+    public synchronized void onApplied(String flattened) {
+        if (mTracking) mDeviceState = flattened;
+        mAppliedCount++;
+        mAppliedBytes += flattened.length();
+    }
+
+    /** Records that flattened has been read back from the device. */
+    public synchronized void onRead(String flattened) {
+        if (mTracking) mDeviceState = flattened;
+    }
+
+    /**
+     * Forgets the parameters on the device, after anything that may have
+     * changed them behind our back, like reconnecting or reopening the camera.
+     */
+    public synchronized void invalidate() {
+        mDeviceState = null;
+    }
+
+    /**
+     * Stops tracking until {@link #reset()}, when the parameters may be changed
+     * at any time by someone else, like a client of the raw camera.
+     */
+    public synchronized void stopTracking() {
+        mTracking = false;
+        mDeviceState = null;
+    }
+
+    /** Starts over for a newly opened camera, counters included. */
+    public synchronized void reset() {
+        mTracking = true;
+        mDeviceState = null;
+        mAppliedCount = 0;
+        mAppliedBytes = 0;
+        mSkippedCount = 0;
+        mSkippedBytes = 0;
+    }
+
+    /**
+     * Returns the keys whose values differ from the parameters on the device,
+     * including those added or removed, or null if those are unknown.
+     */
+    public synchronized ArrayList<String> getDirtyKeys(String flattened) {
+        if (mDeviceState == null) return null;
+        HashMap<String, String> device = unflatten(mDeviceState);
+        HashMap<String, String> values = unflatten(flattened);
+        ArrayList<String> dirty = new ArrayList<String>();
+        for (String key : values.keySet()) {
+            if (!values.get(key).equals(device.remove(key))) dirty.add(key);
+        }
+        dirty.addAll(device.keySet());
+        return dirty;
+    }
+
+    public synchronized int getAppliedCount() {
+        return mAppliedCount;
+    }
+
+    public synchronized long getAppliedBytes() {
+        return mAppliedBytes;
+    }
+
+    public synchronized int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    public synchronized long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mAppliedCount + " applied (" + mAppliedBytes + " bytes), "
+                + mSkippedCount + " skipped (" + mSkippedBytes + " bytes)";
+    }
+
+    // Same splitting as Camera.Parameters.unflatten().
+    private static HashMap<String, String> unflatten(String flattened) {
+        HashMap<String, String> values = new HashMap<String, String>();
+        for (String pair : flattened.split(";")) {
+            int pos = pair.indexOf('=');
+            if (pos == -1) continue;
+            values.put(pair.substring(0, pos), pair.substring(pos + 1));
+        }
+        return values;
+    }
+}
@@ -17,7 +17,6 @@
 package com.android.camera;
 
 import android.content.Context;
-import android.util.AttributeSet;
 
 import java.util.ArrayList;
 
@@ -29,8 +28,8 @@ public class PreferenceGroup extends CameraPreference {
     private ArrayList<CameraPreference> list =
             new ArrayList<CameraPreference>();
 
-    public PreferenceGroup(Context context, AttributeSet attrs) {
-        super(context, attrs);
+    public PreferenceGroup(Context context, PreferenceNode node) {
+        super(context, node);
     }
 
     public void addChild(CameraPreference child) {
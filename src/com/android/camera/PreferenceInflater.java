@@ -17,29 +17,48 @@
 package com.android.camera;
 
 import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.util.Xml;
 import android.view.InflateException;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
  * Inflate <code>CameraPreference</code> from XML resource.
+ *
+ * <p>The XML is compiled into a tree of {@link PreferenceNode}s, which is kept
+ * in memory for the process and in a file of the cache directory for the
+ * next ones, so the XML is only parsed after the app is installed or updated.
+ * The preferences are then created from the nodes, without reflection.
  */
 public class PreferenceInflater {
-    private static final String PACKAGE_NAME =
-            PreferenceInflater.class.getPackage().getName();
+    private static final String TAG = "PreferenceInflater";
+
+    private static final String CACHE_FILE_PREFIX = "preferences_";
+    private static final int MAGIC = 0x50524546; // "PREF"
+    // Increase when the format of PreferenceNode changes.
+    private static final int VERSION = 1;
 
-    private static final Class<?>[] CTOR_SIGNATURE =
-            new Class[] {Context.class, AttributeSet.class};
-    private static final HashMap<String, Constructor<?>> sConstructorMap =
-            new HashMap<String, Constructor<?>>();
+    // Compiled trees by resource id
+    private static final HashMap<Integer, PreferenceNode> sTrees =
+            new HashMap<Integer, PreferenceNode>();
 
     private Context mContext;
 
@@ -48,50 +67,84 @@ public class PreferenceInflater {
     }
 
     public CameraPreference inflate(int resId) {
-        return inflate(mContext.getResources().getXml(resId));
+        long start = SystemClock.uptimeMillis();
+        String source = "memory";
+        PreferenceNode root;
+        synchronized (sTrees) {
+            root = sTrees.get(resId);
+        }
+        if (root == null) {
+            source = "cache";
+            root = readCache(resId);
+            if (root == null) {
+                source = "xml";
+                root = compile(mContext.getResources().getXml(resId));
+                writeCache(resId, root);
+            }
+            synchronized (sTrees) {
+                sTrees.put(resId, root);
+            }
+        }
+        CameraPreference pref = newPreference(root);
+        Log.v(TAG, "Inflated preferences from " + source + " in "
+                + (SystemClock.uptimeMillis() - start) + " ms");
+        return pref;
     }
 
-    private CameraPreference newPreference(String tagName, Object[] args) {
-        String name = PACKAGE_NAME + "." + tagName;
-        Constructor<?> constructor = sConstructorMap.get(name);
-        try {
-            if (constructor == null) {
-                // Class not found in the cache, see if it's real, and try to
-                // add it
-                Class<?> clazz = mContext.getClassLoader().loadClass(name);
-                constructor = clazz.getConstructor(CTOR_SIGNATURE);
-                sConstructorMap.put(name, constructor);
+    private CameraPreference newPreference(PreferenceNode node) {
+        switch (node.mType) {
+            case PreferenceNode.GROUP: {
+                PreferenceGroup group = new PreferenceGroup(mContext, node);
+                for (PreferenceNode child : node.mChildren) {
+                    group.addChild(newPreference(child));
+                }
+                return group;
             }
-            return (CameraPreference) constructor.newInstance(args);
-        } catch (NoSuchMethodException e) {
-            throw new InflateException("Error inflating class " + name, e);
-        } catch (ClassNotFoundException e) {
-            throw new InflateException("No such class: " + name, e);
-        } catch (Exception e) {
-            throw new InflateException("While create instance of" + name, e);
+            case PreferenceNode.LIST:
+                return new ListPreference(mContext, node);
+            case PreferenceNode.ICON_LIST:
+                return new IconListPreference(mContext, node);
+            case PreferenceNode.RECORD_LOCATION:
+                return new RecordLocationPreference(mContext, node);
+            default:
+                throw new InflateException("No such type: " + node.mType);
         }
     }
 
-    private CameraPreference inflate(XmlPullParser parser) {
+    private static int getType(String tagName) {
+        if (tagName.equals("PreferenceGroup")) return PreferenceNode.GROUP;
+        if (tagName.equals("ListPreference")) return PreferenceNode.LIST;
+        if (tagName.equals("IconListPreference")) return PreferenceNode.ICON_LIST;
+        if (tagName.equals("RecordLocationPreference")) {
+            return PreferenceNode.RECORD_LOCATION;
+        }
+        throw new InflateException("No such class: " + tagName);
+    }
 
+    private PreferenceNode compile(XmlResourceParser parser) {
         AttributeSet attrs = Xml.asAttributeSet(parser);
-        ArrayList<CameraPreference> list = new ArrayList<CameraPreference>();
-        Object args[] = new Object[]{mContext, attrs};
+        ArrayList<PreferenceNode> list = new ArrayList<PreferenceNode>();
 
         try {
             for (int type = parser.next();
                     type != XmlPullParser.END_DOCUMENT; type = parser.next()) {
                 if (type != XmlPullParser.START_TAG) continue;
-                CameraPreference pref = newPreference(parser.getName(), args);
+                PreferenceNode node = new PreferenceNode(getType(parser.getName()));
+                readAttributes(attrs, node);
 
                 int depth = parser.getDepth();
                 if (depth > list.size()) {
-                    list.add(pref);
+                    list.add(node);
                 } else {
-                    list.set(depth - 1, pref);
+                    list.set(depth - 1, node);
                 }
                 if (depth > 1) {
-                    ((PreferenceGroup) list.get(depth - 2)).addChild(pref);
+                    PreferenceNode parent = list.get(depth - 2);
+                    if (parent.mType != PreferenceNode.GROUP) {
+                        throw new InflateException(parser.getPositionDescription()
+                                + ": parent is not a PreferenceGroup");
+                    }
+                    parent.addChild(node);
                 }
             }
 
@@ -103,6 +156,98 @@ public class PreferenceInflater {
             throw new InflateException(e);
         } catch (IOException e) {
             throw new InflateException(parser.getPositionDescription(), e);
+        } finally {
+            parser.close();
+        }
+    }
+
+    // Reads the attributes of R.styleable.CameraPreference, ListPreference and
+    // IconListPreference. They are matched by the resource id of their name,
+    // as obtainStyledAttributes() does, so only the camera namespace counts:
+    // android:title, for one, has the id android.R.attr.title and is ignored.
+    private void readAttributes(AttributeSet attrs, PreferenceNode node) {
+        Resources res = mContext.getResources();
+        for (int i = 0, n = attrs.getAttributeCount(); i < n; i++) {
+            int attr = attrs.getAttributeNameResource(i);
+            int id = attrs.getAttributeResourceValue(i, 0);
+            if (attr == R.attr.title) {
+                node.mTitleId = id;
+                if (id == 0) node.mTitle = attrs.getAttributeValue(i);
+            } else if (attr == R.attr.key) {
+                node.mKey = attrs.getAttributeValue(i);
+            } else if (attr == R.attr.defaultValue) {
+                node.mDefaultValueId = id;
+                if (id == 0) {
+                    node.mDefaultValue = attrs.getAttributeValue(i);
+                } else {
+                    node.mDefaultValueIsArray =
+                            res.getResourceTypeName(id).equals("array");
+                }
+            } else if (attr == R.attr.entries) {
+                node.mEntriesId = id;
+            } else if (attr == R.attr.entryValues) {
+                node.mEntryValuesId = id;
+            } else if (attr == R.attr.singleIcon) {
+                node.mSingleIconId = id;
+            } else if (attr == R.attr.icons) {
+                node.mIconsId = id;
+            } else if (attr == R.attr.largeIcons) {
+                node.mLargeIconsId = id;
+            } else if (attr == R.attr.images) {
+                node.mImagesId = id;
+            }
+        }
+    }
+
+    // The resource ids in the cache are only valid for the apk that wrote it.
+    private long getApkStamp() {
+        return new File(mContext.getApplicationInfo().sourceDir).lastModified();
+    }
+
+    private File getCacheFile(int resId) {
+        return new File(mContext.getCacheDir(),
+                CACHE_FILE_PREFIX + Integer.toHexString(resId));
+    }
+
+    private PreferenceNode readCache(int resId) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(getCacheFile(resId))));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != getApkStamp()) {
+                return null;
+            }
+            return PreferenceNode.read(in);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the preference cache", e);
+            return null;
+        } finally {
+            Util.closeSilently(in);
+        }
+    }
+
+    private void writeCache(int resId, PreferenceNode root) {
+        File file = getCacheFile(resId);
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(getApkStamp());
+            root.write(out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) Log.w(TAG, "Failed to rename " + tmp);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write the preference cache", e);
+        } finally {
+            Util.closeSilently(out);
+            tmp.delete();
         }
     }
 }
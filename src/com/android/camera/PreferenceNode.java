@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A preference of an XML resource as compiled by {@link PreferenceInflater}:
+ * its class and its attributes. The attributes referring to resources are
+ * kept as resource ids, which the preferences resolve when they need them.
+ * A tree of nodes can be written to a stream and read back, so the XML is
+ * only parsed once.
+ */
+public class PreferenceNode {
+    // Types, one per class of preference
+    public static final int GROUP = 0;
+    public static final int LIST = 1;
+    public static final int ICON_LIST = 2;
+    public static final int RECORD_LOCATION = 3;
+
+    int mType;
+    // The title is either a string resource or a literal.
+    int mTitleId;
+    String mTitle;
+    String mKey;
+    // The default value is either a string or an array resource, or a literal.
+    int mDefaultValueId;
+    boolean mDefaultValueIsArray;
+    String mDefaultValue;
+    int mEntriesId;
+    int mEntryValuesId;
+    int mSingleIconId;
+    int mIconsId;
+    int mLargeIconsId;
+    int mImagesId;
+    final ArrayList<PreferenceNode> mChildren = new ArrayList<PreferenceNode>();
+
+    public PreferenceNode(int type) {
+        mType = type;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public void addChild(PreferenceNode child) {
+        mChildren.add(child);
+    }
+
+    public PreferenceNode getChild(int index) {
+        return mChildren.get(index);
+    }
+
+    public int getChildCount() {
+        return mChildren.size();
+    }
+
+    /** Writes this node and its children, depth first. */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeByte(mType);
+        out.writeInt(mTitleId);
+        writeString(out, mTitle);
+        writeString(out, mKey);
+        out.writeInt(mDefaultValueId);
+        out.writeBoolean(mDefaultValueIsArray);
+        writeString(out, mDefaultValue);
+        out.writeInt(mEntriesId);
+        out.writeInt(mEntryValuesId);
+        out.writeInt(mSingleIconId);
+        out.writeInt(mIconsId);
+        out.writeInt(mLargeIconsId);
+        out.writeInt(mImagesId);
+        out.writeShort(mChildren.size());
+        for (PreferenceNode child : mChildren) {
+            child.write(out);
+        }
+    }
+
+    /** Reads a node and its children written by {@link #write}. */
+    public static PreferenceNode read(DataInputStream in) throws IOException {
+        int type = in.readByte();
+        if (type < GROUP || type > RECORD_LOCATION) {
+            throw new IOException("Unknown preference type " + type);
+        }
+        PreferenceNode node = new PreferenceNode(type);
+        node.mTitleId = in.readInt();
+        node.mTitle = readString(in);
+        node.mKey = readString(in);
+        node.mDefaultValueId = in.readInt();
+        node.mDefaultValueIsArray = in.readBoolean();
+        node.mDefaultValue = readString(in);
+        node.mEntriesId = in.readInt();
+        node.mEntryValuesId = in.readInt();
+        node.mSingleIconId = in.readInt();
+        node.mIconsId = in.readInt();
+        node.mLargeIconsId = in.readInt();
+        node.mImagesId = in.readInt();
+        for (int i = 0, n = in.readShort(); i < n; i++) {
+            node.mChildren.add(read(in));
+        }
+        return node;
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable copy of the values of {@link ComboPreferences}, with each key
+ * already resolved to the global or the local preferences, and the numeric
+ * camera settings already parsed. ComboPreferences builds a new one, with the
+ * next version, after its preferences change.
+ */
+public class PreferenceSnapshot {
+    private static final String TAG = "PreferenceSnapshot";
+
+    private final int mVersion;
+    private final HashMap<String, Object> mValues;
+
+    private final int mExposure;
+    private final int mBrightness;
+    private final int mSaturation;
+    private final int mSharpness;
+    private final int mHue;
+    private final int mWdr;
+    private final int mJpegQuality;
+    private final boolean mAeLock;
+    private final boolean mAwbLock;
+
+    /**
+     * Resolves the values of global and local, as returned by getAll(). local
+     * is null if no camera is set yet.
+     */
+    public PreferenceSnapshot(int version, Map<String, ?> global,
+            Map<String, ?> local) {
+        mVersion = version;
+        mValues = new HashMap<String, Object>(global);
+        if (local != null) {
+            for (Map.Entry<String, ?> entry : local.entrySet()) {
+                if (!isGlobal(entry.getKey())) {
+                    mValues.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        mExposure = parseInt(CameraSettings.KEY_EXPOSURE,
+                CameraSettings.EXPOSURE_DEFAULT_VALUE);
+        mBrightness = parseInt(CameraSettings.KEY_BRIGHTNESS,
+                CameraSettings.BRIGHTNESS_DEFAULT_VALUE);
+        mSaturation = parseInt(CameraSettings.KEY_SATURATION,
+                CameraSettings.SATURATION_DEFAULT_VALUE);
+        mSharpness = parseInt(CameraSettings.KEY_SHARPNESS,
+                CameraSettings.SHARPNESS_DEFAULT_VALUE);
+        mHue = parseInt(CameraSettings.KEY_HUE, CameraSettings.HUE_DEFAULT_VALUE);
+        mWdr = parseInt(CameraSettings.KEY_WDR, CameraSettings.WDR_DEFAULT_VALUE);
+        mJpegQuality = parseInt(CameraSettings.KEY_JPEG_QUAL,
+                CameraSettings.JPEG_QUAL_DEFAULT_VALUE);
+        mAeLock = getString(CameraSettings.KEY_AE_LOCK,
+                CameraSettings.AE_LOCK_DEFAULT_VALUE).equals("1");
+        mAwbLock = getString(CameraSettings.KEY_AWB_LOCK,
+                CameraSettings.AWB_LOCK_DEFAULT_VALUE).equals("1");
+    }
+
+    /** Returns whether key is kept in the global preferences. */
+    public static boolean isGlobal(String key) {
+        return key.equals(CameraSettings.KEY_VIDEO_TIME_LAPSE_FRAME_INTERVAL)
+                || key.equals(CameraSettings.KEY_CAMERA_ID)
+                || key.equals(CameraSettings.KEY_RECORD_LOCATION)
+                || key.equals(CameraSettings.KEY_CAMERA_FIRST_USE_HINT_SHOWN)
+                || key.equals(CameraSettings.KEY_VIDEO_FIRST_USE_HINT_SHOWN)
+                || key.equals(CameraSettings.KEY_VIDEO_EFFECT);
+    }
+
+    // Invalid values are read as 0, as they were by CameraSettings.
+    private int parseInt(String key, String defValue) {
+        String value = getString(key, defValue);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Invalid " + key + ": " + value);
+            return 0;
+        }
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public String getString(String key, String defValue) {
+        String value = (String) mValues.get(key);
+        return value != null ? value : defValue;
+    }
+
+    public int getInt(String key, int defValue) {
+        Integer value = (Integer) mValues.get(key);
+        return value != null ? value : defValue;
+    }
+
+    public long getLong(String key, long defValue) {
+        Long value = (Long) mValues.get(key);
+        return value != null ? value : defValue;
+    }
+
+    public float getFloat(String key, float defValue) {
+        Float value = (Float) mValues.get(key);
+        return value != null ? value : defValue;
+    }
+
+    public boolean getBoolean(String key, boolean defValue) {
+        Boolean value = (Boolean) mValues.get(key);
+        return value != null ? value : defValue;
+    }
+
+    public int getExposure() {
+        return mExposure;
+    }
+
+    public int getBrightness() {
+        return mBrightness;
+    }
+
+    public int getSaturation() {
+        return mSaturation;
+    }
+
+    public int getSharpness() {
+        return mSharpness;
+    }
+
+    public int getHue() {
+        return mHue;
+    }
+
+    public int getWdr() {
+        return mWdr;
+    }
+
+    public int getJpegQuality() {
+        return mJpegQuality;
+    }
+
+    public boolean isAeLocked() {
+        return mAeLock;
+    }
+
+    public boolean isAwbLocked() {
+        return mAwbLock;
+    }
+}
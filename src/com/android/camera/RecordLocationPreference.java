@@ -19,7 +19,6 @@ package com.android.camera;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.util.AttributeSet;
 
 /**
  * {@code RecordLocationPreference} is used to keep the "store locaiton"
@@ -35,8 +34,8 @@ public class RecordLocationPreference extends IconListPreference {
 
     private final ContentResolver mResolver;
 
-    public RecordLocationPreference(Context context, AttributeSet attrs) {
-        super(context, attrs);
+    public RecordLocationPreference(Context context, PreferenceNode node) {
+        super(context, node);
         mResolver = context.getContentResolver();
     }
 
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the startup of an activity as a graph of tasks. Each task runs once all
+ * the tasks it depends on are done, on the executor given for it, by default a
+ * small thread pool shared by all the graphs. A task can also be external: it
+ * runs nothing and is completed by a call to {@link #complete(Task)}, to make
+ * other tasks wait for work done inline, like inflating the views in onCreate.
+ *
+ * <p>Once all the tasks are done, the critical path of the startup is logged,
+ * that is the chain of tasks that each waited on the one before to finish.
+ *
+ * <p>A task that throws cancels the graph. Tasks should catch the exceptions
+ * they expect and call {@link #cancel()} themselves to skip their dependents.
+ */
+public class StartupGraph {
+    private static final String TAG = "StartupGraph";
+
+    private static final int POOL_SIZE = 2;
+    private static final int KEEP_ALIVE_SECONDS = 5;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private int mCount;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    return new Thread(r, "CameraStartup-" + (++mCount));
+                }
+            });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** A node of the graph. The times are in uptime milliseconds, or 0. */
+    public static class Task {
+        private final String mName;
+        private final Runnable mRunnable;
+        private final Executor mExecutor;
+        private final Task[] mDependencies;
+        private final ArrayList<Task> mDependents = new ArrayList<Task>();
+        private int mPending;
+        private boolean mDone;
+        private long mReadyTime;
+        private long mStartTime;
+        private long mEndTime;
+
+        private Task(String name, Runnable runnable, Executor executor,
+                Task[] dependencies) {
+            mName = name;
+            mRunnable = runnable;
+            mExecutor = executor;
+            mDependencies = dependencies;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /** When all the dependencies were done. */
+        public long getReadyTime() {
+            return mReadyTime;
+        }
+
+        public long getStartTime() {
+            return mStartTime;
+        }
+
+        public long getEndTime() {
+            return mEndTime;
+        }
+    }
+
+    private final String mName;
+    private final ArrayList<Task> mTasks = new ArrayList<Task>();
+    private boolean mStarted;
+    private boolean mCancelled;
+    private int mRunning;
+    private int mRemaining;
+    private long mStartTime;
+    private long mEndTime;
+
+    public StartupGraph(String name) {
+        mName = name;
+    }
+
+    /** Adds a task run on the shared startup thread pool. */
+    public Task addTask(String name, Runnable runnable, Task... dependencies) {
+        return addTask(name, runnable, sExecutor, dependencies);
+    }
+
+    /** Adds a task run on executor, like a Handler posting to the main thread. */
+    public synchronized Task addTask(String name, Runnable runnable,
+            Executor executor, Task... dependencies) {
+        if (mStarted) throw new IllegalStateException("graph already started");
+        Task task = new Task(name, runnable, executor, dependencies);
+        for (Task dependency : dependencies) {
+            if (!mTasks.contains(dependency)) {
+                throw new IllegalArgumentException("unknown dependency "
+                        + dependency.mName);
+            }
+            dependency.mDependents.add(task);
+        }
+        task.mPending = dependencies.length;
+        mTasks.add(task);
+        return task;
+    }
+
+    /** Adds a task completed by {@link #complete(Task)}. */
+    public Task addExternalTask(String name, Task... dependencies) {
+        return addTask(name, null, null, dependencies);
+    }
+
+    /** Starts running the tasks that have no dependencies. */
+    public synchronized void start() {
+        if (mStarted) throw new IllegalStateException("graph already started");
+        mStarted = true;
+        mStartTime = SystemClock.uptimeMillis();
+        mRemaining = mTasks.size();
+        for (Task task : mTasks) {
+            if (task.mPending == 0) onReady(task);
+        }
+        if (mRemaining == 0) onAllDone();
+    }
+
+    /** Completes an external task, once the graph is started. */
+    public synchronized void complete(Task task) {
+        if (!mStarted) throw new IllegalStateException("graph not started");
+        if (task.mRunnable != null) {
+            throw new IllegalArgumentException(task.mName + " is not external");
+        }
+        if (!task.mDone) {
+            task.mStartTime = task.mReadyTime != 0
+                    ? task.mReadyTime : SystemClock.uptimeMillis();
+            onDone(task);
+        }
+    }
+
+    /**
+     * Skips the tasks that have not started yet. The ones running go on until
+     * they return; tasks can check {@link #isCancelled()} to return early.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /** Returns whether all the tasks are done. */
+    public synchronized boolean isDone() {
+        return mStarted && mRemaining == 0;
+    }
+
+    /**
+     * Waits until all the tasks are done, or, if the graph is cancelled, until
+     * the running ones return. Waiting on the thread of an executor for tasks
+     * still to be run on it would never return, so cancel first.
+     */
+    public synchronized void await() throws InterruptedException {
+        while (mStarted && mRemaining > 0 && (!mCancelled || mRunning > 0)) {
+            wait();
+        }
+    }
+
+    private void onReady(Task task) {
+        task.mReadyTime = SystemClock.uptimeMillis();
+        // External tasks wait for complete().
+        if (task.mRunnable == null || mCancelled) return;
+        final Task t = task;
+        task.mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runTask(t);
+            }
+        });
+    }
+
+    private void runTask(Task task) {
+        synchronized (this) {
+            if (mCancelled) {
+                notifyAll();
+                return;
+            }
+            mRunning++;
+            task.mStartTime = SystemClock.uptimeMillis();
+        }
+        boolean done = false;
+        try {
+            task.mRunnable.run();
+            done = true;
+        } finally {
+            synchronized (this) {
+                mRunning--;
+                if (done) {
+                    onDone(task);
+                } else {
+                    Log.e(TAG, mName + ": " + task.mName + " failed");
+                    mCancelled = true;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void onDone(Task task) {
+        task.mDone = true;
+        task.mEndTime = SystemClock.uptimeMillis();
+        mRemaining--;
+        for (Task dependent : task.mDependents) {
+            if (--dependent.mPending == 0) onReady(dependent);
+        }
+        if (mRemaining == 0) onAllDone();
+        notifyAll();
+    }
+
+    private void onAllDone() {
+        mEndTime = SystemClock.uptimeMillis();
+        Log.v(TAG, toString());
+    }
+
+    /** Returns the total time from start() to the last task done, or 0. */
+    public synchronized long getDuration() {
+        return isDone() ? mEndTime - mStartTime : 0;
+    }
+
+    /**
+     * Returns the critical path in order: starting from the last task done,
+     * each task preceded by the dependency that was done last.
+     */
+    public synchronized ArrayList<Task> getCriticalPath() {
+        ArrayList<Task> path = new ArrayList<Task>();
+        Task last = null;
+        for (Task task : mTasks) {
+            if (task.mDone && (last == null || task.mEndTime >= last.mEndTime)) {
+                last = task;
+            }
+        }
+        while (last != null) {
+            path.add(0, last);
+            Task previous = null;
+            for (Task dependency : last.mDependencies) {
+                if (previous == null || dependency.mEndTime >= previous.mEndTime) {
+                    previous = dependency;
+                }
+            }
+            last = previous;
+        }
+        return path;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder(mName);
+        if (!isDone()) return builder.append(": not done").toString();
+        builder.append(": ").append(mEndTime - mStartTime)
+                .append(" ms, critical path:");
+        for (Task task : getCriticalPath()) {
+            // Time waiting for an executor, then time running.
+            builder.append(' ').append(task.mName)
+                    .append(" +").append(task.mStartTime - task.mReadyTime)
+                    .append(' ').append(task.mEndTime - task.mStartTime)
+                    .append(" ms @").append(task.mEndTime - mStartTime);
+        }
+        return builder.toString();
+    }
+}
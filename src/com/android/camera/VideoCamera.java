@@ -340,42 +340,29 @@ public class VideoCamera extends ActivityBase
         resetEffect();
 
         /*
-         * To reduce startup time, we start the preview in another thread.
-         * We make sure the preview is started at the end of onCreate.
+         * To reduce startup time, we open the camera and start the preview in
+         * the background while the views are initialized. We make sure the
+         * preview is started at the end of onCreate.
          */
-        CameraOpenThread cameraOpenThread = new CameraOpenThread();
-        cameraOpenThread.start();
-
-        mContentResolver = getContentResolver();
-
-        setContentView(R.layout.video_camera);
+        StartupGraph startUp = new StartupGraph("VideoCamera startup");
+        StartupGraph.Task open = addCameraOpenTask(startUp);
         // Surface texture is from camera screen nail and startPreview needs it.
-        // This must be done before startPreview.
-        mIsVideoCaptureIntent = isVideoCaptureIntent();
-        createCameraScreenNail(!mIsVideoCaptureIntent);
-
-        // Make sure camera device is opened.
-        try {
-            cameraOpenThread.join();
-            if (mOpenCameraFail) {
-                Util.showErrorAndFinish(this, R.string.cannot_connect_camera);
-                return;
-            } else if (mCameraDisabled) {
-                Util.showErrorAndFinish(this, R.string.camera_disabled);
-                return;
-            }
-        } catch (InterruptedException ex) {
-            // ignore
-        }
-
-        Thread startPreviewThread = new Thread(new Runnable() {
+        StartupGraph.Task screenNail = startUp.addExternalTask("screen nail");
+        startUp.addTask("start preview", new Runnable() {
             @Override
             public void run() {
                 readVideoPreferences();
                 startPreview();
             }
-        });
-        startPreviewThread.start();
+        }, open, screenNail);
+        startUp.start();
+
+        mContentResolver = getContentResolver();
+
+        setContentView(R.layout.video_camera);
+        mIsVideoCaptureIntent = isVideoCaptureIntent();
+        createCameraScreenNail(!mIsVideoCaptureIntent);
+        startUp.complete(screenNail);
 
         initializeControlByIntent();
         initializeMiscControls();
@@ -387,7 +374,7 @@ public class VideoCamera extends ActivityBase
 
         // Make sure preview is started.
         try {
-            startPreviewThread.join();
+            startUp.await();
             if (mOpenCameraFail) {
                 Util.showErrorAndFinish(this, R.string.cannot_connect_camera);
                 return;
@@ -846,7 +833,6 @@ public class VideoCamera extends ActivityBase
     private void startPreview() {
         Log.v(TAG, "startPreview");
 
-        mCameraDevice.setErrorCallback(mErrorCallback);
         if (mPreviewing == true) {
             stopPreview();
             if (effectsActive() && mEffectsRecorder != null) {
@@ -856,8 +842,11 @@ public class VideoCamera extends ActivityBase
         }
 
         setDisplayOrientation();
-        mCameraDevice.setDisplayOrientation(mCameraDisplayOrientation);
-        setCameraParameters();
+        // Configure the camera in a single round trip to the camera thread.
+        CameraManager.Batch batch = new CameraManager.Batch(mCameraDevice);
+        batch.setErrorCallback(mErrorCallback);
+        batch.setDisplayOrientation(mCameraDisplayOrientation);
+        setCameraParameters(batch);
 
         try {
             if (!effectsActive()) {
@@ -1502,6 +1491,7 @@ public class VideoCamera extends ActivityBase
 
         mMediaRecorderRecording = true;
         mRecordingStartTime = SystemClock.uptimeMillis();
+        CameraTrace.mark(CameraTrace.VIDEO_RECORDING_START);
         showRecordingUI(true);
 
         updateRecordingTime();
@@ -1620,6 +1610,7 @@ public class VideoCamera extends ActivityBase
                 fail = true;
             }
             mMediaRecorderRecording = false;
+            CameraTrace.mark(CameraTrace.VIDEO_RECORDING_STOP);
 
             // If the activity is paused, this means activity is interrupted
             // during recording. Release the camera as soon as possible because
@@ -1777,8 +1768,14 @@ public class VideoCamera extends ActivityBase
         return supported == null ? false : supported.indexOf(value) >= 0;
     }
 
-    @SuppressWarnings("deprecation")
     private void setCameraParameters() {
+        setCameraParameters(new CameraManager.Batch(mCameraDevice));
+    }
+
+    // Sets the parameters and reads them back, after the operations already
+    // queued in batch.
+    @SuppressWarnings("deprecation")
+    private void setCameraParameters(CameraManager.Batch batch) {
         mParameters.setPreviewSize(mDesiredPreviewWidth, mDesiredPreviewHeight);
         mParameters.setPreviewFrameRate(mProfile.videoFrameRate);
 
@@ -1855,9 +1852,11 @@ public class VideoCamera extends ActivityBase
                 CameraProfile.QUALITY_HIGH);
         mParameters.setJpegQuality(jpegQuality);
 
-        mCameraDevice.setParameters(mParameters);
         // Keep preview size up to date.
-        mParameters = mCameraDevice.getParameters();
+        CameraManager.BatchResult result =
+                batch.setParameters(mParameters).getParameters().submit();
+        result.throwIfFailed();
+        mParameters = result.getParameters();
 
         updateCameraScreenNailSize(mDesiredPreviewWidth, mDesiredPreviewHeight);
     }
@@ -20,6 +20,7 @@ import android.test.InstrumentationTestRunner;
 import android.test.InstrumentationTestSuite;
 
 import com.android.camera.activity.CameraActivityTest;
+import com.android.camera.activity.FakeCameraTest;
 import com.android.camera.activity.PanoramaActivityTest;
 import com.android.camera.activity.VideoCameraActivityTest;
 import com.android.camera.functional.CameraTest;
@@ -36,6 +37,7 @@ public class CameraTestRunner extends InstrumentationTestRunner {
     public TestSuite getAllTests() {
         TestSuite suite = new InstrumentationTestSuite(this);
         suite.addTestSuite(CameraActivityTest.class);
+        suite.addTestSuite(FakeCameraTest.class);
         suite.addTestSuite(PanoramaActivityTest.class);
         suite.addTestSuite(VideoCameraActivityTest.class);
         suite.addTestSuite(CameraTest.class);
@@ -0,0 +1,508 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera.AutoFocusCallback;
+import android.hardware.Camera.AutoFocusMoveCallback;
+import android.hardware.Camera.ErrorCallback;
+import android.hardware.Camera.FaceDetectionListener;
+import android.hardware.Camera.OnZoomChangeListener;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.PictureCallback;
+import android.hardware.Camera.PreviewCallback;
+import android.hardware.Camera.ShutterCallback;
+import android.hardware.Camera.Size;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import com.android.camera.CameraManager.CameraProxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A simulated camera device, to be injected with
+ * {@code CameraHolder.injectMockCamera()}. It takes a configurable time to
+ * open, start the preview, focus and take a picture, renders synthetic
+ * preview frames into the preview texture and the preview callback buffers,
+ * and returns a synthetic JPEG for every picture. The frames only depend on
+ * their number, so runs can be compared with each other.
+ *
+ * <p>As the real device, it calls the callbacks on the main thread, and stops
+ * the preview when a picture is taken.
+ */
+public class FakeCameraProxy implements CameraProxy {
+    private static final String TAG = "FakeCameraProxy";
+    // Token of the preview start and frame callbacks on the device thread
+    private static final Object PREVIEW_TOKEN = new Object();
+
+    public static final String DEFAULT_PARAMETERS =
+            "preview-format-values=yuv420sp;preview-format=yuv420sp;" +
+            "preview-size-values=640x480,320x240;preview-size=640x480;" +
+            "picture-size-values=640x480,320x240;picture-size=640x480;" +
+            "jpeg-thumbnail-size-values=160x120,0x0;jpeg-thumbnail-width=160;" +
+            "jpeg-thumbnail-height=120;jpeg-thumbnail-quality=60;jpeg-quality=95;" +
+            "preview-frame-rate-values=30,15;preview-frame-rate=30;" +
+            "focus-mode-values=auto,infinity,continuous-picture,continuous-video;" +
+            "focus-mode=auto;max-num-focus-areas=1;max-num-metering-areas=1;" +
+            "preview-fps-range-values=(15000,30000);preview-fps-range=15000,30000;" +
+            "scene-mode-values=auto,night;scene-mode=auto;" +
+            "flash-mode-values=off,on,auto;flash-mode=off;" +
+            "whitebalance-values=auto,daylight;whitebalance=auto;" +
+            "effect-values=none,mono;effect=none;" +
+            "zoom-supported=true;zoom-ratios=100,200,400;max-zoom=2;zoom=0;" +
+            "picture-format-values=jpeg;picture-format=jpeg;" +
+            "min-exposure-compensation=-2;max-exposure-compensation=2;" +
+            "exposure-compensation=0;exposure-compensation-step=1;" +
+            "auto-exposure-lock-supported=true;auto-whitebalance-lock-supported=true;" +
+            "horizontal-view-angle=60;vertical-view-angle=45;video-snapshot-supported=true";
+
+    // Latencies in milliseconds
+    private long mOpenLatency;
+    private long mStartPreviewLatency;
+    private long mAutoFocusLatency;
+    private long mShutterLatency;
+    private long mTakePictureLatency;
+    private long mCommandLatency;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ParametersTracker mParametersTracker = new ParametersTracker();
+
+    // Guarded by this
+    // The device thread runs from the first use to release().
+    private HandlerThread mDeviceThread;
+    private Handler mDeviceHandler;
+    private boolean mOpened;
+    private String mParameters = DEFAULT_PARAMETERS;
+    private boolean mPreviewing;
+    // Increased by every start and stop of the preview, so that the frames
+    // scheduled by an earlier preview are dropped.
+    private int mPreviewGeneration;
+    private int mFrameCount;
+    private int mPictureCount;
+    private SurfaceTexture mPreviewTexture;
+    private PreviewCallback mPreviewCallback;
+    private final ArrayList<byte[]> mCallbackBuffers = new ArrayList<byte[]>();
+    private ErrorCallback mErrorCallback;
+    private byte[] mJpeg;
+    private String mJpegSize;
+
+    private synchronized Handler getDeviceHandler() {
+        if (mDeviceHandler == null) {
+            mDeviceThread = new HandlerThread("FakeCamera");
+            mDeviceThread.start();
+            mDeviceHandler = new Handler(mDeviceThread.getLooper());
+        }
+        return mDeviceHandler;
+    }
+
+    // Stops the preview and drops the frames and the preview start pending
+    // on the device thread.
+    private synchronized void cancelPreview() {
+        mPreviewing = false;
+        mPreviewGeneration++;
+        if (mDeviceHandler != null) mDeviceHandler.removeCallbacksAndMessages(PREVIEW_TOKEN);
+    }
+
+    /**
+     * CameraHolder hands out injected cameras without opening them, so opening
+     * is simulated by the first call after construction or release().
+     */
+    public void setOpenLatency(long ms) {
+        mOpenLatency = ms;
+    }
+
+    public void setStartPreviewLatency(long ms) {
+        mStartPreviewLatency = ms;
+    }
+
+    public void setAutoFocusLatency(long ms) {
+        mAutoFocusLatency = ms;
+    }
+
+    // From takePicture() to the shutter callback, and from there to the
+    // JPEG callback.
+    public void setTakePictureLatency(long shutterMs, long jpegMs) {
+        mShutterLatency = shutterMs;
+        mTakePictureLatency = jpegMs;
+    }
+
+    // Added to every call that waits for the device.
+    public void setCommandLatency(long ms) {
+        mCommandLatency = ms;
+    }
+
+    public synchronized int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public synchronized int getPictureCount() {
+        return mPictureCount;
+    }
+
+    public synchronized boolean isPreviewing() {
+        return mPreviewing;
+    }
+
+    /** Reports a device error through the error callback. */
+    public void notifyError(final int error) {
+        final ErrorCallback cb;
+        synchronized (this) {
+            cb = mErrorCallback;
+        }
+        if (cb == null) return;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                cb.onError(error, null);
+            }
+        });
+    }
+
+    // Simulates the time taken by a call, opening the device first if needed.
+    private void command() {
+        boolean open;
+        synchronized (this) {
+            open = !mOpened;
+            mOpened = true;
+        }
+        sleep((open ? mOpenLatency : 0) + mCommandLatency);
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public android.hardware.Camera getCamera() {
+        // There is no device behind it, so it cannot record video.
+        return null;
+    }
+
+    @Override
+    public ParametersTracker getParametersTracker() {
+        return mParametersTracker;
+    }
+
+    @Override
+    public void release() {
+        command();
+        synchronized (this) {
+            cancelPreview();
+            mOpened = false;
+            mPreviewTexture = null;
+            mPreviewCallback = null;
+            mCallbackBuffers.clear();
+            mErrorCallback = null;
+            mParameters = DEFAULT_PARAMETERS;
+            if (mDeviceThread != null) {
+                mDeviceHandler.removeCallbacksAndMessages(null);
+                mDeviceThread.quit();
+                mDeviceThread = null;
+                mDeviceHandler = null;
+            }
+        }
+        mParametersTracker.reset();
+    }
+
+    @Override
+    public void reconnect() throws IOException {
+        command();
+    }
+
+    @Override
+    public void unlock() {
+        command();
+    }
+
+    @Override
+    public void lock() {
+        command();
+    }
+
+    @Override
+    public synchronized void setPreviewTextureAsync(SurfaceTexture surfaceTexture) {
+        mPreviewTexture = surfaceTexture;
+    }
+
+    @Override
+    public void startPreviewAsync() {
+        postPreview(new Runnable() {
+            @Override
+            public void run() {
+                int generation;
+                synchronized (FakeCameraProxy.this) {
+                    if (mPreviewing) return;
+                    mPreviewing = true;
+                    generation = ++mPreviewGeneration;
+                }
+                renderFrame(generation);
+            }
+        }, mStartPreviewLatency);
+    }
+
+    private void postPreview(Runnable r, long delayMs) {
+        getDeviceHandler().postAtTime(r, PREVIEW_TOKEN,
+                SystemClock.uptimeMillis() + delayMs);
+    }
+
+    @Override
+    public void stopPreview() {
+        command();
+        cancelPreview();
+    }
+
+    @Override
+    public synchronized void setPreviewCallbackWithBuffer(PreviewCallback cb) {
+        mPreviewCallback = cb;
+        if (cb == null) mCallbackBuffers.clear();
+    }
+
+    @Override
+    public synchronized void addCallbackBuffer(byte[] callbackBuffer) {
+        mCallbackBuffers.add(callbackBuffer);
+    }
+
+    @Override
+    public void autoFocus(final AutoFocusCallback cb) {
+        command();
+        mMainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                cb.onAutoFocus(true, null);
+            }
+        }, mAutoFocusLatency);
+    }
+
+    @Override
+    public void cancelAutoFocus() {
+        command();
+    }
+
+    @Override
+    public void setAutoFocusMoveCallback(AutoFocusMoveCallback cb) {
+    }
+
+    @Override
+    public void takePicture(final ShutterCallback shutter, final PictureCallback raw,
+            final PictureCallback postview, final PictureCallback jpeg) {
+        command();
+        synchronized (this) {
+            cancelPreview();
+            mPictureCount++;
+        }
+        final byte[] data = getJpeg();
+        mMainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (shutter != null) shutter.onShutter();
+                if (raw != null) raw.onPictureTaken(null, null);
+            }
+        }, mShutterLatency);
+        mMainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (postview != null) postview.onPictureTaken(null, null);
+                if (jpeg != null) jpeg.onPictureTaken(data, null);
+            }
+        }, mShutterLatency + mTakePictureLatency);
+    }
+
+    @Override
+    public void setDisplayOrientation(int degrees) {
+        command();
+    }
+
+    @Override
+    public void setZoomChangeListener(OnZoomChangeListener listener) {
+        command();
+    }
+
+    @Override
+    public void setFaceDetectionListener(FaceDetectionListener listener) {
+        command();
+    }
+
+    @Override
+    public void startFaceDetection() {
+        command();
+    }
+
+    @Override
+    public void stopFaceDetection() {
+        command();
+    }
+
+    @Override
+    public void setErrorCallback(ErrorCallback cb) {
+        command();
+        synchronized (this) {
+            mErrorCallback = cb;
+        }
+    }
+
+    @Override
+    public void setParameters(Parameters params) {
+        String flattened = params.flatten();
+        command();
+        synchronized (this) {
+            mParameters = flattened;
+        }
+        mParametersTracker.onApplied(flattened);
+    }
+
+    @Override
+    public void setParametersAsync(final Parameters params) {
+        final String flattened = params.flatten();
+        getDeviceHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (FakeCameraProxy.this) {
+                    mParameters = flattened;
+                }
+                mParametersTracker.onApplied(flattened);
+            }
+        });
+    }
+
+    @Override
+    public Parameters getParameters() {
+        command();
+        return getParametersNow();
+    }
+
+    @Override
+    public void waitForIdle() {
+        command();
+    }
+
+    // Renders the next preview frame and schedules the one after, at the
+    // preview frame rate, as long as the preview of generation is on. Runs on
+    // the device thread.
+    private void renderFrame(final int generation) {
+        Parameters params = getParametersNow();
+        SurfaceTexture texture;
+        PreviewCallback cb;
+        byte[] buffer = null;
+        int frame;
+        synchronized (this) {
+            if (!mPreviewing || generation != mPreviewGeneration) return;
+            texture = mPreviewTexture;
+            cb = mPreviewCallback;
+            if (cb != null && !mCallbackBuffers.isEmpty()) buffer = mCallbackBuffers.remove(0);
+            frame = mFrameCount++;
+        }
+
+        Size size = params.getPreviewSize();
+        if (texture != null) drawFrame(texture, frame);
+        if (buffer != null) {
+            fillNV21(buffer, size.width, size.height, frame);
+            final PreviewCallback callback = cb;
+            final byte[] data = buffer;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onPreviewFrame(data, null);
+                }
+            });
+        }
+
+        int fps = Math.max(1, params.getPreviewFrameRate());
+        synchronized (this) {
+            if (!mPreviewing || generation != mPreviewGeneration) return;
+            postPreview(new Runnable() {
+                @Override
+                public void run() {
+                    renderFrame(generation);
+                }
+            }, 1000 / fps);
+        }
+    }
+
+    private Parameters getParametersNow() {
+        Parameters params = android.hardware.Camera.getEmptyParameters();
+        synchronized (this) {
+            params.unflatten(mParameters);
+        }
+        return params;
+    }
+
+    private static int frameColor(int frame) {
+        int level = (frame * 8) & 0xff;
+        return Color.rgb(level, 128, 255 - level);
+    }
+
+    private static void drawFrame(SurfaceTexture texture, int frame) {
+        Surface surface = new Surface(texture);
+        try {
+            Canvas canvas = surface.lockCanvas(null);
+            canvas.drawColor(frameColor(frame));
+            surface.unlockCanvasAndPost(canvas);
+        } catch (Exception e) {
+            // The texture is gone or owned by another producer.
+            Log.w(TAG, "Cannot draw preview frame " + frame, e);
+        } finally {
+            surface.release();
+        }
+    }
+
+    // A horizontal ramp moving by one pixel per frame, with neutral chroma.
+    private static void fillNV21(byte[] data, int width, int height, int frame) {
+        int ySize = width * height;
+        if (data.length < ySize * 3 / 2) return;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                data[y * width + x] = (byte) (x + frame);
+            }
+        }
+        for (int i = ySize; i < ySize * 3 / 2; i++) {
+            data[i] = (byte) 128;
+        }
+    }
+
+    // The JPEG for the current picture size, encoded once per size.
+    private synchronized byte[] getJpeg() {
+        Parameters params = getParametersNow();
+        Size size = params.getPictureSize();
+        String key = size.width + "x" + size.height;
+        if (mJpeg == null || !key.equals(mJpegSize)) {
+            Bitmap bitmap = Bitmap.createBitmap(size.width, size.height,
+                    Bitmap.Config.RGB_565);
+            bitmap.eraseColor(frameColor(0));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, params.getJpegQuality(), out);
+            bitmap.recycle();
+            mJpeg = out.toByteArray();
+            mJpegSize = key;
+        }
+        return mJpeg;
+    }
+}
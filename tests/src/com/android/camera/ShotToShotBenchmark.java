@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.app.Instrumentation;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.KeyEvent;
+
+import java.util.Arrays;
+
+/**
+ * Takes pictures back to back with the {@link Camera} activity, each as soon
+ * as the camera is idle again after the previous one, and reports the
+ * percentiles of the capture stages. The stages are timed from the events of
+ * {@link CameraTrace}, so this works the same with a real camera and with
+ * {@link FakeCameraProxy}.
+ */
+public class ShotToShotBenchmark {
+    private static final String TAG = "ShotToShotBenchmark";
+    private static final long TIMEOUT_NS = 10000000000L;
+    private static final long POLL_INTERVAL_MS = 2;
+
+    // Stages
+    // From the shutter key to the shutter callback
+    public static final int SHUTTER_LAG = 0;
+    // From the shutter callback to the jpeg callback
+    public static final int SHUTTER_TO_JPEG = 1;
+    // From the jpeg callback to the image stored
+    public static final int JPEG_TO_SAVED = 2;
+    // From a shutter key to the next
+    public static final int SHOT_TO_SHOT = 3;
+    private static final int NUM_STAGES = 4;
+
+    private static final String[] STAGE_NAMES = {
+        "Shutter lag", "Shutter to jpeg", "Jpeg to saved", "Shot to shot",
+    };
+    private static final int[] PERCENTILES = {50, 90, 99};
+
+    private final Instrumentation mInstrumentation;
+    private final int mShots;
+    private final long[] mKeyTimes;
+    private final long[] mShutterTimes;
+    private final long[] mJpegTimes;
+    private final long[] mSavedTimes;
+    private final long[] mTime = new long[1];
+    private long mStartTime;
+    private long mEndTime;
+    // Sorted latencies in microseconds, per stage
+    private long[][] mLatencies;
+
+    public ShotToShotBenchmark(Instrumentation instrumentation, int shots) {
+        mInstrumentation = instrumentation;
+        mShots = shots;
+        mKeyTimes = new long[shots];
+        mShutterTimes = new long[shots];
+        mJpegTimes = new long[shots];
+        mSavedTimes = new long[shots];
+    }
+
+    /**
+     * Waits for the preview of the last activity created, takes the pictures
+     * and waits for them to be saved. Returns false if a stage timed out.
+     */
+    public boolean run() {
+        mLatencies = null;
+        long created = CameraTrace.getLastTime(CameraTrace.ACTIVITY_CREATE);
+        if (!waitFor(CameraTrace.FIRST_PREVIEW_FRAME, CameraTrace.INSTANT, created)) {
+            Log.e(TAG, "Timed out waiting for the preview");
+            return false;
+        }
+        // Let the main thread handle the start of the preview.
+        mInstrumentation.waitForIdleSync();
+
+        mStartTime = System.nanoTime();
+        for (int i = 0; i < mShots; i++) {
+            long key = System.nanoTime();
+            mKeyTimes[i] = key;
+            mInstrumentation.sendKeyDownUpSync(KeyEvent.KEYCODE_DPAD_CENTER);
+            // The camera is idle again at the end of the jpeg callback.
+            if (!waitFor(CameraTrace.JPEG_PICTURE, CameraTrace.END, key)) {
+                Log.e(TAG, "Timed out waiting for picture " + i);
+                return false;
+            }
+            mShutterTimes[i] = getFirstTime(CameraTrace.SHUTTER, CameraTrace.INSTANT, key);
+            mJpegTimes[i] = getFirstTime(CameraTrace.JPEG_PICTURE, CameraTrace.BEGIN, key);
+        }
+        mEndTime = System.nanoTime();
+
+        // The images are saved in order, in the background.
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (CameraTrace.getTimes(CameraTrace.IMAGE_SAVE, CameraTrace.END,
+                mStartTime, mSavedTimes) < mShots) {
+            if (System.nanoTime() > deadline) {
+                Log.e(TAG, "Timed out waiting for the pictures to be saved");
+                return false;
+            }
+            SystemClock.sleep(POLL_INTERVAL_MS);
+        }
+        computeLatencies();
+        return true;
+    }
+
+    private boolean waitFor(int event, char phase, long since) {
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (CameraTrace.getTimes(event, phase, since, mTime) == 0) {
+            if (System.nanoTime() > deadline) return false;
+            SystemClock.sleep(POLL_INTERVAL_MS);
+        }
+        return true;
+    }
+
+    private long getFirstTime(int event, char phase, long since) {
+        return CameraTrace.getTimes(event, phase, since, mTime) == 0 ? -1 : mTime[0];
+    }
+
+    private void computeLatencies() {
+        mLatencies = new long[NUM_STAGES][];
+        mLatencies[SHUTTER_LAG] = diff(mKeyTimes, mShutterTimes, 0);
+        mLatencies[SHUTTER_TO_JPEG] = diff(mShutterTimes, mJpegTimes, 0);
+        mLatencies[JPEG_TO_SAVED] = diff(mJpegTimes, mSavedTimes, 0);
+        mLatencies[SHOT_TO_SHOT] = diff(mKeyTimes, mKeyTimes, 1);
+    }
+
+    // Returns the sorted ends[i + offset] - starts[i] in microseconds,
+    // skipping the missing times.
+    private static long[] diff(long[] starts, long[] ends, int offset) {
+        long[] result = new long[starts.length - offset];
+        int count = 0;
+        for (int i = 0; i + offset < ends.length; i++) {
+            if (starts[i] < 0 || ends[i + offset] < 0) continue;
+            result[count++] = (ends[i + offset] - starts[i]) / 1000;
+        }
+        result = Arrays.copyOf(result, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Returns the p-th percentile of stage in milliseconds, by the nearest
+     * rank, or -1 if there is no sample.
+     */
+    public double getPercentile(int stage, int p) {
+        long[] sorted = mLatencies[stage];
+        if (sorted.length == 0) return -1;
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1000.0;
+    }
+
+    /** Returns the maximum of stage in milliseconds, or -1. */
+    public double getMax(int stage) {
+        long[] sorted = mLatencies[stage];
+        return sorted.length == 0 ? -1 : sorted[sorted.length - 1] / 1000.0;
+    }
+
+    /** Returns the pictures taken per second. */
+    public double getThroughput() {
+        return mShots * 1e9 / (mEndTime - mStartTime);
+    }
+
+    /** Returns a line per stage with its percentiles, and the throughput. */
+    public String getReport() {
+        StringBuilder builder = new StringBuilder();
+        for (int stage = 0; stage < NUM_STAGES; stage++) {
+            builder.append(STAGE_NAMES[stage]).append(" (ms) -");
+            for (int p : PERCENTILES) {
+                builder.append(" p").append(p).append(": ")
+                        .append(getPercentile(stage, p));
+            }
+            builder.append(" max: ").append(getMax(stage))
+                    .append(" samples: ").append(mLatencies[stage].length).append('\n');
+        }
+        builder.append("Throughput - ").append(getThroughput())
+                .append(" pictures/s over ").append(mShots).append(" pictures\n");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.activity;
+
+import android.hardware.Camera.CameraInfo;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.KeyEvent;
+
+import com.android.camera.Camera;
+import com.android.camera.CameraHolder;
+import com.android.camera.CameraManager.CameraProxy;
+import com.android.camera.FakeCameraProxy;
+import com.android.camera.ShotToShotBenchmark;
+
+/**
+ * Runs the startup and capture paths of the camera activity against a
+ * simulated device with fixed latencies, so that the time the app adds on
+ * top of the device can be measured without the noise of a real camera.
+ */
+public class FakeCameraTest extends ActivityInstrumentationTestCase2<Camera> {
+    private static final String TAG = "FakeCameraTest";
+    private static final int NUMBER_OF_PICTURES = 10;
+    private static final long TIMEOUT = 10000;
+
+    private static final long OPEN_LATENCY = 100;
+    private static final long START_PREVIEW_LATENCY = 50;
+    private static final long AUTO_FOCUS_LATENCY = 100;
+    private static final long SHUTTER_LATENCY = 50;
+    private static final long JPEG_LATENCY = 150;
+
+    private FakeCameraProxy mFakeCamera;
+
+    public FakeCameraTest() {
+        super(Camera.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFakeCamera = new FakeCameraProxy();
+        mFakeCamera.setOpenLatency(OPEN_LATENCY);
+        mFakeCamera.setStartPreviewLatency(START_PREVIEW_LATENCY);
+        mFakeCamera.setAutoFocusLatency(AUTO_FOCUS_LATENCY);
+        mFakeCamera.setTakePictureLatency(SHUTTER_LATENCY, JPEG_LATENCY);
+
+        CameraInfo[] info = new CameraInfo[1];
+        info[0] = new CameraInfo();
+        info[0].facing = CameraInfo.CAMERA_FACING_BACK;
+        CameraHolder.injectMockCamera(info, new CameraProxy[] {mFakeCamera});
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        // CameraHolder may still keep the camera open, which keeps its thread.
+        mFakeCamera.release();
+        CameraHolder.injectMockCamera(null, null);
+    }
+
+    private interface Condition {
+        boolean isTrue();
+    }
+
+    private void waitFor(String what, Condition condition) {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        while (!condition.isTrue()) {
+            if (SystemClock.uptimeMillis() > deadline) fail("Timed out waiting for " + what);
+            SystemClock.sleep(5);
+        }
+    }
+
+    private void waitForPreviewFrame() {
+        final int frames = mFakeCamera.getFrameCount();
+        waitFor("a preview frame", new Condition() {
+            @Override
+            public boolean isTrue() {
+                return mFakeCamera.getFrameCount() > frames;
+            }
+        });
+    }
+
+    @LargeTest
+    public void testStartup() throws Exception {
+        long start = SystemClock.uptimeMillis();
+        getActivity();
+        waitForPreviewFrame();
+        long startup = SystemClock.uptimeMillis() - start;
+
+        long device = OPEN_LATENCY + START_PREVIEW_LATENCY;
+        Log.v(TAG, "Startup to first preview frame: " + startup + " ms, "
+                + (startup - device) + " ms on top of the device");
+        assertTrue(startup >= device);
+        assertTrue(mFakeCamera.getParametersTracker().getAppliedCount() > 0);
+    }
+
+    @LargeTest
+    public void testCapture() throws Exception {
+        final Camera activity = getActivity();
+        waitForPreviewFrame();
+
+        long start = SystemClock.uptimeMillis();
+        for (int i = 1; i <= NUMBER_OF_PICTURES; i++) {
+            getInstrumentation().sendKeyDownUpSync(KeyEvent.KEYCODE_DPAD_CENTER);
+            final int pictures = i;
+            waitFor("picture " + i, new Condition() {
+                @Override
+                public boolean isTrue() {
+                    return mFakeCamera.getPictureCount() >= pictures
+                            && activity.mJpegCallbackFinishTime > 0;
+                }
+            });
+            // The next picture can be taken once the preview is back.
+            waitForPreviewFrame();
+        }
+        long total = SystemClock.uptimeMillis() - start;
+
+        assertEquals(NUMBER_OF_PICTURES, mFakeCamera.getPictureCount());
+        long device = SHUTTER_LATENCY + JPEG_LATENCY + START_PREVIEW_LATENCY;
+        Log.v(TAG, "Shot to shot: " + total / NUMBER_OF_PICTURES + " ms, "
+                + (total / NUMBER_OF_PICTURES - device) + " ms on top of the device");
+        Log.v(TAG, "Parameters: " + mFakeCamera.getParametersTracker());
+    }
+
+    @LargeTest
+    public void testShotToShotBenchmark() throws Exception {
+        getActivity();
+        ShotToShotBenchmark benchmark =
+                new ShotToShotBenchmark(getInstrumentation(), NUMBER_OF_PICTURES);
+        assertTrue(benchmark.run());
+        Log.v(TAG, benchmark.getReport());
+
+        assertEquals(NUMBER_OF_PICTURES, mFakeCamera.getPictureCount());
+        assertTrue(benchmark.getPercentile(ShotToShotBenchmark.SHUTTER_LAG, 50)
+                >= SHUTTER_LATENCY);
+        assertTrue(benchmark.getPercentile(ShotToShotBenchmark.SHUTTER_TO_JPEG, 50)
+                >= JPEG_LATENCY);
+        assertTrue(benchmark.getPercentile(ShotToShotBenchmark.SHOT_TO_SHOT, 50)
+                >= SHUTTER_LATENCY + JPEG_LATENCY);
+    }
+}
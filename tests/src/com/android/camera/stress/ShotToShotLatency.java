@@ -16,27 +16,25 @@
 
 package com.android.camera.stress;
 
-import android.app.Instrumentation;
 import android.os.Environment;
 import android.test.ActivityInstrumentationTestCase2;
 import android.test.suitebuilder.annotation.LargeTest;
 import android.util.Log;
-import android.view.KeyEvent;
 import com.android.camera.Camera;
+import com.android.camera.ShotToShotBenchmark;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
 
 /**
- * Junit / Instrumentation test case for measuring camera shot to shot latency
+ * Junit / Instrumentation test case for measuring camera shot to shot latency.
+ * Each picture is taken as soon as the camera is idle after the previous one.
  */
 public class ShotToShotLatency extends ActivityInstrumentationTestCase2<Camera> {
     private String TAG = "ShotToShotLatency";
     private static final int TOTAL_NUMBER_OF_SNAPSHOTS = 250;
-    private static final long SNAPSHOT_WAIT = 1000;
     private static final String CAMERA_TEST_OUTPUT_FILE =
             Environment.getExternalStorageDirectory().toString() + "/mediaStressOut.txt";
     private static final String CAMERA_IMAGE_DIRECTORY =
@@ -75,58 +73,21 @@ public class ShotToShotLatency extends ActivityInstrumentationTestCase2<Camera>
         }
     }
 
-    private void sleep(long time) {
-        try {
-            Thread.sleep(time);
-        } catch (InterruptedException e) {
-            Log.e(TAG, "Sleep InterruptedException " + e.toString());
-        }
-    }
-
     @LargeTest
     public void testShotToShotLatency() {
-        long sigmaOfDiffFromMeanSquared = 0;
-        double mean = 0;
-        double standardDeviation = 0;
-        ArrayList<Long> captureTimes = new ArrayList<Long>();
-        ArrayList<Long> latencyTimes = new ArrayList<Long>();
-
         Log.v(TAG, "start testShotToShotLatency test");
-        Instrumentation inst = getInstrumentation();
-
-        // Generate data points
-        for (int i = 0; i < TOTAL_NUMBER_OF_SNAPSHOTS; i++) {
-            inst.sendKeyDownUpSync(KeyEvent.KEYCODE_DPAD_CENTER);
-            sleep(SNAPSHOT_WAIT);
-            Camera c = getActivity();
-            if (c.mCaptureStartTime > 0) {
-                captureTimes.add(c.mCaptureStartTime);
-            }
-        }
-
-        // Calculate latencies
-        for (int j = 1; j < captureTimes.size(); j++) {
-            latencyTimes.add(captureTimes.get(j) - captureTimes.get(j - 1));
-        }
-
-        // Crunch numbers
-        for (long dataPoint : latencyTimes) {
-            mean += (double) dataPoint;
-        }
-        mean /= latencyTimes.size();
-
-        for (long dataPoint : latencyTimes) {
-            sigmaOfDiffFromMeanSquared += (dataPoint - mean) * (dataPoint - mean);
-        }
-        standardDeviation = Math.sqrt(sigmaOfDiffFromMeanSquared / latencyTimes.size());
+        ShotToShotBenchmark benchmark = new ShotToShotBenchmark(getInstrumentation(),
+                TOTAL_NUMBER_OF_SNAPSHOTS);
+        assertTrue("Timed out taking pictures", benchmark.run());
+        String report = benchmark.getReport();
+        Log.v(TAG, report);
 
         // Report statistics
         File outFile = new File(CAMERA_TEST_OUTPUT_FILE);
         BufferedWriter output = null;
         try {
             output = new BufferedWriter(new FileWriter(outFile, true));
-            output.write("Shot to shot latency - mean: " + mean + "\n");
-            output.write("Shot to shot latency - standard deviation: " + standardDeviation + "\n");
+            output.write(report);
             cleanupLatencyImages();
         } catch (IOException e) {
             Log.e(TAG, "testShotToShotLatency IOException writing to log " + e.toString());
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.CameraRetentionPolicy;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class CameraRetentionPolicyTest extends TestCase {
+    private static final int BACK = 0;
+    private static final int FRONT = 1;
+
+    private CameraRetentionPolicy mPolicy;
+    private long mNow;
+
+    @Override
+    protected void setUp() {
+        mPolicy = new CameraRetentionPolicy();
+        mNow = 1000000;
+    }
+
+    // Releases fromId and opens toId gap milliseconds later.
+    private void transition(int fromId, int toId, long gap, boolean warm) {
+        mPolicy.onRelease(fromId, mNow);
+        mNow += gap;
+        if (warm) mPolicy.onIdleEnd(gap, mNow);
+        mPolicy.onOpen(toId, warm, warm ? 50 : 500, mNow);
+        mNow += 60000;
+    }
+
+    public void testDefaultWithoutHistory() {
+        assertEquals(3000, mPolicy.getRetention(BACK, mNow));
+        transition(BACK, BACK, 1000, true);
+        assertEquals(3000, mPolicy.getRetention(BACK, mNow));
+    }
+
+    public void testCoversRecentReopenings() {
+        transition(BACK, BACK, 1000, true);
+        transition(BACK, BACK, 2000, true);
+        transition(BACK, BACK, 1500, true);
+        transition(BACK, BACK, 4000, true);
+        transition(BACK, BACK, 1200, true);
+        // The 80th percentile of the gaps, plus the margin.
+        assertEquals(2000 + 500, mPolicy.getRetention(BACK, mNow));
+        // Nothing is known about the front camera yet.
+        assertEquals(3000, mPolicy.getRetention(FRONT, mNow));
+    }
+
+    public void testNoRetentionWhenSwitchingCameras() {
+        transition(BACK, FRONT, 1000, false);
+        transition(BACK, FRONT, 1000, false);
+        transition(BACK, BACK, 1000, true);
+        transition(BACK, FRONT, 1000, false);
+        assertEquals(0, mPolicy.getRetention(BACK, mNow));
+    }
+
+    public void testNoRetentionForLateReopenings() {
+        // No retention can cover these, so keeping the camera only costs.
+        transition(BACK, BACK, 60000, false);
+        transition(BACK, BACK, 60000, false);
+        transition(BACK, BACK, 60000, false);
+        assertEquals(0, mPolicy.getRetention(BACK, mNow));
+    }
+
+    public void testBoundedRetention() {
+        transition(BACK, BACK, 9000, true);
+        transition(BACK, BACK, 9500, true);
+        transition(BACK, BACK, 9800, true);
+        // Also resets the idle budget spent by the transitions.
+        mNow += 5 * 60 * 1000;
+        assertEquals(10000, mPolicy.getRetention(BACK, mNow));
+
+        // Use up most of the idle budget of the window.
+        mPolicy.onIdleEnd(28000, mNow);
+        assertEquals(2000, mPolicy.getRetention(BACK, mNow));
+        // It is available again in the next window.
+        mNow += 5 * 60 * 1000;
+        assertEquals(10000, mPolicy.getRetention(BACK, mNow));
+    }
+
+    public void testMetrics() {
+        transition(BACK, BACK, 1000, false);
+        transition(BACK, BACK, 1000, true);
+        transition(BACK, BACK, 1000, true);
+        transition(BACK, BACK, 1000, false);
+        assertEquals(2, mPolicy.getWarmOpens());
+        assertEquals(2, mPolicy.getColdOpens());
+        assertEquals(0.5f, mPolicy.getHitRate(), 1e-6);
+        assertEquals(2 * (500 - 50), mPolicy.getTimeSaved());
+        assertEquals(2000, mPolicy.getIdleTime());
+    }
+}
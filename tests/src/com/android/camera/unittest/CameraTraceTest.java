@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.CameraTrace;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class CameraTraceTest extends TestCase {
+    @Override
+    protected void setUp() {
+        CameraTrace.clear();
+    }
+
+    @Override
+    protected void tearDown() {
+        CameraTrace.clear();
+    }
+
+    private static String read(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        StringBuilder builder = new StringBuilder();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) builder.append(line).append('\n');
+        } finally {
+            reader.close();
+        }
+        return builder.toString();
+    }
+
+    private static int count(String s, String sub) {
+        int n = 0;
+        for (int i = s.indexOf(sub); i != -1; i = s.indexOf(sub, i + 1)) n++;
+        return n;
+    }
+
+    public void testLastTime() {
+        assertEquals(-1, CameraTrace.getLastTime(CameraTrace.CAPTURE));
+        long before = System.nanoTime();
+        CameraTrace.begin(CameraTrace.CAPTURE);
+        CameraTrace.mark(CameraTrace.SHUTTER);
+        long begin = CameraTrace.getLastTime(CameraTrace.CAPTURE);
+        CameraTrace.end(CameraTrace.CAPTURE);
+        long end = CameraTrace.getLastTime(CameraTrace.CAPTURE);
+
+        assertTrue(begin >= before);
+        assertTrue(end >= begin);
+        assertTrue(CameraTrace.getLastTime(CameraTrace.SHUTTER) >= begin);
+        assertEquals(-1, CameraTrace.getLastTime(CameraTrace.JPEG_PICTURE));
+    }
+
+    public void testDump() throws Exception {
+        CameraTrace.begin(CameraTrace.CAMERA_OPEN);
+        CameraTrace.end(CameraTrace.CAMERA_OPEN);
+        CameraTrace.mark(CameraTrace.FIRST_PREVIEW_FRAME);
+
+        File file = File.createTempFile("trace", ".json");
+        try {
+            CameraTrace.dump(file);
+            String json = read(file);
+            assertTrue(json.startsWith("{\"traceEvents\":["));
+            assertTrue(json.trim().endsWith("]}"));
+            assertEquals(3, count(json, "\"name\""));
+            assertEquals(2, count(json, "\"name\":\"camera open\""));
+            assertEquals(1, count(json, "\"ph\":\"B\""));
+            assertEquals(1, count(json, "\"ph\":\"E\""));
+            assertEquals(1, count(json, "\"ph\":\"i\""));
+            assertTrue(json.indexOf("\"ph\":\"B\"") < json.indexOf("\"ph\":\"E\""));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testKeepsLatestEvents() throws Exception {
+        // More than the buffer holds.
+        for (int i = 0; i < 10000; i++) CameraTrace.mark(CameraTrace.SHUTTER);
+        CameraTrace.mark(CameraTrace.THUMBNAIL_PAINT);
+
+        File file = File.createTempFile("trace", ".json");
+        try {
+            CameraTrace.dump(file);
+            String json = read(file);
+            assertEquals(4096, count(json, "\"name\""));
+            assertEquals(1, count(json, "thumbnail paint"));
+            assertTrue(json.indexOf("thumbnail paint") > json.lastIndexOf("shutter"));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.CapabilitySnapshot;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class CapabilitySnapshotTest extends TestCase {
+    private static final String PARAMS = "picture-size=2048x1536;"
+            + "picture-size-values=2048x1536,1024x768;zoom=0;zoom-supported=true;"
+            + "max-zoom=30;exposure-compensation-step=0.5;iso=auto";
+
+    public void testSettingsAreNotDrift() {
+        assertFalse(CapabilitySnapshot.hasDrifted(PARAMS, PARAMS));
+        // Current values and keys added by the settings do not count.
+        assertFalse(CapabilitySnapshot.hasDrifted(PARAMS, PARAMS
+                .replace("picture-size=2048x1536", "picture-size=1024x768")
+                .replace("zoom=0", "zoom=10") + ";gps-latitude=1.0"));
+    }
+
+    public void testCapabilitiesDrift() {
+        assertTrue(CapabilitySnapshot.hasDrifted(PARAMS,
+                PARAMS.replace("max-zoom=30", "max-zoom=60")));
+        assertTrue(CapabilitySnapshot.hasDrifted(PARAMS,
+                PARAMS.replace(",1024x768", "")));
+        assertTrue(CapabilitySnapshot.hasDrifted(PARAMS,
+                PARAMS + ";focus-mode-values=auto,macro"));
+        assertTrue(CapabilitySnapshot.hasDrifted(PARAMS,
+                PARAMS.replace("zoom-supported=true;", "")));
+    }
+}
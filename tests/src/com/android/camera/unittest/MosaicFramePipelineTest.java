@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.MosaicFramePipeline;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class MosaicFramePipelineTest extends TestCase {
+    private static final int NUM_FRAMES = 30;
+
+    // Hands over each frame at its own transfer, as the CPU renderer does.
+    private static class CpuTransfer implements MosaicFramePipeline.Transfer {
+        int mNextFrame;
+        int mLastFrame = -1;
+
+        public synchronized int transfer() {
+            mLastFrame = mNextFrame++;
+            return mLastFrame;
+        }
+    }
+
+    // Hands over each frame at the transfer of the next one, as the double
+    // buffered GL readback does.
+    private static class GpuTransfer implements MosaicFramePipeline.Transfer {
+        int mNextFrame;
+        int mLastFrame = -1;
+
+        public synchronized int transfer() {
+            int frame = mNextFrame++;
+            mLastFrame = frame - 1;
+            return mLastFrame;
+        }
+    }
+
+    private static class RecordingAligner implements MosaicFramePipeline.Aligner {
+        final ArrayList<Integer> mFrames = new ArrayList<Integer>();
+        final ArrayList<Thread> mThreads = new ArrayList<Thread>();
+        MosaicFramePipeline.Transfer mTransfer;
+        long mDelayMs;
+
+        public void alignFrame() {
+            int frame = mTransfer instanceof CpuTransfer
+                    ? ((CpuTransfer) mTransfer).mLastFrame
+                    : ((GpuTransfer) mTransfer).mLastFrame;
+            synchronized (this) {
+                mFrames.add(frame);
+                mThreads.add(Thread.currentThread());
+            }
+            sleep(mDelayMs);
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void renderFrames(MosaicFramePipeline pipeline,
+            MosaicFramePipeline.Transfer transfer, long intervalMs) {
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            long available = System.nanoTime();
+            sleep(intervalMs);
+            pipeline.onFrameRendered(available, System.nanoTime(), transfer);
+        }
+    }
+
+    private MosaicFramePipeline checkPipeline(MosaicFramePipeline.Transfer transfer,
+            int handedOver, long frameIntervalMs, long alignMs) {
+        RecordingAligner aligner = new RecordingAligner();
+        aligner.mTransfer = transfer;
+        aligner.mDelayMs = alignMs;
+        MosaicFramePipeline pipeline = new MosaicFramePipeline(aligner);
+
+        pipeline.start();
+        renderFrames(pipeline, transfer, frameIntervalMs);
+        // Let the aligner catch up before stopping, so nothing is dropped
+        // at the end.
+        sleep(alignMs * 3 + 50);
+        pipeline.stop();
+        assertFalse(pipeline.isRunning());
+        assertFalse(pipeline.isAligning());
+
+        int aligned = pipeline.getAlignedFrames();
+        assertEquals(aligner.mFrames.size(), aligned);
+        assertEquals(handedOver, aligned + pipeline.getDroppedFrames());
+        assertTrue(aligned > 0);
+        for (int i = 0; i < aligned; i++) {
+            assertNotSame(Thread.currentThread(), aligner.mThreads.get(i));
+            if (i > 0) assertTrue(aligner.mFrames.get(i) >= aligner.mFrames.get(i - 1));
+        }
+
+        assertEquals(NUM_FRAMES, pipeline.getSampleCount(MosaicFramePipeline.STAGE_RENDER));
+        assertEquals(handedOver,
+                pipeline.getSampleCount(MosaicFramePipeline.STAGE_READBACK_DELAY));
+        assertEquals(aligned, pipeline.getSampleCount(MosaicFramePipeline.STAGE_TOTAL));
+        assertTrue(pipeline.getMeanMillis(MosaicFramePipeline.STAGE_QUEUE)
+                >= frameIntervalMs);
+        assertTrue(pipeline.getMeanMillis(MosaicFramePipeline.STAGE_ALIGN) >= alignMs);
+        assertTrue(pipeline.getMaxMillis(MosaicFramePipeline.STAGE_TOTAL)
+                >= pipeline.getMeanMillis(MosaicFramePipeline.STAGE_TOTAL));
+        return pipeline;
+    }
+
+    public void testCpuTransfer() {
+        checkPipeline(new CpuTransfer(), NUM_FRAMES, 5, 2);
+    }
+
+    public void testGpuTransfer() {
+        // The last frame is still being read back when the capture stops.
+        checkPipeline(new GpuTransfer(), NUM_FRAMES - 1, 5, 2);
+        GpuTransfer transfer = new GpuTransfer();
+        RecordingAligner aligner = new RecordingAligner();
+        aligner.mTransfer = transfer;
+        MosaicFramePipeline pipeline = new MosaicFramePipeline(aligner);
+        pipeline.start();
+        pipeline.onFrameRendered(System.nanoTime(), System.nanoTime(), transfer);
+        pipeline.stop();
+        assertEquals(0, pipeline.getSampleCount(MosaicFramePipeline.STAGE_READBACK_DELAY));
+        assertTrue(pipeline.getMeanMillis(MosaicFramePipeline.STAGE_READBACK_DELAY) == 0);
+    }
+
+    public void testSlowAlignerDropsFrames() {
+        MosaicFramePipeline pipeline = checkPipeline(new CpuTransfer(), NUM_FRAMES, 2, 15);
+        assertTrue(pipeline.getDroppedFrames() > 0);
+    }
+
+    public void testStopWaitsForAlignment() {
+        final Object lock = new Object();
+        final boolean[] done = new boolean[1];
+        MosaicFramePipeline pipeline = new MosaicFramePipeline(
+                new MosaicFramePipeline.Aligner() {
+                    public void alignFrame() {
+                        sleep(100);
+                        synchronized (lock) {
+                            done[0] = true;
+                        }
+                    }
+                });
+        pipeline.start();
+        pipeline.onFrameRendered(System.nanoTime(), System.nanoTime(), new CpuTransfer());
+        while (!pipeline.isAligning()) sleep(1);
+        pipeline.stop();
+        synchronized (lock) {
+            assertTrue(done[0]);
+        }
+        assertEquals(1, pipeline.getAlignedFrames());
+
+        // Frames rendered after stop() are not handed over.
+        pipeline.onFrameRendered(System.nanoTime(), System.nanoTime(), new CpuTransfer());
+        assertEquals(1, pipeline.getSampleCount(MosaicFramePipeline.STAGE_RENDER));
+    }
+
+    public void testRestartResetsStatistics() {
+        CpuTransfer transfer = new CpuTransfer();
+        RecordingAligner aligner = new RecordingAligner();
+        aligner.mTransfer = transfer;
+        MosaicFramePipeline pipeline = new MosaicFramePipeline(aligner);
+        pipeline.start();
+        renderFrames(pipeline, transfer, 1);
+        pipeline.stop();
+        assertTrue(pipeline.getAlignedFrames() > 0);
+
+        pipeline.start();
+        assertEquals(0, pipeline.getAlignedFrames());
+        assertEquals(0, pipeline.getDroppedFrames());
+        assertEquals(0, pipeline.getSampleCount(MosaicFramePipeline.STAGE_RENDER));
+        pipeline.stop();
+    }
+}
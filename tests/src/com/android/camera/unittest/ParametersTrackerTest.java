@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.ParametersTracker;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ParametersTrackerTest extends TestCase {
+    private static final String PARAMS = "focus-mode=auto;zoom=0;flash-mode=off";
+
+    public void testSkipsUnchangedParameters() {
+        ParametersTracker tracker = new ParametersTracker();
+        assertTrue(tracker.needsApply(PARAMS));
+        tracker.onApplied(PARAMS);
+        assertFalse(tracker.needsApply(PARAMS));
+        assertTrue(tracker.needsApply("focus-mode=auto;zoom=1;flash-mode=off"));
+
+        assertEquals(1, tracker.getAppliedCount());
+        assertEquals(PARAMS.length(), tracker.getAppliedBytes());
+        assertEquals(1, tracker.getSkippedCount());
+        assertEquals(PARAMS.length(), tracker.getSkippedBytes());
+    }
+
+    public void testReadParametersAreOnDevice() {
+        ParametersTracker tracker = new ParametersTracker();
+        tracker.onRead(PARAMS);
+        assertFalse(tracker.needsApply(PARAMS));
+        assertEquals(0, tracker.getAppliedCount());
+
+        tracker.invalidate();
+        assertTrue(tracker.needsApply(PARAMS));
+    }
+
+    public void testStopTracking() {
+        ParametersTracker tracker = new ParametersTracker();
+        tracker.onApplied(PARAMS);
+        tracker.stopTracking();
+        assertTrue(tracker.needsApply(PARAMS));
+        tracker.onApplied(PARAMS);
+        tracker.onRead(PARAMS);
+        assertTrue(tracker.needsApply(PARAMS));
+        assertEquals(2, tracker.getAppliedCount());
+
+        tracker.reset();
+        assertEquals(0, tracker.getAppliedCount());
+        tracker.onApplied(PARAMS);
+        assertFalse(tracker.needsApply(PARAMS));
+    }
+
+    public void testDirtyKeys() {
+        ParametersTracker tracker = new ParametersTracker();
+        assertNull(tracker.getDirtyKeys(PARAMS));
+        tracker.onApplied(PARAMS);
+        assertEquals(0, tracker.getDirtyKeys(PARAMS).size());
+
+        ArrayList<String> dirty =
+                tracker.getDirtyKeys("focus-mode=macro;zoom=0;scene-mode=auto");
+        assertEquals(3, dirty.size());
+        assertTrue(dirty.contains("focus-mode"));
+        assertTrue(dirty.contains("scene-mode"));
+        assertTrue(dirty.contains("flash-mode"));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.CameraPreference;
+import com.android.camera.ListPreference;
+import com.android.camera.PreferenceGroup;
+import com.android.camera.PreferenceInflater;
+import com.android.camera.R;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.content.res.XmlResourceParser;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Checks the preferences inflated from the compiled tree against the
+ * attributes read from the XML with obtainStyledAttributes(), the way the
+ * preferences were inflated before the XML was compiled.
+ */
+@SmallTest
+public class PreferenceInflaterTest extends InstrumentationTestCase {
+
+    // The attributes of one element of the XML
+    private static class Element {
+        String tag;
+        String title;
+        String key;
+        CharSequence[] defaultValues;
+        CharSequence[] entries;
+        CharSequence[] entryValues;
+    }
+
+    private Context mContext;
+
+    @Override
+    protected void setUp() {
+        mContext = getInstrumentation().getTargetContext();
+    }
+
+    public void testCameraPreferences() throws Exception {
+        checkInflation(R.xml.camera_preferences);
+    }
+
+    public void testVideoPreferences() throws Exception {
+        checkInflation(R.xml.video_preferences);
+    }
+
+    private void checkInflation(int resId) throws Exception {
+        ArrayList<Element> expected = readXml(resId);
+        ArrayList<CameraPreference> actual = new ArrayList<CameraPreference>();
+        flatten(new PreferenceInflater(mContext).inflate(resId), actual);
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Element element = expected.get(i);
+            CameraPreference pref = actual.get(i);
+            assertEquals(element.tag, pref.getClass().getSimpleName());
+            assertEquals(element.title, pref.getTitle());
+            if (!(pref instanceof ListPreference)) continue;
+
+            ListPreference list = (ListPreference) pref;
+            assertEquals(element.key, list.getKey());
+            assertTextEquals(element.key, element.defaultValues,
+                    list.getDefaultValues());
+            assertTextEquals(element.key, element.entries, list.getEntries());
+            assertTextEquals(element.key, element.entryValues,
+                    list.getEntryValues());
+        }
+    }
+
+    // Lists the preferences depth first, in the order of the XML.
+    private static void flatten(CameraPreference pref,
+            ArrayList<CameraPreference> out) {
+        out.add(pref);
+        if (pref instanceof PreferenceGroup) {
+            PreferenceGroup group = (PreferenceGroup) pref;
+            for (int i = 0; i < group.size(); i++) {
+                flatten(group.get(i), out);
+            }
+        }
+    }
+
+    private ArrayList<Element> readXml(int resId) throws Exception {
+        ArrayList<Element> elements = new ArrayList<Element>();
+        XmlResourceParser parser = mContext.getResources().getXml(resId);
+        AttributeSet attrs = Xml.asAttributeSet(parser);
+        try {
+            for (int type = parser.next(); type != XmlPullParser.END_DOCUMENT;
+                    type = parser.next()) {
+                if (type != XmlPullParser.START_TAG) continue;
+                Element element = new Element();
+                element.tag = parser.getName();
+
+                TypedArray a = mContext.obtainStyledAttributes(
+                        attrs, R.styleable.CameraPreference, 0, 0);
+                element.title = a.getString(R.styleable.CameraPreference_title);
+                a.recycle();
+
+                if (!element.tag.equals("PreferenceGroup")) {
+                    a = mContext.obtainStyledAttributes(
+                            attrs, R.styleable.ListPreference, 0, 0);
+                    element.key = a.getString(R.styleable.ListPreference_key);
+                    int attrDefaultValue = R.styleable.ListPreference_defaultValue;
+                    TypedValue tv = a.peekValue(attrDefaultValue);
+                    if (tv != null && tv.type == TypedValue.TYPE_REFERENCE) {
+                        element.defaultValues = a.getTextArray(attrDefaultValue);
+                    } else {
+                        element.defaultValues = new CharSequence[] {
+                                a.getString(attrDefaultValue)};
+                    }
+                    element.entries = a.getTextArray(
+                            R.styleable.ListPreference_entries);
+                    element.entryValues = a.getTextArray(
+                            R.styleable.ListPreference_entryValues);
+                    a.recycle();
+                }
+                elements.add(element);
+            }
+        } finally {
+            parser.close();
+        }
+        return elements;
+    }
+
+    // ListPreference turns missing arrays into empty ones.
+    private static void assertTextEquals(String key, CharSequence[] expected,
+            CharSequence[] actual) {
+        assertEquals(key, toStrings(expected), toStrings(actual));
+    }
+
+    private static String toStrings(CharSequence[] text) {
+        if (text == null) return "[]";
+        String[] strings = new String[text.length];
+        for (int i = 0; i < text.length; i++) {
+            strings[i] = text[i] == null ? null : text[i].toString();
+        }
+        return Arrays.toString(strings);
+    }
+}
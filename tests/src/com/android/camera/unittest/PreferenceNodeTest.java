@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.PreferenceNode;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+@SmallTest
+public class PreferenceNodeTest extends TestCase {
+
+    private static byte[] toBytes(PreferenceNode node) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        node.write(out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static PreferenceNode fromBytes(byte[] bytes) throws IOException {
+        return PreferenceNode.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    public void testRoundTrip() throws IOException {
+        PreferenceNode root = new PreferenceNode(PreferenceNode.GROUP);
+        PreferenceNode group = new PreferenceNode(PreferenceNode.GROUP);
+        root.addChild(new PreferenceNode(PreferenceNode.ICON_LIST));
+        root.addChild(group);
+        group.addChild(new PreferenceNode(PreferenceNode.LIST));
+        group.addChild(new PreferenceNode(PreferenceNode.RECORD_LOCATION));
+
+        byte[] bytes = toBytes(root);
+        PreferenceNode read = fromBytes(bytes);
+        assertEquals(PreferenceNode.GROUP, read.getType());
+        assertEquals(2, read.getChildCount());
+        assertEquals(PreferenceNode.ICON_LIST, read.getChild(0).getType());
+        assertEquals(2, read.getChild(1).getChildCount());
+        assertEquals(PreferenceNode.RECORD_LOCATION,
+                read.getChild(1).getChild(1).getType());
+        assertTrue(Arrays.equals(bytes, toBytes(read)));
+    }
+
+    public void testCorruptData() throws IOException {
+        byte[] bytes = toBytes(new PreferenceNode(PreferenceNode.LIST));
+        bytes[0] = 42;
+        try {
+            fromBytes(bytes);
+            fail();
+        } catch (IOException e) {
+        }
+        try {
+            fromBytes(Arrays.copyOf(bytes, bytes.length - 1));
+            fail();
+        } catch (IOException e) {
+        }
+    }
+}
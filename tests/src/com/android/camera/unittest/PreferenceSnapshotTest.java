@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.CameraSettings;
+import com.android.camera.PreferenceSnapshot;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+
+@SmallTest
+public class PreferenceSnapshotTest extends TestCase {
+    private HashMap<String, Object> mGlobal;
+    private HashMap<String, Object> mLocal;
+
+    @Override
+    protected void setUp() {
+        mGlobal = new HashMap<String, Object>();
+        mLocal = new HashMap<String, Object>();
+    }
+
+    public void testRouting() {
+        mGlobal.put(CameraSettings.KEY_CAMERA_ID, "1");
+        mGlobal.put(CameraSettings.KEY_FLASH_MODE, "on");
+        mGlobal.put(CameraSettings.KEY_VERSION, 5);
+        // Global keys are never read from the local preferences.
+        mLocal.put(CameraSettings.KEY_CAMERA_ID, "0");
+        mLocal.put(CameraSettings.KEY_FLASH_MODE, "off");
+        mLocal.put(CameraSettings.KEY_SCENE_MODE, "night");
+
+        PreferenceSnapshot snapshot = new PreferenceSnapshot(3, mGlobal, mLocal);
+        assertEquals(3, snapshot.getVersion());
+        assertEquals("1", snapshot.getString(CameraSettings.KEY_CAMERA_ID, null));
+        assertEquals("off", snapshot.getString(CameraSettings.KEY_FLASH_MODE, null));
+        assertEquals("night", snapshot.getString(CameraSettings.KEY_SCENE_MODE, null));
+        assertEquals(5, snapshot.getInt(CameraSettings.KEY_VERSION, 0));
+        assertEquals("auto", snapshot.getString(CameraSettings.KEY_FOCUS_MODE, "auto"));
+
+        // Before the camera is known, everything is global.
+        snapshot = new PreferenceSnapshot(1, mGlobal, null);
+        assertEquals("on", snapshot.getString(CameraSettings.KEY_FLASH_MODE, null));
+    }
+
+    public void testTypedSettings() {
+        mLocal.put(CameraSettings.KEY_EXPOSURE, "-2");
+        mLocal.put(CameraSettings.KEY_HUE, "bad");
+        mLocal.put(CameraSettings.KEY_AE_LOCK, "1");
+
+        PreferenceSnapshot snapshot = new PreferenceSnapshot(1, mGlobal, mLocal);
+        assertEquals(-2, snapshot.getExposure());
+        assertEquals(0, snapshot.getHue());
+        assertEquals(0, snapshot.getBrightness());
+        assertEquals(100, snapshot.getJpegQuality());
+        assertTrue(snapshot.isAeLocked());
+        assertFalse(snapshot.isAwbLocked());
+    }
+}
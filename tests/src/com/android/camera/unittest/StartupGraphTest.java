@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.StartupGraph;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class StartupGraphTest extends TestCase {
+    private final ArrayList<String> mOrder = new ArrayList<String>();
+
+    private Runnable record(final String name, final long sleepMs) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                synchronized (mOrder) {
+                    mOrder.add(name);
+                }
+            }
+        };
+    }
+
+    public void testRunsAfterDependencies() throws Exception {
+        StartupGraph graph = new StartupGraph("test");
+        StartupGraph.Task a = graph.addTask("a", record("a", 50));
+        StartupGraph.Task b = graph.addTask("b", record("b", 0));
+        StartupGraph.Task c = graph.addTask("c", record("c", 0), a, b);
+        graph.start();
+        graph.await();
+
+        assertTrue(graph.isDone());
+        assertEquals(3, mOrder.size());
+        assertEquals("b", mOrder.get(0));
+        assertEquals("c", mOrder.get(2));
+        assertTrue(c.getStartTime() >= a.getEndTime());
+        assertTrue(c.getStartTime() >= b.getEndTime());
+
+        // a finished after b, so it is on the critical path.
+        ArrayList<StartupGraph.Task> path = graph.getCriticalPath();
+        assertEquals(2, path.size());
+        assertSame(a, path.get(0));
+        assertSame(c, path.get(1));
+    }
+
+    public void testExternalTask() throws Exception {
+        StartupGraph graph = new StartupGraph("test");
+        StartupGraph.Task views = graph.addExternalTask("views");
+        final CountDownLatch ran = new CountDownLatch(1);
+        graph.addTask("preview", new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, views);
+        graph.start();
+        assertFalse(ran.await(50, TimeUnit.MILLISECONDS));
+        assertFalse(graph.isDone());
+
+        graph.complete(views);
+        graph.await();
+        assertTrue(graph.isDone());
+        assertEquals(0, ran.getCount());
+    }
+
+    public void testCancelSkipsPendingTasks() throws Exception {
+        final StartupGraph graph = new StartupGraph("test");
+        StartupGraph.Task open = graph.addTask("open", new Runnable() {
+            @Override
+            public void run() {
+                // As when the camera fails to open.
+                graph.cancel();
+            }
+        });
+        graph.addTask("preview", record("preview", 0), open);
+        graph.addExternalTask("views");
+        graph.start();
+        graph.await();
+
+        assertTrue(graph.isCancelled());
+        assertFalse(graph.isDone());
+        assertEquals(0, mOrder.size());
+    }
+
+    public void testRunsOnGivenExecutor() throws Exception {
+        final ArrayList<Runnable> posted = new ArrayList<Runnable>();
+        StartupGraph graph = new StartupGraph("test");
+        StartupGraph.Task a = graph.addTask("a", record("a", 0));
+        graph.addTask("main", record("main", 0), new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                synchronized (posted) {
+                    posted.add(r);
+                    posted.notifyAll();
+                }
+            }
+        }, a);
+        graph.start();
+        synchronized (posted) {
+            while (posted.isEmpty()) posted.wait();
+        }
+        assertFalse(graph.isDone());
+        posted.get(0).run();
+        assertTrue(graph.isDone());
+        assertEquals("main", mOrder.get(1));
+    }
+
+    public void testUnknownDependency() {
+        StartupGraph other = new StartupGraph("other");
+        StartupGraph.Task task = other.addExternalTask("task");
+        try {
+            new StartupGraph("test").addTask("a", record("a", 0), task);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}